@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
+import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.TagConfig;
+import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
+import com.chitek.ignition.drivers.generictcp.tests.TestUtils;
+import com.chitek.ignition.drivers.generictcp.types.BinaryDataType;
+import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
+
+/**
+ * Measures the evaluation of a received message by an {@link IndexMessageFolder}. The message is passed to the folder
+ * and evaluated by running the command scheduled in the {@link MockDriverContext}.
+ * <ul>
+ * <li>SMALL - testMessageConfig.xml with two Int16 tags</li>
+ * <li>LARGE - An UInt16 array with 10000 elements and a 1000 byte string</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFolderBenchmark {
+
+	private static final int LARGE_ARRAY_SIZE = 10000;
+	private static final int LARGE_STRING_LENGTH = 1000;
+
+	@Param({ "SMALL", "LARGE" })
+	public String messageSize;
+
+	private MockDriverContext driverContext;
+	private IndexMessageFolder folder;
+	private byte[] payload;
+	private long timeReceived;
+
+	@Setup
+	public void setup() throws Exception {
+		driverContext = new MockDriverContext("DeviceName");
+		DriverSettings driverSettings = new DriverSettings("noHost", 0, true, 1000, 1000, false, 1, 0xffffffffL, OptionalDataType.None);
+
+		MessageConfig messageConfig;
+		if (messageSize.equals("LARGE")) {
+			messageConfig = new MessageConfig(1);
+			messageConfig.setMessageAlias("Large");
+			messageConfig.addTagConfig(createTagConfig(1, "Array", BinaryDataType.UInt16, LARGE_ARRAY_SIZE));
+			messageConfig.addTagConfig(createTagConfig(2, "String", BinaryDataType.String, LARGE_STRING_LENGTH));
+			payload = new byte[LARGE_ARRAY_SIZE * 2 + LARGE_STRING_LENGTH];
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] = (byte) ('A' + i % 26);
+			}
+		} else {
+			messageConfig = TestUtils.readMessageConfig("/testMessageConfig.xml");
+			payload = new byte[] { 0, 1, 0, 2 };
+		}
+
+		folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+	}
+
+	@Benchmark
+	public int evaluateMessage() throws Exception {
+		folder.messageArrived(new MessageEnvelope(folder.getFolderId(), ++timeReceived, 0, 0, payload), null);
+		// Run the evaluation and all commands scheduled by it
+		int commands = 0;
+		while (driverContext.getExecutor().getScheduledCount() > 0) {
+			driverContext.getExecutor().runCommand();
+			commands++;
+		}
+		return commands;
+	}
+
+	private static TagConfig createTagConfig(int id, String alias, BinaryDataType dataType, int size) {
+		TagConfig tagConfig = new TagConfig();
+		tagConfig.setId(id);
+		tagConfig.setAlias(alias);
+		tagConfig.setDataType(dataType);
+		tagConfig.setSize(size);
+		return tagConfig;
+	}
+}
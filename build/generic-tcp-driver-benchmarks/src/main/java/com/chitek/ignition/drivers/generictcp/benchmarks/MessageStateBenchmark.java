@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
+import com.chitek.ignition.drivers.generictcp.io.IMessageHandler;
+import com.chitek.ignition.drivers.generictcp.io.MessageState;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
+import com.chitek.ignition.drivers.generictcp.tests.TestUtils;
+import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
+
+/**
+ * Measures {@link MessageState#addData(ByteBuffer, long)} with one read of received data per operation.
+ * <ul>
+ * <li>FIXED - A read with 100 fixed length messages without a header</li>
+ * <li>PACKET_BASED - A read with one packet based message, completed by its deadline</li>
+ * <li>HEADER - A read with a header followed by 100 fixed length messages</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageStateBenchmark {
+
+	private static final int MESSAGES_PER_READ = 100;
+	/** Message ID 1 from testMessageConfig.xml with two Int16 tags */
+	private static final byte[] FIXED_MESSAGE = new byte[] { 0, 1, 0, 2, 0, 3 };
+	/** Message ID 1 from testMessageConfigPacketBased.xml with an Int16 and a packet based String */
+	private static final byte[] PACKET_BASED_MESSAGE = new byte[] { 0, 1, 0, 2, 'p', 'a', 'c', 'k', 'e', 't' };
+
+	@Param({ "FIXED", "PACKET_BASED", "HEADER" })
+	public String framing;
+
+	private MessageState state;
+	private ByteBuffer data;
+	private final CountingHandler handler = new CountingHandler();
+	private long now;
+
+	@Setup
+	public void setup() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0, true, 1000, 1000, false, 1, 0xffffffffL, OptionalDataType.UInt16);
+		DriverConfig driverConfig = new DriverConfig();
+		driverConfig.setMessageIdType(driverSettings.getMessageIdType());
+		InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 }), 1999);
+
+		MessageHeader messageHeader = null;
+		if (framing.equals("PACKET_BASED")) {
+			driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfigPacketBased.xml"));
+			data = ByteBuffer.wrap(PACKET_BASED_MESSAGE);
+		} else {
+			driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
+			int headerLength = 0;
+			if (framing.equals("HEADER")) {
+				messageHeader = new MessageHeader(TestUtils.readHeaderConfig("/testHeaderConfig.xml"), ByteOrder.BIG_ENDIAN);
+				headerLength = messageHeader.getHeaderLength();
+			}
+
+			data = ByteBuffer.allocate(headerLength + MESSAGES_PER_READ * FIXED_MESSAGE.length);
+			if (headerLength > 0) {
+				// Packet size including the header, followed by the fixed value
+				data.putShort((short) data.capacity());
+				data.putShort((short) 0xff);
+			}
+			for (int i = 0; i < MESSAGES_PER_READ; i++) {
+				data.put(FIXED_MESSAGE);
+			}
+			data.flip();
+		}
+
+		state = new MessageState(remoteSocket, null, messageHeader, driverConfig, driverSettings);
+		state.setMessageHandler(handler);
+	}
+
+	@Benchmark
+	public int addData() {
+		data.rewind();
+		now++;
+		state.addData(data, now);
+		if (state.getMessageDeadline() != 0) {
+			// Complete the packet based message
+			state.checkMessageDeadline(state.getMessageDeadline());
+		}
+		return handler.payloadBytes;
+	}
+
+	private static class CountingHandler implements IMessageHandler {
+		int payloadBytes;
+
+		@Override
+		public void messageReceived(InetSocketAddress remoteSocket, int messageId, MessageEnvelope messageData, byte[] handshakeMessage) {
+			payloadBytes += messageData.getPayloadLength();
+		}
+
+		@Override
+		public boolean clientConnected(InetSocketAddress remoteSocket) {
+			return true;
+		}
+
+		@Override
+		public void clientDisconnected(InetSocketAddress remoteSocket) {
+		}
+
+		@Override
+		public void clientReadTimeout(InetSocketAddress remoteSocket) {
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chitek.util.PersistentQueue;
+
+/**
+ * Measures adding a message to a {@link PersistentQueue} and polling the oldest message. The queue is filled with
+ * queueSize messages before the measurement, so add and poll work on a queue with a constant size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistentQueueBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean usePersistance;
+
+	@Param({ "0", "1000" })
+	public int queueSize;
+
+	@Param({ "64", "1024" })
+	public int messageLength;
+
+	private File directory;
+	private PersistentQueue<byte[]> queue;
+	private byte[] message;
+
+	@Setup
+	public void setup() throws Exception {
+		directory = Files.createTempDirectory("queue-benchmark").toFile();
+		queue = new PersistentQueue<byte[]>(new File(directory, "queue.bin").getPath(), 1, usePersistance, null);
+		message = new byte[messageLength];
+		for (int i = 0; i < queueSize; i++) {
+			queue.add(message);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		queue.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public byte[] addPoll() {
+		queue.add(message);
+		return queue.poll();
+	}
+}
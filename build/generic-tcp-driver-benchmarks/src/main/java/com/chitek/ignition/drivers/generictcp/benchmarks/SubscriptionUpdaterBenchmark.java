@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+import com.chitek.ignition.drivers.generictcp.folder.MessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.SubscriptionUpdater;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
+import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.TagConfig;
+import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
+import com.chitek.ignition.drivers.generictcp.tests.folders.MockSubscriptionItem;
+import com.chitek.ignition.drivers.generictcp.types.BinaryDataType;
+import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
+import com.inductiveautomation.ignition.common.execution.SelfSchedulingRunnable;
+import com.inductiveautomation.xopc.driver.api.items.SubscriptionItem;
+
+/**
+ * Measures {@link SubscriptionUpdater#run()} for a folder with thousands of subscribed items. Each item is an element
+ * of an UInt16 array. One operation runs the updater twice, the first run updates the data items, the second run the
+ * special items.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionUpdaterBenchmark {
+
+	@Param({ "1000", "5000" })
+	public int itemCount;
+
+	private SelfSchedulingRunnable subscriptionUpdater;
+
+	@Setup
+	public void setup() throws Exception {
+		MockDriverContext driverContext = new MockDriverContext("DeviceName");
+		DriverSettings driverSettings = new DriverSettings("noHost", 0, true, 1000, 1000, false, 1, 0xffffffffL, OptionalDataType.None);
+
+		MessageConfig messageConfig = new MessageConfig(1);
+		messageConfig.setMessageAlias("Alias");
+		TagConfig tagConfig = new TagConfig();
+		tagConfig.setId(1);
+		tagConfig.setAlias("Array");
+		tagConfig.setDataType(BinaryDataType.UInt16);
+		tagConfig.setSize(itemCount);
+		messageConfig.addTagConfig(tagConfig);
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+
+		// Evaluate a message, so the items have a value
+		folder.messageArrived(new MessageEnvelope(folder.getFolderId(), 1, 0, 0, new byte[itemCount * 2]), null);
+		driverContext.getExecutor().runCommand();
+
+		List<SubscriptionItem> items = new ArrayList<SubscriptionItem>(itemCount);
+		for (int i = 0; i < itemCount; i++) {
+			items.add(new MockSubscriptionItem(String.format("Alias/Array[%d]", i), 1000));
+		}
+		folder.changeSubscription(items, null);
+
+		subscriptionUpdater = driverContext.getSelfSchedulingRunnable(folder.getFolderAddress(), MessageFolder.UPDATER_COMMAND_NAME);
+		// The first run adds the items to the subscription
+		subscriptionUpdater.run();
+		subscriptionUpdater.run();
+	}
+
+	@Benchmark
+	public long run() {
+		subscriptionUpdater.run();
+		subscriptionUpdater.run();
+		return subscriptionUpdater.getNextExecDelayMillis();
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.benchmarks;
+
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.chitek.ignition.drivers.generictcp.util.VariantByteBuffer;
+
+/**
+ * Measures the {@link VariantByteBuffer} decoders. Every operation decodes the whole data block, either as one array
+ * or as single values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariantByteBufferBenchmark {
+
+	@Param({ "64", "4096" })
+	public int length;
+
+	@Param({ "BIG_ENDIAN", "LITTLE_ENDIAN" })
+	public String byteOrder;
+
+	private byte[] data;
+	private ByteOrder order;
+
+	@Setup
+	public void setup() {
+		data = new byte[length];
+		new Random(42).nextBytes(data);
+		order = byteOrder.equals("BIG_ENDIAN") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+	}
+
+	private VariantByteBuffer buffer() {
+		return new VariantByteBuffer(data).order(order);
+	}
+
+	@Benchmark
+	public Variant readUInt16Array() {
+		return buffer().readUInt16(length / 2);
+	}
+
+	@Benchmark
+	public void readUInt16Values(Blackhole blackhole) {
+		VariantByteBuffer buffer = buffer();
+		for (int i = 0; i < length / 2; i++) {
+			blackhole.consume(buffer.readUInt16(1));
+		}
+	}
+
+	@Benchmark
+	public Variant readInt32Array() {
+		return buffer().readInt32(length / 4);
+	}
+
+	@Benchmark
+	public Variant readUInt32Array() {
+		return buffer().readUInt32(length / 4);
+	}
+
+	@Benchmark
+	public Variant readFloatArray() {
+		return buffer().readFloat(length / 4);
+	}
+
+	@Benchmark
+	public Variant readBool16Array() {
+		return buffer().readBool16(length / 2);
+	}
+
+	@Benchmark
+	public Variant readString() {
+		return buffer().readString(length);
+	}
+
+	@Benchmark
+	public Variant readByteString() {
+		return buffer().readByteString(length);
+	}
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
+
+/**
+ * Base class of the command line tools in this package. Handles the option parsing, the usage output and the loading
+ * of the driver configuration. Options are given as <code>--name value</code>.
+ * <P>
+ * An invalid option or value is reported with an {@link IllegalArgumentException}. The message is printed and the
+ * tool exits with status 1, other exceptions exit with status 2.
+ */
+abstract class CommandLineTool {
+
+	protected final Map<String, String> options;
+	protected final PrintStream out = System.out;
+
+	protected CommandLineTool(Map<String, String> options) {
+		this.options = options;
+	}
+
+	/**
+	 * Creates a tool with the parsed options.
+	 */
+	interface Factory {
+		CommandLineTool create(Map<String, String> options);
+	}
+
+	/**
+	 * Runs the tool.
+	 */
+	abstract void run() throws Exception;
+
+	/**
+	 * Parses the arguments, runs the tool created by the factory and exits.
+	 *
+	 * @param args
+	 *            The command line arguments
+	 * @param usage
+	 *            The usage line printed before the options
+	 * @param validOptions
+	 *            The name and description of every option
+	 * @param factory
+	 *            Creates the tool
+	 */
+	static void main(String[] args, String usage, String[][] validOptions, Factory factory) {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		Map<String, String> options;
+		try {
+			options = parseArguments(args, validOptions);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage(usage, validOptions);
+			System.exit(1);
+			return;
+		}
+
+		try {
+			factory.create(options).run();
+			System.exit(0);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(2);
+		}
+	}
+
+	protected String getOption(String name, String defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			if (defaultValue == null)
+				throw new IllegalArgumentException(String.format("Option --%s is required", name));
+			return defaultValue;
+		}
+		return value;
+	}
+
+	/**
+	 * @param defaultValue
+	 *            The value if the option is not given. A negative value makes the option required.
+	 */
+	protected int getIntOption(String name, int defaultValue, int min, int max) {
+		String value = options.get(name);
+		if (value == null) {
+			if (defaultValue < 0)
+				throw new IllegalArgumentException(String.format("Option --%s is required", name));
+			return defaultValue;
+		}
+		int result = parseInt(name, value);
+		if (result < min || result > max)
+			throw new IllegalArgumentException(String.format("Option --%s must be in the range %d-%d", name, min, max));
+		return result;
+	}
+
+	protected static int parseInt(String name, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid value '%s' for option --%s", value, name));
+		}
+	}
+
+	/**
+	 * @return The message configuration from the file given with the required option --config
+	 */
+	protected DriverConfig readDriverConfig() throws Exception {
+		DriverConfig driverConfig = DriverConfig.fromXMLString(readFile(getOption("config", null)));
+		if (driverConfig == null)
+			throw new IllegalArgumentException("The message configuration is empty");
+		if (driverConfig.getParserWarnings() != null)
+			out.println("Message configuration warnings: " + driverConfig.getParserWarnings());
+		return driverConfig;
+	}
+
+	/**
+	 * @return The header configuration from the file given with the option --header, or <code>null</code> if the option
+	 *         is not given
+	 */
+	protected HeaderConfig readHeaderConfig() throws Exception {
+		if (!options.containsKey("header"))
+			return null;
+		return HeaderConfig.fromXMLString(readFile(options.get("header")));
+	}
+
+	private static String readFile(String fileName) throws IOException {
+		File file = new File(fileName);
+		if (!file.isFile())
+			throw new IllegalArgumentException(String.format("File '%s' not found", fileName));
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	static Map<String, String> parseArguments(String[] args, String[][] validOptions) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+			if (name == null || !isOption(name, validOptions))
+				throw new IllegalArgumentException(String.format("Unknown option '%s'", args[i]));
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException(String.format("Missing value for option '%s'", args[i]));
+			options.put(name, args[++i]);
+		}
+		return options;
+	}
+
+	private static boolean isOption(String name, String[][] validOptions) {
+		for (String[] option : validOptions) {
+			if (option[0].equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	private static void printUsage(String usage, String[][] validOptions) {
+		System.err.println("Usage: " + usage);
+		for (String[] option : validOptions) {
+			System.err.println(String.format("  --%-20s %s", option[0], option[1]));
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
+
+/**
+ * Command line device simulator to load test the server driver. The simulator reads the message and header
+ * configuration of a driver, opens a number of TCP connections or UDP sockets and sends framed messages with random
+ * values at a target rate. When the header uses a handshake, every packet is matched with its handshake to measure the
+ * round trip time. Packets without a handshake within the timeout are counted as rejected.
+ * <P>
+ * Usage: <code>java -cp benchmarks.jar com.chitek.ignition.drivers.generictcp.simulator.DeviceSimulator --config
+ * messages.xml --port 2000 [options]</code>
+ */
+public class DeviceSimulator extends CommandLineTool {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+	/** The NioUdpServer receives datagrams into a buffer of this size */
+	private static final int MAX_DATAGRAM_SIZE = 8192;
+	/** The packet size in the header is an unsigned 16 bit value */
+	private static final int MAX_PACKET_SIZE = 65535;
+
+	private static final String[][] OPTIONS = {
+		{ "config", "File with the DriverConfig XML (messages). Required." },
+		{ "header", "File with the HeaderConfig XML. Default: no header" },
+		{ "host", "Host of the server driver. Default: localhost" },
+		{ "port", "Port of the server driver. Required." },
+		{ "source-address", "Local IPv4 address of the first device, the following devices use the next addresses. Default: 127.0.0.1 for a loopback host" },
+		{ "protocol", "tcp or udp. Default: tcp" },
+		{ "connections", "Number of simulated devices. Default: 1" },
+		{ "rate", "Total target rate in messages per second. Default: 1000" },
+		{ "duration", "Duration of the test in seconds. Default: 60" },
+		{ "messages-per-packet", "Number of messages sent in one packet. Default: 1" },
+		{ "message-ids", "Comma separated IDs of the messages to send. Default: all messages" },
+		{ "byte-order", "big or little, as configured in the driver. Default: big" },
+		{ "window", "Maximum number of packets that wait for a handshake. Default: 1" },
+		{ "handshake-timeout", "Handshake timeout in milliseconds. Default: 5000" },
+		{ "report", "Report interval in seconds. Default: 5" },
+		{ "seed", "Seed for the random values. Default: random" } };
+
+	private final SimulatorStatistics statistics = new SimulatorStatistics();
+	private final List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>();
+
+	private long lastReportTime;
+	private long lastMessagesSent;
+	private long lastMessagesConfirmed;
+	private long lastMessagesRejected;
+
+	DeviceSimulator(Map<String, String> options) {
+		super(options);
+	}
+
+	public static void main(String[] args) {
+		main(args, "DeviceSimulator --config <file> --port <port> [options]", OPTIONS, new Factory() {
+			@Override
+			public CommandLineTool create(Map<String, String> options) {
+				return new DeviceSimulator(options);
+			}
+		});
+	}
+
+	@Override
+	void run() throws Exception {
+		DriverConfig driverConfig = readDriverConfig();
+		HeaderConfig headerConfig = readHeaderConfig();
+
+		boolean udp = getOption("protocol", "tcp").equalsIgnoreCase("udp");
+		InetSocketAddress address = new InetSocketAddress(getOption("host", "localhost"), getIntOption("port", -1, 1, 65535));
+		int connections = getIntOption("connections", 1, 1, 100000);
+		int rate = getIntOption("rate", 1000, 1, Integer.MAX_VALUE);
+		int duration = getIntOption("duration", 60, 1, Integer.MAX_VALUE);
+		int messagesPerPacket = getIntOption("messages-per-packet", 1, 1, 10000);
+		int window = getIntOption("window", 1, 1, 10000);
+		long handshakeTimeout = getIntOption("handshake-timeout", 5000, 1, Integer.MAX_VALUE) * NANOS_PER_MILLI;
+		long reportInterval = getIntOption("report", 5, 1, Integer.MAX_VALUE) * NANOS_PER_SECOND;
+		ByteOrder byteOrder = getOption("byte-order", "big").equalsIgnoreCase("little") ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		InetAddress sourceAddress = null;
+		if (options.containsKey("source-address")) {
+			sourceAddress = InetAddress.getByName(options.get("source-address"));
+		} else if (address.getAddress() != null && address.getAddress().isLoopbackAddress() && address.getAddress() instanceof Inet4Address) {
+			sourceAddress = InetAddress.getByName("127.0.0.1");
+		} else if (connections > 1) {
+			out.println("Warning: The driver accepts one connection per IP address. Use --source-address to give each device its own address.");
+		}
+		if (sourceAddress != null && !(sourceAddress instanceof Inet4Address))
+			throw new IllegalArgumentException("Option --source-address must be an IPv4 address");
+		long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : System.nanoTime();
+		List<Integer> messageIds = null;
+		if (options.containsKey("message-ids")) {
+			messageIds = new ArrayList<Integer>();
+			for (String id : options.get("message-ids").split(",")) {
+				messageIds.add(parseInt("message-ids", id.trim()));
+			}
+		}
+
+		// Check the configuration and the packet size
+		PacketGenerator sample = new PacketGenerator(driverConfig, messageIds, headerConfig, byteOrder, seed);
+		int maxPacketSize = udp ? MAX_DATAGRAM_SIZE : MAX_PACKET_SIZE;
+		if (sample.getMaxPacketLength(messagesPerPacket) > maxPacketSize && (udp || headerConfig != null))
+			throw new IllegalArgumentException(String.format("Packets with %d messages may exceed the maximum packet size of %d bytes", messagesPerPacket, maxPacketSize));
+		try {
+			sample.nextPacket(messagesPerPacket);
+		} catch (IllegalStateException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+
+		out.println(String.format("Simulating %d %s devices sending %d messages/s to %s for %d s", connections, udp ? "UDP" : "TCP", rate, address, duration));
+		List<Integer> generatedIds = new ArrayList<Integer>();
+		for (MessageConfig messageConfig : sample.getMessages()) {
+			generatedIds.add(messageConfig.getMessageId());
+		}
+		out.println(String.format("Message IDs: %s, %d per packet, handshake: %s", generatedIds, messagesPerPacket, sample.isUseHandshake() ? "yes" : "no"));
+
+		// The interval between two packets of one device
+		long sendInterval = Math.max(1, (long) ((double) NANOS_PER_SECOND * messagesPerPacket * connections / rate));
+		Random random = new Random(seed);
+		Selector selector = Selector.open();
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			PacketGenerator generator = new PacketGenerator(driverConfig, messageIds, headerConfig, byteOrder, seed + i);
+			SimulatedDevice device = new SimulatedDevice(generator, statistics, udp, messagesPerPacket, sendInterval, window, handshakeTimeout);
+			try {
+				InetAddress localAddress = sourceAddress != null ? getNextAddress(sourceAddress, i) : null;
+				device.connect(selector, address, localAddress, start + (long) (random.nextDouble() * sendInterval));
+				devices.add(device);
+			} catch (IOException e) {
+				statistics.connectFailures++;
+				device.close();
+			}
+		}
+
+		long end = start + duration * NANOS_PER_SECOND;
+		long nextReport = start + reportInterval;
+		lastReportTime = start;
+		while (true) {
+			long now = System.nanoTime();
+			boolean sending = now < end;
+			if (!sending && (getOutstanding() == 0 || now - end > handshakeTimeout))
+				break;
+
+			long nextEvent = Math.min(nextReport, sending ? end : end + handshakeTimeout);
+			for (SimulatedDevice device : devices) {
+				nextEvent = Math.min(nextEvent, device.getNextEventTime(sending));
+			}
+			long waitMillis = (nextEvent - now) / NANOS_PER_MILLI;
+			if (waitMillis > 0)
+				selector.select(waitMillis);
+			else
+				selector.selectNow();
+
+			now = System.nanoTime();
+			for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext();) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				if (key.isValid())
+					((SimulatedDevice) key.attachment()).handleKey(now);
+			}
+
+			for (SimulatedDevice device : devices) {
+				device.checkHandshakeTimeout(now);
+				if (sending)
+					device.send(now);
+			}
+
+			if (now >= nextReport) {
+				report(now - start, now, sample.isUseHandshake());
+				nextReport += reportInterval;
+			}
+		}
+
+		long elapsed = Math.min(System.nanoTime(), end) - start;
+		for (SimulatedDevice device : devices) {
+			device.close();
+		}
+		selector.close();
+		summary(elapsed, connections, sample.isUseHandshake());
+	}
+
+	/**
+	 * @return The IPv4 address that follows the given address by offset
+	 */
+	static InetAddress getNextAddress(InetAddress address, int offset) throws IOException {
+		int value = ByteBuffer.wrap(address.getAddress()).getInt() + offset;
+		return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(value).array());
+	}
+
+	private int getOutstanding() {
+		int outstanding = 0;
+		for (SimulatedDevice device : devices) {
+			outstanding += device.getOutstanding();
+		}
+		return outstanding;
+	}
+
+	private void report(long elapsed, long now, boolean useHandshake) {
+		double seconds = (double) (now - lastReportTime) / NANOS_PER_SECOND;
+		String line = String.format("%7.1f s  %d connected  %9.0f msg/s sent", (double) elapsed / NANOS_PER_SECOND, statistics.connections,
+			(statistics.messagesSent - lastMessagesSent) / seconds);
+		if (useHandshake) {
+			long[] percentiles = statistics.intervalRoundTrip.getPercentiles(50, 99);
+			line += String.format("  %9.0f msg/s confirmed  %d rejected  round trip p50 %.2f ms p99 %.2f ms",
+				(statistics.messagesConfirmed - lastMessagesConfirmed) / seconds, statistics.messagesRejected - lastMessagesRejected, percentiles[0] / 1000.0,
+				percentiles[1] / 1000.0);
+		}
+		out.println(line);
+
+		lastReportTime = now;
+		lastMessagesSent = statistics.messagesSent;
+		lastMessagesConfirmed = statistics.messagesConfirmed;
+		lastMessagesRejected = statistics.messagesRejected;
+		statistics.intervalRoundTrip.reset();
+	}
+
+	private void summary(long elapsed, int connections, boolean useHandshake) {
+		double seconds = (double) elapsed / NANOS_PER_SECOND;
+		out.println();
+		out.println(String.format("Duration:    %.1f s", seconds));
+		out.println(String.format("Connections: %d opened, %d failed, %d closed by the driver", connections - statistics.connectFailures,
+			statistics.connectFailures, statistics.connectionsClosed));
+		out.println(String.format("Sent:        %d messages in %d packets, %.0f messages/s, %.2f MB/s", statistics.messagesSent, statistics.packetsSent,
+			statistics.messagesSent / seconds, statistics.bytesSent / seconds / (1024 * 1024)));
+		if (useHandshake) {
+			out.println(String.format("Confirmed:   %d messages, %.0f messages/s", statistics.messagesConfirmed, statistics.messagesConfirmed / seconds));
+			out.println(String.format("Rejected:    %d messages without handshake", statistics.messagesRejected));
+			LatencyRecorder roundTrip = statistics.roundTrip;
+			long[] percentiles = roundTrip.getPercentiles(50, 90, 99, 99.9);
+			out.println(String.format("Handshake round trip (ms): min %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f  (%d samples)",
+				roundTrip.getMin() / 1000.0, percentiles[0] / 1000.0, percentiles[1] / 1000.0, percentiles[2] / 1000.0, percentiles[3] / 1000.0,
+				roundTrip.getMax() / 1000.0, roundTrip.getCount()));
+		} else {
+			out.println("Confirmed:   no handshake configured, messages can not be confirmed");
+		}
+		if (statistics.unexpectedBytes > 0)
+			out.println(String.format("Unexpected:  %d received bytes did not match a handshake", statistics.unexpectedBytes));
+	}
+}
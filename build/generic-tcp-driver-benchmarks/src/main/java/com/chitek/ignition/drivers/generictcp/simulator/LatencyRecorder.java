@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Records latencies in microseconds. When more samples are recorded than the recorder can hold, a random subset of all
+ * samples is kept (reservoir sampling), so the percentiles are still representative for the whole run.
+ */
+class LatencyRecorder {
+
+	private final int[] samples;
+	private final Random random = new Random();
+	private int size;
+	private long count;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	/**
+	 * @param capacity
+	 *            The maximum number of samples to keep
+	 */
+	LatencyRecorder(int capacity) {
+		samples = new int[capacity];
+	}
+
+	/**
+	 * @param nanos
+	 *            The latency in nanoseconds
+	 */
+	void record(long nanos) {
+		long micros = nanos / 1000;
+		count++;
+		min = Math.min(min, micros);
+		max = Math.max(max, micros);
+
+		int value = (int) Math.min(micros, Integer.MAX_VALUE);
+		if (size < samples.length) {
+			samples[size++] = value;
+		} else {
+			long index = (long) (random.nextDouble() * count);
+			if (index < samples.length)
+				samples[(int) index] = value;
+		}
+	}
+
+	void reset() {
+		size = 0;
+		count = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The minimum latency in microseconds
+	 */
+	long getMin() {
+		return count > 0 ? min : 0;
+	}
+
+	/**
+	 * @return The maximum latency in microseconds
+	 */
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentiles
+	 *            The percentiles to calculate, e.g. 99.9
+	 * @return The latencies in microseconds for the given percentiles
+	 */
+	long[] getPercentiles(double... percentiles) {
+		long[] result = new long[percentiles.length];
+		if (size == 0)
+			return result;
+
+		int[] sorted = Arrays.copyOf(samples, size);
+		Arrays.sort(sorted);
+		for (int i = 0; i < percentiles.length; i++) {
+			int index = (int) Math.ceil(percentiles[i] / 100 * size) - 1;
+			result[i] = sorted[Math.max(0, Math.min(size - 1, index))];
+		}
+		return result;
+	}
+}
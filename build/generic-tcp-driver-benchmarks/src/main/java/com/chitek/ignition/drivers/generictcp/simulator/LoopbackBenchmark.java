@@ -0,0 +1,632 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaNode;
+
+import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+import com.chitek.ignition.drivers.generictcp.io.DeviceStatistics;
+import com.chitek.ignition.drivers.generictcp.io.IMessageHandler;
+import com.chitek.ignition.drivers.generictcp.io.NioEventHandler;
+import com.chitek.ignition.drivers.generictcp.io.NioServer;
+import com.chitek.ignition.drivers.generictcp.io.NioTcpServer;
+import com.chitek.ignition.drivers.generictcp.io.NioUdpServer;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
+import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.TagConfig;
+import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
+import com.chitek.ignition.drivers.generictcp.types.BinaryDataType;
+import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
+import com.chitek.util.LatencyHistogram;
+
+/**
+ * Command line tool to measure the end-to-end throughput of the server driver's I/O stack on the loopback interface.
+ * For every protocol and device count, a {@link NioTcpServer} or {@link NioUdpServer} with a {@link NioEventHandler} is
+ * started, every simulated device sends to its own {@link IndexMessageFolder} and the messages are evaluated by a real
+ * thread pool. The tool reports the evaluated messages per second, the CPU time per message and the latency from
+ * sending a message until its evaluation is finished, and writes the results as JSON.
+ * <P>
+ * Usage: <code>java -cp benchmarks.jar com.chitek.ignition.drivers.generictcp.simulator.LoopbackBenchmark [options]</code>
+ */
+public class LoopbackBenchmark extends CommandLineTool {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+	/** Time in milliseconds to wait for all connections, and for the evaluation of all messages at the end of a run */
+	private static final int SETTLE_TIMEOUT = 10000;
+	/** A sender that is more than this time behind its schedule skips the missed messages, in nanoseconds */
+	private static final long MAX_LAG = 100 * NANOS_PER_MILLI;
+	private static final int MESSAGE_ID = 1;
+	private static final int VALUE_COUNT = 8;
+	/** Message ID, send time and values */
+	private static final int MESSAGE_LENGTH = 2 + 8 + VALUE_COUNT * 2;
+	/** Logger of the message folders. Every dropped message is logged as an error, the drops are counted instead. */
+	private static final String DRIVER_LOGGER = "LoopbackBenchmark.Driver";
+
+	private static final String[][] OPTIONS = {
+		{ "protocol", "tcp, udp or both. Default: both" },
+		{ "devices", "Comma separated list of simulated device counts. Default: 1,10,100,1000" },
+		{ "rate", "Total messages per second sent by all devices, or max to send without delay. Default: 20000" },
+		{ "duration", "Measured time per run in seconds. Default: 10" },
+		{ "warmup", "Time before the measurement in seconds. Default: 3" },
+		{ "threads", "Number of threads that evaluate the messages. Default: 2" },
+		{ "senders", "Number of threads that send the messages. Default: 4" },
+		{ "source-address", "Local IPv4 address of the first device, the following devices use the next addresses. Default: 127.0.0.1" },
+		{ "output", "File for the JSON results. Default: loopback-benchmark.json" } };
+
+	private final Logger log = Logger.getLogger("LoopbackBenchmark");
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private DriverConfig driverConfig;
+	private DriverSettings driverSettings;
+	private MessageConfig messageConfig;
+	private InetAddress sourceAddress;
+	private int rate;
+	private int duration;
+	private int warmup;
+	private int threads;
+	private int senders;
+
+	LoopbackBenchmark(Map<String, String> options) {
+		super(options);
+	}
+
+	public static void main(String[] args) {
+		Logger.getLogger(DRIVER_LOGGER).setLevel(Level.FATAL);
+		main(args, "LoopbackBenchmark [options]", OPTIONS, new Factory() {
+			@Override
+			public CommandLineTool create(Map<String, String> options) {
+				return new LoopbackBenchmark(options);
+			}
+		});
+	}
+
+	@Override
+	void run() throws Exception {
+		String protocol = getOption("protocol", "both");
+		List<Boolean> protocols = new ArrayList<Boolean>();
+		if (protocol.equalsIgnoreCase("tcp") || protocol.equalsIgnoreCase("both"))
+			protocols.add(Boolean.FALSE);
+		if (protocol.equalsIgnoreCase("udp") || protocol.equalsIgnoreCase("both"))
+			protocols.add(Boolean.TRUE);
+		if (protocols.isEmpty())
+			throw new IllegalArgumentException(String.format("Invalid value '%s' for option --protocol", protocol));
+
+		List<Integer> deviceCounts = new ArrayList<Integer>();
+		for (String value : getOption("devices", "1,10,100,1000").split(",")) {
+			int devices;
+			try {
+				devices = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Invalid value '%s' for option --devices", value));
+			}
+			if (devices < 1 || devices > 65535)
+				throw new IllegalArgumentException("Option --devices must be in the range 1-65535");
+			deviceCounts.add(devices);
+		}
+
+		String rateOption = getOption("rate", "20000");
+		rate = rateOption.equalsIgnoreCase("max") ? 0 : getIntOption("rate", 20000, 1, Integer.MAX_VALUE);
+		duration = getIntOption("duration", 10, 1, 3600);
+		warmup = getIntOption("warmup", 3, 0, 3600);
+		threads = getIntOption("threads", 2, 1, 256);
+		senders = getIntOption("senders", 4, 1, 256);
+		sourceAddress = InetAddress.getByName(getOption("source-address", "127.0.0.1"));
+		if (sourceAddress.getAddress().length != 4)
+			throw new IllegalArgumentException("Option --source-address must be an IPv4 address");
+		String output = getOption("output", "loopback-benchmark.json");
+
+		driverSettings = new DriverSettings("loopback", 0, true, 1000, 1000, false, 1, 0xffffffffL, OptionalDataType.UInt16);
+		messageConfig = new MessageConfig(MESSAGE_ID);
+		messageConfig.setMessageAlias("Benchmark");
+		messageConfig.addTagConfig(createTagConfig(1, "SendTime", BinaryDataType.UInt32, 2));
+		messageConfig.addTagConfig(createTagConfig(2, "Values", BinaryDataType.Int16, VALUE_COUNT));
+		driverConfig = new DriverConfig();
+		driverConfig.setMessageIdType(driverSettings.getMessageIdType());
+		driverConfig.addMessageConfig(messageConfig);
+
+		out.println(String.format("%-5s %7s %10s %10s %10s %10s %12s %12s %10s %10s", "", "devices", "sent", "evaluated", "dropped", "msg/s",
+			"cpu us/msg", "proc us/msg", "p50 us", "p99 us"));
+		List<Result> results = new ArrayList<Result>();
+		for (Boolean udp : protocols) {
+			for (Integer devices : deviceCounts) {
+				Result result = runScenario(udp, devices);
+				results.add(result);
+				out.println(String.format(Locale.ROOT, "%-5s %7d %10d %10d %10d %10.0f %12.2f %12.2f %10d %10d", result.protocol, result.devices,
+					result.sent, result.evaluated, result.dropped, result.getMessagesPerSecond(), result.getDriverCpuPerMessage(),
+					result.getProcessCpuPerMessage(), result.latency[0], result.latency[1]));
+			}
+		}
+
+		Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8);
+		try {
+			writeJson(writer, results);
+		} finally {
+			writer.close();
+		}
+		out.println(String.format("Results written to %s", output));
+	}
+
+	private Result runScenario(boolean udp, int deviceCount) throws Exception {
+		BenchmarkContext context = new BenchmarkContext(threads);
+		DeviceStatistics statistics = new DeviceStatistics();
+		IndexMessageFolder[] folders = new IndexMessageFolder[deviceCount];
+		Map<InetAddress, IndexMessageFolder> folderMap = new HashMap<InetAddress, IndexMessageFolder>();
+		List<InetAddress> addresses = new ArrayList<InetAddress>(deviceCount);
+		for (int i = 0; i < deviceCount; i++) {
+			folders[i] = new IndexMessageFolder(messageConfig, driverSettings, i + 1, String.format("Device%d/%s", i + 1,
+				messageConfig.getMessageAlias()), context);
+			folders[i].setStatistics(statistics);
+			InetAddress address = DeviceSimulator.getNextAddress(sourceAddress, i);
+			addresses.add(address);
+			folderMap.put(address, folders[i]);
+		}
+
+		BenchmarkHandler handler = new BenchmarkHandler(context, folderMap, driverSettings.getByteOrder());
+		InetSocketAddress hostAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+		NioServer server;
+		InetSocketAddress serverAddress;
+		if (udp) {
+			NioUdpServer udpServer = new NioUdpServer(hostAddress, log);
+			udpServer.setEventHandler(new NioEventHandler(log, driverConfig, driverSettings, null, handler));
+			udpServer.start();
+			serverAddress = (InetSocketAddress) udpServer.getLocalAddress();
+			server = udpServer;
+		} else {
+			NioTcpServer tcpServer = new NioTcpServer(hostAddress, log);
+			tcpServer.setEventHandler(new NioEventHandler(log, driverConfig, driverSettings, null, handler));
+			tcpServer.start();
+			serverAddress = (InetSocketAddress) tcpServer.getLocalAddress();
+			server = tcpServer;
+		}
+
+		List<LoopbackDevice> devices = new ArrayList<LoopbackDevice>(deviceCount);
+		List<Sender> senderList = new ArrayList<Sender>();
+		try {
+			for (InetAddress address : addresses) {
+				devices.add(new LoopbackDevice(serverAddress, address, udp, driverSettings.getByteOrder()));
+			}
+			if (!udp) {
+				long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+				while (server.getConnectedClientCount() < deviceCount && System.currentTimeMillis() < deadline) {
+					Thread.sleep(10);
+				}
+				if (server.getConnectedClientCount() < deviceCount)
+					throw new IOException(String.format("Only %d of %d devices are connected", server.getConnectedClientCount(), deviceCount));
+			}
+
+			int senderCount = Math.min(senders, deviceCount);
+			long interval = rate > 0 ? senderCount * NANOS_PER_SECOND / rate : 0;
+			for (int i = 0; i < senderCount; i++) {
+				List<LoopbackDevice> senderDevices = new ArrayList<LoopbackDevice>();
+				for (int d = i; d < deviceCount; d += senderCount) {
+					senderDevices.add(devices.get(d));
+				}
+				Sender sender = new Sender(senderDevices, interval);
+				senderList.add(sender);
+				sender.start();
+			}
+
+			Thread.sleep(warmup * 1000L);
+			context.histogram.reset();
+			long startSent = sumSent(senderList);
+			long startDelivered = handler.delivered.sum();
+			long startEvaluated = context.evaluated.sum();
+			long startDropped = statistics.getMessagesDropped();
+			long startCpu = getDriverCpuTime(context, handler);
+			long startProcessCpu = getProcessCpuTime();
+			long start = System.nanoTime();
+
+			Thread.sleep(duration * 1000L);
+
+			Result result = new Result(udp ? "udp" : "tcp", deviceCount);
+			result.seconds = (double) (System.nanoTime() - start) / NANOS_PER_SECOND;
+			result.sent = sumSent(senderList) - startSent;
+			result.delivered = handler.delivered.sum() - startDelivered;
+			result.evaluated = context.evaluated.sum() - startEvaluated;
+			result.dropped = statistics.getMessagesDropped() - startDropped;
+			long cpu = getDriverCpuTime(context, handler);
+			result.driverCpu = cpu >= 0 && startCpu >= 0 ? cpu - startCpu : -1;
+			long processCpu = getProcessCpuTime();
+			result.processCpu = processCpu >= 0 && startProcessCpu >= 0 ? processCpu - startProcessCpu : -1;
+			result.latency = context.histogram.getPercentiles(50, 99, 99.9);
+			result.maxLatency = context.histogram.getMax();
+			for (Sender sender : senderList) {
+				if (sender.failure != null)
+					throw sender.failure;
+			}
+			return result;
+		} finally {
+			for (Sender sender : senderList) {
+				sender.running = false;
+				sender.join();
+			}
+			for (LoopbackDevice device : devices) {
+				device.close();
+			}
+			server.stop();
+			context.shutdown();
+			for (IndexMessageFolder folder : folders) {
+				folder.shutdown();
+			}
+		}
+	}
+
+	private static long sumSent(List<Sender> senderList) {
+		long sent = 0;
+		for (Sender sender : senderList) {
+			sent += sender.sent;
+		}
+		return sent;
+	}
+
+	/**
+	 * @return The CPU time of the server thread and the evaluation threads in nanoseconds, or -1 if the thread CPU time is
+	 *         not supported
+	 */
+	private long getDriverCpuTime(BenchmarkContext context, BenchmarkHandler handler) {
+		if (!threadBean.isThreadCpuTimeSupported())
+			return -1;
+		List<Thread> driverThreads = context.getThreads();
+		Thread serverThread = handler.serverThread;
+		if (serverThread != null)
+			driverThreads.add(serverThread);
+		long cpu = 0;
+		for (Thread thread : driverThreads) {
+			long threadCpu = threadBean.getThreadCpuTime(thread.getId());
+			if (threadCpu > 0)
+				cpu += threadCpu;
+		}
+		return cpu;
+	}
+
+	/**
+	 * @return The CPU time of the whole process, including the senders, in nanoseconds, or -1 if it is not available
+	 */
+	private static long getProcessCpuTime() {
+		OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+		if (osBean instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+		return -1;
+	}
+
+	private void writeJson(Writer writer, List<Result> results) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"benchmark\": \"loopback\",\n");
+		json.append(String.format("  \"date\": %s,\n", quote(String.format("%tFT%<tT%<tz", new Date()))));
+		json.append(String.format("  \"java\": %s,\n", quote(System.getProperty("java.version"))));
+		json.append(String.format("  \"os\": %s,\n", quote(System.getProperty("os.name") + " " + System.getProperty("os.arch"))));
+		json.append(String.format("  \"processors\": %d,\n", Runtime.getRuntime().availableProcessors()));
+		json.append(String.format("  \"settings\": { \"rate\": %s, \"duration\": %d, \"warmup\": %d, \"threads\": %d, \"senders\": %d, \"messageLength\": %d },\n",
+			rate > 0 ? Integer.toString(rate) : "\"max\"", duration, warmup, threads, senders, MESSAGE_LENGTH));
+		json.append("  \"results\": [");
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append(String.format(Locale.ROOT, "    { \"protocol\": \"%s\", \"devices\": %d, \"seconds\": %.3f, \"messagesSent\": %d, "
+				+ "\"messagesReceived\": %d, \"messagesEvaluated\": %d, \"messagesDropped\": %d, \"messagesPerSecond\": %.1f, "
+				+ "\"driverCpuMicrosPerMessage\": %.3f, \"processCpuMicrosPerMessage\": %.3f, "
+				+ "\"latencyMicros\": { \"p50\": %d, \"p99\": %d, \"p99.9\": %d, \"max\": %d } }", result.protocol, result.devices,
+				result.seconds, result.sent, result.delivered, result.evaluated, result.dropped, result.getMessagesPerSecond(),
+				result.getDriverCpuPerMessage(), result.getProcessCpuPerMessage(), result.latency[0], result.latency[1], result.latency[2],
+				result.maxLatency));
+		}
+		json.append("\n  ]\n}\n");
+		writer.write(json.toString());
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static TagConfig createTagConfig(int id, String alias, BinaryDataType dataType, int size) {
+		TagConfig tagConfig = new TagConfig();
+		tagConfig.setId(id);
+		tagConfig.setAlias(alias);
+		tagConfig.setDataType(dataType);
+		tagConfig.setSize(size);
+		return tagConfig;
+	}
+
+	/**
+	 * A driver context that evaluates the messages with a thread pool, like the driver. Evaluations of received messages
+	 * are timed from the send time in the message until the evaluation is finished.
+	 */
+	private static class BenchmarkContext extends MockDriverContext {
+		private final ExecutorService executor;
+		private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		private final List<Thread> threads = new ArrayList<Thread>();
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final LongAdder evaluated = new LongAdder();
+		/** Send time of the message that is passed to a folder, only used by the server thread */
+		private long sendTime;
+
+		BenchmarkContext(int threadCount) {
+			super("Loopback");
+			executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Evaluation");
+					thread.setDaemon(true);
+					synchronized (threads) {
+						threads.add(thread);
+					}
+					return thread;
+				}
+			});
+		}
+
+		/**
+		 * Set the send time of the message that is passed to a folder by the calling thread. An evaluation that is
+		 * started by the folder while the send time is set records the latency.
+		 */
+		void setSendTime(long sendTime) {
+			this.sendTime = sendTime;
+		}
+
+		List<Thread> getThreads() {
+			synchronized (threads) {
+				return new ArrayList<Thread>(threads);
+			}
+		}
+
+		void shutdown() throws InterruptedException {
+			executor.shutdown();
+			executor.awaitTermination(SETTLE_TIMEOUT, TimeUnit.MILLISECONDS);
+			scheduler.shutdownNow();
+		}
+
+		@Override
+		public String getLoggerName() {
+			return DRIVER_LOGGER;
+		}
+
+		@Override
+		public UaNode addNode(UaNode node, String address) {
+			return node;
+		}
+
+		@Override
+		public void executeOnce(final Runnable command) {
+			final long messageSendTime = sendTime;
+			if (messageSendTime == 0) {
+				executor.execute(command);
+				return;
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					command.run();
+					histogram.record(System.nanoTime() - messageSendTime);
+					evaluated.increment();
+				}
+			});
+		}
+
+		@Override
+		public ScheduledFuture<?> executeOnce(Runnable command, long delay, TimeUnit unit) {
+			return scheduler.schedule(command, delay, unit);
+		}
+	}
+
+	/**
+	 * Passes the received messages to the folder of the sending device. Called by the server thread.
+	 */
+	private static class BenchmarkHandler implements IMessageHandler {
+		private final BenchmarkContext context;
+		private final Map<InetAddress, IndexMessageFolder> folderMap;
+		private final ByteOrder byteOrder;
+		final LongAdder delivered = new LongAdder();
+		volatile Thread serverThread;
+
+		BenchmarkHandler(BenchmarkContext context, Map<InetAddress, IndexMessageFolder> folderMap, ByteOrder byteOrder) {
+			this.context = context;
+			this.folderMap = folderMap;
+			this.byteOrder = byteOrder;
+		}
+
+		@Override
+		public void messageReceived(InetSocketAddress remoteSocket, int messageId, MessageEnvelope messageData, byte[] handshakeMessage) {
+			if (serverThread == null)
+				serverThread = Thread.currentThread();
+			IndexMessageFolder folder = folderMap.get(remoteSocket.getAddress());
+			if (folder == null)
+				return;
+			delivered.increment();
+			context.setSendTime(ByteBuffer.wrap(messageData.getData(), messageData.getPayloadOffset(), 8).order(byteOrder).getLong());
+			folder.messageArrived(messageData, handshakeMessage);
+			context.setSendTime(0);
+		}
+
+		@Override
+		public boolean clientConnected(InetSocketAddress remoteSocket) {
+			if (serverThread == null)
+				serverThread = Thread.currentThread();
+			return folderMap.containsKey(remoteSocket.getAddress());
+		}
+
+		@Override
+		public void clientDisconnected(InetSocketAddress remoteSocket) {
+		}
+
+		@Override
+		public void clientReadTimeout(InetSocketAddress remoteSocket) {
+		}
+	}
+
+	/**
+	 * A simulated device with a blocking TCP connection or a connected UDP socket.
+	 */
+	private static class LoopbackDevice {
+		private final ByteChannel channel;
+		private final ByteBuffer buffer;
+		private short value;
+
+		LoopbackDevice(InetSocketAddress serverAddress, InetAddress localAddress, boolean udp, ByteOrder byteOrder) throws IOException {
+			if (udp) {
+				DatagramChannel datagramChannel = DatagramChannel.open();
+				datagramChannel.bind(new InetSocketAddress(localAddress, 0));
+				datagramChannel.connect(serverAddress);
+				channel = datagramChannel;
+			} else {
+				SocketChannel socketChannel = SocketChannel.open();
+				socketChannel.bind(new InetSocketAddress(localAddress, 0));
+				socketChannel.socket().setTcpNoDelay(true);
+				socketChannel.connect(serverAddress);
+				channel = socketChannel;
+			}
+			buffer = ByteBuffer.allocate(MESSAGE_LENGTH).order(byteOrder);
+		}
+
+		void send(long sendTime) throws IOException {
+			buffer.clear();
+			buffer.putShort((short) MESSAGE_ID);
+			buffer.putLong(sendTime);
+			for (int i = 0; i < VALUE_COUNT; i++) {
+				buffer.putShort(value++);
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Sends messages from a group of devices in turn, with a fixed interval or without delay.
+	 */
+	private static class Sender extends Thread {
+		private final List<LoopbackDevice> devices;
+		private final long interval;
+		volatile boolean running = true;
+		volatile long sent;
+		volatile Exception failure;
+
+		Sender(List<LoopbackDevice> devices, long interval) {
+			super("Sender");
+			this.devices = devices;
+			this.interval = interval;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long next = System.nanoTime();
+			int index = 0;
+			try {
+				while (running) {
+					if (interval > 0) {
+						long now = System.nanoTime();
+						long wait = next - now;
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+							continue;
+						}
+						if (wait < -MAX_LAG)
+							next = now;
+						next += interval;
+					}
+					devices.get(index).send(System.nanoTime());
+					index = index + 1 < devices.size() ? index + 1 : 0;
+					sent++;
+				}
+			} catch (IOException e) {
+				if (running)
+					failure = e;
+			}
+		}
+	}
+
+	private static class Result {
+		final String protocol;
+		final int devices;
+		double seconds;
+		long sent;
+		long delivered;
+		long evaluated;
+		long dropped;
+		long driverCpu;
+		long processCpu;
+		long[] latency;
+		long maxLatency;
+
+		Result(String protocol, int devices) {
+			this.protocol = protocol;
+			this.devices = devices;
+		}
+
+		double getMessagesPerSecond() {
+			return evaluated / seconds;
+		}
+
+		/**
+		 * @return CPU time of the server and evaluation threads in microseconds per evaluated message, or -1
+		 */
+		double getDriverCpuPerMessage() {
+			return driverCpu >= 0 && evaluated > 0 ? driverCpu / 1000.0 / evaluated : -1;
+		}
+
+		/**
+		 * @return CPU time of the process in microseconds per evaluated message, or -1
+		 */
+		double getProcessCpuPerMessage() {
+			return processCpu >= 0 && evaluated > 0 ? processCpu / 1000.0 / evaluated : -1;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.HeaderTagConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.TagConfig;
+import com.chitek.ignition.drivers.generictcp.types.BinaryDataType;
+import com.chitek.ignition.drivers.generictcp.types.MessageType;
+import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
+
+/**
+ * Generates framed packets with random tag values for a driver configuration. Every simulated device uses its own
+ * generator, because the header sequence id and the expected handshake depend on the packets sent before.
+ * <P>
+ * Packet based messages are not generated, because their end is only detected by the message timeout.
+ */
+class PacketGenerator {
+
+	/** The maximum number of random bytes appended to a message with a variable length tag at the end */
+	private static final int MAX_VARIABLE_LENGTH = 16;
+
+	private final List<MessageConfig> messages;
+	private final OptionalDataType messageIdType;
+	private final ByteOrder byteOrder;
+	private final HeaderConfig headerConfig;
+	private final MessageHeader messageHeader;
+	private final Random random;
+	private final long startTime = System.currentTimeMillis();
+	private int sequenceId;
+
+	/**
+	 * @param driverConfig
+	 *            The message configuration
+	 * @param messageIds
+	 *            The IDs of the messages to generate, or <code>null</code> to generate all messages
+	 * @param headerConfig
+	 *            The header configuration, or <code>null</code> if no header is used
+	 * @param byteOrder
+	 *            The byte order configured in the driver settings
+	 * @param seed
+	 *            Seed for the random values
+	 * @throws IllegalArgumentException
+	 *             if the configuration contains no message that can be generated
+	 */
+	PacketGenerator(DriverConfig driverConfig, List<Integer> messageIds, HeaderConfig headerConfig, ByteOrder byteOrder, long seed) {
+		this.messageIdType = driverConfig.getMessageIdType();
+		this.byteOrder = byteOrder;
+		this.headerConfig = headerConfig != null && headerConfig.isUseHeader() ? headerConfig : null;
+		this.messageHeader = this.headerConfig != null ? new MessageHeader(this.headerConfig, byteOrder) : null;
+		this.random = new Random(seed);
+
+		messages = new ArrayList<MessageConfig>();
+		for (MessageConfig messageConfig : driverConfig.getMessageList()) {
+			if (messageIds != null && !messageIds.contains(messageConfig.getMessageId()))
+				continue;
+			if (messageConfig.getMessageType() != MessageType.PACKET_BASED)
+				messages.add(messageConfig);
+		}
+		if (messages.isEmpty())
+			throw new IllegalArgumentException("The configuration contains no fixed length, length field or delimited message to generate");
+	}
+
+	/**
+	 * @return The configured messages that are generated
+	 */
+	List<MessageConfig> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @param messagesPerPacket
+	 *            The number of messages in a packet
+	 * @return The maximum length of a generated packet
+	 */
+	int getMaxPacketLength(int messagesPerPacket) {
+		int maxLength = 0;
+		for (MessageConfig messageConfig : messages) {
+			int length = messageConfig.getMessageLength();
+			if (messageConfig.getMessageType() == MessageType.LENGTH_FIELD)
+				length = Math.max(length, messageConfig.getLengthFieldEnd());
+			else if (messageConfig.getMessageType() == MessageType.DELIMITED)
+				length += messageConfig.getDelimiterBytes().length;
+			maxLength = Math.max(maxLength, length + MAX_VARIABLE_LENGTH);
+		}
+		return (headerConfig != null ? headerConfig.getHeaderSize() : 0) + (messageIdType.getByteSize() + maxLength) * messagesPerPacket;
+	}
+
+	/**
+	 * @return <code>true</code> if the driver answers each packet with a handshake message
+	 */
+	boolean isUseHandshake() {
+		return headerConfig != null && headerConfig.isUseHandshake();
+	}
+
+	/**
+	 * Generate a packet with random messages. With a header, all messages share one header. Without a header, the
+	 * messages are simply concatenated.
+	 * 
+	 * @param messageCount
+	 *            The number of messages in the packet
+	 * @return The generated packet
+	 */
+	Packet nextPacket(int messageCount) {
+		int headerSize = headerConfig != null ? headerConfig.getHeaderSize() : 0;
+		long timestamp = (System.currentTimeMillis() - startTime) & 0xffffffffL;
+
+		List<byte[]> encoded = new ArrayList<byte[]>(messageCount);
+		int length = headerSize;
+		for (int i = 0; i < messageCount; i++) {
+			byte[] message = nextMessage(messages.get(random.nextInt(messages.size())), timestamp);
+			encoded.add(message);
+			length += message.length;
+		}
+
+		ByteBuffer packet = ByteBuffer.allocate(length).order(byteOrder);
+		packet.position(headerSize);
+		for (byte[] message : encoded) {
+			packet.put(message);
+		}
+
+		byte[] handshake = null;
+		if (headerConfig != null) {
+			writeHeader(packet, length, timestamp);
+			byte[] header = new byte[headerSize];
+			System.arraycopy(packet.array(), 0, header, 0, headerSize);
+			if (!messageHeader.evaluateHeader(header))
+				throw new IllegalStateException("The generated header does not match the header configuration");
+			handshake = messageHeader.getHandshakeMsg();
+		}
+
+		return new Packet(packet.array(), messageCount, isUseHandshake() ? handshake : null);
+	}
+
+	private void writeHeader(ByteBuffer packet, int packetLength, long timestamp) {
+		for (HeaderTagConfig tag : headerConfig.getTags()) {
+			int offset = tag.getOffset();
+			switch (tag.getDataType()) {
+			case PacketSize:
+				int packetSize = headerConfig.isSizeIncludesHeader() ? packetLength : packetLength - headerConfig.getHeaderSize();
+				packet.putShort(offset, (short) packetSize);
+				break;
+			case Timestamp:
+				packet.putInt(offset, (int) timestamp);
+				break;
+			case SequenceId:
+				packet.putShort(offset, (short) sequenceId++);
+				break;
+			case Byte:
+				packet.put(offset, (byte) tag.getValue());
+				break;
+			case Word:
+				packet.putShort(offset, (short) tag.getValue());
+				break;
+			default:
+				// Dummy bytes are left 0
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Generate a message including the message ID.
+	 */
+	private byte[] nextMessage(MessageConfig messageConfig, long timestamp) {
+		List<TagConfig> tags = messageConfig.getTags();
+		boolean variableLength = !tags.isEmpty() && tags.get(tags.size() - 1).getDataType().supportsVariableLength();
+		int dataLength = messageConfig.getMessageLength() + (variableLength ? random.nextInt(MAX_VARIABLE_LENGTH + 1) : 0);
+		if (messageConfig.getMessageType() == MessageType.LENGTH_FIELD)
+			dataLength = Math.max(dataLength, messageConfig.getLengthFieldEnd());
+
+		byte[] delimiter = messageConfig.getMessageType() == MessageType.DELIMITED ? messageConfig.getDelimiterBytes() : new byte[0];
+		int idLength = messageIdType.getByteSize();
+		ByteBuffer buffer = ByteBuffer.allocate(idLength + dataLength + delimiter.length).order(byteOrder);
+
+		switch (messageIdType) {
+		case UByte:
+			buffer.put((byte) messageConfig.getMessageId());
+			break;
+		case UInt16:
+			buffer.putShort((short) messageConfig.getMessageId());
+			break;
+		default:
+			break;
+		}
+
+		for (TagConfig tag : tags) {
+			for (int i = 0; i < tag.getSize(); i++) {
+				putRandomValue(buffer, tag.getDataType(), timestamp);
+			}
+		}
+		// Fill the variable part
+		while (buffer.position() < idLength + dataLength) {
+			buffer.put(randomCharacter());
+		}
+
+		if (messageConfig.getMessageType() == MessageType.LENGTH_FIELD) {
+			writeLengthField(buffer, messageConfig, idLength, dataLength);
+		} else if (delimiter.length > 0) {
+			removeDelimiter(buffer.array(), idLength, dataLength, delimiter);
+			buffer.put(delimiter);
+		}
+
+		return buffer.array();
+	}
+
+	private void putRandomValue(ByteBuffer buffer, BinaryDataType dataType, long timestamp) {
+		switch (dataType) {
+		case Dummy:
+			buffer.put((byte) 0);
+			break;
+		case Float:
+			buffer.putFloat(random.nextFloat() * 1000);
+			break;
+		case String:
+		case RawString:
+			buffer.put(randomCharacter());
+			break;
+		case MessageAge:
+			// The message has been created up to 100 time units before the packet
+			buffer.putInt((int) Math.max(0, timestamp - random.nextInt(100)));
+			break;
+		default:
+			for (int i = 0; i < dataType.getByteCount(); i++) {
+				buffer.put((byte) random.nextInt(256));
+			}
+			break;
+		}
+	}
+
+	private byte randomCharacter() {
+		return (byte) (0x20 + random.nextInt(0x5f));
+	}
+
+	/**
+	 * Writes the length field, so the driver calculates the generated message length.
+	 */
+	private void writeLengthField(ByteBuffer buffer, MessageConfig messageConfig, int idLength, int dataLength) {
+		long fieldValue = dataLength - messageConfig.getLengthFieldEnd() - messageConfig.getLengthFieldAdjustment();
+		if (fieldValue < 0)
+			throw new IllegalStateException(String.format("The length field adjustment of message ID %d does not allow a valid length", messageConfig.getMessageId()));
+
+		ByteBuffer field = ByteBuffer.wrap(buffer.array()).order(messageConfig.isLengthFieldLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		int offset = idLength + messageConfig.getLengthFieldOffset();
+		switch (messageConfig.getLengthFieldType()) {
+		case UByte:
+			field.put(offset, (byte) fieldValue);
+			break;
+		case UInt16:
+			field.putShort(offset, (short) fieldValue);
+			break;
+		default:
+			field.putInt(offset, (int) fieldValue);
+			break;
+		}
+	}
+
+	/**
+	 * Changes the random data, so it does not contain the delimiter. The last byte of every occurrence is changed, so
+	 * the occurrences before the current position can not be affected.
+	 */
+	private static void removeDelimiter(byte[] data, int offset, int length, byte[] delimiter) {
+		int end = offset + length - delimiter.length;
+		for (int i = offset; i <= end; i++) {
+			int j = 0;
+			while (j < delimiter.length && data[i + j] == delimiter[j])
+				j++;
+			if (j == delimiter.length)
+				data[i + j - 1] ^= 0x01;
+		}
+	}
+
+	/**
+	 * A generated packet.
+	 */
+	static class Packet {
+		private final byte[] data;
+		private final int messageCount;
+		private final byte[] handshake;
+		private long sendTime;
+
+		Packet(byte[] data, int messageCount, byte[] handshake) {
+			this.data = data;
+			this.messageCount = messageCount;
+			this.handshake = handshake;
+		}
+
+		byte[] getData() {
+			return data;
+		}
+
+		int getMessageCount() {
+			return messageCount;
+		}
+
+		/**
+		 * @return The handshake message the driver answers with, or <code>null</code> if no handshake is used
+		 */
+		byte[] getHandshake() {
+			return handshake;
+		}
+
+		long getSendTime() {
+			return sendTime;
+		}
+
+		void setSendTime(long sendTime) {
+			this.sendTime = sendTime;
+		}
+	}
+}
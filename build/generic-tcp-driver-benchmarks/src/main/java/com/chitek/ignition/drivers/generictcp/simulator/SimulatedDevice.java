@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import com.chitek.ignition.drivers.generictcp.simulator.PacketGenerator.Packet;
+
+/**
+ * A simulated device with one TCP connection or UDP socket. The device sends packets at a fixed rate. If the driver
+ * answers with a handshake, at most <code>window</code> packets are sent without receiving their handshake, like a real
+ * device that waits for the acknowledge.
+ */
+class SimulatedDevice {
+
+	/** Sending is not caught up after a longer stall, the schedule is reset instead */
+	private static final long MAX_LAG_NANOS = 1000000000L;
+
+	private final PacketGenerator generator;
+	private final SimulatorStatistics statistics;
+	private final boolean udp;
+	private final int messagesPerPacket;
+	private final long sendInterval;
+	private final int window;
+	private final long handshakeTimeout;
+
+	private SelectableChannel channel;
+	private SelectionKey key;
+	private boolean connected;
+	private boolean closed;
+
+	private long nextSendTime;
+	/** Packets that wait for their handshake, in the order they have been sent */
+	private final ArrayDeque<Packet> outstanding = new ArrayDeque<Packet>();
+	/** The remaining data of a packet that could not be written completely */
+	private ByteBuffer writeBuffer;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	/**
+	 * @param generator
+	 *            The packet generator for this device
+	 * @param statistics
+	 *            The statistics to update
+	 * @param udp
+	 *            <code>true</code> to use UDP instead of TCP
+	 * @param messagesPerPacket
+	 *            The number of messages sent in one packet
+	 * @param sendInterval
+	 *            The time between two packets in nanoseconds
+	 * @param window
+	 *            The maximum number of packets that wait for a handshake
+	 * @param handshakeTimeout
+	 *            The handshake timeout in nanoseconds
+	 */
+	SimulatedDevice(PacketGenerator generator, SimulatorStatistics statistics, boolean udp, int messagesPerPacket, long sendInterval, int window,
+		long handshakeTimeout) {
+		this.generator = generator;
+		this.statistics = statistics;
+		this.udp = udp;
+		this.messagesPerPacket = messagesPerPacket;
+		this.sendInterval = sendInterval;
+		this.window = window;
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * Open the connection. A TCP connection is completed by {@link #handleKey(long)}.
+	 * 
+	 * @param localAddress
+	 *            The local address to bind to, or <code>null</code> to use any address
+	 * @param firstSendTime
+	 *            The time to send the first packet. Used to spread the packets of all devices over the send interval.
+	 */
+	void connect(Selector selector, InetSocketAddress address, InetAddress localAddress, long firstSendTime) throws IOException {
+		nextSendTime = firstSendTime;
+		if (udp) {
+			DatagramChannel datagramChannel = DatagramChannel.open();
+			datagramChannel.configureBlocking(false);
+			if (localAddress != null)
+				datagramChannel.bind(new InetSocketAddress(localAddress, 0));
+			datagramChannel.connect(address);
+			channel = datagramChannel;
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			connectionEstablished();
+		} else {
+			SocketChannel socketChannel = SocketChannel.open();
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+			if (localAddress != null)
+				socketChannel.bind(new InetSocketAddress(localAddress, 0));
+			channel = socketChannel;
+			if (socketChannel.connect(address)) {
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+				connectionEstablished();
+			} else {
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+	}
+
+	private void connectionEstablished() {
+		connected = true;
+		statistics.connections++;
+	}
+
+	/**
+	 * Handle the ready operations of the selection key.
+	 * 
+	 * @param now
+	 *            The current time from {@link System#nanoTime()}
+	 */
+	void handleKey(long now) {
+		try {
+			if (key.isConnectable()) {
+				if (((SocketChannel) channel).finishConnect()) {
+					key.interestOps(SelectionKey.OP_READ);
+					connectionEstablished();
+				}
+				return;
+			}
+			if (key.isReadable()) {
+				read(now);
+			}
+			if (!closed && key.isWritable() && write()) {
+				send(now);
+			}
+		} catch (IOException e) {
+			if (!connected) {
+				statistics.connectFailures++;
+				close();
+			} else {
+				closedByDriver();
+			}
+		}
+	}
+
+	/**
+	 * Send the packets that are due.
+	 * 
+	 * @param now
+	 *            The current time from {@link System#nanoTime()}
+	 */
+	void send(long now) {
+		if (!connected || closed || writeBuffer != null)
+			return;
+
+		if (now - nextSendTime > MAX_LAG_NANOS) {
+			nextSendTime = now;
+		}
+
+		try {
+			while (nextSendTime <= now && !isWindowFull()) {
+				Packet packet = generator.nextPacket(messagesPerPacket);
+				packet.setSendTime(now);
+				nextSendTime += sendInterval;
+				if (packet.getHandshake() != null) {
+					outstanding.add(packet);
+				}
+				statistics.packetSent(packet);
+				writeBuffer = ByteBuffer.wrap(packet.getData());
+				if (!write())
+					break;
+			}
+		} catch (IOException e) {
+			closedByDriver();
+		}
+	}
+
+	/**
+	 * Reject the packets whose handshake timeout has expired.
+	 * 
+	 * @param now
+	 *            The current time from {@link System#nanoTime()}
+	 */
+	void checkHandshakeTimeout(long now) {
+		Packet head = outstanding.peek();
+		while (head != null && now - head.getSendTime() >= handshakeTimeout) {
+			outstanding.poll();
+			statistics.packetRejected(head);
+			head = outstanding.peek();
+		}
+	}
+
+	/**
+	 * @param sending
+	 *            <code>false</code> if no more packets are sent
+	 * @return The time of the next packet or handshake timeout, or <code>Long.MAX_VALUE</code> if there is nothing to do
+	 */
+	long getNextEventTime(boolean sending) {
+		long next = Long.MAX_VALUE;
+		if (sending && connected && !closed && writeBuffer == null && !isWindowFull()) {
+			next = nextSendTime;
+		}
+		Packet head = outstanding.peek();
+		if (head != null) {
+			next = Math.min(next, head.getSendTime() + handshakeTimeout);
+		}
+		return next;
+	}
+
+	/**
+	 * @return The number of packets that wait for their handshake
+	 */
+	int getOutstanding() {
+		return outstanding.size();
+	}
+
+	void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+		if (connected && !closed) {
+			statistics.connections--;
+		}
+		closed = true;
+	}
+
+	private boolean isWindowFull() {
+		return generator.isUseHandshake() && outstanding.size() >= window;
+	}
+
+	/**
+	 * @return <code>true</code> if the packet has been written completely
+	 */
+	private boolean write() throws IOException {
+		if (writeBuffer == null)
+			return true;
+
+		((ByteChannel) channel).write(writeBuffer);
+		if (writeBuffer.hasRemaining()) {
+			// A datagram is either sent completely or not at all
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return false;
+		}
+		writeBuffer = null;
+		key.interestOps(SelectionKey.OP_READ);
+		return true;
+	}
+
+	private void read(long now) throws IOException {
+		int count = ((ByteChannel) channel).read(readBuffer);
+		if (count < 0) {
+			closedByDriver();
+			return;
+		}
+		readBuffer.flip();
+		if (udp) {
+			readDatagram(now);
+			readBuffer.clear();
+		} else {
+			readStream(now);
+			readBuffer.compact();
+		}
+	}
+
+	/**
+	 * Match the received stream with the expected handshakes. Data that does not match the next handshake is skipped
+	 * byte by byte, so the device resynchronizes when the driver sends other data.
+	 */
+	private void readStream(long now) {
+		while (readBuffer.hasRemaining()) {
+			Packet head = outstanding.peek();
+			if (head == null) {
+				statistics.unexpectedBytes += readBuffer.remaining();
+				readBuffer.position(readBuffer.limit());
+				return;
+			}
+
+			byte[] handshake = head.getHandshake();
+			int length = Math.min(handshake.length, readBuffer.remaining());
+			int position = readBuffer.position();
+			boolean match = true;
+			for (int i = 0; i < length && match; i++) {
+				match = readBuffer.get(position + i) == handshake[i];
+			}
+
+			if (!match) {
+				readBuffer.get();
+				statistics.unexpectedBytes++;
+			} else if (length < handshake.length) {
+				// Wait for the rest of the handshake
+				return;
+			} else {
+				readBuffer.position(position + length);
+				outstanding.poll();
+				statistics.packetConfirmed(head, now - head.getSendTime());
+			}
+		}
+	}
+
+	/**
+	 * Match a received datagram with the expected handshakes. Datagrams may be lost, so all outstanding packets are
+	 * searched.
+	 */
+	private void readDatagram(long now) {
+		byte[] datagram = new byte[readBuffer.remaining()];
+		readBuffer.get(datagram);
+
+		for (Iterator<Packet> iterator = outstanding.iterator(); iterator.hasNext();) {
+			Packet packet = iterator.next();
+			if (Arrays.equals(packet.getHandshake(), datagram)) {
+				iterator.remove();
+				statistics.packetConfirmed(packet, now - packet.getSendTime());
+				return;
+			}
+		}
+		statistics.unexpectedBytes += datagram.length;
+	}
+
+	private void closedByDriver() {
+		if (closed)
+			return;
+		statistics.connectionsClosed++;
+		for (Packet packet : outstanding) {
+			statistics.packetRejected(packet);
+		}
+		outstanding.clear();
+		close();
+	}
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+/**
+ * Counters of a simulator run. The simulator is single threaded, so the counters are not synchronized.
+ */
+class SimulatorStatistics {
+
+	/** Connections that are currently open */
+	int connections;
+	/** Connections that could not be opened */
+	int connectFailures;
+	/** Connections that have been closed by the driver */
+	int connectionsClosed;
+
+	long packetsSent;
+	long messagesSent;
+	long bytesSent;
+	/** Messages in packets that have been answered with the expected handshake */
+	long messagesConfirmed;
+	/** Messages in packets that have not been answered with a handshake within the timeout */
+	long messagesRejected;
+	/** Received bytes that do not belong to an expected handshake */
+	long unexpectedBytes;
+
+	/** Handshake round trip times of the whole run */
+	final LatencyRecorder roundTrip = new LatencyRecorder(1 << 20);
+	/** Handshake round trip times of the current report interval */
+	final LatencyRecorder intervalRoundTrip = new LatencyRecorder(1 << 16);
+
+	void packetSent(PacketGenerator.Packet packet) {
+		packetsSent++;
+		messagesSent += packet.getMessageCount();
+		bytesSent += packet.getData().length;
+	}
+
+	void packetConfirmed(PacketGenerator.Packet packet, long roundTripNanos) {
+		messagesConfirmed += packet.getMessageCount();
+		roundTrip.record(roundTripNanos);
+		intervalRoundTrip.record(roundTripNanos);
+	}
+
+	void packetRejected(PacketGenerator.Packet packet) {
+		messagesRejected += packet.getMessageCount();
+	}
+}
@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
+import com.chitek.ignition.drivers.generictcp.io.IMessageHandler;
+import com.chitek.ignition.drivers.generictcp.io.MessageState;
+import com.chitek.ignition.drivers.generictcp.io.TrafficCaptureReader;
+import com.chitek.ignition.drivers.generictcp.io.TrafficCaptureReader.Record;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
+import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
+
+/**
+ * Command line tool to replay traffic captured by the server driver with the 'Record Traffic' setting.
+ * <ul>
+ * <li>state - The captured data is parsed offline by a {@link MessageState} per connection. The recorded times are
+ * used for the message timeout, so packet based messages are completed like in the driver. This mode measures the
+ * parser throughput and shows how the messages in a capture are received.</li>
+ * <li>socket - Every recorded connection is opened to a running server driver and the captured data is sent again,
+ * with the recorded timing or as fast as possible.</li>
+ * </ul>
+ * Where the recorder has dropped data of a connection, the parser of the connection is reset (mode state) or the
+ * connection is opened again (mode socket), so the following data is not appended to an incomplete message.
+ * Usage: <code>java -cp benchmarks.jar com.chitek.ignition.drivers.generictcp.simulator.TrafficReplay --capture
+ * directory --config messages.xml [options]</code>
+ */
+public class TrafficReplay extends CommandLineTool {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+	/** Time in milliseconds to wait for the driver to close a connection at the end of the replay */
+	private static final int CLOSE_TIMEOUT = 5000;
+
+	private static final String[][] OPTIONS = {
+		{ "capture", "A capture file or the capture directory of the driver. Required." },
+		{ "mode", "state to parse the capture offline, socket to send it to a server driver. Default: state" },
+		{ "config", "File with the DriverConfig XML (messages). Required for mode state." },
+		{ "header", "File with the HeaderConfig XML. Default: no header" },
+		{ "byte-order", "big or little, as configured in the driver. Default: big" },
+		{ "message-timeout", "Message timeout of the driver in milliseconds. Default: 1000" },
+		{ "speed", "Replay speed factor for mode socket, or max to send without delay. Default: 1" },
+		{ "host", "Host of the server driver. Default: localhost" },
+		{ "port", "Port of the server driver. Required for mode socket." },
+		{ "protocol", "tcp or udp. Default: tcp" },
+		{ "source-address", "Local IPv4 address of the first connection, the following connections use the next addresses. Default: 127.0.0.1 for a loopback host" } };
+
+	private long records;
+	private long dataBytes;
+	private int connections;
+	private long gaps;
+	private long droppedBytes;
+
+	TrafficReplay(Map<String, String> options) {
+		super(options);
+	}
+
+	public static void main(String[] args) {
+		main(args, "TrafficReplay --capture <file or directory> --config <file> [options]", OPTIONS, new Factory() {
+			@Override
+			public CommandLineTool create(Map<String, String> options) {
+				return new TrafficReplay(options);
+			}
+		});
+	}
+
+	@Override
+	void run() throws Exception {
+		File capture = new File(getOption("capture", null));
+		TrafficCaptureReader reader;
+		if (capture.isDirectory())
+			reader = TrafficCaptureReader.forDirectory(capture);
+		else if (capture.isFile())
+			reader = new TrafficCaptureReader(capture);
+		else
+			throw new IllegalArgumentException(String.format("Capture '%s' not found", capture));
+
+		String mode = getOption("mode", "state");
+		try {
+			if (mode.equalsIgnoreCase("state"))
+				replayState(reader);
+			else if (mode.equalsIgnoreCase("socket"))
+				replaySocket(reader);
+			else
+				throw new IllegalArgumentException(String.format("Invalid value '%s' for option --mode", mode));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void replayState(TrafficCaptureReader reader) throws Exception {
+		DriverConfig driverConfig = readDriverConfig();
+		boolean littleEndian = getOption("byte-order", "big").equalsIgnoreCase("little");
+		int messageTimeout = getIntOption("message-timeout", 1000, 1, Integer.MAX_VALUE);
+		DriverSettings driverSettings = new DriverSettings("replay", 0, false, 0, messageTimeout, littleEndian, 1, 0xffffffffL,
+			driverConfig.getMessageIdType());
+		MessageHeader messageHeader = null;
+		HeaderConfig headerConfig = readHeaderConfig();
+		if (headerConfig != null && headerConfig.isUseHeader())
+			messageHeader = new MessageHeader(headerConfig, driverSettings.getByteOrder());
+
+		CountingHandler handler = new CountingHandler();
+		Map<Integer, MessageState> states = new HashMap<Integer, MessageState>();
+		long start = System.nanoTime();
+		Record record;
+		while ((record = reader.next()) != null) {
+			records++;
+			long now = record.getWallClockTime();
+			checkMessageDeadlines(states, now);
+
+			if (record.isConnect()) {
+				MessageState state = new MessageState(record.getRemoteSocket(), null, messageHeader, driverConfig, driverSettings);
+				state.setMessageHandler(handler);
+				states.put(record.getConnectionId(), state);
+				connections++;
+			} else if (record.isData()) {
+				MessageState state = states.get(record.getConnectionId());
+				if (state != null) {
+					dataBytes += record.getData().length;
+					state.addData(ByteBuffer.wrap(record.getData()), now);
+				}
+			} else if (record.isGap()) {
+				countGap(record);
+				MessageState state = states.get(record.getConnectionId());
+				if (state != null)
+					state.reset();
+			} else if (record.isDisconnect()) {
+				states.remove(record.getConnectionId());
+			}
+		}
+		// Complete pending packet based messages
+		checkMessageDeadlines(states, Long.MAX_VALUE);
+		long elapsed = System.nanoTime() - start;
+
+		double seconds = (double) elapsed / NANOS_PER_SECOND;
+		out.println(String.format("Parsed:      %d records, %d connections, %d bytes in %.3f s, %.2f MB/s", records, connections, dataBytes, seconds,
+			dataBytes / seconds / (1024 * 1024)));
+		out.println(String.format("Messages:    %d, %.0f messages/s", handler.messages, handler.messages / seconds));
+		for (Map.Entry<Integer, long[]> entry : handler.messagesById.entrySet()) {
+			out.println(String.format("  ID %5d: %d messages, %d payload bytes", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+		}
+		printGaps();
+	}
+
+	private void countGap(Record record) {
+		gaps++;
+		droppedBytes += record.getDroppedBytes();
+	}
+
+	private void printGaps() {
+		if (gaps > 0)
+			out.println(String.format("Gaps:        %d, %d bytes have been dropped by the recorder", gaps, droppedBytes));
+	}
+
+	private static void checkMessageDeadlines(Map<Integer, MessageState> states, long now) {
+		for (MessageState state : states.values()) {
+			long deadline = state.getMessageDeadline();
+			if (deadline != 0 && deadline <= now)
+				state.checkMessageDeadline(now);
+		}
+	}
+
+	private void replaySocket(TrafficCaptureReader reader) throws Exception {
+		InetSocketAddress address = new InetSocketAddress(getOption("host", "localhost"), getIntOption("port", -1, 1, 65535));
+		boolean udp = getOption("protocol", "tcp").equalsIgnoreCase("udp");
+		String speedOption = getOption("speed", "1");
+		double speed = 0;
+		if (!speedOption.equalsIgnoreCase("max")) {
+			try {
+				speed = Double.parseDouble(speedOption);
+			} catch (NumberFormatException e) {
+				speed = -1;
+			}
+			if (speed <= 0)
+				throw new IllegalArgumentException(String.format("Invalid value '%s' for option --speed", speedOption));
+		}
+		// The driver accepts one connection per IP address
+		InetAddress sourceAddress = null;
+		if (options.containsKey("source-address")) {
+			sourceAddress = InetAddress.getByName(options.get("source-address"));
+		} else if (address.getAddress() != null && address.getAddress().isLoopbackAddress() && address.getAddress() instanceof Inet4Address) {
+			sourceAddress = InetAddress.getByName("127.0.0.1");
+		}
+		if (sourceAddress != null && !(sourceAddress instanceof Inet4Address))
+			throw new IllegalArgumentException("Option --source-address must be an IPv4 address");
+
+		Map<Integer, ReplayConnection> open = new HashMap<Integer, ReplayConnection>();
+		int connectFailures = 0;
+		int connectionsClosed = 0;
+		long lateRecords = 0;
+		long start = System.nanoTime();
+		Record record;
+		try {
+			while ((record = reader.next()) != null) {
+				records++;
+				if (speed > 0) {
+					long due = start + (long) (record.getTime() / speed);
+					long wait = due - System.nanoTime();
+					if (wait > NANOS_PER_MILLI)
+						Thread.sleep(wait / NANOS_PER_MILLI, (int) (wait % NANOS_PER_MILLI));
+					else if (wait < -10 * NANOS_PER_MILLI)
+						lateRecords++;
+				}
+
+				if (record.isConnect()) {
+					InetAddress localAddress = sourceAddress != null ? DeviceSimulator.getNextAddress(sourceAddress, connections) : null;
+					connections++;
+					try {
+						open.put(record.getConnectionId(), new ReplayConnection(address, localAddress, udp));
+					} catch (IOException e) {
+						connectFailures++;
+					}
+				} else if (record.isData()) {
+					ReplayConnection connection = open.get(record.getConnectionId());
+					if (connection != null) {
+						try {
+							connection.send(record.getData());
+							dataBytes += record.getData().length;
+						} catch (IOException e) {
+							connection.close();
+							open.remove(record.getConnectionId());
+							connectionsClosed++;
+						}
+					}
+				} else if (record.isGap()) {
+					countGap(record);
+					// The driver starts with a new message on a new connection
+					ReplayConnection connection = open.remove(record.getConnectionId());
+					if (connection != null) {
+						connection.close();
+						try {
+							open.put(record.getConnectionId(), new ReplayConnection(address, connection.localAddress, udp));
+						} catch (IOException e) {
+							connectFailures++;
+						}
+					}
+				} else if (record.isDisconnect()) {
+					ReplayConnection connection = open.remove(record.getConnectionId());
+					if (connection != null)
+						connection.close();
+				}
+			}
+		} finally {
+			for (ReplayConnection connection : open.values()) {
+				connection.close();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		double seconds = (double) elapsed / NANOS_PER_SECOND;
+		out.println(String.format("Replayed:    %d records to %s in %.1f s", records, address, seconds));
+		out.println(String.format("Connections: %d opened, %d failed, %d closed by the driver", connections - connectFailures, connectFailures,
+			connectionsClosed));
+		out.println(String.format("Sent:        %d bytes, %.2f MB/s", dataBytes, dataBytes / seconds / (1024 * 1024)));
+		if (lateRecords > 0)
+			out.println(String.format("Late:        %d records were sent more than 10 ms after the recorded time", lateRecords));
+		printGaps();
+	}
+
+	/**
+	 * A connection to the driver for one recorded connection. Received data (handshakes) is discarded.
+	 */
+	private static class ReplayConnection {
+		private final Socket socket;
+		private final InputStream in;
+		private final DatagramSocket datagramSocket;
+		private final InetSocketAddress address;
+		private final InetAddress localAddress;
+		private final byte[] discard = new byte[4096];
+
+		ReplayConnection(InetSocketAddress address, InetAddress localAddress, boolean udp) throws IOException {
+			this.address = address;
+			this.localAddress = localAddress;
+			if (udp) {
+				datagramSocket = new DatagramSocket(new InetSocketAddress(localAddress, 0));
+				socket = null;
+				in = null;
+			} else {
+				socket = new Socket();
+				if (localAddress != null)
+					socket.bind(new InetSocketAddress(localAddress, 0));
+				socket.setTcpNoDelay(true);
+				socket.connect(address);
+				in = socket.getInputStream();
+				datagramSocket = null;
+			}
+		}
+
+		void send(byte[] data) throws IOException {
+			if (datagramSocket != null) {
+				datagramSocket.send(new DatagramPacket(data, data.length, address));
+			} else {
+				socket.getOutputStream().write(data);
+				while (in.available() > 0) {
+					in.read(discard, 0, Math.min(discard.length, in.available()));
+				}
+			}
+		}
+
+		/**
+		 * Close the connection after the driver has sent all handshakes, so the driver does not write to a closed
+		 * socket.
+		 */
+		void close() {
+			if (datagramSocket != null) {
+				datagramSocket.close();
+				return;
+			}
+			try {
+				socket.shutdownOutput();
+				socket.setSoTimeout(CLOSE_TIMEOUT);
+				while (in.read(discard) >= 0) {
+				}
+			} catch (IOException e) {
+				// Ignore
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private static class CountingHandler implements IMessageHandler {
+		long messages;
+		/** Number of messages and payload bytes by message ID */
+		final Map<Integer, long[]> messagesById = new TreeMap<Integer, long[]>();
+
+		@Override
+		public void messageReceived(InetSocketAddress remoteSocket, int messageId, MessageEnvelope messageData, byte[] handshakeMessage) {
+			messages++;
+			long[] counts = messagesById.get(messageId);
+			if (counts == null) {
+				counts = new long[2];
+				messagesById.put(messageId, counts);
+			}
+			counts[0]++;
+			counts[1] += messageData.getPayloadLength();
+		}
+
+		@Override
+		public boolean clientConnected(InetSocketAddress remoteSocket) {
+			return true;
+		}
+
+		@Override
+		public void clientDisconnected(InetSocketAddress remoteSocket) {
+		}
+
+		@Override
+		public void clientReadTimeout(InetSocketAddress remoteSocket) {
+		}
+	}
+}
@@ -16,19 +16,30 @@
 package com.chitek.ignition.drivers.generictcp;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.ObjectName;
+
 import org.apache.log4j.Logger;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.DiagnosticsMBeans;
+import com.chitek.ignition.drivers.generictcp.diagnostics.DriverDiagnosticsMXBean;
+import com.chitek.ignition.drivers.generictcp.diagnostics.FolderInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics;
+import com.chitek.ignition.drivers.generictcp.diagnostics.TimeoutInfo;
 import com.chitek.ignition.drivers.generictcp.folder.BrowseTree;
 import com.chitek.ignition.drivers.generictcp.folder.FolderManager;
 import com.chitek.ignition.drivers.generictcp.folder.MessageFolder;
 import com.chitek.ignition.drivers.generictcp.types.DriverState;
+import com.chitek.util.QueueLog;
 import com.inductiveautomation.ignition.common.execution.ExecutionManager;
 import com.inductiveautomation.ignition.common.execution.SelfSchedulingRunnable;
 import com.inductiveautomation.ignition.gateway.redundancy.RedundancyManager;
@@ -63,6 +74,8 @@ public abstract class AbstractGenericTcpDriver
 	protected volatile Logger log;
 
 	private ExecutionManager executionManager;
+	/** Executes the evaluation of high priority messages */
+	private ExecutionManager priorityExecutionManager;
 
 	private volatile boolean shutdown = false;
 	private DriverState state;
@@ -79,6 +92,13 @@ public abstract class AbstractGenericTcpDriver
 
 	private final FolderManager folderManager;
 
+	/** The queue log is opened when the first message folder with disk storage is created */
+	private QueueLog queueLog;
+	private final Object queueLogLock = new Object();
+
+	private final LatencyStatistics latencyStatistics = new LatencyStatistics();
+	private ObjectName diagnosticsName;
+
 	protected AbstractGenericTcpDriver(DriverContext driverContext) {
 		this.deviceName = driverContext.getDeviceName();
 		this.driverContext = driverContext;
@@ -91,6 +111,8 @@ public abstract class AbstractGenericTcpDriver
 		
 		// Create a private executionManager with 2 Threads
 		executionManager = driverContext.getGatewayContext().createExecutionManager(getDeviceName(), 2);
+		// and a single thread for high priority messages
+		priorityExecutionManager = driverContext.getGatewayContext().createExecutionManager(getDeviceName() + "-Priority", 1);
 	}
 
 	/**
@@ -110,6 +132,9 @@ public abstract class AbstractGenericTcpDriver
 		rm.addRedundancyStateListener(redundancyListener);
 
 		redundancyEnabled = rm.isRedundancyEnabled();		
+
+		latencyStatistics.registerMBean(getDeviceName(), log);
+		diagnosticsName = DiagnosticsMBeans.register(new DriverDiagnostics(), "Driver", getDeviceName(), log);
 	}
 	
 	@Override
@@ -121,10 +146,24 @@ public abstract class AbstractGenericTcpDriver
 			getRedundancyManager().removeRedundancyStateListener(redundancyListener);
 		}
 		
+		// The diagnostics MBean accesses the folders, so it is removed first
+		DiagnosticsMBeans.unregister(diagnosticsName);
+		diagnosticsName = null;
+
 		// Remove items from NodeManager
 		folderManager.shutdown();
 
+		latencyStatistics.unregisterMBean();
+
+		synchronized (queueLogLock) {
+			if (queueLog != null) {
+				queueLog.close();
+				queueLog = null;
+			}
+		}
+
 		executionManager.shutdown();
+		priorityExecutionManager.shutdown();
 
 		shutdown = true;
 	}
@@ -278,6 +317,21 @@ public abstract class AbstractGenericTcpDriver
 		
 		return diskPath;
 	}
+
+	@Override
+	public QueueLog getQueueLog() throws IOException {
+		synchronized (queueLogLock) {
+			if (queueLog == null) {
+				queueLog = new QueueLog(getDiskPath(), log);
+			}
+			return queueLog;
+		}
+	}
+
+	@Override
+	public LatencyStatistics getLatencyStatistics() {
+		return latencyStatistics;
+	}
 	
 	@Override
 	public UaVariableNodeBuilder getVariableNodeBuilder() {
@@ -317,6 +371,11 @@ public abstract class AbstractGenericTcpDriver
 		executionManager.executeOnce(command);
 	}
 
+	@Override
+	public void executePriority(Runnable command) {
+		priorityExecutionManager.executeOnce(command);
+	}
+
 	@Override
 	public ScheduledFuture<?> executeOnce(Runnable command, long delay, TimeUnit unit) {
 		return executionManager.executeOnce(command, delay, unit);
@@ -388,5 +447,67 @@ public abstract class AbstractGenericTcpDriver
 	 * @param newLevel
 	 */
 	protected abstract void activityLevelChanged(ActivityLevel currentLevel, ActivityLevel newLevel);
-	
+
+	/**
+	 * Called by the diagnostics MBean from a JMX thread.
+	 *
+	 * @return The connected remote devices. The default implementation returns an empty list.
+	 */
+	protected List<ConnectionInfo> getConnectionInfo() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Called by the diagnostics MBean from a JMX thread.
+	 *
+	 * @return The state of the connection timeout, or <code>null</code> if connections are not supervised. The default
+	 *         implementation returns <code>null</code>.
+	 */
+	protected TimeoutInfo getTimeoutInfo() {
+		return null;
+	}
+
+	/**
+	 * Reset the latency statistics. Called by the diagnostics MBean from a JMX thread. Derived classes that keep other
+	 * counters reset them as well.
+	 */
+	protected void resetCounters() {
+		latencyStatistics.reset();
+	}
+
+	private class DriverDiagnostics implements DriverDiagnosticsMXBean {
+
+		@Override
+		public List<ConnectionInfo> getConnections() {
+			return getConnectionInfo();
+		}
+
+		@Override
+		public TimeoutInfo getTimeout() {
+			return getTimeoutInfo();
+		}
+
+		@Override
+		public List<FolderInfo> getFolders() {
+			return folderManager.getFolderInfo();
+		}
+
+		@Override
+		public int getExecutorPendingTasks() {
+			return folderManager.getPendingEvaluations();
+		}
+
+		@Override
+		public int compactQueues() {
+			int count = folderManager.compactQueues();
+			log.info(String.format("Compaction of %d queue files requested by JMX", count));
+			return count;
+		}
+
+		@Override
+		public void resetCounters() {
+			AbstractGenericTcpDriver.this.resetCounters();
+			log.info("Counters have been reset by JMX");
+		}
+	}
 }
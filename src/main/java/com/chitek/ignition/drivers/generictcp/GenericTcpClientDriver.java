@@ -25,6 +25,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
@@ -33,7 +34,11 @@ import java.util.concurrent.ThreadFactory;
 import org.python.google.common.base.Strings;
 
 import com.chitek.ignition.drivers.generictcp.configuration.settings.GenericTcpClientDriverSettings;
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionEvent;
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionInfo;
+import com.chitek.ignition.drivers.generictcp.folder.DiagnosticsFolder;
 import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
 import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
 import com.chitek.ignition.drivers.generictcp.folder.SimpleWriteFolder;
 import com.chitek.ignition.drivers.generictcp.folder.StatusFolder;
@@ -47,6 +52,7 @@ import com.chitek.ignition.drivers.generictcp.meta.config.WritebackConfig;
 import com.chitek.ignition.drivers.generictcp.types.DriverState;
 import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
 import com.chitek.ignition.drivers.generictcp.types.QueueMode;
+import com.chitek.util.QueueLog;
 import com.inductiveautomation.ignition.gateway.redundancy.types.ActivityLevel;
 import com.inductiveautomation.ignition.gateway.util.GatewayUtils;
 import com.inductiveautomation.iosession.socket.AsyncSocketIOSession;
@@ -140,6 +146,9 @@ public class GenericTcpClientDriver extends AbstractGenericTcpDriver implements
 		statusFolder = new StatusFolder(this);
 		addFolder(statusFolder);
 
+		// Add the diagnostics folder
+		addFolder(new DiagnosticsFolder(this));
+
 		// Add the simple write folder
 		// There is no configuration, if the user never clicked 'save' in the writeback config
 		if (writebackConfig != null && writebackConfig.isEnabled()) {
@@ -256,10 +265,18 @@ public class GenericTcpClientDriver extends AbstractGenericTcpDriver implements
 			synchronized (connectingSocketLock) {
 				connectingSocket = socket;
 			}
+			ConnectionEvent connectionEvent = new ConnectionEvent();
+			connectionEvent.begin();
 			socket.connect(new InetSocketAddress(hostAddress, driverSettings.getPort()));
 			synchronized (connectingSocketLock) {
 				connectingSocket = null;
 			}
+			connectionEvent.end();
+			if (connectionEvent.shouldCommit()) {
+				connectionEvent.device = String.valueOf(socket.getRemoteSocketAddress());
+				connectionEvent.action = ConnectionEvent.CONNECTED;
+				connectionEvent.commit();
+			}
 			socket.setSoTimeout(driverSettings.getTimeout());
 			if (log.isDebugEnabled()) {
 				log.debug(String.format("Socket connected, timeout set to %d ms", driverSettings.getTimeout()));
@@ -444,6 +461,15 @@ public class GenericTcpClientDriver extends AbstractGenericTcpDriver implements
 			return "";
 	}
 
+	@Override
+	protected List<ConnectionInfo> getConnectionInfo() {
+		String host = getConnectedHost();
+		if (host.isEmpty())
+			return Collections.emptyList();
+		// The pending bytes of the socket session are not known
+		return Collections.singletonList(new ConnectionInfo(host, -1));
+	}
+
 	@Override
 	public String getLoggerName() {
 		return String.format("%s[%s]", LOGGER_NAME, getDeviceName() );
@@ -453,7 +479,7 @@ public class GenericTcpClientDriver extends AbstractGenericTcpDriver implements
 	// IMessageHandler
 	
 	@Override
-	public void messageReceived(InetSocketAddress remoteSocket, int messageId, byte[] messageData, byte[] handshakeMessage) {
+	public void messageReceived(InetSocketAddress remoteSocket, int messageId, MessageEnvelope messageData, byte[] handshakeMessage) {
 		IndexMessageFolder messageFolder = (IndexMessageFolder) getMessageFolder(0, messageId);
 		if (messageFolder != null) {
 			messageFolder.messageArrived(messageData, handshakeMessage);
@@ -471,6 +497,7 @@ public class GenericTcpClientDriver extends AbstractGenericTcpDriver implements
 	@Override
 	public void clientDisconnected(InetSocketAddress remoteSocket) {
 		log.error(String.format("Connection to %s at port %d lost.", driverSettings.getHostname(), driverSettings.getPort()));
+		ConnectionEvent.record(InetSocketAddress.createUnresolved(driverSettings.getHostname(), driverSettings.getPort()), ConnectionEvent.DISCONNECTED);
 		setDriverState(DriverState.Disconnected);
 		getFolderManager().updateConnectionState(0, false);
 		scheduleConnect(false);
@@ -512,6 +539,15 @@ public class GenericTcpClientDriver extends AbstractGenericTcpDriver implements
 				return false;
 			}
 		});
+
+		// Discard entries of unused messages from the queue log
+		if (QueueLog.exists(getDiskPath())) {
+			try {
+				getQueueLog().retainQueues(idList);
+			} catch (IOException e) {
+				log.error(String.format("Error opening queue log in path %s: %s", getDiskPath(), e.toString()));
+			}
+		}
 	}
 
 	@Override
@@ -6,6 +6,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,16 +14,23 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 
 import com.chitek.ignition.drivers.generictcp.configuration.settings.GenericTcpServerDriverSettings;
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.TimeoutInfo;
 import com.chitek.ignition.drivers.generictcp.folder.DeviceStatusFolder;
+import com.chitek.ignition.drivers.generictcp.folder.DiagnosticsFolder;
 import com.chitek.ignition.drivers.generictcp.folder.FolderManager;
 import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
 import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
 import com.chitek.ignition.drivers.generictcp.folder.SimpleWriteFolder;
+import com.chitek.ignition.drivers.generictcp.io.DeviceStatistics;
+import com.chitek.ignition.drivers.generictcp.io.IDeviceStatisticsProvider;
 import com.chitek.ignition.drivers.generictcp.io.IMessageHandler;
 import com.chitek.ignition.drivers.generictcp.io.NioEventHandler;
 import com.chitek.ignition.drivers.generictcp.io.NioServer;
 import com.chitek.ignition.drivers.generictcp.io.NioTcpServer;
 import com.chitek.ignition.drivers.generictcp.io.NioUdpServer;
+import com.chitek.ignition.drivers.generictcp.io.TrafficRecorder;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettingsPassive;
 import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
@@ -38,7 +46,7 @@ import com.inductiveautomation.xopc.driver.api.DriverContext;
 import com.inductiveautomation.xopc.driver.util.ByteUtilities;
 
 public class GenericTcpServerDriver extends AbstractGenericTcpDriver
-implements IMessageHandler {
+implements IMessageHandler, IDeviceStatisticsProvider {
 
 	public static final String LOGGER_NAME = "TcpServerDriver";
 
@@ -52,8 +60,15 @@ implements IMessageHandler {
 
 	private NioServer nioServer;
 
+	// Recording of the received data
+	private boolean recordTraffic;
+	private long recordingFileSize;
+	private int recordingFileCount;
+	private TrafficRecorder trafficRecorder;
+
 	private final Map<InetAddress, Integer>deviceAddressIdMap = new HashMap<InetAddress, Integer>();
 	private final Map<Integer, RemoteDevice>deviceMap = new HashMap<Integer, RemoteDevice>();
+	private final Map<Integer, DeviceStatistics>deviceStatisticsMap = new HashMap<Integer, DeviceStatistics>();
 
 	public GenericTcpServerDriver(DriverContext driverContext, GenericTcpServerDriverSettings deviceSettings) {
 		super(driverContext);
@@ -91,6 +106,10 @@ implements IMessageHandler {
 			driverSettings = null;
 			log.error(e.getMessage());
 		}
+
+		recordTraffic = settings.getRecordTraffic();
+		recordingFileSize = settings.getRecordingFileSize() * 1024L * 1024L;
+		recordingFileCount = settings.getRecordingFileCount();
 	}
 
 	private void initialize(GenericTcpServerDriverSettings deviceSettings) {
@@ -143,6 +162,9 @@ implements IMessageHandler {
 		// Keep track of folders with handshake to cleanup unused queues
 		final List<Integer>idWithHandshake = new ArrayList<Integer>(messageConfig.messages.size());
 
+		// Add the diagnostics folder
+		addFolder(new DiagnosticsFolder(this));
+
 		int deviceId = 0;
 		for (RemoteDevice device : devices) {
 			log.debug(String.format("Adding folders for device %s - %s", device.getHostname(), device.getAlias()));
@@ -152,7 +174,9 @@ implements IMessageHandler {
 			deviceMap.put(deviceId, device);
 
 			// Create the device folder
-			DeviceStatusFolder statusFolder = new DeviceStatusFolder(this, deviceId, device.getAlias());
+			DeviceStatistics statistics = new DeviceStatistics();
+			deviceStatisticsMap.put(deviceId, statistics);
+			DeviceStatusFolder statusFolder = new DeviceStatusFolder(this, deviceId, device.getAlias(), statistics);
 			addFolder(statusFolder);
 
 			// Add all known message tags to the node map
@@ -181,6 +205,7 @@ implements IMessageHandler {
 									device.getDeviceId(),
 									String.format("%s/%s", device.getAlias(), message.getMessageAlias()),
 									this);
+					messageFolder.setStatistics(statistics);
 					addFolder(messageFolder);
 					alias.add(message.getMessageAlias());
 					if (message.getQueueMode() != QueueMode.NONE) {
@@ -262,7 +287,18 @@ implements IMessageHandler {
 					nioServer = new NioTcpServer(isa, Logger.getLogger(log.getName() + "." + "NioServer"));
 				}
 
-				nioServer.setEventHandler(new NioEventHandler(log, getExecutionManager(), messageConfig, driverSettings, messageHeader, this));
+				NioEventHandler eventHandler = new NioEventHandler(log, messageConfig, driverSettings, messageHeader, this);
+				if (recordTraffic) {
+					try {
+						trafficRecorder = new TrafficRecorder(getDiskPath() + TrafficRecorder.DIRECTORY, recordingFileSize, recordingFileCount, log);
+						eventHandler.setTrafficRecorder(trafficRecorder);
+						log.info(String.format("Recording received data in %s%s", getDiskPath(), TrafficRecorder.DIRECTORY));
+					} catch (IOException e) {
+						log.error(String.format("Can not start the traffic recorder: %s", e.getMessage()));
+					}
+				}
+				eventHandler.setStatisticsProvider(this);
+				nioServer.setEventHandler(eventHandler);
 				nioServer.setTimeout(driverSettings.getTimeout());
 				nioServer.start();
 				notifyConnectDone(true);
@@ -280,6 +316,11 @@ implements IMessageHandler {
 		
 		setDriverState(DriverState.Disconnected);
 		nioServer = null;
+
+		if (trafficRecorder != null) {
+			trafficRecorder.close();
+			trafficRecorder = null;
+		}
 	}
 
 	public void notifyConnectDone(boolean success) {
@@ -335,7 +376,7 @@ implements IMessageHandler {
 	// IMessageHandler
 
 	@Override
-	public void messageReceived(InetSocketAddress socket, int messageId, byte[] messageData, byte[] handshakeMessage) {
+	public void messageReceived(InetSocketAddress socket, int messageId, MessageEnvelope messageData, byte[] handshakeMessage) {
 	
 		Integer deviceId = deviceAddressIdMap.get(socket.getAddress());
 		
@@ -345,7 +386,7 @@ implements IMessageHandler {
 		}
 	
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("MessageHandler received message id %d from device %d with %d bytes of data.", messageId, deviceId, messageData.length));
+			log.debug(String.format("MessageHandler received message id %d from device %d with %d bytes of data.", messageId, deviceId, messageData.getPayloadLength()));
 		}
 		
 		if (!isActiveNode()) {
@@ -361,6 +402,7 @@ implements IMessageHandler {
 			messageFolder.messageArrived(messageData, handshakeMessage);
 		} else {
 			log.error(String.format("MessageHandler received unknown message ID %d.", messageId));
+			deviceStatisticsMap.get(deviceId).undefinedMessageId();
 		}
 	}
 
@@ -429,6 +471,15 @@ implements IMessageHandler {
 		// Only used for client sockets, so simply ignored here
 	}
 
+	//***********************************************************************************************************************
+	// IDeviceStatisticsProvider
+
+	@Override
+	public DeviceStatistics getDeviceStatistics(InetSocketAddress remoteSocket) {
+		Integer deviceId = deviceAddressIdMap.get(remoteSocket.getAddress());
+		return deviceId != null ? deviceStatisticsMap.get(deviceId) : null;
+	}
+
 	private void processClientConnected(final RemoteDevice remoteDevice, final InetSocketAddress remoteSocket) {
 		remoteDevice.setRemoteSocketAddress(remoteSocket);
 		deviceAddressIdMap.put(remoteSocket.getAddress(), remoteDevice.getDeviceId());
@@ -437,6 +488,28 @@ implements IMessageHandler {
 
 	//***********************************************************************************************************************
 
+	@Override
+	protected List<ConnectionInfo> getConnectionInfo() {
+		NioServer server = nioServer;
+		return server != null ? server.getConnectionInfo() : Collections.<ConnectionInfo> emptyList();
+	}
+
+	@Override
+	protected TimeoutInfo getTimeoutInfo() {
+		NioServer server = nioServer;
+		return server != null ? server.getTimeoutInfo() : null;
+	}
+
+	@Override
+	protected void resetCounters() {
+		super.resetCounters();
+		for (DeviceStatistics statistics : deviceStatisticsMap.values()) {
+			statistics.reset();
+		}
+	}
+
+	//***********************************************************************************************************************
+
 	@Override
 	public String getLoggerName() {
 		return String.format("%s[%s]", LOGGER_NAME, getDeviceName() );
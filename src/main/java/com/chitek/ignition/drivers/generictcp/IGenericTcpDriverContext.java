@@ -1,5 +1,6 @@
 package com.chitek.ignition.drivers.generictcp;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -9,6 +10,8 @@ import org.eclipse.milo.opcua.sdk.server.nodes.UaNodeContext;
 import org.eclipse.milo.opcua.sdk.server.nodes.UaObjectNode.UaObjectNodeBuilder;
 import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode.UaVariableNodeBuilder;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics;
+import com.chitek.util.QueueLog;
 import com.inductiveautomation.ignition.common.execution.SelfSchedulingRunnable;
 
 /**
@@ -38,6 +41,22 @@ public interface IGenericTcpDriverContext {
 	 * 	The disk path to store message queues.
 	 */
 	public String getDiskPath();
+
+	/**
+	 * Returns the queue log shared by all message folders of this driver instance. The log is opened on the first call.
+	 *
+	 * @return
+	 * 	The queue log in the disk path of this driver.
+	 * @throws IOException
+	 * 	if the queue log can not be opened.
+	 */
+	public QueueLog getQueueLog() throws IOException;
+
+	/**
+	 * @return
+	 * 	The latency statistics of this driver instance.
+	 */
+	public LatencyStatistics getLatencyStatistics();
 	
 	/**
 	 * @return
@@ -88,6 +107,15 @@ public interface IGenericTcpDriverContext {
 	 */
 	public void executeOnce(Runnable command);
 
+	/**
+	 * Execute the given command in the priority lane of the driver. The lane has its own thread, so the command is not
+	 * delayed by commands passed to {@link #executeOnce(Runnable)}.
+	 *
+	 * @param command
+	 * 	The Runnable to execute.
+	 */
+	public void executePriority(Runnable command);
+
 	/**
 	 * Schedule the given command in the drivers ExecutionManager.
 	 *
@@ -53,6 +53,11 @@ public class GenericTcpServerDriverSettings extends PersistentRecord implements
 	public static IntField TimestampFactor = new IntField(META, "TimestampFactor");
 	public static LongField MaxTimestamp = new LongField(META, "MaxTimestamp");
 
+	/* Diagnostics */
+	public static BooleanField RecordTraffic = new BooleanField(META, "RecordTraffic");
+	public static IntField RecordingFileSize = new IntField(META, "RecordingFileSize");
+	public static IntField RecordingFileCount = new IntField(META, "RecordingFileCount");
+
 	/* Config */
 	public static BlobField MessageConfig = new BlobField(META, "MessageConfig");
 	public static BlobField HeaderConfig = new BlobField(META, "HeaderConfig");
@@ -63,6 +68,8 @@ public class GenericTcpServerDriverSettings extends PersistentRecord implements
 	.include(ServerHostname, ServerPort, UseUdp, Timeout, AcceptAll, Devices);
 	public static Category MessageHandling = new Category("GenericTcpServerDriverSettings.Category.MessageHandling", 1002)
 	.include(PacketTimeout, ReverseByteOrder, TimestampFactor, MaxTimestamp);
+	public static Category Diagnostics = new Category("GenericTcpServerDriverSettings.Category.Diagnostics", 1003)
+	.include(RecordTraffic, RecordingFileSize, RecordingFileCount);
 
 	static {
 		DeviceSettings.getFormMeta().setVisible(false);
@@ -82,6 +89,11 @@ public class GenericTcpServerDriverSettings extends PersistentRecord implements
 		TimestampFactor.addValidator(new RangeValidator<Integer>(1, 1000));
 		MaxTimestamp.setDefault(MAX_TIMESTAMP);
 		MaxTimestamp.getFormMeta().addValidator(new RangeValidator<Long>((long)128, MAX_TIMESTAMP));
+		RecordTraffic.setDefault(false);
+		RecordingFileSize.setDefault(10);
+		RecordingFileSize.addValidator(new RangeValidator<Integer>(1, 1000));
+		RecordingFileCount.setDefault(10);
+		RecordingFileCount.addValidator(new RangeValidator<Integer>(1, 1000));
 
 		Devices.setMultiLine();
 
@@ -153,6 +165,21 @@ public class GenericTcpServerDriverSettings extends PersistentRecord implements
 	public long getMaxTimestamp() {
 		return getLong(MaxTimestamp);
 	}
+
+	public boolean getRecordTraffic() {
+		return getBoolean(RecordTraffic);
+	}
+
+	/**
+	 * @return The maximum size of a capture file in MB
+	 */
+	public int getRecordingFileSize() {
+		return getInt(RecordingFileSize);
+	}
+
+	public int getRecordingFileCount() {
+		return getInt(RecordingFileCount);
+	}
 	
 	public List<RemoteDevice> getDevices() throws Exception {
 		
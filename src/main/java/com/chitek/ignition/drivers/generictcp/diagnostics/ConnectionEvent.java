@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.net.InetSocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a connection that is accepted, rejected or closed by a server, or opened by the client
+ * driver. The duration of a client connect is the time to open the socket.
+ */
+@Name("com.chitek.generictcp.Connection")
+@Label("Connection")
+@Category({ "Generic TCP Driver", "IO" })
+@Description("A connection to a remote device has been opened or closed")
+@StackTrace(false)
+public class ConnectionEvent extends Event {
+
+	public static final String ACCEPTED = "Accepted";
+	public static final String REJECTED = "Rejected";
+	public static final String CONNECTED = "Connected";
+	public static final String DISCONNECTED = "Disconnected";
+
+	@Label("Device")
+	@Description("The address of the remote device")
+	public String device;
+
+	@Label("Action")
+	public String action;
+
+	/**
+	 * Commit an event without duration, if connection events are enabled.
+	 *
+	 * @param remoteSocket
+	 *            The address of the remote device
+	 * @param action
+	 *            The action, one of the constants in this class
+	 */
+	public static void record(InetSocketAddress remoteSocket, String action) {
+		ConnectionEvent event = new ConnectionEvent();
+		if (event.isEnabled()) {
+			event.device = String.valueOf(remoteSocket);
+			event.action = action;
+			event.commit();
+		}
+	}
+}
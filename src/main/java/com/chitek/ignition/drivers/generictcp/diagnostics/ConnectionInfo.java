@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A connected remote device, as shown by the {@link DriverDiagnosticsMXBean}.
+ */
+public class ConnectionInfo {
+
+	private final String remoteAddress;
+	private final long pendingWriteBytes;
+
+	/**
+	 * @param remoteAddress
+	 *            The address of the remote device
+	 * @param pendingWriteBytes
+	 *            Number of bytes queued for sending to the device, or -1 if unknown
+	 */
+	@ConstructorProperties({ "remoteAddress", "pendingWriteBytes" })
+	public ConnectionInfo(String remoteAddress, long pendingWriteBytes) {
+		this.remoteAddress = remoteAddress;
+		this.pendingWriteBytes = pendingWriteBytes;
+	}
+
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * @return Number of bytes queued for sending to the device, or -1 if unknown
+	 */
+	public long getPendingWriteBytes() {
+		return pendingWriteBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, %d bytes pending", remoteAddress, pendingWriteBytes);
+	}
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registration of the driver MBeans in the platform MBean server.
+ */
+public class DiagnosticsMBeans {
+
+	public static final String JMX_DOMAIN = "com.chitek.ignition.drivers.generictcp";
+
+	/**
+	 * Register a MBean for a driver instance. An existing MBean with the same name is replaced. Errors are logged.
+	 *
+	 * @param bean
+	 *            The MBean
+	 * @param type
+	 *            The type property of the object name
+	 * @param deviceName
+	 *            The name of the driver instance, used as name property
+	 * @param log
+	 * @return The object name, or <code>null</code> if the registration failed
+	 */
+	public static ObjectName register(Object bean, String type, String deviceName, Logger log) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(String.format("%s:type=%s,name=%s", JMX_DOMAIN, type, ObjectName.quote(deviceName)));
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(bean, name);
+			return name;
+		} catch (JMException e) {
+			log.warn(String.format("%s MBean could not be registered in JMX: %s", type, e.getMessage()));
+			return null;
+		}
+	}
+
+	/**
+	 * Remove a MBean from the platform MBean server.
+	 *
+	 * @param name
+	 *            The object name returned by {@link #register}, may be <code>null</code>
+	 */
+	public static void unregister(ObjectName name) {
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// Already unregistered
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.util.List;
+
+/**
+ * JMX view of the internal state of a driver instance.
+ */
+public interface DriverDiagnosticsMXBean {
+
+	/**
+	 * @return The connected remote devices
+	 */
+	public List<ConnectionInfo> getConnections();
+
+	/**
+	 * @return The state of the connection timeout, or <code>null</code> if the driver does not supervise connections
+	 */
+	public TimeoutInfo getTimeout();
+
+	/**
+	 * @return The state of all message folders
+	 */
+	public List<FolderInfo> getFolders();
+
+	/**
+	 * @return Number of received messages waiting for evaluation in the executors of the driver, including the priority
+	 *         lane
+	 */
+	public int getExecutorPendingTasks();
+
+	/**
+	 * Start the compaction of all message queue files.
+	 *
+	 * @return The number of queues that are compacted
+	 */
+	public int compactQueues();
+
+	/**
+	 * Reset the latency histograms and the device statistics.
+	 */
+	public void resetCounters();
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The state of a message folder, as shown by the {@link DriverDiagnosticsMXBean}.
+ */
+public class FolderInfo {
+
+	private final String address;
+	private final int pendingEvaluations;
+	private final int queueSize;
+	private final long queueBytes;
+	private final int queueCompactions;
+	private final int queueRewrites;
+	private final int subscribedItems;
+	private final long subscriptionRate;
+
+	/**
+	 * @param address
+	 *            The folder address
+	 * @param pendingEvaluations
+	 *            Number of received messages that have not been evaluated yet
+	 * @param queueSize
+	 *            Number of messages in the message queue
+	 * @param queueBytes
+	 *            Size of the messages in the message queue
+	 * @param queueCompactions
+	 *            Number of compactions of the queue file
+	 * @param queueRewrites
+	 *            Number of complete rewrites of the queue file
+	 * @param subscribedItems
+	 *            Number of subscribed items
+	 * @param subscriptionRate
+	 *            The current subscription rate in milliseconds, 0 if no item is subscribed
+	 */
+	@ConstructorProperties({ "address", "pendingEvaluations", "queueSize", "queueBytes", "queueCompactions", "queueRewrites", "subscribedItems",
+		"subscriptionRate" })
+	public FolderInfo(String address, int pendingEvaluations, int queueSize, long queueBytes, int queueCompactions, int queueRewrites,
+		int subscribedItems, long subscriptionRate) {
+		this.address = address;
+		this.pendingEvaluations = pendingEvaluations;
+		this.queueSize = queueSize;
+		this.queueBytes = queueBytes;
+		this.queueCompactions = queueCompactions;
+		this.queueRewrites = queueRewrites;
+		this.subscribedItems = subscribedItems;
+		this.subscriptionRate = subscriptionRate;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getPendingEvaluations() {
+		return pendingEvaluations;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public long getQueueBytes() {
+		return queueBytes;
+	}
+
+	public int getQueueCompactions() {
+		return queueCompactions;
+	}
+
+	public int getQueueRewrites() {
+		return queueRewrites;
+	}
+
+	public int getSubscribedItems() {
+		return subscribedItems;
+	}
+
+	public long getSubscriptionRate() {
+		return subscriptionRate;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d pending, queue %d messages/%d bytes, %d items subscribed at %d ms", address, pendingEvaluations, queueSize,
+			queueBytes, subscribedItems, subscriptionRate);
+	}
+}
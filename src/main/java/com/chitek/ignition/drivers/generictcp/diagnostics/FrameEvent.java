@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.net.InetSocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for a message that has been framed by the message state and is delivered to the message
+ * folder.
+ */
+@Name("com.chitek.generictcp.FrameDelivered")
+@Label("Frame Delivered")
+@Category({ "Generic TCP Driver", "IO" })
+@Description("A complete message has been received from a remote device")
+@StackTrace(false)
+public class FrameEvent extends Event {
+
+	@Label("Device")
+	@Description("The address of the remote device")
+	public String device;
+
+	@Label("Message ID")
+	public int messageId;
+
+	@Label("Payload Size")
+	@DataAmount
+	public int bytes;
+
+	@Label("Framing Time")
+	@Description("Time from the socket read that completed the message until it has been framed")
+	@Timespan(Timespan.NANOSECONDS)
+	public long framingTime;
+
+	/**
+	 * Commit an event, if frame events are enabled.
+	 *
+	 * @param remoteSocket
+	 *            The address of the remote device, may be <code>null</code> in client mode
+	 * @param messageId
+	 * @param bytes
+	 *            The payload size
+	 * @param framingTime
+	 *            The framing time in nanoseconds
+	 */
+	public static void record(InetSocketAddress remoteSocket, int messageId, int bytes, long framingTime) {
+		FrameEvent event = new FrameEvent();
+		if (event.isEnabled()) {
+			event.device = String.valueOf(remoteSocket);
+			event.messageId = messageId;
+			event.bytes = bytes;
+			event.framingTime = framingTime;
+			event.commit();
+		}
+	}
+}
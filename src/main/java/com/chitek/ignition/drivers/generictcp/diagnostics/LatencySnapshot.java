@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Percentiles of a latency histogram in milliseconds.
+ */
+public class LatencySnapshot {
+
+	private final long count;
+	private final double p50;
+	private final double p99;
+	private final double p999;
+	private final double max;
+
+	@ConstructorProperties({ "count", "p50", "p99", "p999", "max" })
+	public LatencySnapshot(long count, double p50, double p99, double p999, double max) {
+		this.count = count;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * @return The number of recorded latencies
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public double getP50() {
+		return p50;
+	}
+
+	public double getP99() {
+		return p99;
+	}
+
+	public double getP999() {
+		return p999;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count %d, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms", count, p50, p99, p999, max);
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.chitek.util.LatencyHistogram;
+
+/**
+ * Latency histograms of a driver instance. The latency of a message is measured in stages from the socket read to the
+ * first publication of the evaluated values to a subscription. All times are taken from {@link System#nanoTime()}.
+ */
+public class LatencyStatistics implements LatencyStatisticsMXBean {
+
+	public enum Stage {
+		/** From the socket read that completes a message to the end of framing in the message state */
+		Framing,
+		/** From framing to the start of the evaluation. Includes the wait for the executor and the message queue. */
+		Queue,
+		/** Evaluation of the message, including the wait for the tag lock */
+		Evaluation,
+		/** From the end of the evaluation to the first subscription update that publishes the values */
+		Publish,
+		/** From the socket read to the first publication */
+		Total
+	}
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+	private ObjectName objectName;
+
+	public LatencyStatistics() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @param stage
+	 *            The stage
+	 * @param nanos
+	 *            The latency of the stage in nanoseconds
+	 */
+	public void record(Stage stage, long nanos) {
+		histograms[stage.ordinal()].record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	/**
+	 * @return The count, p50, p99, p99.9 and maximum of the given stage
+	 */
+	public LatencySnapshot getSnapshot(Stage stage) {
+		LatencyHistogram histogram = histograms[stage.ordinal()];
+		long[] percentiles = histogram.getPercentiles(50, 99, 99.9);
+		return new LatencySnapshot(histogram.getCount(), percentiles[0] / 1000.0, percentiles[1] / 1000.0, percentiles[2] / 1000.0,
+			histogram.getMax() / 1000.0);
+	}
+
+	@Override
+	public LatencySnapshot getFraming() {
+		return getSnapshot(Stage.Framing);
+	}
+
+	@Override
+	public LatencySnapshot getQueue() {
+		return getSnapshot(Stage.Queue);
+	}
+
+	@Override
+	public LatencySnapshot getEvaluation() {
+		return getSnapshot(Stage.Evaluation);
+	}
+
+	@Override
+	public LatencySnapshot getPublish() {
+		return getSnapshot(Stage.Publish);
+	}
+
+	@Override
+	public LatencySnapshot getTotal() {
+		return getSnapshot(Stage.Total);
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Register this instance in the platform MBean server. Errors are logged, the statistics are still recorded.
+	 *
+	 * @param deviceName
+	 *            The name of the driver instance
+	 * @param log
+	 */
+	public void registerMBean(String deviceName, Logger log) {
+		objectName = DiagnosticsMBeans.register(this, "Latency", deviceName, log);
+	}
+
+	/**
+	 * Remove this instance from the platform MBean server, if it has been registered.
+	 */
+	public void unregisterMBean() {
+		DiagnosticsMBeans.unregister(objectName);
+		objectName = null;
+	}
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for the evaluation of a message by a message folder. The duration includes the wait for the tag
+ * lock.
+ */
+@Name("com.chitek.generictcp.MessageEvaluated")
+@Label("Message Evaluated")
+@Category({ "Generic TCP Driver", "Folder" })
+@Description("A received message has been evaluated and the tag values have been updated")
+@StackTrace(false)
+public class MessageEvaluatedEvent extends Event {
+
+	@Label("Device")
+	@Description("The address of the message folder")
+	public String device;
+
+	@Label("Message ID")
+	public int messageId;
+
+	@Label("Payload Size")
+	@DataAmount
+	public int bytes;
+}
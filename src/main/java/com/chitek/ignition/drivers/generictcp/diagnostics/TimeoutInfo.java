@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.diagnostics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The state of the connection timeout supervision of a server, as shown by the {@link DriverDiagnosticsMXBean}.
+ */
+public class TimeoutInfo {
+
+	private final long timeout;
+	private final int monitoredConnections;
+	private final String nextTimeoutAddress;
+	private final long timeToTimeout;
+
+	/**
+	 * @param timeout
+	 *            The configured timeout in milliseconds, 0 if disabled
+	 * @param monitoredConnections
+	 *            Number of supervised connections
+	 * @param nextTimeoutAddress
+	 *            The connection that times out next, or <code>null</code> if no connection is supervised
+	 * @param timeToTimeout
+	 *            Milliseconds until the next timeout
+	 */
+	@ConstructorProperties({ "timeout", "monitoredConnections", "nextTimeoutAddress", "timeToTimeout" })
+	public TimeoutInfo(long timeout, int monitoredConnections, String nextTimeoutAddress, long timeToTimeout) {
+		this.timeout = timeout;
+		this.monitoredConnections = monitoredConnections;
+		this.nextTimeoutAddress = nextTimeoutAddress;
+		this.timeToTimeout = timeToTimeout;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public int getMonitoredConnections() {
+		return monitoredConnections;
+	}
+
+	public String getNextTimeoutAddress() {
+		return nextTimeoutAddress;
+	}
+
+	public long getTimeToTimeout() {
+		return timeToTimeout;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Timeout %d ms, %d connections, next %s in %d ms", timeout, monitoredConnections, nextTimeoutAddress, timeToTimeout);
+	}
+}
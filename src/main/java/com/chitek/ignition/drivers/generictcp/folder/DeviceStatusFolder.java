@@ -15,29 +15,66 @@
  ******************************************************************************/
 package com.chitek.ignition.drivers.generictcp.folder;
 
+import java.util.List;
+
 import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
 import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
 
 import com.chitek.ignition.drivers.generictcp.IGenericTcpDriverContext;
+import com.chitek.ignition.drivers.generictcp.io.DeviceStatistics;
+import com.inductiveautomation.xopc.driver.api.items.ReadItem;
 import com.inductiveautomation.xopc.driver.api.tags.DynamicDriverTag;
 
 /**
- * This tag folder contains the status tags for a passive device
+ * This tag folder contains the status tags for a passive device. The throughput and error counters are read from the
+ * device statistics when the tags are read or before a subscription update, the rates are calculated at most once per
+ * {@link #RATE_INTERVAL}.
  *
  */
 public class DeviceStatusFolder extends MessageFolder {
 
 	public static final String FOLDER_NAME = "[Status]";
-	
+	/** Minimum interval in milliseconds to calculate the rates */
+	public static final long RATE_INTERVAL = 1000;
+
+	private final DeviceStatistics statistics;
+	private final Object statisticsLock = new Object();
+	private long lastRateTime;
+	private long lastBytesReceived;
+	private long lastMessagesReceived;
+
 	private DataValue isConnectedValue;
+	private volatile DataValue bytesReceivedValue;
+	private volatile DataValue messagesReceivedValue;
+	private volatile DataValue bytesPerSecondValue;
+	private volatile DataValue messagesPerSecondValue;
+	private volatile DataValue packetsDiscardedValue;
+	private volatile DataValue invalidHeadersValue;
+	private volatile DataValue undefinedMessageIdsValue;
+	private volatile DataValue messagesDroppedValue;
 
 	private boolean isConnected = false;
 
 	public DeviceStatusFolder(IGenericTcpDriverContext driverContext, int deviceId, String deviceAlias) {
+		this(driverContext, deviceId, deviceAlias, new DeviceStatistics());
+	}
+
+	/**
+	 * @param driverContext
+	 * @param deviceId
+	 * @param deviceAlias
+	 * @param statistics
+	 * 	The statistics of the device, shown in the counter and rate tags
+	 */
+	public DeviceStatusFolder(IGenericTcpDriverContext driverContext, int deviceId, String deviceAlias, DeviceStatistics statistics) {
 		super(driverContext, FolderManager.getFolderId(deviceId, FolderManager.DEVICE_STATUS_ID), deviceAlias);
 
+		this.statistics = statistics;
 		isConnectedValue = new DataValue(new Variant(false));
+		bytesPerSecondValue = new DataValue(new Variant(0f));
+		messagesPerSecondValue = new DataValue(new Variant(0f));
+		updateStatistics(System.currentTimeMillis());
 
 		addSpecialTags(deviceAlias);
 	}
@@ -55,6 +92,49 @@ public class DeviceStatusFolder extends MessageFolder {
 		// This folder ignores the activity level	
 	}
 
+	@Override
+	public void beforeSubscriptionUpdate() {
+		updateStatistics(System.currentTimeMillis());
+	}
+
+	@Override
+	public void readItems(List<? extends ReadItem> list) {
+		updateStatistics(System.currentTimeMillis());
+		super.readItems(list);
+	}
+
+	/**
+	 * Update the counter values from the device statistics. The rates are calculated, if at least
+	 * {@link #RATE_INTERVAL} has elapsed since the last calculation.
+	 * 
+	 * @param now
+	 * 	The current time in milliseconds
+	 */
+	public void updateStatistics(long now) {
+		synchronized (statisticsLock) {
+			long bytesReceived = statistics.getBytesReceived();
+			long messagesReceived = statistics.getMessagesReceived();
+			bytesReceivedValue = new DataValue(new Variant(bytesReceived));
+			messagesReceivedValue = new DataValue(new Variant(messagesReceived));
+			packetsDiscardedValue = new DataValue(new Variant(statistics.getPacketsDiscarded()));
+			invalidHeadersValue = new DataValue(new Variant(statistics.getInvalidHeaders()));
+			undefinedMessageIdsValue = new DataValue(new Variant(statistics.getUndefinedMessageIds()));
+			messagesDroppedValue = new DataValue(new Variant(statistics.getMessagesDropped()));
+
+			long elapsed = now - lastRateTime;
+			if (lastRateTime == 0 || elapsed >= RATE_INTERVAL) {
+				if (lastRateTime != 0) {
+					// The counters may have been reset since the last calculation
+					bytesPerSecondValue = new DataValue(new Variant(Math.max(0, bytesReceived - lastBytesReceived) * 1000f / elapsed));
+					messagesPerSecondValue = new DataValue(new Variant(Math.max(0, messagesReceived - lastMessagesReceived) * 1000f / elapsed));
+				}
+				lastRateTime = now;
+				lastBytesReceived = bytesReceived;
+				lastMessagesReceived = messagesReceived;
+			}
+		}
+	}
+
 	/**
 	 * Adds the special tags in this message to the NodeManager and the Drivers browseTree.
 	 * 
@@ -78,6 +158,71 @@ public class DeviceStatusFolder extends MessageFolder {
 			}
 		};
 		buildAndAddNode(driverTag).setValue(new DataValue(new Variant(false)));
+
+		// Statistics
+		driverTag = new DynamicDriverTag(folderName + "/Bytes Received", BuiltinDataType.Int64) {
+			@Override
+			public DataValue getValue() {
+				return bytesReceivedValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
+
+		driverTag = new DynamicDriverTag(folderName + "/Bytes Per Second", BuiltinDataType.Float) {
+			@Override
+			public DataValue getValue() {
+				return bytesPerSecondValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
+
+		driverTag = new DynamicDriverTag(folderName + "/Messages Received", BuiltinDataType.Int64) {
+			@Override
+			public DataValue getValue() {
+				return messagesReceivedValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
+
+		driverTag = new DynamicDriverTag(folderName + "/Messages Per Second", BuiltinDataType.Float) {
+			@Override
+			public DataValue getValue() {
+				return messagesPerSecondValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
+
+		driverTag = new DynamicDriverTag(folderName + "/Discarded Packets", BuiltinDataType.Int64) {
+			@Override
+			public DataValue getValue() {
+				return packetsDiscardedValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
+
+		driverTag = new DynamicDriverTag(folderName + "/Invalid Headers", BuiltinDataType.Int64) {
+			@Override
+			public DataValue getValue() {
+				return invalidHeadersValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
+
+		driverTag = new DynamicDriverTag(folderName + "/Undefined Message IDs", BuiltinDataType.Int64) {
+			@Override
+			public DataValue getValue() {
+				return undefinedMessageIdsValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
+
+		driverTag = new DynamicDriverTag(folderName + "/Dropped Messages", BuiltinDataType.Int64) {
+			@Override
+			public DataValue getValue() {
+				return messagesDroppedValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
 	}
 
 }
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.folder;
+
+import java.util.List;
+
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+import com.chitek.ignition.drivers.generictcp.IGenericTcpDriverContext;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencySnapshot;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics.Stage;
+import com.inductiveautomation.xopc.driver.api.items.ReadItem;
+import com.inductiveautomation.xopc.driver.api.tags.DynamicDriverTag;
+
+/**
+ * This tag folder contains the diagnostic tags of a driver instance. For every latency stage, the folder contains the
+ * number of recorded messages and the p50, p99, p99.9 and maximum latency in milliseconds. The values are read from the
+ * latency statistics when the tags are read or before a subscription update, at most once per
+ * {@link #UPDATE_INTERVAL}.
+ */
+public class DiagnosticsFolder extends MessageFolder {
+
+	public static final String FOLDER_NAME = "[Diagnostics]";
+	/** Minimum interval in milliseconds to update the values */
+	public static final long UPDATE_INTERVAL = 1000;
+
+	private static final int VALUES_PER_STAGE = 5;
+	private static final String[] VALUE_NAMES = { "Count", "P50", "P99", "P99.9", "Max" };
+
+	private final LatencyStatistics latency;
+	private final Object updateLock = new Object();
+	private long lastUpdateTime;
+	private volatile DataValue[] values;
+
+	public DiagnosticsFolder(IGenericTcpDriverContext driverContext) {
+		super(driverContext, FolderManager.getFolderId(0, FolderManager.DIAGNOSTICS_ID), FOLDER_NAME);
+
+		this.latency = driverContext.getLatencyStatistics();
+		updateValues(System.currentTimeMillis());
+
+		addSpecialTags();
+	}
+
+	@Override
+	public void connectionStateChanged(boolean isConnected) {
+		// This folder ignores the connection state
+	}
+
+	@Override
+	public void activityLevelChanged(boolean isActive) {
+		// This folder ignores the activity level
+	}
+
+	@Override
+	public void beforeSubscriptionUpdate() {
+		updateValues(System.currentTimeMillis());
+	}
+
+	@Override
+	public void readItems(List<? extends ReadItem> list) {
+		updateValues(System.currentTimeMillis());
+		super.readItems(list);
+	}
+
+	/**
+	 * Update the tag values from the latency statistics, if at least {@link #UPDATE_INTERVAL} has elapsed since the
+	 * last update.
+	 *
+	 * @param now
+	 *            The current time in milliseconds
+	 */
+	public void updateValues(long now) {
+		synchronized (updateLock) {
+			if (values != null && now - lastUpdateTime < UPDATE_INTERVAL) {
+				return;
+			}
+			lastUpdateTime = now;
+
+			DataValue[] newValues = new DataValue[Stage.values().length * VALUES_PER_STAGE];
+			for (Stage stage : Stage.values()) {
+				LatencySnapshot snapshot = latency.getSnapshot(stage);
+				int index = stage.ordinal() * VALUES_PER_STAGE;
+				newValues[index] = new DataValue(new Variant(snapshot.getCount()));
+				newValues[index + 1] = new DataValue(new Variant((float) snapshot.getP50()));
+				newValues[index + 2] = new DataValue(new Variant((float) snapshot.getP99()));
+				newValues[index + 3] = new DataValue(new Variant((float) snapshot.getP999()));
+				newValues[index + 4] = new DataValue(new Variant((float) snapshot.getMax()));
+			}
+			values = newValues;
+		}
+	}
+
+	/**
+	 * Adds the diagnostic tags to the NodeManager and the Drivers browseTree.
+	 */
+	private void addSpecialTags() {
+
+		// Create the folder nodes
+		buildAndAddFolderNode(getFolderAddress(), FOLDER_NAME);
+		String latencyFolder = getFolderAddress() + "/Latency";
+		buildAndAddFolderNode(latencyFolder, "Latency");
+
+		for (Stage stage : Stage.values()) {
+			String stageFolder = String.format("%s/%s", latencyFolder, stage.name());
+			buildAndAddFolderNode(stageFolder, stage.name());
+
+			for (int i = 0; i < VALUES_PER_STAGE; i++) {
+				final int index = stage.ordinal() * VALUES_PER_STAGE + i;
+				DynamicDriverTag driverTag = new DynamicDriverTag(stageFolder + "/" + VALUE_NAMES[i],
+					i == 0 ? BuiltinDataType.Int64 : BuiltinDataType.Float) {
+					@Override
+					public DataValue getValue() {
+						return values[index];
+					}
+				};
+				buildAndAddNode(driverTag).setValue(driverTag.getValue());
+			}
+		}
+	}
+
+}
@@ -1,14 +1,17 @@
 package com.chitek.ignition.drivers.generictcp.folder;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.FolderInfo;
 import com.inductiveautomation.xopc.driver.api.items.DriverItem;
 import com.inductiveautomation.xopc.driver.api.items.ReadItem;
 import com.inductiveautomation.xopc.driver.api.items.SubscriptionItem;
@@ -19,6 +22,7 @@ public class FolderManager {
 	public static final int STATUS_ID = -2;
 	public static final int WRITEBACK_ID = -3;
 	public static final int DEVICE_STATUS_ID = -4;
+	public static final int DIAGNOSTICS_ID = -5;
 
 	/**
 	 * @param deviceId
@@ -54,9 +58,10 @@ public class FolderManager {
 	/**
 	 * Map of message folders<br>
 	 * Key is (device id << 24) | (message id & 0xffffff) (device id is the index in the device list)<br>
-	 * device id is 0 in active mode
+	 * device id is 0 in active mode<br>
+	 * The map is read by the diagnostics MBean while the driver adds or removes folders.
 	 */
-	private final Map<Integer, MessageFolder> folderMap = new HashMap<Integer, MessageFolder>();
+	private final Map<Integer, MessageFolder> folderMap = new ConcurrentHashMap<Integer, MessageFolder>();
 
 	/**
 	 * Maps folder address to folders
@@ -240,6 +245,56 @@ public class FolderManager {
 		}
 	}
 	
+	/**
+	 * Returns the state of all folders for diagnostics. May be called while folders are added or removed.
+	 * 
+	 * @return
+	 * 		The state of all folders, in the order of the folder ids
+	 */
+	public List<FolderInfo> getFolderInfo() {
+		List<Integer> folderIds = new ArrayList<Integer>(folderMap.keySet());
+		Collections.sort(folderIds);
+		List<FolderInfo> result = new ArrayList<FolderInfo>(folderIds.size());
+		for (Integer folderId : folderIds) {
+			MessageFolder folder = folderMap.get(folderId);
+			if (folder != null) {
+				result.add(folder.getFolderInfo());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the number of received messages that wait for evaluation in all folders. May be called while folders are
+	 * added or removed.
+	 * 
+	 * @return
+	 * 		The sum of the pending evaluations of all folders
+	 */
+	public int getPendingEvaluations() {
+		int count = 0;
+		for (MessageFolder messageFolder : folderMap.values()) {
+			count += messageFolder.getPendingEvaluations();
+		}
+		return count;
+	}
+	
+	/**
+	 * Start the compaction of the queue files of all folders. May be called while folders are added or removed.
+	 * 
+	 * @return
+	 * 		The number of folders whose queue file is compacted
+	 */
+	public int compactQueues() {
+		int count = 0;
+		for (MessageFolder messageFolder : folderMap.values()) {
+			if (messageFolder.compactQueue()) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
 	/**
 	 * Calls {@link MessageFolder#shutdown()} for all folders and removes them from the map
 	 */
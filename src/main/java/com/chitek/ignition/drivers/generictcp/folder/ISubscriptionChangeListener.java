@@ -18,4 +18,10 @@ public interface ISubscriptionChangeListener {
 	 * Called by the subscription updater before subscribed items are updated
 	 */
 	public void beforeSubscriptionUpdate();
+
+	/**
+	 * Called by the subscription updater after the subscribed data items have been updated. Called with the tag lock held
+	 * and only if data items are subscribed.
+	 */
+	public void afterSubscriptionUpdate();
 }
@@ -15,15 +15,20 @@
  ******************************************************************************/
 package com.chitek.ignition.drivers.generictcp.folder;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
@@ -36,27 +41,33 @@ import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
 
 import com.chitek.ignition.drivers.generictcp.IGenericTcpDriverContext;
+import com.chitek.ignition.drivers.generictcp.diagnostics.FolderInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics;
+import com.chitek.ignition.drivers.generictcp.diagnostics.MessageEvaluatedEvent;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics.Stage;
+import com.chitek.ignition.drivers.generictcp.io.DeviceStatistics;
 import com.chitek.ignition.drivers.generictcp.meta.config.IDriverSettings;
 import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.TagConfig;
 
 import com.chitek.ignition.drivers.generictcp.tags.ReadableArrayTag;
+import com.chitek.ignition.drivers.generictcp.tags.ReadableBatchTag;
 import com.chitek.ignition.drivers.generictcp.tags.ReadableBoolArrayTag;
 import com.chitek.ignition.drivers.generictcp.tags.ReadableStringTag;
 import com.chitek.ignition.drivers.generictcp.tags.ReadableTcpDriverTag;
 import com.chitek.ignition.drivers.generictcp.tags.WritableTag;
 import com.chitek.ignition.drivers.generictcp.types.BinaryDataType;
 import com.chitek.ignition.drivers.generictcp.types.QueueMode;
+import com.chitek.ignition.drivers.generictcp.types.QueueStorage;
 import com.chitek.ignition.drivers.generictcp.types.TagLengthType;
 import com.chitek.ignition.drivers.generictcp.util.VariantByteBuffer;
 import com.chitek.util.PersistentQueue;
+import com.chitek.util.QueueLog;
 import com.inductiveautomation.ignition.common.TypeUtilities;
-import com.inductiveautomation.xopc.driver.api.items.ReadItem;
 import com.inductiveautomation.xopc.driver.api.tags.DynamicDriverTag;
 import com.inductiveautomation.xopc.driver.util.ByteUtilities;
 
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
-import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
 
 /**
  * The message folder is the implementation of a configured message. It handles incoming messages and subscriptions.
@@ -66,33 +77,50 @@ import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.
  */
 public class IndexMessageFolder extends MessageFolder {
 	public final static String QUEUE_FILE_PREFIX = "tcpBinMsgQueue";
-	public final static String QUEUE_FILE_EXTENSION = ".que";
+	public final static String QUEUE_FILE_EXTENSION = ".mqe";
+	/** Extension of queue files written by previous versions, that store the messages in the legacy format */
+	public final static String LEGACY_QUEUE_FILE_EXTENSION = ".que";
 	private final static int MAX_PENDING_MESSAGES = 15;
-	private static final int MAX_QUEUE_SIZE = 500;
+	/** High priority messages are not discarded in bursts, but the priority lane must not grow without bound */
+	public final static int MAX_PENDING_PRIORITY_MESSAGES = 1000;
 
 	protected final List<ReadableTcpDriverTag> varTags; // List of all configured tags
 	protected ReadableTcpDriverTag messageAgeTag = null;
 	protected ReadableTcpDriverTag varLengthTag = null;
 
 	private final int deviceId; // The device id is used for passive mode
+	private final int messageId; // The configured message id
 	protected final IDriverSettings driverSettings;
 	private final int configHash; // HashCode of the message configuration
 
 	private int messageLength; // Length of this message
 	private int messageBytesAfterVarTag; // The message length after the variable length tag
 	private int messageAgeOffset = -1; // Byte offset of the messageAge (if configured)
-	private final MessageDataWrapper dataWrapper = new MessageDataWrapper();
 
 	protected volatile long messageCount;
 	private final AtomicInteger pendingEvaluations;
+	/** Counters for the remote device. Not shared with other folders unless set by the driver. */
+	private DeviceStatistics statistics = new DeviceStatistics();
+	private final LatencyStatistics latency;
+	/** Read and evaluation time of the oldest evaluated message, that has not been published to a subscription yet */
+	private long unpublishedReadNanos;
+	private long unpublishedEvaluatedNanos;
 
 	private final QueueMode queueMode;
+	/** Messages are evaluated in the priority lane and published immediately. Only used with QueueMode.NONE. */
+	private final boolean highPriority;
 	private boolean queueActive;
 	private volatile boolean handshakeBit;
 	/** Wait for UPC-UA client to reset handshake in Handshake Mode */
 	private volatile boolean waitHandshake;
-	private volatile PersistentQueue<byte[]> queue;
+	private volatile MessageEnvelopeQueue queue;
 	private final Object queueLock = new Object();
+	/** Maximum number of messages in the queue */
+	private final int queueCapacity;
+	/** Maximum size of all messages in the queue, 0 if unlimited */
+	private final long queueCapacityBytes;
+	/** Size of all messages in the queue */
+	private long queueBytes;
 
 	/** First timestamp published to client after this node became active */
 	private long firstPublishedTimestamp;
@@ -101,6 +129,31 @@ public class IndexMessageFolder extends MessageFolder {
 	/** timer for actions synchronized with the subscription */
 	private volatile int delayTimer;
 
+	/** Handshake timeouts in milliseconds */
+	private final long handshakeTimeout;
+	private final long handshakeResetDelay;
+	/** Timer for the handshake timeout. Runs independent of the subscription rate. */
+	private ScheduledFuture<?> handshakeTimer;
+	/** Incremented whenever the handshake timer is scheduled or cancelled, so a stale timer run is ignored */
+	private int handshakeTimerGeneration;
+	private final Object handshakeTimerLock = new Object();
+
+	/** Drain policy in Delayed Mode */
+	private final int drainMessagesPerCycle;
+	private final int drainMaxBurst;
+	private final int drainCatchUpThreshold;
+	/** Number of messages released in the current delay cycle. Doubled every cycle while catching up. */
+	private int drainCount;
+	/** System.nanoTime() of the last drain cycle, 0 if the queue has been empty */
+	private long lastDrainNanos;
+	private volatile DataValue queueDrainRateValue;
+
+	/** The queue file, if messages are stored in memory */
+	private volatile PersistentQueue<byte[]> persistentQueue;
+	/** The disk queue, if queue compression is enabled */
+	private QueueLog.Cursor compressedQueue;
+	private volatile DataValue queueCompressionRatioValue;
+
 	/** true, if there are items subscribed **/
 	private volatile boolean subscriptionPresent;
 
@@ -109,6 +162,17 @@ public class IndexMessageFolder extends MessageFolder {
 	private volatile DataValue handshakeValue;
 	private DataValue queueSizeValue;
 
+	/** Maximum number of messages published together in Batch Handshake Mode */
+	private final int batchSize;
+	/** The array tags for all configured tags in Batch Handshake Mode */
+	private final List<ReadableBatchTag> batchTags;
+	private final List<ReadableTcpDriverTag> batchSourceTags;
+	private ReadableBatchTag batchTimestampTag;
+	/** The messages published in the current batch. They are removed from the queue when the handshake is set. */
+	private final List<MessageEnvelope> currentBatch;
+	private long batchSequence;
+	private DataValue batchSequenceValue;
+
 	/**
 	 * Create a new folder with all tags defined in the given message config.
 	 * 
@@ -120,14 +184,37 @@ public class IndexMessageFolder extends MessageFolder {
 
 		this.driverSettings = driverSettings;
 		this.deviceId = deviceId;
+		this.messageId = messageConfig.getMessageId();
 		this.messageLength = 0;
 		this.messageCount = 0;
 
 		this.pendingEvaluations = new AtomicInteger();
+		this.latency = driverContext.getLatencyStatistics();
 
 		this.queueMode = messageConfig.getQueueMode();
+		this.highPriority = messageConfig.isHighPriority() && queueMode == QueueMode.NONE;
+		if (messageConfig.isHighPriority() && !highPriority) {
+			log.warn(String.format("High priority is not supported in queue mode %s. Messages with ID %d are evaluated with normal priority.",
+				queueMode, messageId));
+		}
 		configHash = messageConfig.getConfigHash();
 
+		this.batchSize = Math.max(1, messageConfig.getBatchSize());
+		this.batchTags = new ArrayList<ReadableBatchTag>();
+		this.batchSourceTags = new ArrayList<ReadableTcpDriverTag>();
+		this.currentBatch = new ArrayList<MessageEnvelope>(batchSize);
+
+		this.drainMaxBurst = Math.max(1, messageConfig.getDrainMaxBurst());
+		this.drainMessagesPerCycle = Math.min(Math.max(1, messageConfig.getDrainMessagesPerCycle()), drainMaxBurst);
+		this.drainCatchUpThreshold = Math.max(0, messageConfig.getDrainCatchUpThreshold());
+		this.drainCount = drainMessagesPerCycle;
+
+		this.queueCapacity = Math.max(1, messageConfig.getQueueCapacity());
+		this.queueCapacityBytes = Math.max(0, messageConfig.getQueueCapacityMB()) * 1024L * 1024L;
+
+		this.handshakeTimeout = Math.max(1, messageConfig.getHandshakeTimeout());
+		this.handshakeResetDelay = Math.max(1, messageConfig.getHandshakeResetDelay());
+
 		init(messageConfig, folderAddress);
 	}
 
@@ -151,14 +238,63 @@ public class IndexMessageFolder extends MessageFolder {
 
 		addTagsFromConfig(messageConfig, folderAddress);
 
+		if (queueMode == QueueMode.BATCH_HANDSHAKE) {
+			addBatchTags(folderAddress);
+		}
+
 		// In Handshake or Delayed mode, load queued message from disk
 		this.firstPublishedTimestamp = 0;
 		if (queueMode != QueueMode.NONE) {
 			String path = getDriverContext().getDiskPath() + String.format("%s%d%s", QUEUE_FILE_PREFIX, getFolderId(), QUEUE_FILE_EXTENSION);
 			try {
 				// The persistent queue loads content from disk on initialization
-				queue = new PersistentQueue<byte[]>(path, configHash, messageConfig.isUsePersistance(), log);
-				queueSizeValue = new DataValue(new Variant(ushort(queue.size())));
+				if (messageConfig.getQueueStorage() == QueueStorage.DISK) {
+					// Messages are stored in the queue log of the driver, only the index is kept in memory
+					path = getDriverContext().getDiskPath();
+					QueueLog queueLog = getDriverContext().getQueueLog();
+					List<byte[]> legacyEntries = null;
+					if (queueLog.hasEntries(getFolderId(), configHash)) {
+						// The entries have been stored by a previous version with the plain configuration hash
+						legacyEntries = convertLegacyEntries(queueLog.openQueue(getFolderId(), configHash));
+					}
+					QueueLog.Cursor diskQueue = queueLog.openQueue(getFolderId(), MessageEnvelope.contentHash(configHash), messageConfig.isQueueCompression());
+					if (legacyEntries != null) {
+						for (byte[] entry : legacyEntries) {
+							diskQueue.offer(entry);
+						}
+					}
+					queueBytes = diskQueue.sizeInBytes();
+					queue = new MessageEnvelopeQueue(diskQueue, log);
+					if (messageConfig.isQueueCompression()) {
+						// Messages are compressed by the commit thread of the queue log
+						compressedQueue = diskQueue;
+						queueCompressionRatioValue = new DataValue(new Variant((float) diskQueue.getCompressionRatio()));
+					}
+				} else {
+					// The queue file is compacted in the background by the drivers executor
+					Executor compactionExecutor = new Executor() {
+						@Override
+						public void execute(Runnable command) {
+							getDriverContext().executeOnce(command);
+						}
+					};
+					PersistentQueue<byte[]> memoryQueue = new PersistentQueue<byte[]>(path, configHash, messageConfig.isUsePersistance(), compactionExecutor, log);
+					File legacyFile = new File(getDriverContext().getDiskPath() + String.format("%s%d%s", QUEUE_FILE_PREFIX, getFolderId(), LEGACY_QUEUE_FILE_EXTENSION));
+					if (legacyFile.exists()) {
+						// The queue file has been written by a previous version. Entries of an interrupted conversion are replaced.
+						PersistentQueue<byte[]> legacyQueue = new PersistentQueue<byte[]>(legacyFile.getPath(), configHash, true, log);
+						memoryQueue.clear();
+						memoryQueue.addAll(convertLegacyEntries(legacyQueue));
+						legacyQueue.close();
+						if (!legacyFile.delete())
+							log.warn(String.format("Converted queue file %s could not be deleted", legacyFile.getPath()));
+					}
+					// The size is restored from the checkpoint of the queue file, the stored messages are loaded lazily
+					queueBytes = memoryQueue.sizeInBytes();
+					queue = new MessageEnvelopeQueue(memoryQueue, log);
+					persistentQueue = memoryQueue;
+				}
+				queueSizeValue = new DataValue(new Variant(uint(queue.size())));
 				queueActive = false;
 			} catch (IOException e) {
 				log.error(String.format("Error enabling handshake mode for Message ID%d. Can not create persitent queue in path %s:%s", getFolderId(), path, e.toString()));
@@ -171,13 +307,66 @@ public class IndexMessageFolder extends MessageFolder {
 		log.debug(String.format("Message initialized with %d tags. Queue size: %s", addressTagMap.size(), queue != null ? queue.size() : "Not used"));
 	}
 
+	/**
+	 * Convert the entries of a queue that has been written by a previous version to the current envelope format.
+	 *
+	 * @param legacyQueue
+	 *            The queue with the entries in the legacy format
+	 * @return The encoded envelopes
+	 */
+	private List<byte[]> convertLegacyEntries(Collection<byte[]> legacyQueue) {
+		List<byte[]> entries = new ArrayList<byte[]>(legacyQueue.size());
+		int discarded = 0;
+		for (byte[] data : legacyQueue) {
+			try {
+				if (data == null)
+					throw new IllegalArgumentException("Entry could not be read");
+				entries.add(MessageEnvelope.decodeLegacy(data, getFolderId(), driverSettings.getByteOrder()).encode());
+			} catch (IllegalArgumentException e) {
+				discarded++;
+			}
+		}
+		log.info(String.format("Converted %d queued messages stored by a previous version. %d invalid entrys have been discarded.", entries.size(), discarded));
+		return entries;
+	}
+
 	@Override
 	public void shutdown() {
+		persistentQueue = null;
 		if (queue != null)
 			queue.close();
 		super.shutdown();
 	}
 
+	@Override
+	public FolderInfo getFolderInfo() {
+		FolderInfo info = super.getFolderInfo();
+		int queueSize = 0;
+		long bytes = 0;
+		synchronized (queueLock) {
+			if (queue != null) {
+				queueSize = queue.size();
+				bytes = queueBytes;
+			}
+		}
+		PersistentQueue<byte[]> fileQueue = persistentQueue;
+		int compactions = fileQueue != null ? fileQueue.getCompactionCount() : 0;
+		int rewrites = fileQueue != null ? fileQueue.getRewriteCount() : 0;
+		return new FolderInfo(info.getAddress(), getPendingEvaluations(), queueSize, bytes, compactions, rewrites, info.getSubscribedItems(),
+			info.getSubscriptionRate());
+	}
+
+	@Override
+	public int getPendingEvaluations() {
+		return pendingEvaluations.get();
+	}
+
+	@Override
+	public boolean compactQueue() {
+		PersistentQueue<byte[]> fileQueue = persistentQueue;
+		return fileQueue != null && fileQueue.compact();
+	}
+
 	@Override
 	public void connectionStateChanged(boolean isConnected) {
 		// Connection state is ignored if queue is used
@@ -215,7 +404,7 @@ public class IndexMessageFolder extends MessageFolder {
 				log.debug(String.format("'%s' update driver state -> Active with Queue.", FolderManager.folderIdAsString(getFolderId())));
 			}
 
-			queueSizeValue = new DataValue(new Variant(ushort(queue.size())));
+			queueSizeValue = new DataValue(new Variant(uint(queue.size())));
 			queueActive = true;
 			// Start asynchronous evaluation of queued message
 			getDriverContext().executeOnce(new Runnable() {
@@ -243,6 +432,9 @@ public class IndexMessageFolder extends MessageFolder {
 				tag.setValue(statusCode);
 				tag.setUaNodeValue();
 			}
+			for (ReadableBatchTag tag : batchTags) {
+				tag.setValue(statusCode);
+			}
 
 			timestampValue = new DataValue(statusCode);
 		} finally {
@@ -250,28 +442,61 @@ public class IndexMessageFolder extends MessageFolder {
 		}
 	}
 
+	/**
+	 * @param statistics
+	 *            The statistics of the remote device this folder receives messages from
+	 */
+	public void setStatistics(DeviceStatistics statistics) {
+		this.statistics = statistics;
+	}
+
 	/**
 	 * In Handshake Mode, the incoming message is added to the handshake queue, without handshake it is immediately
-	 * published to clients.<br />
-	 * The first 8 bytes of the buffer have to contain the absolute time when the message was received by the driver and the
-	 * sequence number if multiple messages have been received with the same timestamp.<br />
-	 * The second 8 byte may contain a relative time offset received with a packet header.
+	 * published to clients. High priority messages are evaluated in the priority lane of the driver.
 	 * 
-	 * @param message
-	 *            The incoming message.<br/>
-	 *            Bytes 0-7 in the array are combination of receive timestamp and the index of messages received with the
-	 *            same timestamp.<br />
-	 *            timestamp << 16 + number<br />
-	 *            Bytes 8-15 contain the header timestamp or 0 if no header is used
+	 * @param received
+	 *            The incoming message with the time when it was received by the driver, the sequence number if multiple
+	 *            messages have been received with the same timestamp and the timestamp received with a packet header.
 	 * @param handshakeMsg
 	 *            if this param is not null, the value is sent back to the device after the message has been added to the
 	 *            queue
 	 */
-	public void messageArrived(final byte[] message, final byte[] handshakeMsg) {
+	public void messageArrived(MessageEnvelope received, final byte[] handshakeMsg) {
+		final MessageEnvelope message = received.forFolder(getFolderId());
 
 		if (log.isTraceEnabled()) {
-			log.trace(String.format("Message with id %d received: %s", ByteUtilities.get(driverSettings.getByteOrder()).getLong(message, 0),
-					ByteUtilities.toString(Arrays.copyOfRange(message, 16, message.length))));
+			log.trace(String.format("Message with id %d received: %s", message.getId(),
+					ByteUtilities.toString(Arrays.copyOfRange(message.getData(), message.getPayloadOffset(), message.getPayloadOffset() + message.getPayloadLength()))));
+		}
+
+		statistics.messageReceived();
+		if (message.getReadNanos() != 0) {
+			latency.record(Stage.Framing, message.getFramedNanos() - message.getReadNanos());
+		}
+
+		if (highPriority) {
+			// High priority messages are only discarded if the priority lane is flooded, and every message is published
+			if (pendingEvaluations.incrementAndGet() > MAX_PENDING_PRIORITY_MESSAGES) {
+				pendingEvaluations.decrementAndGet();
+				log.error("High priority messages arriving to fast. Discarded latest message.");
+				statistics.messageDropped();
+				return;
+			}
+			getDriverContext().executePriority(new Runnable() {
+				@Override
+				public void run() {
+					evaluateMessage(message);
+					publishSubscriptions();
+					if (handshakeMsg != null) {
+						if (log.isDebugEnabled()) {
+							log.debug(String.format("Sending handshake message to device:%s", ByteUtilities.toString(handshakeMsg)));
+						}
+						writeHandshake(handshakeMsg);
+					}
+					pendingEvaluations.decrementAndGet();
+				}
+			});
+			return;
 		}
 
 		// Make sure that messages don't arrive to fast
@@ -280,6 +505,7 @@ public class IndexMessageFolder extends MessageFolder {
 			// Messages arriving to fast - discard message
 			pendingEvaluations.decrementAndGet();
 			log.error("Messages arriving to fast. Discarded latest message.");
+			statistics.messageDropped();
 			return;
 		}
 
@@ -302,8 +528,10 @@ public class IndexMessageFolder extends MessageFolder {
 		else {
 			// Add message to queue
 			synchronized (queueLock) {
-				if (queue.size() > MAX_QUEUE_SIZE) {
+				while (!queue.isEmpty() && (queue.size() >= queueCapacity
+						|| (queueCapacityBytes > 0 && queueBytes + message.getEncodedLength() > queueCapacityBytes))) {
 					log.error("Maximum queue size exceeded, discarding oldest message.");
+					statistics.messageDropped();
 					pollMessageFromQueue(false);
 				}
 				addMessageToQueue(message);
@@ -330,7 +558,12 @@ public class IndexMessageFolder extends MessageFolder {
 	 * at the moment a shutdown happens, the message may be evaluated twice after the restart.
 	 */
 	private void evaluateQueuedMessage() {
-		byte[] message;
+		if (queueMode == QueueMode.BATCH_HANDSHAKE) {
+			evaluateQueuedBatch();
+			return;
+		}
+
+		MessageEnvelope message;
 		synchronized (queueLock) {
 
 			// Peek oldest message for evaluation
@@ -338,7 +571,7 @@ public class IndexMessageFolder extends MessageFolder {
 
 			if (message != null) {
 				if (log.isDebugEnabled())
-					log.debug(String.format("Evaluating queued message with id %d.", ByteUtilities.get(driverSettings.getByteOrder()).getLong(message, 0)));
+					log.debug(String.format("Evaluating queued message with id %d.", message.getId()));
 				handshakeBit = false;
 
 				// In delayed mode, evaluate next message after 2 subscription cycles
@@ -348,8 +581,8 @@ public class IndexMessageFolder extends MessageFolder {
 
 				// In Handshake mode, set timeout
 				if (queueMode == QueueMode.HANDSHAKE) {
-					delayTimer = 5;
 					waitHandshake = true;
+					scheduleHandshakeTimer(handshakeTimeout);
 				}
 			} else {
 				// No message queued
@@ -361,6 +594,90 @@ public class IndexMessageFolder extends MessageFolder {
 
 		if (message != null) {
 			evaluateMessage(message);
+			if (queueMode == QueueMode.HANDSHAKE) {
+				// Present the message to clients immediately instead of on the next subscription cycle
+				requestSubscriptionUpdate();
+			}
+		}
+	}
+
+	/**
+	 * Batch Handshake Mode: Publish up to batchSize messages from the queue. The messages are not removed from the
+	 * queue until a client sets the handshake.
+	 */
+	private void evaluateQueuedBatch() {
+		List<MessageEnvelope> batch;
+		synchronized (queueLock) {
+			currentBatch.clear();
+			for (MessageEnvelope message : queue) {
+				if (currentBatch.size() == batchSize)
+					break;
+				currentBatch.add(message);
+			}
+
+			if (!currentBatch.isEmpty()) {
+				if (log.isDebugEnabled())
+					log.debug(String.format("Evaluating batch with %d queued messages.", currentBatch.size()));
+				handshakeBit = false;
+				waitHandshake = true;
+				scheduleHandshakeTimer(handshakeTimeout);
+			} else {
+				// No message queued
+				if (log.isDebugEnabled())
+					log.debug("Message queue empty. Set handshake true");
+				handshakeBit = true;
+			}
+			batch = new ArrayList<MessageEnvelope>(currentBatch);
+		}
+
+		if (!batch.isEmpty()) {
+			evaluateBatch(batch);
+			requestSubscriptionUpdate();
+		}
+	}
+
+	/**
+	 * Evaluate all messages of a batch. The configured tags contain the values of the last message, the batch tags
+	 * contain the values of all messages. The tag lock is held for the whole batch, so subscriptions will never see
+	 * a partially evaluated batch.
+	 * 
+	 * @param batch
+	 */
+	private void evaluateBatch(List<MessageEnvelope> batch) {
+		tagLock.lock();
+		try {
+			for (ReadableBatchTag batchTag : batchTags) {
+				batchTag.clear();
+			}
+			batchTimestampTag.clear();
+
+			DateTime timestampUtc = null;
+			for (MessageEnvelope message : batch) {
+				evaluateMessage(message);
+				for (int i = 0; i < batchTags.size(); i++) {
+					batchTags.get(i).addValue(batchSourceTags.get(i));
+				}
+				Object timestamp = timestampValue.getValue().getValue();
+				if (timestamp instanceof Long) {
+					timestampUtc = new DateTime(new Date((Long) timestamp));
+					batchTimestampTag.addValue(timestampUtc);
+				} else {
+					batchTimestampTag.addValue(null);
+				}
+			}
+
+			for (ReadableBatchTag batchTag : batchTags) {
+				batchTag.publish(timestampUtc);
+			}
+			batchTimestampTag.publish(timestampUtc);
+
+			if (batchSequence < UInteger.MAX_VALUE)
+				batchSequence++;
+			else
+				batchSequence = 0;
+			batchSequenceValue = new DataValue(new Variant(uint(batchSequence)));
+		} finally {
+			tagLock.unlock();
 		}
 	}
 
@@ -406,61 +723,119 @@ public class IndexMessageFolder extends MessageFolder {
 			if (delayTimer == 0) {
 				// Timer expired - run action
 				if (queueMode == QueueMode.DELAYED && delayActive) {
-					// poll next message from queue
-					pollMessageFromQueue(true);
-				}
-				if (queueMode == QueueMode.HANDSHAKE && !handshakeBit && waitHandshake) {
-					// Set handshake to 0
-					if (log.isDebugEnabled()) {
-						log.debug("Handshake timeout expired. Setting _HandshakeTag to 0");
-					}
-					try {
-						tagLock.lock();
-						handshakeValue = new DataValue(new Variant(uint(0)));
-					} finally {
-						tagLock.unlock();
-					}
-					delayTimer = 2;	// Reset handshake after 2 subscription cycles
-					waitHandshake = false;
-				} else if (!waitHandshake) {
-					try {
-						tagLock.lock();
-						if (log.isDebugEnabled()) {
-							log.debug(String.format("Setting _Handshake back to %d after handshake timeout", messageCount));
-						}
-						handshakeValue = new DataValue(new Variant(messageCount));
-					} finally {
-						tagLock.unlock();
-					}
-					delayTimer = 5;	// Reset handshake after 5 subscription cycles
-					waitHandshake = true;
+					// release next messages from queue
+					drainDelayedQueue();
 				}
 			}
 		}
 		
 	}
 
+	/**
+	 * Record the publish latency of the oldest message evaluated since the last update. Messages restored from the queue
+	 * have no read time and are not included in the total latency.
+	 */
 	@Override
-	public void readItems(List<? extends ReadItem> list) {
-		
-		if (queueMode == QueueMode.HANDSHAKE && delayTimer>0) {
-			for (ReadItem item : list) {
-				if (item.getAddress().endsWith(HANDSHAKE_TAG_NAME)) {
-					// Handshake tag has been read. Check timer to toggle handshake
-					beforeSubscriptionUpdate();
+	public void afterSubscriptionUpdate() {
+		if (unpublishedEvaluatedNanos != 0) {
+			long now = System.nanoTime();
+			latency.record(Stage.Publish, now - unpublishedEvaluatedNanos);
+			if (unpublishedReadNanos != 0) {
+				latency.record(Stage.Total, now - unpublishedReadNanos);
+			}
+			unpublishedEvaluatedNanos = 0;
+			unpublishedReadNanos = 0;
+		}
+	}
+
+	/**
+	 * Start the handshake timer. A running timer is cancelled.
+	 * 
+	 * @param delay
+	 *            The delay in milliseconds
+	 */
+	private void scheduleHandshakeTimer(long delay) {
+		synchronized (handshakeTimerLock) {
+			if (handshakeTimer != null) {
+				handshakeTimer.cancel(false);
+			}
+			final int generation = ++handshakeTimerGeneration;
+			handshakeTimer = getDriverContext().executeOnce(new Runnable() {
+				@Override
+				public void run() {
+					handshakeTimerExpired(generation);
 				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void cancelHandshakeTimer() {
+		synchronized (handshakeTimerLock) {
+			handshakeTimerGeneration++;
+			if (handshakeTimer != null) {
+				handshakeTimer.cancel(false);
+				handshakeTimer = null;
 			}
 		}
-		
-		super.readItems(list);
 	}
-	
+
+	/**
+	 * The handshake state machine. If the client does not reset the handshake within the handshake timeout, the driver
+	 * toggles _Handshake to 0 and back to the message count after the reset delay. This mechanism makes sure that an
+	 * 'on-change' in the connected client will not get stuck.
+	 * <P>
+	 * The state is checked and toggled with the same locks that are held when the client writes the handshake.
+	 *
+	 * @param generation
+	 *            The timer generation when the timer has been scheduled
+	 */
+	private void handshakeTimerExpired(int generation) {
+		tagLock.lock();
+		try {
+			synchronized (queueLock) {
+				synchronized (handshakeTimerLock) {
+					if (generation != handshakeTimerGeneration) {
+						// The timer has been cancelled or rescheduled after this run has been started
+						return;
+					}
+				}
+				if (handshakeBit) {
+					// Handshake has been set by the client in the meantime
+					return;
+				}
+
+				if (waitHandshake) {
+					if (log.isDebugEnabled()) {
+						log.debug("Handshake timeout expired. Setting _HandshakeTag to 0");
+					}
+					handshakeValue = new DataValue(new Variant(uint(0)));
+				} else {
+					if (log.isDebugEnabled()) {
+						log.debug(String.format("Setting _Handshake back to %d after handshake timeout", messageCount));
+					}
+					handshakeValue = new DataValue(new Variant(uint(messageCount)));
+				}
+
+				waitHandshake = !waitHandshake;
+				scheduleHandshakeTimer(waitHandshake ? handshakeTimeout : handshakeResetDelay);
+			}
+		} finally {
+			tagLock.unlock();
+		}
+
+		requestSubscriptionUpdate();
+	}
+
 	/**
 	 * Cancel the scheduled actions
 	 */
 	private void cancelSchedule() {
-		delayTimer = 0;
-		waitHandshake = false;
+		synchronized (queueLock) {
+			delayTimer = 0;
+			waitHandshake = false;
+			lastDrainNanos = 0;
+			cancelHandshakeTimer();
+		}
 	}
 
 	/**
@@ -468,28 +843,27 @@ public class IndexMessageFolder extends MessageFolder {
 	 * sure that subscription updates will not mix data from two messages.
 	 * 
 	 * @param message
-	 *            The incoming message.<br/>
-	 *            Bytes 0-7 in the array are combination of receive timestamp and the index of messages received with the
-	 *            same timestamp.<br />
-	 *            timestamp << 16 + number<br />
-	 *            Bytes 8-15 contain the header timestamp or 0 if no header is used
+	 *            The incoming message.
 	 */
-	protected void evaluateMessage(byte[] message) {
+	protected void evaluateMessage(MessageEnvelope message) {
 
-		VariantByteBuffer buffer = new VariantByteBuffer(message);
+		MessageEvaluatedEvent event = new MessageEvaluatedEvent();
+		event.begin();
+		long startNanos = System.nanoTime();
+		if (message.getFramedNanos() != 0) {
+			latency.record(Stage.Queue, startNanos - message.getFramedNanos());
+		}
+
+		VariantByteBuffer buffer = new VariantByteBuffer(message.getData(), message.getPayloadOffset(), message.getPayloadLength());
 
 		// Set byte order. If reverseByteOrder is configured, we use LITTLE_ENDIAN
 		buffer.order(driverSettings.getByteOrder());
 
-		// Read the timestamps from the message
 		try {
-			// Evaluate the message info data (timestamps...)
-			dataWrapper.evaluateData(buffer);
-
-			long timestamp = dataWrapper.getTimeReceived();
+			long timestamp = message.getTimeReceived();
 			DateTime timestampUtc = new DateTime(timestamp);
 
-			long headerTimestamp = dataWrapper.getHeaderTimestamp();
+			long headerTimestamp = message.getHeaderTimestamp();
 
 			tagLock.lock();
 			try {
@@ -509,7 +883,7 @@ public class IndexMessageFolder extends MessageFolder {
 						if (log.isTraceEnabled()) {
 							log.trace(String.format(
 									"Evaluate message. Received: %s (%d) - Header timestamp: %d - Message Age: %d - Calculated: Message age: %dms - Timestamp: %s -  Timestamp factor: %d",
-									DateFormat.getDateTimeInstance().format(new Date(dataWrapper.getTimeReceived())), dataWrapper.getSequenceId(), headerTimestamp, messageAge, calculatedAge,
+									DateFormat.getDateTimeInstance().format(new Date(message.getTimeReceived())), message.getSequenceId(), headerTimestamp, messageAge, calculatedAge,
 									timestamp, driverSettings.getTimestampFactor()));
 						}
 					} else {
@@ -576,15 +950,22 @@ public class IndexMessageFolder extends MessageFolder {
 				messageCountValue = new DataValue(new Variant(uint(messageCount)));
 				handshakeValue = new DataValue(new Variant(uint(messageCount)));
 
+				long evaluatedNanos = System.nanoTime();
+				latency.record(Stage.Evaluation, evaluatedNanos - startNanos);
+				if (unpublishedEvaluatedNanos == 0) {
+					unpublishedEvaluatedNanos = evaluatedNanos;
+					unpublishedReadNanos = message.getReadNanos();
+				}
+
 			} catch (BufferUnderflowException ex) {
-				log.error(String.format("BufferUnderflowException while evaluating message with %d bytes of payload data.", message.length - 16));
+				log.error(String.format("BufferUnderflowException while evaluating message with %d bytes of payload data.", message.getPayloadLength()));
 			} catch (Exception ex) {
 				log.error("Exception while evaluating message", ex);
 			} finally {
 				tagLock.unlock();
 			}
 		} catch (Exception ex) {
-			log.error(String.format("Exception while evaluating message timestamps. MessageBufferSize: %d", message.length));
+			log.error(String.format("Exception while evaluating message. Payload size: %d", message.getPayloadLength()));
 			if (log.isDebugEnabled())
 				log.debug("Stacktrace:", ex);
 
@@ -601,6 +982,14 @@ public class IndexMessageFolder extends MessageFolder {
 				tagLock.unlock();
 			}
 		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.device = getFolderAddress();
+			event.messageId = messageId;
+			event.bytes = message.getPayloadLength();
+			event.commit();
+		}
 	}
 
 	/**
@@ -795,7 +1184,7 @@ public class IndexMessageFolder extends MessageFolder {
 		buildAndAddNode(driverTag).setValue(driverTag.getValue());
 
 		// Writable handshake tag
-		if (queueMode == QueueMode.HANDSHAKE) {
+		if (queueMode.isHandshake()) {
 			WritableTag handshakeTag = new WritableTag(folderName + HANDSHAKE_TAG_NAME, BuiltinDataType.Int64) {
 				@Override
 				public StatusCode setValue(DataValue paramDataValue) {
@@ -812,16 +1201,33 @@ public class IndexMessageFolder extends MessageFolder {
 						return new StatusCode(StatusCodes.Bad_NotWritable);
 					}
 
-					handshakeValue = new DataValue(new Variant(uint(newValue)));
+					boolean acknowledged = false;
+					// The same locks as in handshakeTimerExpired, so the timer can not toggle the handshake in between
+					tagLock.lock();
+					try {
+						synchronized (queueLock) {
+							handshakeValue = new DataValue(new Variant(uint(newValue)));
+
+							if (log.isDebugEnabled())
+								log.debug(String.format("Handshake for message id %d set by client. Value: %d - MassageCount: %d - Handshake State: %s", getFolderId(), newValue, messageCount, handshakeBit));
 
-					if (log.isDebugEnabled())
-						log.debug(String.format("Handshake for message id %d set by client. Value: %d - MassageCount: %d - Handshake State: %s", getFolderId(), newValue, messageCount, handshakeBit));
+							if (newValue == 0 && handshakeBit==false) {
+								handshakeBit = true;
+								cancelSchedule();
+								acknowledged = true;
+							}
+						}
+					} finally {
+						tagLock.unlock();
+					}
 
-					if (newValue == 0 && handshakeBit==false) {
+					if (acknowledged) {
 						// Remove the acknowledged message from queue and evaluate the next one
-						handshakeBit = true;
-						cancelSchedule();
-						pollMessageFromQueue(true);
+						if (queueMode == QueueMode.BATCH_HANDSHAKE) {
+							pollBatchFromQueue();
+						} else {
+							pollMessageFromQueue(true);
+						}
 					}
 
 					return StatusCode.GOOD;
@@ -846,6 +1252,61 @@ public class IndexMessageFolder extends MessageFolder {
 			};
 			buildAndAddNode(driverTag).setValue(driverTag.getValue());
 		}
+
+		if (compressedQueue != null) {
+			// QueueCompressionRatio
+			driverTag = new DynamicDriverTag(folderName + QUEUE_COMPRESSION_RATIO_TAG_NAME, BuiltinDataType.Float) {
+				@Override
+				public DataValue getValue() {
+					return queueCompressionRatioValue;
+				}
+			};
+			buildAndAddNode(driverTag).setValue(driverTag.getValue());
+		}
+
+		if (queueMode == QueueMode.DELAYED) {
+			// QueueDrainRate
+			queueDrainRateValue = new DataValue(new Variant(0f));
+			driverTag = new DynamicDriverTag(folderName + QUEUE_DRAIN_RATE_TAG_NAME, BuiltinDataType.Float) {
+				@Override
+				public DataValue getValue() {
+					return queueDrainRateValue;
+				}
+			};
+			buildAndAddNode(driverTag).setValue(driverTag.getValue());
+		}
+	}
+
+	/**
+	 * Adds the array tags for Batch Handshake Mode to the NodeManager and the Drivers browseTree.
+	 * 
+	 * @param folderName
+	 */
+	private void addBatchTags(String folderName) {
+		String batchFolderName = folderName + BATCH_FOLDER_NAME;
+		buildAndAddFolderNode(batchFolderName, BATCH_FOLDER_NAME.substring(1));
+
+		for (ReadableTcpDriverTag tag : varTags) {
+			if (tag.getDriverDataType().isHidden()) {
+				continue;
+			}
+			ReadableBatchTag batchTag = new ReadableBatchTag(batchFolderName + "/" + tag.getDisplayName(), tag.getDataType(), batchSize);
+			buildAndAddNode(batchTag).setValue(batchTag.getValue());
+			batchTags.add(batchTag);
+			batchSourceTags.add(tag);
+		}
+
+		batchTimestampTag = new ReadableBatchTag(batchFolderName + TIMESTAMP_TAG_NAME, BuiltinDataType.DateTime, batchSize);
+		buildAndAddNode(batchTimestampTag).setValue(batchTimestampTag.getValue());
+
+		batchSequenceValue = new DataValue(new Variant(uint(0)));
+		DynamicDriverTag driverTag = new DynamicDriverTag(folderName + BATCH_SEQUENCE_TAG_NAME, BuiltinDataType.UInt32) {
+			@Override
+			public DataValue getValue() {
+				return batchSequenceValue;
+			}
+		};
+		buildAndAddNode(driverTag).setValue(driverTag.getValue());
 	}
 
 	public int getConfigHash() {
@@ -860,12 +1321,12 @@ public class IndexMessageFolder extends MessageFolder {
 	private void pollMessageFromQueue(boolean evaluate) {
 		// Remove message from queue
 		synchronized (queueLock) {
-			byte[] removed = queue.peek();
+			MessageEnvelope removed = queue.peek();
 			if (removed != null) {
 				removeMessageFromQueue(removed);
 				// Store the first polled timestamp
 				if (firstPublishedTimestamp == 0)
-					firstPublishedTimestamp = ByteUtilities.get(driverSettings.getByteOrder()).getLong(removed, 0);
+					firstPublishedTimestamp = removed.getId();
 			} else {
 				log.error("Message queue inconsistent. Tried to remove message from empty queue");
 			}
@@ -882,20 +1343,124 @@ public class IndexMessageFolder extends MessageFolder {
 		}
 	}
 
+	/**
+	 * Delayed Mode: Remove the published message from the queue and release the next messages according to the drain
+	 * policy. While the queue size exceeds the catch up threshold, the number of messages released per cycle is doubled
+	 * every cycle up to the maximum burst size.
+	 */
+	private void drainDelayedQueue() {
+		final int count;
+		synchronized (queueLock) {
+			pollMessageFromQueue(false);
+
+			if (drainCatchUpThreshold > 0 && queue.size() > drainCatchUpThreshold) {
+				drainCount = Math.min(drainCount * 2, drainMaxBurst);
+			} else {
+				drainCount = drainMessagesPerCycle;
+			}
+			count = drainCount;
+		}
+
+		if (log.isDebugEnabled() && count > 1)
+			log.debug(String.format("Releasing %d queued messages in this cycle.", count));
+
+		getDriverContext().executeOnce(new Runnable() {
+			@Override
+			public void run() {
+				releaseDelayedMessages(count);
+			}
+		});
+	}
+
+	/**
+	 * Evaluate the given number of queued messages. All but the last one are removed from the queue and published
+	 * immediately, so subscriptions see the values of every message. The last message stays at the queue head until the
+	 * next delay cycle expires.
+	 * 
+	 * @param count
+	 *            Number of messages to release
+	 */
+	private void releaseDelayedMessages(int count) {
+		int drained = 1; // The message published in the last cycle has already been removed
+		for (int i = 1; i < count; i++) {
+			MessageEnvelope message;
+			synchronized (queueLock) {
+				if (queue.size() < 2)
+					break;
+				message = queue.peek();
+				// Damaged entries at the queue head may have been discarded by peek()
+				if (message == null || queue.size() < 2)
+					break;
+				// The message is removed before it is evaluated, so a change of the queue head can not publish it twice
+				pollQueue();
+				queueSizeValue = new DataValue(new Variant(uint(queue.size())));
+				if (log.isDebugEnabled())
+					log.debug(String.format("Message with id %d released from queue. New queue size: %d", message.getId(), queue.size()));
+			}
+			evaluateMessage(message);
+			publishSubscriptions();
+			drained++;
+		}
+
+		evaluateQueuedMessage();
+
+		// Update the drain rate in messages per second
+		long now = System.nanoTime();
+		synchronized (queueLock) {
+			if (queue.isEmpty()) {
+				queueDrainRateValue = new DataValue(new Variant(0f));
+				lastDrainNanos = 0;
+			} else {
+				if (lastDrainNanos != 0) {
+					float rate = drained * 1000000000f / Math.max(1, now - lastDrainNanos);
+					queueDrainRateValue = new DataValue(new Variant(rate));
+				}
+				lastDrainNanos = now;
+			}
+		}
+	}
+
+	/**
+	 * Remove all messages of the acknowledged batch from the queue and start evaluation of the next batch.
+	 */
+	private void pollBatchFromQueue() {
+		synchronized (queueLock) {
+			for (MessageEnvelope message : currentBatch) {
+				removeMessageFromQueue(message);
+			}
+			if (firstPublishedTimestamp == 0 && !currentBatch.isEmpty())
+				firstPublishedTimestamp = currentBatch.get(0).getId();
+			currentBatch.clear();
+		}
+
+		getDriverContext().executeOnce(new Runnable() {
+			@Override
+			public void run() {
+				evaluateQueuedMessage();
+			}
+		});
+	}
+
 	/**
 	 * This method is called when this node receives a message from the device or when the redundant peer posts a queue
 	 * update.
 	 * 
 	 * @param message
 	 */
-	public void addMessageToQueue(byte[] message) {
+	public void addMessageToQueue(MessageEnvelope message) {
 		synchronized (queueLock) {
-			queue.add(message);
+			if (!queue.offer(message)) {
+				log.error(String.format("Message with id %d could not be added to the queue.", message.getId()));
+				return;
+			}
+			queueBytes += message.getEncodedLength();
 
-			queueSizeValue = new DataValue(new Variant(ushort(queue.size())));
+			queueSizeValue = new DataValue(new Variant(uint(queue.size())));
+			if (compressedQueue != null)
+				queueCompressionRatioValue = new DataValue(new Variant((float) compressedQueue.getCompressionRatio()));
 			if (log.isDebugEnabled())
-				log.debug(String.format("Message with id %d and %d bytes length added to queue. New queue size: %d", ByteUtilities.get(driverSettings.getByteOrder()).getLong(message, 0),
-						message.length, queue.size()));
+				log.debug(String.format("Message with id %d and %d bytes length added to queue. New queue size: %d", message.getId(),
+						message.getPayloadLength(), queue.size()));
 
 			if (handshakeBit && queueActive) {
 				// Evaluate message immediately if handshake is already set
@@ -915,19 +1480,19 @@ public class IndexMessageFolder extends MessageFolder {
 		}
 	}
 
-	public void removeMessageFromQueue(byte[] message) {
+	public void removeMessageFromQueue(MessageEnvelope message) {
 
 		synchronized (queueLock) {
-			byte[] removed = queue.peek();
+			MessageEnvelope removed = queue.peek();
 
 			if (removed != null) {
 
-				long timestampQueue = ByteUtilities.get(driverSettings.getByteOrder()).getLong(removed, 0);
-				long timestampToRemove = ByteUtilities.get(driverSettings.getByteOrder()).getLong(message, 0);
+				long timestampQueue = removed.getId();
+				long timestampToRemove = message.getId();
 
-				if (timestampQueue == timestampToRemove) {
-					queue.poll();
-					queueSizeValue = new DataValue(new Variant(ushort(queue.size())));
+				if (removed.isSameMessage(message)) {
+					pollQueue();
+					queueSizeValue = new DataValue(new Variant(uint(queue.size())));
 
 					if (log.isDebugEnabled())
 						log.debug(String.format("Message with id %d polled from queue. New queue size: %d", timestampToRemove, queue.size()));
@@ -936,10 +1501,10 @@ public class IndexMessageFolder extends MessageFolder {
 					int discarded = 0;
 					while (queue.size() > 0 && timestampQueue <= timestampToRemove) {
 						// Entry at queue head is older then entry that should be removed - try to catch up
-						queue.poll();
+						pollQueue();
 						discarded++;
 						if (queue.size() > 0)
-							timestampQueue = ByteUtilities.get(driverSettings.getByteOrder()).getLong(queue.peek(), 0);
+							timestampQueue = queue.peek().getId();
 					}
 					if (discarded > 0)
 						log.warn(String.format("Removed %d old entrys from message queue. New queue size is %d.", discarded, queue.size()));
@@ -950,6 +1515,13 @@ public class IndexMessageFolder extends MessageFolder {
 		}
 	}
 
+	private void pollQueue() {
+		MessageEnvelope removed = queue.poll();
+		if (removed != null)
+			queueBytes -= removed.getEncodedLength();
+		queueBytes -= queue.takeDiscardedBytes();
+	}
+
 	/**
 	 * Returns the first timestamp that has been published to clients by this message folder.
 	 * 
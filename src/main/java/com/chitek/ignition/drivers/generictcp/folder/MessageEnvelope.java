@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.folder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A received message with the receive information. The payload is a reference to a range of a byte array, it is not
+ * copied when an envelope is decoded.
+ * <P>
+ * The stored form of an envelope starts with a format byte, followed by the receive time, sequence id, header timestamp
+ * and folder id as variable length integers and the payload. Messages stored by older versions have a fixed 16 byte
+ * prefix with the receive time and sequence id packed into a long, followed by the header timestamp. The format is never
+ * guessed from the stored data: Queues that have been written by older versions are converted with
+ * {@link #decodeLegacy(byte[], int, ByteOrder)} when they are opened.
+ */
+public class MessageEnvelope {
+
+	/** First byte of an encoded envelope */
+	private static final byte FORMAT = (byte) 0xE1;
+	/** Length of the prefix of the legacy format */
+	private static final int LEGACY_PREFIX_LENGTH = 16;
+
+	private final long timeReceived;
+	private final int sequenceId;
+	private final long headerTimestamp;
+	private final int folderId;
+	private final byte[] data;
+	private final int payloadOffset;
+	private final int payloadLength;
+	/** The encoded form, if this envelope has been encoded or decoded */
+	private byte[] encoded;
+	/** {@link System#nanoTime()} of the socket read that completed the message, 0 if unknown. Not encoded. */
+	private long readNanos;
+	/** {@link System#nanoTime()} when the message has been framed, 0 if unknown. Not encoded. */
+	private long framedNanos;
+
+	/**
+	 * @param folderId
+	 *            The id of the folder that receives the message
+	 * @param timeReceived
+	 *            Time when the message was received by the driver
+	 * @param sequenceId
+	 *            The index of the message if multiple messages where received in the same packet. Only the lower 16 bits
+	 *            are used.
+	 * @param headerTimestamp
+	 *            Timestamp received with the message header, or 0 if no header is used
+	 * @param payload
+	 *            The message payload. The array is not copied.
+	 */
+	public MessageEnvelope(int folderId, long timeReceived, int sequenceId, long headerTimestamp, byte[] payload) {
+		this(folderId, timeReceived, sequenceId, headerTimestamp, payload, 0, payload.length);
+	}
+
+	private MessageEnvelope(int folderId, long timeReceived, int sequenceId, long headerTimestamp, byte[] data, int payloadOffset, int payloadLength) {
+		this.folderId = folderId;
+		this.timeReceived = timeReceived;
+		this.sequenceId = sequenceId & 0xffff;
+		this.headerTimestamp = headerTimestamp;
+		this.data = data;
+		this.payloadOffset = payloadOffset;
+		this.payloadLength = payloadLength;
+	}
+
+	/**
+	 * @param configHash
+	 *            The hash of the folder configuration
+	 * @return The content hash for a queue that stores envelopes in the current format. Differs from the configHash,
+	 *         which is used by queues that have been written by older versions.
+	 */
+	public static int contentHash(int configHash) {
+		return 31 * configHash + FORMAT;
+	}
+
+	/**
+	 * Decode an envelope. The payload of the returned envelope references the given array.
+	 *
+	 * @param data
+	 *            The encoded envelope
+	 * @return The decoded envelope
+	 * @throws IllegalArgumentException
+	 *             if the data is no valid envelope
+	 */
+	public static MessageEnvelope decode(byte[] data) {
+		if (data.length == 0 || data[0] != FORMAT)
+			throw new IllegalArgumentException(String.format("Invalid message envelope with %d bytes", data.length));
+
+		int[] position = new int[] { 1 };
+		long timeReceived = readVarLong(data, position);
+		int sequenceId = (int) readVarLong(data, position);
+		long headerTimestamp = zigZagDecode(readVarLong(data, position));
+		int folderId = (int) zigZagDecode(readVarLong(data, position));
+		MessageEnvelope envelope = new MessageEnvelope(folderId, timeReceived, sequenceId, headerTimestamp, data, position[0], data.length - position[0]);
+		envelope.encoded = data;
+		return envelope;
+	}
+
+	/**
+	 * Decode a message that has been stored by an older version. The returned envelope references the given array, its
+	 * encoded form is created in the current format.
+	 *
+	 * @param data
+	 *            The stored message with the 16 byte prefix
+	 * @param folderId
+	 *            The folder id of the message
+	 * @param byteOrder
+	 *            The byte order of the prefix
+	 * @return The decoded envelope
+	 * @throws IllegalArgumentException
+	 *             if the data is no valid message
+	 */
+	public static MessageEnvelope decodeLegacy(byte[] data, int folderId, ByteOrder byteOrder) {
+		if (data.length < LEGACY_PREFIX_LENGTH)
+			throw new IllegalArgumentException(String.format("Invalid message envelope with %d bytes", data.length));
+
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(byteOrder);
+		long id = buffer.getLong();
+		long headerTimestamp = buffer.getLong();
+		return new MessageEnvelope(folderId, id >> 16, (int) (id & 0xffff), headerTimestamp, data, LEGACY_PREFIX_LENGTH, data.length - LEGACY_PREFIX_LENGTH);
+	}
+
+	/**
+	 * @return The encoded envelope. The array is created on the first call and must not be modified. A decoded envelope
+	 *         returns the data it has been decoded from, so the length always matches the stored length.
+	 */
+	public byte[] encode() {
+		if (encoded == null) {
+			byte[] header = new byte[1 + 10 + 3 + 10 + 5];
+			int position = 0;
+			header[position++] = FORMAT;
+			position = writeVarLong(header, position, timeReceived);
+			position = writeVarLong(header, position, sequenceId);
+			position = writeVarLong(header, position, zigZagEncode(headerTimestamp));
+			position = writeVarLong(header, position, zigZagEncode(folderId));
+
+			byte[] result = new byte[position + payloadLength];
+			System.arraycopy(header, 0, result, 0, position);
+			System.arraycopy(data, payloadOffset, result, position, payloadLength);
+			encoded = result;
+		}
+		return encoded;
+	}
+
+	/**
+	 * @param folderId
+	 *            The id of the folder that receives the message
+	 * @return An envelope for the given folder that shares the payload with this envelope, or this envelope if the
+	 *         folder id matches
+	 */
+	public MessageEnvelope forFolder(int folderId) {
+		if (folderId == this.folderId)
+			return this;
+		MessageEnvelope envelope = new MessageEnvelope(folderId, timeReceived, sequenceId, headerTimestamp, data, payloadOffset, payloadLength);
+		envelope.setLatencyStamps(readNanos, framedNanos);
+		return envelope;
+	}
+
+	/**
+	 * Set the time stamps used for the latency statistics. The stamps are not encoded, a decoded envelope has no stamps.
+	 *
+	 * @param readNanos
+	 *            {@link System#nanoTime()} of the socket read that completed the message
+	 * @param framedNanos
+	 *            {@link System#nanoTime()} when the message has been framed
+	 */
+	public void setLatencyStamps(long readNanos, long framedNanos) {
+		this.readNanos = readNanos;
+		this.framedNanos = framedNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} of the socket read that completed the message, 0 if unknown
+	 */
+	public long getReadNanos() {
+		return readNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the message has been framed, 0 if unknown
+	 */
+	public long getFramedNanos() {
+		return framedNanos;
+	}
+
+	/**
+	 * @return The length of the encoded envelope
+	 */
+	public int getEncodedLength() {
+		return encode().length;
+	}
+
+	/**
+	 * @return The unique id of this message: The receive time shifted left by 16 bits plus the sequence id
+	 */
+	public long getId() {
+		return (timeReceived << 16) + sequenceId;
+	}
+
+	/**
+	 * @param other
+	 *            The envelope to compare with
+	 * @return <code>true</code> if the other envelope contains the same message
+	 */
+	public boolean isSameMessage(MessageEnvelope other) {
+		return other != null && timeReceived == other.timeReceived && sequenceId == other.sequenceId;
+	}
+
+	/**
+	 * @return Time when this message was received by the driver
+	 */
+	public long getTimeReceived() {
+		return timeReceived;
+	}
+
+	/**
+	 * @return The sequence id if multiple messages where received in the same package with the same timestamp.
+	 */
+	public int getSequenceId() {
+		return sequenceId;
+	}
+
+	/**
+	 * @return Timestamp received with the message header
+	 */
+	public long getHeaderTimestamp() {
+		return headerTimestamp;
+	}
+
+	public int getFolderId() {
+		return folderId;
+	}
+
+	/**
+	 * @return The array that contains the payload. Use {@link #getPayloadOffset()} and {@link #getPayloadLength()} to
+	 *         access the payload.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Message id %d, %d bytes", getId(), payloadLength);
+	}
+
+	private static int writeVarLong(byte[] buffer, int position, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	private static long readVarLong(byte[] buffer, int[] position) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position[0] >= buffer.length)
+				throw new IllegalArgumentException("Incomplete message envelope");
+			byte b = buffer[position[0]++];
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Invalid variable length integer in message envelope");
+	}
+
+	private static long zigZagEncode(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long zigZagDecode(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
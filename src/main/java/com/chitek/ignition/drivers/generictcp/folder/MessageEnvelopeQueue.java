@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.folder;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import com.chitek.util.CloseableQueue;
+
+/**
+ * A queue of message envelopes, that stores the encoded envelopes in a byte array queue. The envelope at the queue head
+ * is cached, so it is decoded only once.
+ * <P>
+ * Entries that can not be read or decoded are logged and discarded when they reach the queue head, so a damaged entry
+ * does not block the queue. The iterator does not modify the queue, it skips damaged entries.
+ */
+class MessageEnvelopeQueue extends AbstractQueue<MessageEnvelope> implements CloseableQueue<MessageEnvelope> {
+
+	private final CloseableQueue<byte[]> store;
+	private final Logger log;
+	private MessageEnvelope head;
+	/** Stored length of the discarded entries, that has not been fetched by {@link #takeDiscardedBytes()} */
+	private long discardedBytes;
+	/** Number of entries removed from the store since the queue has been opened. Used to number the entries. */
+	private long removedEntries;
+	/** All damaged entries with a lower number have already been added to discardedBytes by an iterator */
+	private long countedEntries;
+
+	/**
+	 * @param store
+	 *            The queue that stores the encoded envelopes
+	 * @param log
+	 *            The logger for discarded entries
+	 */
+	MessageEnvelopeQueue(CloseableQueue<byte[]> store, Logger log) {
+		this.store = store;
+		this.log = log;
+	}
+
+	@Override
+	public boolean offer(MessageEnvelope e) {
+		return store.offer(e.encode());
+	}
+
+	@Override
+	public MessageEnvelope peek() {
+		while (head == null && store.size() > 0) {
+			byte[] data = store.peek();
+			if (data == null) {
+				log.error(String.format("Queued message could not be read. The entry is discarded. Queue size: %d", store.size()));
+				removeStoreHead();
+				continue;
+			}
+			head = decode(data, removedEntries);
+			if (head == null) {
+				log.error(String.format("Queued message is invalid. The entry is discarded. Queue size: %d", store.size()));
+				removeStoreHead();
+			}
+		}
+		return head;
+	}
+
+	/**
+	 * Decode an entry of the store. The length of a damaged entry is added to the discarded bytes once, the entry is
+	 * counted as discarded when it is seen for the first time.
+	 * 
+	 * @param data
+	 *            The stored entry
+	 * @param entryNumber
+	 *            The number of the entry
+	 * @return The decoded envelope, or null if the entry is damaged
+	 */
+	private MessageEnvelope decode(byte[] data, long entryNumber) {
+		try {
+			return MessageEnvelope.decode(data);
+		} catch (IllegalArgumentException e) {
+			if (entryNumber >= countedEntries) {
+				discardedBytes += data.length;
+				countedEntries = entryNumber + 1;
+			}
+			return null;
+		}
+	}
+
+	private void removeStoreHead() {
+		store.poll();
+		removedEntries++;
+	}
+
+	/**
+	 * Returns the stored length of the damaged entries that have been discarded or skipped by an iterator since the last
+	 * call. Every entry is counted once. An entry that could not be read has an unknown length and is not included.
+	 *
+	 * @return The stored length of the discarded entries
+	 */
+	long takeDiscardedBytes() {
+		long bytes = discardedBytes;
+		discardedBytes = 0;
+		return bytes;
+	}
+
+	@Override
+	public MessageEnvelope poll() {
+		MessageEnvelope envelope = peek();
+		if (envelope != null) {
+			removeStoreHead();
+			head = null;
+		}
+		return envelope;
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public void clear() {
+		removedEntries += store.size();
+		store.clear();
+		head = null;
+	}
+
+	@Override
+	public Iterator<MessageEnvelope> iterator() {
+		final Iterator<byte[]> iterator = store.iterator();
+		return new Iterator<MessageEnvelope>() {
+			private long entryNumber = removedEntries;
+			private MessageEnvelope next = findNext();
+
+			/**
+			 * Damaged entries are skipped. They are removed when they reach the queue head.
+			 */
+			private MessageEnvelope findNext() {
+				while (iterator.hasNext()) {
+					byte[] data = iterator.next();
+					long number = entryNumber++;
+					if (number == removedEntries && head != null)
+						return head;
+					if (data == null)
+						continue;
+					MessageEnvelope envelope = decode(data, number);
+					if (envelope != null)
+						return envelope;
+					log.warn(String.format("Queued message is invalid and is skipped. Queue size: %d", store.size()));
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public MessageEnvelope next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				MessageEnvelope envelope = next;
+				next = findNext();
+				return envelope;
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		store.close();
+		head = null;
+	}
+}
@@ -42,7 +42,9 @@ import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
 
 import com.chitek.ignition.drivers.generictcp.IGenericTcpDriverContext;
+import com.chitek.ignition.drivers.generictcp.diagnostics.FolderInfo;
 import com.chitek.ignition.drivers.generictcp.tags.ReadableArrayTag;
+import com.chitek.ignition.drivers.generictcp.tags.ReadableBatchTag;
 import com.chitek.ignition.drivers.generictcp.tags.ReadableTcpDriverTag;
 import com.chitek.ignition.drivers.generictcp.tags.WritableTag;
 import com.google.common.collect.ImmutableSet;
@@ -65,6 +67,10 @@ public abstract class MessageFolder implements ISubscriptionChangeListener{
 	public static final String MESSAGE_COUNT_TAG_NAME = "/_MessageCount";
 	public static final String HANDSHAKE_TAG_NAME = "/_Handshake";
 	public static final String QUEUE_SIZE_TAG_NAME = "/_QueueSize";
+	public static final String QUEUE_DRAIN_RATE_TAG_NAME = "/_QueueDrainRate";
+	public static final String QUEUE_COMPRESSION_RATIO_TAG_NAME = "/_QueueCompressionRatio";
+	public static final String BATCH_SEQUENCE_TAG_NAME = "/_BatchSequence";
+	public static final String BATCH_FOLDER_NAME = "/_Batch";
 
 	/**
 	 * Mapping of address strings to driver tags
@@ -202,7 +208,7 @@ public abstract class MessageFolder implements ISubscriptionChangeListener{
 		}
 		
 		if (subscriptionUpdater == null) {
-			subscriptionUpdater = new SubscriptionUpdater(tagLock, log, this);
+			subscriptionUpdater = new SubscriptionUpdater(tagLock, log, folderAddress, this);
 			driverContext.registerSelfSchedulingRunnable(getFolderAddress(), UPDATER_COMMAND_NAME, subscriptionUpdater);
 		}
 		
@@ -218,6 +224,64 @@ public abstract class MessageFolder implements ISubscriptionChangeListener{
 	public void beforeSubscriptionUpdate() {
 		// Default implementation does nothing
 	}
+
+	@Override
+	public void afterSubscriptionUpdate() {
+		// Default implementation does nothing
+	}
+
+	/**
+	 * Returns the state of this folder for diagnostics. May be called from any thread.
+	 *
+	 * @return The current state of the folder
+	 */
+	public FolderInfo getFolderInfo() {
+		SubscriptionUpdater updater = subscriptionUpdater;
+		int subscribedItems = updater != null ? updater.getItemCount() : 0;
+		long subscriptionRate = updater != null ? updater.getSubscriptionRate() : 0;
+		return new FolderInfo(getFolderAddress(), 0, 0, 0, 0, 0, subscribedItems, subscriptionRate);
+	}
+
+	/**
+	 * Returns the number of received messages that wait for evaluation in the driver's executors. May be called from any
+	 * thread.
+	 *
+	 * @return The number of pending evaluations. The default implementation returns 0.
+	 */
+	public int getPendingEvaluations() {
+		return 0;
+	}
+
+	/**
+	 * Start the compaction of the message queue file, if the folder uses a persistent queue.
+	 *
+	 * @return <code>true</code> if a compaction has been started
+	 */
+	public boolean compactQueue() {
+		return false;
+	}
+
+	/**
+	 * Request an immediate update of all subscribed items, without waiting for the next subscription cycle.
+	 */
+	protected void requestSubscriptionUpdate() {
+		SubscriptionUpdater updater = subscriptionUpdater;
+		if (updater != null) {
+			updater.requestUpdate();
+		}
+	}
+
+	/**
+	 * Publish the current values of all subscribed items in the calling thread.
+	 *
+	 * @see SubscriptionUpdater#publish()
+	 */
+	protected void publishSubscriptions() {
+		SubscriptionUpdater updater = subscriptionUpdater;
+		if (updater != null) {
+			updater.publish();
+		}
+	}
 	
 	/**
 	 * Called when the device is connected or disconnected
@@ -295,6 +359,11 @@ public abstract class MessageFolder implements ISubscriptionChangeListener{
 					arrayDimensions = new UInteger[1];
 					arrayDimensions[0] = uint(((ReadableArrayTag) tag).getValueArrayLength());
 					valueRank = ValueRank.OneDimension;
+				} else if (tag instanceof ReadableBatchTag) {
+					// The array length of batch tags depends on the number of messages in the batch
+					arrayDimensions = new UInteger[1];
+					arrayDimensions[0] = uint(0);
+					valueRank = ValueRank.OneDimension;
 				} else {
 					arrayDimensions = new UInteger[0];
 					valueRank = ValueRank.Scalar;
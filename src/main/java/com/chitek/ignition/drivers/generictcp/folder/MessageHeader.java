@@ -15,16 +15,16 @@
  ******************************************************************************/
 package com.chitek.ignition.drivers.generictcp.folder;
 
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.ParseException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.HeaderTagConfig;
+import com.chitek.ignition.drivers.generictcp.util.ByteTemplate;
 import com.chitek.ignition.drivers.generictcp.util.Util;
 
 public class MessageHeader {
@@ -35,8 +35,6 @@ public class MessageHeader {
 
 	private final ByteOrder byteOrder;
 	private final HeaderConfig config;
-	private final HeaderTagConfig firstFixedTag;
-	private final HeaderTagConfig packetSizeTag;
 
 	/**
 	 * Message length of the last received header
@@ -56,9 +54,27 @@ public class MessageHeader {
 	 */
 	private boolean headerValid = false;
 
-	private ByteBuffer handshakeBuffer;
+	/** Placeholders in the handshake message */
+	private static final String[] HANDSHAKE_PLACEHOLDERS = { "timestamp", "sequence", "lenb", "lenw" };
+	private static final int[] HANDSHAKE_PLACEHOLDER_SIZES = { 4, 2, 1, 2 };
+	private static final int TIMESTAMP = 0;
+	private static final int SEQUENCE = 1;
+	private static final int LENB = 2;
+	private static final int LENW = 3;
+
+	private final boolean littleEndian;
+	private final int packetSizeOffset;
+	/** Offset of the timestamp, or -1 if the header has no timestamp */
+	private final int timestampOffset;
+	/** Offset of the sequence id, or -1 if the header has no sequence id */
+	private final int sequenceIdOffset;
+	/** Offsets, sizes and values of the fixed values in the header, in the order of the configuration */
+	private final int[] fixedOffsets;
+	private final int[] fixedSizes;
+	private final int[] fixedValues;
+
+	private ByteTemplate handshakeTemplate = null;
 	private byte[] handshakeMsg = null;
-	private int handshakeMsgLength = 0;
 
 	public MessageHeader(HeaderConfig config, ByteOrder byteOrder) {
 		this(config, byteOrder, Logger.getLogger(LOGGER_NAME));
@@ -77,25 +93,47 @@ public class MessageHeader {
 
 		this.log = logger;
 		this.byteOrder = byteOrder;
+		this.littleEndian = byteOrder.equals(ByteOrder.LITTLE_ENDIAN);
 
 		this.config = config;
-		this.firstFixedTag = config.getFirstFixedTag();
-		this.packetSizeTag = config.getPacketSizeTag();
+		HeaderTagConfig packetSizeTag = config.getPacketSizeTag();
+		this.packetSizeOffset = packetSizeTag != null ? packetSizeTag.getOffset() : -1;
+
+		// Collect the offsets of all evaluated values, so a header can be evaluated without iterating the configuration
+		int timestamp = -1;
+		int sequence = -1;
+		List<HeaderTagConfig> fixedTags = new ArrayList<HeaderTagConfig>();
+		for (HeaderTagConfig tag : config.getTags()) {
+			switch (tag.getDataType()) {
+			case Timestamp:
+				timestamp = tag.getOffset();
+				break;
+			case SequenceId:
+				sequence = tag.getOffset();
+				break;
+			case Byte:
+			case Word:
+				fixedTags.add(tag);
+				break;
+			default:
+				break;
+			}
+		}
+		this.timestampOffset = timestamp;
+		this.sequenceIdOffset = sequence;
+		this.fixedOffsets = new int[fixedTags.size()];
+		this.fixedSizes = new int[fixedTags.size()];
+		this.fixedValues = new int[fixedTags.size()];
+		for (int i = 0; i < fixedTags.size(); i++) {
+			fixedOffsets[i] = fixedTags.get(i).getOffset();
+			fixedSizes[i] = fixedTags.get(i).getByteCount();
+			fixedValues[i] = fixedTags.get(i).getValue();
+		}
 
-		// Check the handshake message
+		// Compile the handshake message
 		if (config.isUseHandshake()) {
-			Map<String, Number> values = new HashMap<String, Number>();
-			values.put("timestamp", (Integer.valueOf((int) (headerTimestamp & 0xffffffff))));
-			values.put("sequence", (Short.valueOf((short) (sequenceId & 0xffff))));
-			values.put("lenb", (Byte.valueOf((byte) (10 & 0xff))));
-			values.put("lenw", (Short.valueOf((short) (10 & 0xffff))));
-			String msg = config.getHandshakeMsg();
 			try {
-				byte[] parsed = Util.hexString2ByteArray(msg, values, byteOrder);
-				handshakeMsgLength = parsed.length;
-				this.handshakeBuffer = ByteBuffer.allocate(handshakeMsgLength);
-				this.handshakeBuffer.order(byteOrder);
-				this.handshakeMsg = new byte[handshakeMsgLength];
+				handshakeTemplate = ByteTemplate.compile(config.getHandshakeMsg(), HANDSHAKE_PLACEHOLDERS, HANDSHAKE_PLACEHOLDER_SIZES, byteOrder);
 			} catch (ParseException e) {
 				log.error("Initial value can no be parsed. Handshake disabled. Error:" + e.getLocalizedMessage());
 				config.setUseHandshake(false);
@@ -123,9 +161,7 @@ public class MessageHeader {
 		}
 		
 		// Read the packetSize first
-		packetSize = byteOrder.equals(ByteOrder.LITTLE_ENDIAN) 
-				? (int) (((message[packetSizeTag.getOffset() + 1] & 0xff) << 8) | (message[packetSizeTag.getOffset() & 0xff]))
-				: (int) (((message[packetSizeTag.getOffset()] & 0xff) << 8) | (message[packetSizeTag.getOffset() + 1] & 0xff));
+		packetSize = getUnsignedShort(message, packetSizeOffset);
 
 		// Check if packet size is valid
 		if (config.isSizeIncludesHeader() && packetSize < config.getHeaderSize()) {
@@ -138,98 +174,33 @@ public class MessageHeader {
 			return false;		
 		}
 		
-		// Do a quick check of the first fixed tag
-		// This way we can return fast if the message is obviously invalid
-		if (firstFixedTag != null) {
-			int value;
-			switch (firstFixedTag.getDataType()) {
-			case Byte:
-				value = message[firstFixedTag.getOffset()] & 0xff;
-				break;
-			case Word:
-				value = byteOrder.equals(ByteOrder.LITTLE_ENDIAN) 
-					? (int) (((message[firstFixedTag.getOffset() + 1] & 0xff) << 8) | (message[firstFixedTag.getOffset()] & 0xff))
-					: (int) (((message[firstFixedTag.getOffset()] & 0xff) << 8) | (message[firstFixedTag.getOffset() + 1] & 0xff));
-				break;
-			default:
-				value = 0;
-			}
-
-			if (value != firstFixedTag.getValue()) {
+		// Check the fixed values. The first fixed value is checked first, so we can return fast if the message is
+		// obviously invalid
+		for (int i = 0; i < fixedOffsets.length; i++) {
+			int value = fixedSizes[i] == 1 ? message[fixedOffsets[i]] & 0xff : getUnsignedShort(message, fixedOffsets[i]);
+			if (value != fixedValues[i]) {
 				headerValid = false;
 				if (log.isDebugEnabled())
-					log.debug(String.format("Header invalid. Expected fixed value: %s at offset %d, found value %d", firstFixedTag.getValue(), firstFixedTag.getOffset(), value));
+					log.debug(String.format("Header invalid. Expected fixed value: %s at offset %d, found value %d", fixedValues[i], fixedOffsets[i], value));
 				return false;
 			}
 		}
 
-		ByteBuffer buffer = ByteBuffer.wrap(message);
-
-		// Set byte order. If reverseByteOrder is configured, we use LITTLE_ENDIAN
-		buffer.order(byteOrder);
-
-		try {
-			headerTimestamp = 0;
-			headerValid = true;
-			int value = 0;
-
-			for (HeaderTagConfig tag : config.getTags()) {
-				switch (tag.getDataType()) {
-				case Dummy:
-					// Dummy - Ignore
-					buffer.position(buffer.position() + tag.getSize());
-					break;
-				case PacketSize:
-					// Has already been reed. Ignore here
-					buffer.position(buffer.position() + tag.getByteCount());
-					break;
-				case Timestamp:
-					headerTimestamp = buffer.getInt() & 0xffffffff;
-					break;
-				case SequenceId:
-					sequenceId = buffer.getShort() & 0xffff;
-					break;
-				case Byte:
-					value = buffer.get() & 0xff;
-					if (tag.getValue() != value) {
-						headerValid = false;
-						if (log.isDebugEnabled()) {
-							log.debug(String.format("Header invalid. Expected fixed value: %s at offset %d, found value %d", tag.getValue(), buffer.position() - 1, value));
-						}
-					}
-					break;
-				case Word:
-					value = buffer.getShort() & 0xffff;
-					if (tag.getValue() != value) {
-						headerValid = false;
-						if (log.isDebugEnabled()) {
-							log.debug(String.format("Header invalid. Expected fixed value: %s at offset %d, found value %d", tag.getValue(), buffer.position() - 1, value));
-						}
-					}
-					break;
-				default:
-					break;
-				}
-				// No need to check further if the header is invalid
-				if (!headerValid)
-					break;
-			}
-
-			if (config.isUseHandshake()) {
-				// Build the handshake message
-				Map<String, Number> values = new HashMap<String, Number>();
-				values.put("timestamp", (Integer.valueOf((int) (headerTimestamp & 0xffffffff))));
-				values.put("sequence", (Short.valueOf((short) (sequenceId & 0xffff))));
-				values.put("lenb", (Byte.valueOf((byte) (handshakeMsgLength & 0xff))));
-				values.put("lenw", (Short.valueOf((short) (handshakeMsgLength & 0xffff))));
-				String msg = config.getHandshakeMsg();
-				handshakeMsg = Util.hexString2ByteArray(msg, values, byteOrder);
-			}
+		headerValid = true;
+		headerTimestamp = timestampOffset >= 0 ? getInt(message, timestampOffset) & 0xffffffff : 0;
+		if (sequenceIdOffset >= 0) {
+			sequenceId = getUnsignedShort(message, sequenceIdOffset);
+		}
 
-		} catch (Exception ex) {
-			log.error("Exception while evaluating header message");
-			if (log.isDebugEnabled())
-				log.debug("Stacktrace:", ex);
+		if (handshakeTemplate != null) {
+			// Build the handshake message. The message is passed to other threads, so a new array is used for every header.
+			byte[] handshake = new byte[handshakeTemplate.getLength()];
+			handshakeTemplate.copyTo(handshake, 0);
+			handshakeTemplate.patch(handshake, 0, TIMESTAMP, headerTimestamp);
+			handshakeTemplate.patch(handshake, 0, SEQUENCE, sequenceId);
+			handshakeTemplate.patch(handshake, 0, LENB, handshake.length);
+			handshakeTemplate.patch(handshake, 0, LENW, handshake.length);
+			handshakeMsg = handshake;
 		}
 
 		if (log.isDebugEnabled())
@@ -238,6 +209,18 @@ public class MessageHeader {
 		return headerValid;
 	}
 
+	private int getUnsignedShort(byte[] data, int offset) {
+		return littleEndian
+			? ((data[offset + 1] & 0xff) << 8) | (data[offset] & 0xff)
+			: ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	}
+
+	private int getInt(byte[] data, int offset) {
+		return littleEndian
+			? ((data[offset + 3] & 0xff) << 24) | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 1] & 0xff) << 8) | (data[offset] & 0xff)
+			: ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
 	/**
 	 * 
 	 * @return The timestamp in the last evaluated header.
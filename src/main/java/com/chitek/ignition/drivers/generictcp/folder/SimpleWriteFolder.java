@@ -15,8 +15,10 @@ package com.chitek.ignition.drivers.generictcp.folder;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.ParseException;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
 import org.eclipse.milo.opcua.stack.core.StatusCodes;
@@ -31,6 +33,7 @@ import com.chitek.ignition.drivers.generictcp.meta.config.WritebackConfig;
 import com.chitek.ignition.drivers.generictcp.tags.WritableTag;
 import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
 import com.chitek.ignition.drivers.generictcp.types.WritebackDataType;
+import com.chitek.ignition.drivers.generictcp.util.ByteTemplate;
 import com.chitek.ignition.drivers.generictcp.util.Util;
 import com.inductiveautomation.ignition.common.TypeUtilities;
 import com.inductiveautomation.xopc.driver.util.ByteUtilities;
@@ -39,6 +42,12 @@ public class SimpleWriteFolder extends MessageFolder {
 
 	public static final String FOLDER_NAME = "[Writeback]";
 
+	/** Placeholders in the prefix */
+	private static final String[] PREFIX_PLACEHOLDERS = { "id", "lenb", "lenw" };
+	private static final int ID = 0;
+	private static final int LENB = 1;
+	private static final int LENW = 2;
+
 	private volatile boolean isActiveNode;
 
 	private boolean isConnected = false;
@@ -55,7 +64,14 @@ public class SimpleWriteFolder extends MessageFolder {
 	private final WritebackConfig config;
 	private final ByteOrder byteOrder;
 	private int fixedLength = 0; // The fixed message length
+	private ByteTemplate prefixTemplate = null; // The compiled prefix, or null if no prefix is used
+	private int prefixLength = 0;
 	private final int maxLength;
+	private final int maxValuesPerMessage;
+
+	/** Values waiting to be sent in a multi value message. Access is guarded by the tagLock */
+	private final Map<Integer, Long> pendingValues = new LinkedHashMap<Integer, Long>();
+	private boolean sendScheduled = false;
 
 	private DataValue idValue;
 	private DataValue valueValue;
@@ -75,12 +91,12 @@ public class SimpleWriteFolder extends MessageFolder {
 		addSpecialTags();
 		addTagsFromConfig(config);
 
-		// Parse the prefix if it is used
-		int prefixLen = 0;
+		// Compile the prefix if it is used
+		int idSize = config.getMessageIdType() == OptionalDataType.UByte ? 1 : 2;
 		if (config.isUsePrefix()) {
 			try {
-				byte[] prefix = parsePrefix(0, 0);
-				prefixLen = prefix.length;
+				prefixTemplate = ByteTemplate.compile(config.getPrefix(), PREFIX_PLACEHOLDERS, new int[] { idSize, 1, 2 }, byteOrder);
+				prefixLength = prefixTemplate.getLength();
 			} catch (Exception e) {
 				log.error("Prefix can no be parsed. Prefix disabled. Error:" + e.getLocalizedMessage());
 				config.setUsePrefix(false);
@@ -88,14 +104,26 @@ public class SimpleWriteFolder extends MessageFolder {
 		}
 
 		// Calculate the fixed message length
-		fixedLength = prefixLen;
+		fixedLength = prefixLength;
 
 		// HexString size is dynamic
 		if (config.getDataType() != WritebackDataType.ByteString)
 			fixedLength += config.getDataType().getByteSize();
 
 		// The maximum length depends on use of the message length field
-		maxLength = config.getPrefix().contains("lenb") ? 255 : 65535;
+		maxLength = prefixTemplate != null && prefixTemplate.contains(LENB) ? 255 : 65535;
+
+		// Limit the number of values in a multi value message to the maximum length
+		if (config.isMultiValue()) {
+			int valueLength = config.getMessageIdType().getByteSize() + config.getDataType().getByteSize();
+			int maxValues = Math.min(config.getMaxValuesPerMessage(), (maxLength - prefixLength) / valueLength);
+			// The number of values is sent in the 'id' placeholder of the prefix
+			if (prefixTemplate != null && prefixTemplate.contains(ID))
+				maxValues = Math.min(maxValues, idSize == 1 ? 255 : 65535);
+			maxValuesPerMessage = Math.max(1, maxValues);
+		} else {
+			maxValuesPerMessage = 1;
+		}
 	}
 
 
@@ -114,6 +142,15 @@ public class SimpleWriteFolder extends MessageFolder {
 				});
 			}
 		} else {
+			if (config.isMultiValue()) {
+				// Pending values are not sent after a reconnect
+				tagLock.lock();
+				try {
+					pendingValues.clear();
+				} finally {
+					tagLock.unlock();
+				}
+			}
 			writeValue = new DataValue(writeValue.getValue(), new StatusCode(StatusCodes.Bad_NotConnected));
 			idValue = new DataValue(idValue.getValue(), new StatusCode(StatusCodes.Bad_NotConnected));
 			valueValue = new DataValue(valueValue.getValue(), new StatusCode(StatusCodes.Bad_NotConnected));
@@ -193,36 +230,27 @@ public class SimpleWriteFolder extends MessageFolder {
 				sendNumValue = numValue;
 				sendByteValue = byteValue;
 			}
+
+			if (config.isMultiValue()) {
+				// A single value is sent in the multi value format
+				return buildMultiValueMessage(new int[] { sendId }, new long[] { sendNumValue }, 1);
+			}
 			
 			// Calculate the message length
 			int messageLength = fixedLength;
 			if (config.getDataType() == WritebackDataType.ByteString)
 				messageLength += sendByteValue.length;
 
+			// The buffer is queued by the driver, so every message needs its own buffer
 			b = ByteBuffer.allocate(messageLength);
 			b.order(byteOrder);
 
-			byte[] prefix = parsePrefix(messageLength, sendId);
-			b.put(prefix);
+			putPrefix(b, sendId > -1 ? sendId : messageId, messageLength);
 
-			switch (config.getDataType()) {
-			case Int16:
-				b.putShort((short) sendNumValue);
-				break;
-			case UInt16:
-				b.putShort((short) (sendNumValue & 0xffffL));
-				break;
-			case Int32:
-				b.putInt((int) sendNumValue);
-				break;
-			case UInt32:
-				b.putInt((int) (sendNumValue & 0xffffffffL));
-				break;
-			case ByteString:
+			if (config.getDataType() == WritebackDataType.ByteString)
 				b.put(sendByteValue);
-			}
-		} catch (ParseException e1) {
-			log.error("Error parsing prefix: " + e1.getLocalizedMessage());
+			else
+				putValue(b, sendNumValue);
 		} catch (Exception e) {
 			log.error("Exception in writeMessage " + e.toString());
 		} finally {
@@ -233,6 +261,142 @@ public class SimpleWriteFolder extends MessageFolder {
 		return b;
 	}
 
+	/**
+	 * Build a message with multiple values. The prefix is sent once, the 'id' in the prefix is replaced by the number of
+	 * values. Each value is preceded by its message ID, if a message ID is used.
+	 */
+	private ByteBuffer buildMultiValueMessage(int[] ids, long[] values, int count) {
+		int idSize = config.getMessageIdType().getByteSize();
+		int messageLength = prefixLength + count * (idSize + config.getDataType().getByteSize());
+
+		// The buffer is queued by the driver, so every message needs its own buffer
+		ByteBuffer b = ByteBuffer.allocate(messageLength);
+		b.order(byteOrder);
+
+		putPrefix(b, count, messageLength);
+		for (int i = 0; i < count; i++) {
+			if (idSize == 1)
+				b.put((byte) ids[i]);
+			else if (idSize == 2)
+				b.putShort((short) ids[i]);
+			putValue(b, values[i]);
+		}
+
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Encode the prefix directly into the message buffer
+	 */
+	private void putPrefix(ByteBuffer b, int id, int messageLength) {
+		if (prefixTemplate != null) {
+			byte[] array = b.array();
+			prefixTemplate.copyTo(array, 0);
+			prefixTemplate.patch(array, 0, ID, id);
+			prefixTemplate.patch(array, 0, LENB, messageLength);
+			prefixTemplate.patch(array, 0, LENW, messageLength);
+			b.position(prefixTemplate.getLength());
+		}
+	}
+
+	private void putValue(ByteBuffer b, long value) {
+		switch (config.getDataType()) {
+		case Int16:
+			b.putShort((short) value);
+			break;
+		case UInt16:
+			b.putShort((short) (value & 0xffffL));
+			break;
+		case Int32:
+			b.putInt((int) value);
+			break;
+		case UInt32:
+			b.putInt((int) (value & 0xffffffffL));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Add a value to the pending values. A pending value with the same ID is replaced. Has to be called with the tagLock
+	 * held.
+	 * 
+	 * @return
+	 * 	<code>true</code> if a message is full and should be sent immediately
+	 */
+	private boolean addPendingValue(int id, long value) {
+		pendingValues.put(id, value);
+		return pendingValues.size() >= maxValuesPerMessage;
+	}
+
+	/**
+	 * Send all pending values. Values are sent in messages of up to the configured maximum number of values.
+	 */
+	private void sendPendingValues() {
+		while (true) {
+			int[] ids = new int[maxValuesPerMessage];
+			long[] values = new long[maxValuesPerMessage];
+			int count = 0;
+
+			tagLock.lock();
+			try {
+				sendScheduled = false;
+				Iterator<Map.Entry<Integer, Long>> it = pendingValues.entrySet().iterator();
+				while (it.hasNext() && count < maxValuesPerMessage) {
+					Map.Entry<Integer, Long> entry = it.next();
+					ids[count] = entry.getKey();
+					values[count] = entry.getValue();
+					count++;
+					it.remove();
+				}
+			} finally {
+				tagLock.unlock();
+			}
+
+			if (count == 0)
+				return;
+
+			ByteBuffer b = buildMultiValueMessage(ids, values, count);
+			if (log.isTraceEnabled()) {
+				log.trace(String.format("Sending writeback message with %d values to device %s", count, ByteUtilities.toString(b)));
+			}
+			getDriverContext().writeToRemoteDevice(b, deviceId);
+		}
+	}
+
+	/**
+	 * Schedule sending of the pending values.
+	 * 
+	 * @param immediate
+	 * 	<code>true</code> to send immediately, <code>false</code> to wait for the coalesce time, so values changed
+	 * 	in this time are sent in the same message.
+	 */
+	private void schedulePendingValues(boolean immediate) {
+		Runnable command = new Runnable() {
+			@Override
+			public void run() {
+				sendPendingValues();
+			}
+		};
+
+		if (immediate) {
+			getDriverContext().executeOnce(command);
+			return;
+		}
+
+		tagLock.lock();
+		try {
+			if (sendScheduled)
+				return;
+			sendScheduled = true;
+		} finally {
+			tagLock.unlock();
+		}
+		getDriverContext().executeOnce(command, config.getCoalesceTime(), TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * 
 	 * @param initialValues
@@ -254,23 +418,6 @@ public class SimpleWriteFolder extends MessageFolder {
 		getDriverContext().writeToRemoteDevice(b, deviceId);
 	}
 
-	private byte[] parsePrefix(int messageLength, int id) throws ParseException {
-		Number idValue;
-		if (config.getMessageIdType() == OptionalDataType.UByte)
-			idValue = Byte.valueOf((byte) ((id > -1 ? id : this.messageId) & 0xff));
-		else
-			idValue = Short.valueOf((short) ((id > -1 ? id : this.messageId) & 0xffff));
-		if (config.isUsePrefix()) {
-			Map<String, Number> map = new HashMap<String, Number>();
-			map.put("id", idValue);
-			map.put("lenb", (Byte.valueOf((byte) (messageLength & 0xff))));
-			map.put("lenw", (Short.valueOf((short) (messageLength & 0xffff))));
-			return Util.hexString2ByteArray(config.getPrefix(), map, byteOrder);
-		}
-
-		return new byte[0];
-	}
-
 	private void addSpecialTags() {
 		// Create the folder node
 		buildAndAddFolderNode(getFolderAddress(), FOLDER_NAME);
@@ -295,12 +442,24 @@ public class SimpleWriteFolder extends MessageFolder {
 						log.trace(String.format("Client set %s/Write to true. Sending message.", getFolderAddress()));
 					}
 
-					getDriverContext().executeOnce(new Runnable() {
-						@Override
-						public void run() {
-							writeMessage(false);
+					if (config.isMultiValue()) {
+						// Send the pending values, or the current value if there are no pending values
+						tagLock.lock();
+						try {
+							if (pendingValues.isEmpty())
+								addPendingValue(messageId, numValue);
+						} finally {
+							tagLock.unlock();
 						}
-					});
+						schedulePendingValues(true);
+					} else {
+						getDriverContext().executeOnce(new Runnable() {
+							@Override
+							public void run() {
+								writeMessage(false);
+							}
+						});
+					}
 				}
 
 				return StatusCode.GOOD;
@@ -374,6 +533,7 @@ public class SimpleWriteFolder extends MessageFolder {
 				if (!isConnected && config.getSendOnValueChange())
 					return new StatusCode(StatusCodes.Bad_NotConnected);
 
+				boolean sendNow = false;
 				tagLock.lock();
 				try {
 					if (config.getDataType() == WritebackDataType.ByteString) {
@@ -392,6 +552,8 @@ public class SimpleWriteFolder extends MessageFolder {
 						byteValue = val;
 					} else {
 						numValue = TypeUtilities.toLong(paramDataValue.getValue().getValue());
+						if (config.isMultiValue())
+							sendNow = addPendingValue(messageId, numValue);
 					}
 
 					valueValue = paramDataValue;
@@ -399,7 +561,11 @@ public class SimpleWriteFolder extends MessageFolder {
 					tagLock.unlock();
 				}
 
-				if (config.getSendOnValueChange()) {
+				if (config.isMultiValue()) {
+					// Values changed within the coalesce time are sent in one message
+					if (sendNow || config.getSendOnValueChange())
+						schedulePendingValues(sendNow);
+				} else if (config.getSendOnValueChange()) {
 					getDriverContext().executeOnce(new Runnable() {
 						@Override
 						public void run() {
@@ -10,6 +10,7 @@ import org.apache.log4j.Logger;
 import org.eclipse.milo.opcua.stack.core.StatusCodes;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.SubscriptionCycleEvent;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
 import com.inductiveautomation.ignition.common.execution.SchedulingController;
@@ -30,6 +31,7 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 	private final static DataValue DATAVALUE_ERROR = new DataValue(StatusCodes.Bad_InternalError);
 
 	private final Logger log;
+	private final String folderAddress;
 
 	/** The lock for accessing driver items **/
 	private final Lock tagLock;
@@ -37,9 +39,9 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 	private final ISubscriptionChangeListener subscriptionChangeListener;
 
 	private SchedulingController schedulingController;
-	private long nextExecTime = 0;
+	private volatile long nextExecTime = 0;
 	private long nextExecTimeData = 0;
-	private boolean sendSpecialItems;
+	private volatile boolean sendSpecialItems;
 
 	private volatile long newSubscriptionRate = 0;
 	private volatile long subscriptionRate = 0;
@@ -50,9 +52,20 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 	private AggregateSubscriptionItem messageCountItem = null;
 	private volatile DataValue messageCountValue = null;
 	private AggregateSubscriptionItem handshakeItem = null;
+	/** Number of subscribed items including the special items. Updated when items are added or removed, read by diagnostics. */
+	private volatile int itemCount;
 
-	public SubscriptionUpdater(Lock tagLock, Logger log, ISubscriptionChangeListener listener) {
+	/**
+	 * @param tagLock
+	 *            The lock for accessing driver items
+	 * @param log
+	 * @param folderAddress
+	 *            The address of the message folder, used in flight recorder events
+	 * @param listener
+	 */
+	public SubscriptionUpdater(Lock tagLock, Logger log, String folderAddress, ISubscriptionChangeListener listener) {
 		this.log = Logger.getLogger(String.format("%s.Subscription", log.getName()));
+		this.folderAddress = folderAddress;
 		this.tagLock = tagLock;
 		this.subscriptionChangeListener = listener;
 	}
@@ -78,6 +91,67 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 		schedulingController.requestReschedule(this);
 	}
 
+	/**
+	 * Request an immediate update of the data items. The special items are updated after SUBSCRIPTION_DELAY as usual.
+	 */
+	public void requestUpdate() {
+		if (schedulingController == null) {
+			return;
+		}
+
+		// Skip a pending update of the special items, they are updated after the data items
+		sendSpecialItems = false;
+		nextExecTime = System.currentTimeMillis();
+		schedulingController.requestReschedule(this);
+	}
+
+	/**
+	 * Publish the current values of the data items in the calling thread, without waiting for the next subscription
+	 * cycle. Every call publishes the values, so no value is missed if this method is called after each message. The
+	 * special items are updated after SUBSCRIPTION_DELAY as usual.
+	 */
+	public void publish() {
+		tagLock.lock();
+		try {
+			if (items.isEmpty()) {
+				return;
+			}
+			for (SubscriptionItem item : items.values()) {
+				DynamicDriverTag tag = (DynamicDriverTag) item.getAddressObject();
+				item.setValue(tag != null ? tag.getValue() : DATAVALUE_ERROR);
+			}
+			subscriptionChangeListener.afterSubscriptionUpdate();
+
+			if (messageCountItem != null) {
+				messageCountValue = ((DriverTag) messageCountItem.getAddressObject()).getValue();
+			}
+		} finally {
+			tagLock.unlock();
+		}
+
+		if (schedulingController != null && (messageCountItem != null || handshakeItem != null) && !sendSpecialItems) {
+			// Update the special items after the data items. A pending update is never postponed, so sustained
+			// publishing can not starve the special items.
+			sendSpecialItems = true;
+			nextExecTime = Math.min(nextExecTime, System.currentTimeMillis() + SUBSCRIPTION_DELAY);
+			schedulingController.requestReschedule(this);
+		}
+	}
+
+	/**
+	 * @return The number of subscribed items, including the special items
+	 */
+	public int getItemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * @return The current subscription rate in milliseconds, or 0 if no item is subscribed
+	 */
+	public long getSubscriptionRate() {
+		return getItemCount() > 0 ? subscriptionRate : 0;
+	}
+
 	@Override
 	public long getNextExecDelayMillis() {
 
@@ -127,6 +201,7 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 					}
 				}
 			}
+			updateItemCount();
 		}
 	}
 
@@ -166,9 +241,14 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 					}
 				}
 			}
+			updateItemCount();
 		}
 	}
 
+	private void updateItemCount() {
+		itemCount = items.size() + (messageCountItem != null ? 1 : 0) + (handshakeItem != null ? 1 : 0);
+	}
+
 	@Override
 	public void setController(SchedulingController controller) {
 		this.schedulingController = controller;
@@ -217,7 +297,10 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 				sendSpecialItems = true;
 
 				subscriptionChangeListener.beforeSubscriptionUpdate();
-				
+
+				SubscriptionCycleEvent event = new SubscriptionCycleEvent();
+				event.begin();
+				int itemCount = 0;
 				try {
 					tagLock.lock();
 					boolean subscriptionChanged = false;
@@ -256,6 +339,11 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 						newSubscriptionRate = Math.min(newSubscriptionRate, item.getSamplingRate());
 					}
 
+					itemCount = items.size();
+					if (!items.isEmpty()) {
+						subscriptionChangeListener.afterSubscriptionUpdate();
+					}
+
 					// Store value of _MessageCount tag
 					if (messageCountItem != null) {
 						messageCountValue = ((DriverTag) messageCountItem.getAddressObject()).getValue();
@@ -284,6 +372,13 @@ public class SubscriptionUpdater implements SelfSchedulingRunnable {
 					tagLock.unlock();
 				}
 
+				event.end();
+				if (event.shouldCommit()) {
+					event.device = folderAddress;
+					event.items = itemCount;
+					event.commit();
+				}
+
 				if (log.isTraceEnabled()) {
 					log.trace(String.format("Data item subscriptions updated. SendSpecialItems: %s - Next exec: %s", sendSpecialItems, nextExecTime));
 				}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches a delimiter in received data. The first byte of the delimiter is searched 8 bytes at a time, the remaining
+ * bytes are only compared at candidate positions.
+ */
+class DelimiterScanner {
+
+	private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+	private final byte[] delimiter;
+	/** The first byte of the delimiter repeated in every byte of a long */
+	private final long pattern;
+
+	/**
+	 * @param delimiter
+	 *            The delimiter. Must contain at least one byte.
+	 */
+	DelimiterScanner(byte[] delimiter) {
+		this.delimiter = delimiter.clone();
+		this.pattern = (delimiter[0] & 0xffL) * 0x0101010101010101L;
+	}
+
+	int getLength() {
+		return delimiter.length;
+	}
+
+	/**
+	 * Search the delimiter in the given range. The position of the buffer is not changed.
+	 * 
+	 * @param data
+	 *            The data to search
+	 * @param from
+	 *            Start index of the search
+	 * @param limit
+	 *            End index (exclusive) of the search
+	 * @return The index of the first delimiter that ends before limit, or -1 if no delimiter is found
+	 */
+	int indexOf(ByteBuffer data, int from, int limit) {
+		int last = limit - delimiter.length;
+		boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+		int i = from;
+		while (i <= last) {
+			if (limit - i >= 8) {
+				long word = data.getLong(i) ^ pattern;
+				// The high bit is set in each byte that is 0, without carry between the bytes
+				long match = ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+				if (match == 0) {
+					i += 8;
+					continue;
+				}
+				int candidate = i + ((bigEndian ? Long.numberOfLeadingZeros(match) : Long.numberOfTrailingZeros(match)) >>> 3);
+				if (candidate > last) {
+					return -1;
+				}
+				if (matchesAt(data, candidate)) {
+					return candidate;
+				}
+				i = candidate + 1;
+			} else {
+				if (data.get(i) == delimiter[0] && matchesAt(data, i)) {
+					return i;
+				}
+				i++;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Search a delimiter that starts in the already received message data and ends in the new data.
+	 * 
+	 * @param message
+	 *            The received message data
+	 * @param messageLength
+	 *            Length of the received message data
+	 * @param data
+	 *            The new data. The search starts at the current position.
+	 * @param limit
+	 *            End index (exclusive) of the new data
+	 * @return The index of the delimiter in the message data, or -1 if there is no delimiter
+	 */
+	int indexOfSpanning(byte[] message, int messageLength, ByteBuffer data, int limit) {
+		int start = data.position();
+		for (int i = Math.max(0, messageLength - delimiter.length + 1); i < messageLength; i++) {
+			int head = messageLength - i;
+			if (limit - start < delimiter.length - head) {
+				continue;
+			}
+			boolean match = true;
+			for (int j = 0; j < delimiter.length && match; j++) {
+				byte b = j < head ? message[i + j] : data.get(start + j - head);
+				match = b == delimiter[j];
+			}
+			if (match) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean matchesAt(ByteBuffer data, int index) {
+		for (int j = 1; j < delimiter.length; j++) {
+			if (data.get(index + j) != delimiter[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.io;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and error counters of a remote device. The counters are incremented by the server thread, the message
+ * state and the message folders without locking and are read by the device status folder.
+ */
+public class DeviceStatistics {
+
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder messagesReceived = new LongAdder();
+	private final LongAdder packetsDiscarded = new LongAdder();
+	private final LongAdder invalidHeaders = new LongAdder();
+	private final LongAdder undefinedMessageIds = new LongAdder();
+	private final LongAdder messagesDropped = new LongAdder();
+
+	/**
+	 * @param count
+	 *            Number of bytes received from the device
+	 */
+	public void bytesReceived(int count) {
+		bytesReceived.add(count);
+	}
+
+	/**
+	 * A complete message has been received.
+	 */
+	public void messageReceived() {
+		messagesReceived.increment();
+	}
+
+	/**
+	 * Received data has been discarded, because it could not be parsed.
+	 */
+	public void packetDiscarded() {
+		packetsDiscarded.increment();
+	}
+
+	/**
+	 * A packet has been discarded, because the header was invalid.
+	 */
+	public void invalidHeader() {
+		invalidHeaders.increment();
+		packetsDiscarded.increment();
+	}
+
+	/**
+	 * Received data has been discarded, because the message ID is not configured.
+	 */
+	public void undefinedMessageId() {
+		undefinedMessageIds.increment();
+		packetsDiscarded.increment();
+	}
+
+	/**
+	 * A received message has been dropped, because messages arrive faster than they are evaluated or because the queue
+	 * is full.
+	 */
+	public void messageDropped() {
+		messagesDropped.increment();
+	}
+
+	/**
+	 * Reset all counters to 0.
+	 */
+	public void reset() {
+		bytesReceived.reset();
+		messagesReceived.reset();
+		packetsDiscarded.reset();
+		invalidHeaders.reset();
+		undefinedMessageIds.reset();
+		messagesDropped.reset();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getMessagesReceived() {
+		return messagesReceived.sum();
+	}
+
+	/**
+	 * @return Number of discarded packets, including packets with an invalid header or an undefined message ID
+	 */
+	public long getPacketsDiscarded() {
+		return packetsDiscarded.sum();
+	}
+
+	public long getInvalidHeaders() {
+		return invalidHeaders.sum();
+	}
+
+	public long getUndefinedMessageIds() {
+		return undefinedMessageIds.sum();
+	}
+
+	public long getMessagesDropped() {
+		return messagesDropped.sum();
+	}
+}
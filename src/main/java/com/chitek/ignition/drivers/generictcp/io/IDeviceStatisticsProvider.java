@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.io;
+
+import java.net.InetSocketAddress;
+
+public interface IDeviceStatisticsProvider {
+
+	/**
+	 * Called when the first data from a connected remote client is received.
+	 *
+	 * @param remoteSocket
+	 * @return
+	 * 	The statistics of the remote device, or <code>null</code> if the device is unknown.
+	 */
+	public DeviceStatistics getDeviceStatistics(InetSocketAddress remoteSocket);
+}
@@ -37,4 +37,14 @@ public interface IIoEventHandler {
 	public abstract void connectionLost(InetSocketAddress remoteAddress);
 
 	public abstract void dataArrived(InetSocketAddress remoteAddress, ByteBuffer data, int bytesRead);
+
+	/**
+	 * Called by the server thread after every select to complete messages whose deadline has expired.
+	 * 
+	 * @param now
+	 * 	The current time in milliseconds
+	 * @return
+	 * 	Milliseconds until the next deadline, or 0 if there is no pending deadline.
+	 */
+	public abstract long checkDeadlines(long now);
 }
@@ -2,19 +2,18 @@ package com.chitek.ignition.drivers.generictcp.io;
 
 import java.net.InetSocketAddress;
 
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+
 public interface IMessageHandler {
 
 	/**
 	 * @param remoteSocket
 	 * @param messageId
 	 * @param messageData
-	 * 	The received message<br>
-	 *  0..7  - Packet receive timestamp<br>
-	 *  8..15 - Header Timestamp <br>
-	 *  16...   - The message data
+	 * 	The received message with packet receive timestamp and header timestamp
 	 * @param handshakeMessage
 	 */
-	public void messageReceived(InetSocketAddress remoteSocket, int messageId, byte[] messageData, byte[] handshakeMessage);
+	public void messageReceived(InetSocketAddress remoteSocket, int messageId, MessageEnvelope messageData, byte[] handshakeMessage);
 
 	public boolean clientConnected(InetSocketAddress remoteSocket);
 
@@ -2,14 +2,18 @@ package com.chitek.ignition.drivers.generictcp.io;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
-import com.chitek.ignition.drivers.generictcp.folder.MessageDataWrapper;
+import com.chitek.ignition.drivers.generictcp.diagnostics.FrameEvent;
+import com.chitek.ignition.drivers.generictcp.folder.FolderManager;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
 import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.IDriverSettings;
@@ -27,8 +31,12 @@ public class MessageState {
 	private final MessageHeader messageHeader;
 	private final int headerLength;
 	private final IDriverSettings settings;
+	/** Delimiter scanners for messages with MessageType.DELIMITED, by message ID */
+	private final Map<Integer, DelimiterScanner> delimiterScanners = new HashMap<Integer, DelimiterScanner>();
 
 	private IMessageHandler messageHandler = null;
+	/** Counters for the remote device. Not shared with other states unless set by the owner. */
+	private DeviceStatistics statistics = new DeviceStatistics();
 	private final InetSocketAddress remoteSocket;
 
 	// State
@@ -44,17 +52,23 @@ public class MessageState {
 	long packetStartDate = 0;
 	/** Sequence number of the message for the current timestamp */
 	short msgNumber = 0;
+	/** {@link System#nanoTime()} of the last received data, for the latency statistics */
+	private long lastReadNanos;
 	/** Buffer for header data */
 	ByteBuffer headerData;
 
 	private final ExecutionManager executionManager;
 	private ScheduledFuture<?> timeoutSchedule;
+	/** Time when the pending packet based message is complete, or 0 if no message is pending **/
+	private volatile long messageDeadline = 0;
 	private final TimeoutHandler timeoutHandler;
 	private Object messageLock = new Object();
 	
 	private int currentMessageId = 0;
 	private MessageConfig currentMsgConfig;
 	private int currentMsgPos = 0;
+	/** Length of the current message, or -1 if the length field has not been received yet **/
+	private int currentMsgLength = -1;
 	/** Buffer for current message **/
 	private byte[] currentMsgData;
 
@@ -96,6 +110,14 @@ public class MessageState {
 		for (Map.Entry<Integer, MessageConfig> configEntry : driverConfig.messages.entrySet()) {
 			MessageConfig messageConfig = configEntry.getValue();
 			maxLength = Math.max(maxLength, messageConfig.getMessageLength());
+			if (messageConfig.getMessageType() == MessageType.DELIMITED) {
+				byte[] delimiter = messageConfig.getDelimiterBytes();
+				if (delimiter.length > 0) {
+					delimiterScanners.put(configEntry.getKey(), new DelimiterScanner(delimiter));
+				} else {
+					log.error(String.format("Invalid delimiter '%s' for message ID %d", messageConfig.getDelimiter(), configEntry.getKey()));
+				}
+			}
 		}
 		this.headerLength = messageHeader != null ? messageHeader.getHeaderLength() : 0;
 		this.settings = settings;
@@ -109,6 +131,18 @@ public class MessageState {
 		this.messageHandler = messageHandler;
 	}
 
+	/**
+	 * @param statistics
+	 *            The statistics of the remote device that sends the data to this message state
+	 */
+	public void setStatistics(DeviceStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	public DeviceStatistics getStatistics() {
+		return statistics;
+	}
+
 	public boolean isMessagePending() {
 		return messagePending;
 	}
@@ -132,6 +166,14 @@ public class MessageState {
 		return currentMessageId;
 	}
 
+	/**
+	 * @return
+	 * 	The time in milliseconds when the pending packet based message is complete, or 0 if there is no such message
+	 */
+	public long getMessageDeadline() {
+		return messageDeadline;
+	}
+
 	/**
 	 * Add received data to this message
 	 * 
@@ -139,23 +181,63 @@ public class MessageState {
 	 *            The received data
 	 */
 	public void addData(ByteBuffer data) {
+		addData(data, System.currentTimeMillis());
+	}
+
+	/**
+	 * Add received data to this message
+	 * 
+	 * @param data
+	 *            The received data
+	 * @param now
+	 *            The current time in milliseconds. Used as receive time of new packets and to calculate the deadline of
+	 *            packet based messages.
+	 */
+	public void addData(ByteBuffer data, long now) {
 
 		if (log.isTraceEnabled()) {
 			log.trace(String.format("Received packet with %d bytes of data", data.remaining()));
 		}
-	
+
 		synchronized (messageLock) {
-			if (timeoutSchedule != null) {
-				timeoutSchedule.cancel(false);
-				timeoutSchedule = null;
+			lastReadNanos = System.nanoTime();
+			// The deadline is extended by every packet
+			messageDeadline = 0;
+
+			// Timeout schedule is only used for packet based messages
+			if (currentMsgConfig == null || !currentMsgConfig.getMessageType().isTimeoutFramed()) {
+				checkMessageTimeout(now);
+			}
+
+			readData(data);
+
+			if (messagePending && currentMsgConfig.getMessageType().isTimeoutFramed()) {
+				messageDeadline = now + settings.getMessageTimeout();
+				if (executionManager != null && timeoutSchedule == null) {
+					// The timer is not cancelled when more data arrives. It is rescheduled when it expires before the deadline.
+					timeoutSchedule = executionManager.executeOnce(timeoutHandler, settings.getMessageTimeout(), TimeUnit.MILLISECONDS);
+				}
 			}
 		}
+	}
 
-		// Timeout schedule is only used for packet based messages
-		if (currentMsgConfig == null || currentMsgConfig.getMessageType()==MessageType.FIXED_LENGTH) {
-			checkMessageTimeout();
+	/**
+	 * Complete the pending packet based message, if its deadline has expired. Used when the owner of this message state
+	 * checks the deadlines instead of a scheduled timer.
+	 * 
+	 * @param now
+	 *            The current time in milliseconds
+	 */
+	public void checkMessageDeadline(long now) {
+		synchronized (messageLock) {
+			if (messageDeadline != 0 && now >= messageDeadline) {
+				messageDeadline = 0;
+				messageTimeout();
+			}
 		}
+	}
 
+	private void readData(ByteBuffer data) {
 		while (data.hasRemaining()) {
 
 			if (!headerValid) {
@@ -197,12 +279,14 @@ public class MessageState {
 							log.warn(String.format(
 									"Received packet is too short for message ID: %d. Remaining bytes in packet: %d, expected length of message: %d",
 									currentMessageId, pendingBytes, msgLength));
+							statistics.packetDiscarded();
 							// Remove rest of the packet from the buffer
 							discardPacket(data);
 						} else {
 							// Start evaluating the message
 							messagePending = true;
 							currentMsgPos = 0;
+							currentMsgLength = currentMsgConfig.getMessageType() == MessageType.FIXED_LENGTH ? msgLength : -1;
 							// Use message length for pending bytes when no header is used
 							if (!headerReceived) {
 								pendingBytes = msgLength;
@@ -211,6 +295,7 @@ public class MessageState {
 					} else {
 						// Invalid message Id
 						log.error(String.format("Received undefined message ID: %s", currentMessageId));
+						statistics.undefinedMessageId();
 						if (headerReceived)
 							discardPacket(data);
 						else {
@@ -223,12 +308,17 @@ public class MessageState {
 						}
 					}
 				}
+			} else if (messagePending && currentMsgConfig.getMessageType() == MessageType.DELIMITED) {
+				readDelimited(data);
 			} else if (messagePending) {
 				// valid message ID has been received
-				boolean fixedLength = currentMsgConfig.getMessageType()==MessageType.FIXED_LENGTH;
+				boolean timeoutFramed = currentMsgConfig.getMessageType().isTimeoutFramed();
 				int bytesToRead;
-				if (fixedLength) {
-					bytesToRead = Math.min(data.remaining(), currentMsgConfig.getMessageLength()-currentMsgPos);
+				if (currentMsgLength >= 0) {
+					bytesToRead = Math.min(data.remaining(), currentMsgLength - currentMsgPos);
+				} else if (!timeoutFramed) {
+					// Length field message - read up to the end of the length field
+					bytesToRead = Math.min(data.remaining(), currentMsgConfig.getLengthFieldEnd() - currentMsgPos);
 				} else {
 					// Variable length message - read all data that is received
 					bytesToRead = data.remaining();
@@ -242,41 +332,173 @@ public class MessageState {
 				data.get(currentMsgData, currentMsgPos, bytesToRead);
 				currentMsgPos += bytesToRead;
 				pendingBytes -= bytesToRead;
-				if (fixedLength && currentMsgPos == currentMsgConfig.getMessageLength()) {
+				if (!timeoutFramed && currentMsgLength < 0 && currentMsgPos == currentMsgConfig.getLengthFieldEnd()) {
+					// The length field is complete
+					if (!readLengthField(data)) {
+						continue;
+					}
+				}
+				if (currentMsgPos == currentMsgLength) {
 					// The message is complete
 					messagePending = false;
 					deliverMessage();
 				}
 
 				// The packet has been completely received - prepare for new packet
-				if (currentMsgConfig.getMessageType()==MessageType.FIXED_LENGTH && headerReceived && pendingBytes == 0) {
+				if (!timeoutFramed && headerReceived && pendingBytes == 0) {
 					reset();
 				}
 			}
 		}
-
-		if (messagePending && currentMsgConfig.getMessageType() == MessageType.PACKET_BASED && executionManager != null) {
-			timeoutSchedule = executionManager.executeOnce(timeoutHandler, settings.getMessageTimeout(), TimeUnit.MILLISECONDS);
-		}
 	}
 
-	private void checkMessageTimeout() {
+	private void checkMessageTimeout(long now) {
 		// Check timeout
 		if (messagePending || headerReceived) {
-			long age = System.currentTimeMillis() - packetStartDate;
-			log.trace(String.format("Packet age: %d ms", age));
+			long age = now - packetStartDate;
+			if (log.isTraceEnabled()) {
+				log.trace(String.format("Packet age: %d ms", age));
+			}
 			if (age > settings.getMessageTimeout()) {
 				// Message is not complete and timed out
 				log.warn(String.format("Packet timeout expired, discarding buffer. Message age: %d ms", age));
+				statistics.packetDiscarded();
 				reset();
-				packetStartDate = System.currentTimeMillis();
+				packetStartDate = now;
 			}
 		} else {
-			packetStartDate = System.currentTimeMillis();
+			packetStartDate = now;
 			msgNumber = 0;
 		}
 	}
 
+	/**
+	 * Evaluate the length field of the current message. Invalid messages are discarded.
+	 * 
+	 * @param data
+	 *            The received data
+	 * @return <code>true</code> if the length is valid
+	 */
+	private boolean readLengthField(ByteBuffer data) {
+		long fieldValue = currentMsgConfig.getLengthFieldType().readValue(currentMsgData, currentMsgConfig.getLengthFieldOffset(),
+			currentMsgConfig.isLengthFieldLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		long length = currentMsgPos + fieldValue + currentMsgConfig.getLengthFieldAdjustment();
+
+		if (length < Math.max(currentMsgPos, currentMsgConfig.getMessageLength()) || length > MessageConfig.MAX_FRAMED_MESSAGE_LENGTH) {
+			log.warn(String.format("Received invalid length field value %d for message ID: %d. Resulting message length: %d", fieldValue,
+				currentMessageId, length));
+			statistics.packetDiscarded();
+			discardMessage(data);
+			return false;
+		}
+
+		if (headerReceived && length - currentMsgPos > pendingBytes) {
+			// Packet is to short to contain the message
+			log.warn(String.format(
+				"Received packet is too short for message ID: %d. Remaining bytes in packet: %d, expected length of message: %d",
+				currentMessageId, pendingBytes, length));
+			statistics.packetDiscarded();
+			discardMessage(data);
+			return false;
+		}
+
+		currentMsgLength = (int) length;
+		if (currentMsgData.length < currentMsgLength) {
+			currentMsgData = Arrays.copyOf(currentMsgData, currentMsgLength);
+		}
+		if (!headerReceived) {
+			pendingBytes = currentMsgLength - currentMsgPos;
+		}
+
+		if (log.isTraceEnabled()) {
+			log.trace(String.format("Length field of message ID %d received. Message length: %d", currentMessageId, currentMsgLength));
+		}
+		return true;
+	}
+
+	/**
+	 * Read data of a message with MessageType.DELIMITED. The delimiter is searched directly in the received data, the
+	 * data up to the delimiter is copied in one block.
+	 * 
+	 * @param data
+	 *            The received data
+	 */
+	private void readDelimited(ByteBuffer data) {
+		DelimiterScanner scanner = delimiterScanners.get(currentMessageId);
+		if (scanner == null) {
+			log.error(String.format("No valid delimiter configured for message ID: %d", currentMessageId));
+			statistics.packetDiscarded();
+			discardMessage(data);
+			return;
+		}
+
+		int start = data.position();
+		int limit = headerReceived ? start + Math.min(data.remaining(), pendingBytes) : data.limit();
+		boolean delimiterFound;
+		int consumed;
+
+		// The delimiter may start in the data received before
+		int spanningIndex = scanner.indexOfSpanning(currentMsgData, currentMsgPos, data, limit);
+		if (spanningIndex >= 0) {
+			delimiterFound = true;
+			consumed = scanner.getLength() - (currentMsgPos - spanningIndex);
+			currentMsgPos = spanningIndex;
+		} else {
+			int index = scanner.indexOf(data, start, limit);
+			delimiterFound = index >= 0;
+			int bytesToRead = (delimiterFound ? index : limit) - start;
+			if (currentMsgPos + bytesToRead > MessageConfig.MAX_FRAMED_MESSAGE_LENGTH) {
+				log.warn(String.format("No delimiter received for message ID: %d. Message exceeds the maximum length of %d bytes.",
+					currentMessageId, MessageConfig.MAX_FRAMED_MESSAGE_LENGTH));
+				statistics.packetDiscarded();
+				discardMessage(data);
+				return;
+			}
+			if (currentMsgData.length < currentMsgPos + bytesToRead) {
+				currentMsgData = Arrays.copyOf(currentMsgData, Math.max(currentMsgPos + bytesToRead, currentMsgData.length * 2));
+			}
+			data.get(currentMsgData, currentMsgPos, bytesToRead);
+			currentMsgPos += bytesToRead;
+			consumed = delimiterFound ? bytesToRead + scanner.getLength() : bytesToRead;
+		}
+		data.position(start + consumed);
+		pendingBytes -= consumed;
+
+		// With a header, the end of the packet also ends the message
+		if (delimiterFound || (headerReceived && pendingBytes == 0)) {
+			if (currentMsgPos < currentMsgConfig.getMessageLength()) {
+				log.warn(String.format("Received delimited message ID %d is too short. Received length: %d, expected length of message: %d",
+					currentMessageId, currentMsgPos, currentMsgConfig.getMessageLength()));
+				statistics.packetDiscarded();
+				messagePending = false;
+				messageIdBytesRec = 0;
+			} else {
+				deliverMessage();
+			}
+			if (headerReceived && pendingBytes == 0) {
+				reset();
+			}
+		}
+	}
+
+	/**
+	 * Discards the current message. With a header the rest of the packet is discarded, without a header all received
+	 * data is discarded, because the start of the next message is unknown.
+	 */
+	private void discardMessage(ByteBuffer data) {
+		messagePending = false;
+		messageIdBytesRec = 0;
+		if (headerReceived) {
+			discardPacket(data);
+		} else {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Discarded current package with %d bytes", data.remaining()));
+			}
+			data.position(data.limit());
+			reset();
+		}
+	}
+
 	private void readHeader(ByteBuffer data) {
 		// add received data to header
 		while (headerData.position() < headerLength && data.hasRemaining()) {
@@ -300,6 +522,9 @@ public class MessageState {
 				log.warn("Received a message header without data.");
 				headerValid = false;
 			}
+			if (!headerValid) {
+				statistics.invalidHeader();
+			}
 		} else {
 			return;
 		}
@@ -356,6 +581,7 @@ public class MessageState {
 		messageIdBytesRec = 0;
 		headerData.clear();
 		msgNumber = 0;
+		messageDeadline = 0;
 	}
 
 	private void deliverMessage() {
@@ -370,8 +596,11 @@ public class MessageState {
 				log.debug(String.format("Delivering message ID %d with %d bytes of payload data.", currentMessageId, currentMsgPos));
 			}
 			
-			// Wrap the message with timestamps
-			byte[] wrappedMessage = MessageDataWrapper.wrapMessage(packetStartDate, headerTimestamp, msgNumber, messageData, settings.getByteOrder());
+			// Wrap the message with timestamps. The device is resolved by the message handler.
+			MessageEnvelope wrappedMessage = new MessageEnvelope(FolderManager.getFolderId(0, currentMessageId), packetStartDate, msgNumber, headerTimestamp, messageData);
+			long framedNanos = System.nanoTime();
+			wrappedMessage.setLatencyStamps(lastReadNanos, framedNanos);
+			FrameEvent.record(remoteSocket, currentMessageId, currentMsgPos, framedNanos - lastReadNanos);
 
 			if (headerReceived && pendingBytes == 0)
 				// Last message in packet - send handshake to device
@@ -385,26 +614,41 @@ public class MessageState {
 		msgNumber ++;
 	}
 	
+	/**
+	 * Called when the deadline of a packet based message expires. Must be called with messageLock held.
+	 */
+	private void messageTimeout() {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Timeout for message ID %d expired", currentMessageId));
+		}
+
+		if (currentMsgConfig != null && currentMsgConfig.getMessageType() == MessageType.PACKET_BASED && currentMsgPos >= currentMsgConfig.getMessageLength()) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Delivering packet based message ID %d", currentMessageId));
+			}
+			deliverMessage();
+		} else {
+			reset();
+		}
+	}
+
 	private class TimeoutHandler implements Runnable {
 
 		@Override
 		public void run() {
 			synchronized (messageLock) {
-				if (log.isDebugEnabled()) {
-					log.debug(String.format("Timeout for message ID %d expired", currentMessageId));
+				timeoutSchedule = null;
+				if (messageDeadline == 0) {
+					return;
 				}
-				
-				try {
-					if (currentMsgConfig != null && currentMsgConfig.getMessageType() == MessageType.PACKET_BASED && currentMsgPos >= currentMsgConfig.getMessageLength()) {
-						if (log.isDebugEnabled()) {
-							log.debug(String.format("Delivering packet based message ID %d", currentMessageId));
-						}
-						deliverMessage();
-					} else {
-						reset();
-					}
-				} finally {
-					timeoutSchedule = null;
+
+				long remaining = messageDeadline - System.currentTimeMillis();
+				if (remaining > 0) {
+					// The deadline has been extended by received data
+					timeoutSchedule = executionManager.executeOnce(this, remaining, TimeUnit.MILLISECONDS);
+				} else {
+					messageDeadline = 0;
+					messageTimeout();
 				}
 			}
 		}
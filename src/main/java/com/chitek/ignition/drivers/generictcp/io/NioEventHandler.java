@@ -26,37 +26,71 @@ import org.apache.log4j.Logger;
 import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.IDriverSettings;
-import com.inductiveautomation.ignition.common.execution.ExecutionManager;
 import com.inductiveautomation.xopc.driver.util.ByteUtilities;
 
 public class NioEventHandler implements IIoEventHandler {
 
 	private final Logger log;
 
-	private final ExecutionManager executionManager;
 	private final DriverConfig driverConfig;
 	private final IDriverSettings driverSettings;
 	private final MessageHeader messageHeader;
 	private final IMessageHandler messageHandler;
 
 	private final Map<InetSocketAddress,MessageState> clientMap=new HashMap<InetSocketAddress,MessageState>();
+	/** The earliest deadline of all message states, or 0 if there is none */
+	private long nextDeadline = 0;
+	/** Records the received data if not null */
+	private TrafficRecorder trafficRecorder;
+	/** Provides the statistics of the connected devices if not null */
+	private IDeviceStatisticsProvider statisticsProvider;
 
-	public NioEventHandler(Logger log, ExecutionManager executionManager, DriverConfig driverConfig, IDriverSettings driverSettings, MessageHeader messageHeader, IMessageHandler messageHandler) {
+	/**
+	 * The event handler is used by the server thread only. The deadlines of packet based messages are checked by the
+	 * server thread, so the message states do not use scheduled timers.
+	 */
+	public NioEventHandler(Logger log, DriverConfig driverConfig, IDriverSettings driverSettings, MessageHeader messageHeader, IMessageHandler messageHandler) {
 		this.log = log;
-		this.executionManager = executionManager;
 		this.driverConfig = driverConfig;
 		this.driverSettings = driverSettings;
 		this.messageHeader = messageHeader;
 		this.messageHandler = messageHandler;
 	}
 
+	/**
+	 * Set a recorder for the received data. Must be set before the server is started.
+	 * 
+	 * @param trafficRecorder
+	 *            The recorder, or <code>null</code> to disable recording
+	 */
+	public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+		this.trafficRecorder = trafficRecorder;
+	}
+
+	/**
+	 * Set the provider for the statistics of remote devices. Must be set before the server is started.
+	 * 
+	 * @param statisticsProvider
+	 *            The provider, or <code>null</code> if no statistics are used
+	 */
+	public void setStatisticsProvider(IDeviceStatisticsProvider statisticsProvider) {
+		this.statisticsProvider = statisticsProvider;
+	}
+
 	@Override
 	public boolean clientConnected(InetSocketAddress remoteSocket) {
-		return messageHandler.clientConnected(remoteSocket);
+		boolean accepted = messageHandler.clientConnected(remoteSocket);
+		if (accepted && trafficRecorder != null) {
+			trafficRecorder.connected(remoteSocket);
+		}
+		return accepted;
 	}
 
 	@Override
 	public void connectionLost(InetSocketAddress remoteSocket) {
+		if (trafficRecorder != null) {
+			trafficRecorder.disconnected(remoteSocket);
+		}
 		clientMap.remove(remoteSocket);
 		messageHandler.clientDisconnected(remoteSocket);
 	}
@@ -67,9 +101,38 @@ public class NioEventHandler implements IIoEventHandler {
 			log.trace(String.format("Received %d bytes from %s: %s", data.remaining(), remoteSocket.toString(), ByteUtilities.toString(Arrays.copyOfRange(data.array(), 0, bytesRead))));
 		}
 
+		if (trafficRecorder != null) {
+			trafficRecorder.dataArrived(remoteSocket, data);
+		}
+
 		MessageState state = getMessageState(remoteSocket);
+		state.getStatistics().bytesReceived(data.remaining());
+
+		state.addData(data, System.currentTimeMillis());
+		updateNextDeadline(state.getMessageDeadline());
+	}
+
+	@Override
+	public long checkDeadlines(long now) {
+		if (nextDeadline == 0) {
+			return 0;
+		}
+		if (now < nextDeadline) {
+			return nextDeadline - now;
+		}
+
+		nextDeadline = 0;
+		for (MessageState state : clientMap.values()) {
+			state.checkMessageDeadline(now);
+			updateNextDeadline(state.getMessageDeadline());
+		}
+		return nextDeadline == 0 ? 0 : Math.max(1, nextDeadline - now);
+	}
 
-		state.addData(data);
+	private void updateNextDeadline(long deadline) {
+		if (deadline != 0 && (nextDeadline == 0 || deadline < nextDeadline)) {
+			nextDeadline = deadline;
+		}
 	}
 
 	/**
@@ -80,8 +143,12 @@ public class NioEventHandler implements IIoEventHandler {
 	private MessageState getMessageState(InetSocketAddress remoteSocket) {
 		MessageState state = clientMap.get(remoteSocket);
 		if (state == null) {
-			state = new MessageState(remoteSocket, executionManager, messageHeader, driverConfig, driverSettings, log);
+			state = new MessageState(remoteSocket, null, messageHeader, driverConfig, driverSettings, log);
 			state.setMessageHandler(messageHandler);
+			DeviceStatistics statistics = statisticsProvider != null ? statisticsProvider.getDeviceStatistics(remoteSocket) : null;
+			if (statistics != null) {
+				state.setStatistics(statistics);
+			}
 			clientMap.put(remoteSocket, state);
 		}
 
@@ -2,6 +2,10 @@ package com.chitek.ignition.drivers.generictcp.io;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.TimeoutInfo;
 
 public interface NioServer {
 	
@@ -16,4 +20,16 @@ public interface NioServer {
 	public void write(InetSocketAddress remoteSocketAddress, ByteBuffer data);
 	
 	public int  getConnectedClientCount();
+	
+	/**
+	 * @return
+	 * 	The connected clients and the number of bytes pending for each client. May be called from any thread.
+	 */
+	public List<ConnectionInfo> getConnectionInfo();
+	
+	/**
+	 * @return
+	 * 	The state of the connection timeout, or <code>null</code> if the server is not running. May be called from any thread.
+	 */
+	public TimeoutInfo getTimeoutInfo();
 }
@@ -22,6 +22,10 @@ import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionEvent;
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.TimeoutInfo;
+
 public class NioTcpServer implements Runnable, NioServer {
 
 	private final Logger log;
@@ -88,7 +92,9 @@ public class NioTcpServer implements Runnable, NioServer {
 			} catch (IOException e) {
 			}
 		}
-		clientMap.clear();
+		synchronized (clientMap) {
+			clientMap.clear();
+		}
 	}
 
 	public synchronized void setEventHandler(IIoEventHandler eventHandler) {
@@ -165,6 +171,7 @@ public class NioTcpServer implements Runnable, NioServer {
 		log.debug("NioServer main loop started.");
 		
 		int keys=0;
+		long timeToDeadline = 0;
 		while (running) {
 			try {
 				// Switch marked SocketChannels to Write state
@@ -183,7 +190,7 @@ public class NioTcpServer implements Runnable, NioServer {
 				}
 			
 				// Wait for an event one of the registered channels
-				keys = selector.select(timeoutHandler.getTimeToTimeout());
+				keys = selector.select(TimeoutHandler.minTimeout(timeoutHandler.getTimeToTimeout(), timeToDeadline));
 
 				if (keys == 0) {
 					// No updated keys - timeout expired or wakeup called
@@ -210,6 +217,9 @@ public class NioTcpServer implements Runnable, NioServer {
 						}
 					}
 				}
+
+				// Complete packet based messages
+				timeToDeadline = eventHandler.checkDeadlines(System.currentTimeMillis());
 			} catch (ClosedSelectorException e) {
 				log.debug("NioServer main loop ended: Selector closed");
 			} catch (Exception e) {
@@ -226,6 +236,34 @@ public class NioTcpServer implements Runnable, NioServer {
 	public int getConnectedClientCount() {
 		return clientMap.size();
 	}
+
+	@Override
+	public List<ConnectionInfo> getConnectionInfo() {
+		Map<InetSocketAddress, SocketChannel> clients;
+		synchronized (clientMap) {
+			clients = new HashMap<InetSocketAddress, SocketChannel>(clientMap);
+		}
+		List<ConnectionInfo> result = new ArrayList<ConnectionInfo>(clients.size());
+		synchronized (pendingData) {
+			for (Entry<InetSocketAddress, SocketChannel> client : clients.entrySet()) {
+				long pendingBytes = 0;
+				List<ByteBuffer> queue = pendingData.get(client.getValue());
+				if (queue != null) {
+					for (ByteBuffer buffer : queue) {
+						pendingBytes += buffer.remaining();
+					}
+				}
+				result.add(new ConnectionInfo(client.getKey().toString(), pendingBytes));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public TimeoutInfo getTimeoutInfo() {
+		TimeoutHandler handler = timeoutHandler;
+		return handler != null ? handler.getTimeoutInfo() : null;
+	}
 	
 	/**
 	 * @return
@@ -258,11 +296,14 @@ public class NioTcpServer implements Runnable, NioServer {
 		// we'd like to be notified when there's data waiting to be read
 		socketChannel.register(this.selector, SelectionKey.OP_READ);
 
-		clientMap.put(remoteSocket, socketChannel);
+		synchronized (clientMap) {
+			clientMap.put(remoteSocket, socketChannel);
+		}
 		timeoutHandler.dataReceived(remoteSocket);
 		log.debug(String.format("Remote client %s connected.", remoteSocket));
 
 		boolean accept = eventHandler.clientConnected(remoteSocket);
+		ConnectionEvent.record(remoteSocket, accept ? ConnectionEvent.ACCEPTED : ConnectionEvent.REJECTED);
 		if (!accept) {
 			disposeClientChannel(remoteSocket);
 			log.debug(String.format("Remote client %s disconnected.", remoteSocket));
@@ -311,15 +352,16 @@ public class NioTcpServer implements Runnable, NioServer {
 		synchronized (this.pendingData) {
 			List<ByteBuffer> queue = pendingData.get(socketChannel);
 
-			// Write until there's not more data ...
-			while (!queue.isEmpty()) {
-				ByteBuffer buf = queue.get(0);
-				socketChannel.write(buf);
-				if (buf.remaining() > 0) {
-					// ... or the socket's buffer fills up
-					break;
+			if (!queue.isEmpty()) {
+				// Write all queued messages with one gathering write. If the socket's buffer fills up, the
+				// remaining data is written when the socket is writable again.
+				socketChannel.write(queue.toArray(new ByteBuffer[queue.size()]));
+
+				int written = 0;
+				while (written < queue.size() && !queue.get(written).hasRemaining()) {
+					written++;
 				}
-				queue.remove(0);
+				queue.subList(0, written).clear();
 			}
 
 			if (queue.isEmpty()) {
@@ -335,7 +377,10 @@ public class NioTcpServer implements Runnable, NioServer {
 
 		timeoutHandler.removeAddress(remoteSocket);
 		
-		SocketChannel socketChannel = clientMap.remove(remoteSocket);
+		SocketChannel socketChannel;
+		synchronized (clientMap) {
+			socketChannel = clientMap.remove(remoteSocket);
+		}
 		socketChannel.keyFor(selector).cancel();
 		try {
 			socketChannel.close();
@@ -347,6 +392,7 @@ public class NioTcpServer implements Runnable, NioServer {
 				pending.clear();
 			}
 		}
+		ConnectionEvent.record(remoteSocket, ConnectionEvent.DISCONNECTED);
 		eventHandler.connectionLost(remoteSocket);
 	}
 	
@@ -18,6 +18,10 @@ import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionEvent;
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.TimeoutInfo;
+
 public class NioUdpServer implements Runnable, NioServer {
 
 	private final Logger log;
@@ -74,7 +78,9 @@ public class NioUdpServer implements Runnable, NioServer {
 			e.printStackTrace();
 		}
 
-		clientMap.clear();
+		synchronized (clientMap) {
+			clientMap.clear();
+		}
 		timeoutHandler=null;
 	}
 
@@ -149,10 +155,11 @@ public class NioUdpServer implements Runnable, NioServer {
 		log.debug("NioServer main loop started.");
 
 		int keys = 0;
+		long timeToDeadline = 0;
 		while (running) {
 			try {
 				// Wait for an event one of the registered channels
-				keys = this.selector.select(timeoutHandler.getTimeToTimeout());
+				keys = this.selector.select(TimeoutHandler.minTimeout(timeoutHandler.getTimeToTimeout(), timeToDeadline));
 
 				if (keys == 0) {
 					// No updated keys - timeout expired or wakeup called
@@ -178,6 +185,9 @@ public class NioUdpServer implements Runnable, NioServer {
 						}
 					}
 				}
+
+				// Complete packet based messages
+				timeToDeadline = eventHandler.checkDeadlines(System.currentTimeMillis());
 			} catch (ClosedSelectorException e) {
 				log.debug("Selector closed");
 			} catch (Exception e) {
@@ -196,6 +206,34 @@ public class NioUdpServer implements Runnable, NioServer {
 		}
 	}
 
+	@Override
+	public List<ConnectionInfo> getConnectionInfo() {
+		List<InetSocketAddress> clients;
+		synchronized (clientMap) {
+			clients = new ArrayList<InetSocketAddress>(clientMap.keySet());
+		}
+		List<ConnectionInfo> result = new ArrayList<ConnectionInfo>(clients.size());
+		synchronized (pendingData) {
+			for (InetSocketAddress client : clients) {
+				long pendingBytes = 0;
+				List<ByteBuffer> queue = pendingData.get(client);
+				if (queue != null) {
+					for (ByteBuffer buffer : queue) {
+						pendingBytes += buffer.remaining();
+					}
+				}
+				result.add(new ConnectionInfo(client.toString(), pendingBytes));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public TimeoutInfo getTimeoutInfo() {
+		TimeoutHandler handler = timeoutHandler;
+		return handler != null ? handler.getTimeoutInfo() : null;
+	}
+
 	/**
 	 * @return
 	 * 	The SocketAddress of the server
@@ -229,6 +267,7 @@ public class NioUdpServer implements Runnable, NioServer {
 
 				clientMap.put(remoteSocket, remoteSocket);
 				boolean accept = eventHandler.clientConnected(remoteSocket);
+				ConnectionEvent.record(remoteSocket, accept ? ConnectionEvent.ACCEPTED : ConnectionEvent.REJECTED);
 				if (accept) {
 					log.debug(String.format("Remote client %s connected.", remoteSocket));
 				} else {
@@ -280,7 +319,10 @@ public class NioUdpServer implements Runnable, NioServer {
 		
 		timeoutHandler.removeAddress(remoteAddress);
 		
-		InetSocketAddress channel = clientMap.remove(remoteAddress);
+		InetSocketAddress channel;
+		synchronized (clientMap) {
+			channel = clientMap.remove(remoteAddress);
+		}
 		synchronized (this.pendingData) {
 			List<ByteBuffer> pending = pendingData.remove(channel);
 			if (pending != null) {
@@ -288,6 +330,7 @@ public class NioUdpServer implements Runnable, NioServer {
 			}
 		}
 		
+		ConnectionEvent.record(remoteAddress, ConnectionEvent.DISCONNECTED);
 		eventHandler.connectionLost(remoteAddress);
 	}
 
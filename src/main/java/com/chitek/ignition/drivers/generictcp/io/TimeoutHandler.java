@@ -21,6 +21,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.TimeoutInfo;
+
 /**
  * A helper class for handling timeouts with an NIO server socket.
  *
@@ -29,8 +31,10 @@ public class TimeoutHandler {
 	/** The timeout in milliseconds **/
 	private long timeout=0;
 
-	private long oldestTime=0;
-	private SocketAddress oldestAddress = null;
+	// Volatile, because the state is read by diagnostics from other threads
+	private volatile long oldestTime=0;
+	private volatile SocketAddress oldestAddress = null;
+	private volatile int connectionCount = 0;
 	private Map<SocketAddress, Long> timeoutMap = new HashMap<SocketAddress, Long>();
 	
 	/**
@@ -50,6 +54,7 @@ public class TimeoutHandler {
 	public void dataReceived(SocketAddress address) {
 		
 		timeoutMap.put(address, System.nanoTime()/1000000);
+		connectionCount = timeoutMap.size();
 				
 		if (address.equals(oldestAddress) || oldestAddress==null) {
 			// We need to update the oldest client
@@ -65,6 +70,7 @@ public class TimeoutHandler {
 	 */
 	public void removeAddress(SocketAddress address) {
 		timeoutMap.remove(address);
+		connectionCount = timeoutMap.size();
 		if (timeoutMap.isEmpty()) {
 			oldestAddress = null;
 			return;
@@ -117,6 +123,37 @@ public class TimeoutHandler {
 		return oldestAddress;
 	}
 	
+	/**
+	 * Returns a snapshot of the current state. This method may be called from any thread, the snapshot may be
+	 * slightly outdated.
+	 * 
+	 * @return
+	 * 	The current state for diagnostics.
+	 */
+	public TimeoutInfo getTimeoutInfo() {
+		SocketAddress address = oldestAddress;
+		long timeToTimeout = address != null && timeout != 0 ? timeout - (System.nanoTime()/1000000 - oldestTime) : 0;
+		return new TimeoutInfo(timeout, connectionCount, address != null ? address.toString() : null, timeToTimeout);
+	}
+	
+	/**
+	 * Returns the shorter of two timeouts, where a value of 0 means no timeout.
+	 * 
+	 * @param timeout1
+	 * @param timeout2
+	 * @return
+	 * 	The shorter timeout, or 0 if both timeouts are disabled.
+	 */
+	public static long minTimeout(long timeout1, long timeout2) {
+		if (timeout1 == 0) {
+			return timeout2;
+		}
+		if (timeout2 == 0) {
+			return timeout1;
+		}
+		return Math.min(timeout1, timeout2);
+	}
+	
 	private void updateTimeout() {
 		long earliestTime=Long.MAX_VALUE;
 		SocketAddress address=null;
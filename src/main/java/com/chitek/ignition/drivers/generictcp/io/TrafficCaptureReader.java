@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2013 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads capture files written by {@link TrafficRecorder}. The files are read in the given order. An incomplete record
+ * at the end of a file, e.g. after a crash, ends the file.
+ * <P>
+ * A gap record marks data of a connection that has been dropped by the recorder. The data of the connection following
+ * a gap record does not continue the previous data, so a parser of the connection has to be reset.
+ */
+public class TrafficCaptureReader implements Closeable {
+
+	private final File[] files;
+	private int fileIndex = -1;
+	private DataInputStream in;
+
+	/** Tolerance when comparing the nanoTime and wall clock time of two files */
+	private static final long TIME_TOLERANCE = 1000000000L;
+
+	/** nanoTime and wall clock time of the first file */
+	private long startTime;
+	private long startWallClock;
+	/** nanoTime and wall clock time of the current file */
+	private long fileStartTime;
+	private long fileWallClock;
+	private long time;
+	private final Map<Integer, InetSocketAddress> addresses = new HashMap<Integer, InetSocketAddress>();
+
+	/**
+	 * @param files
+	 *            The capture files, oldest first
+	 */
+	public TrafficCaptureReader(File... files) {
+		this.files = files;
+	}
+
+	/**
+	 * @param directory
+	 *            A directory with capture files
+	 * @return A reader for all capture files in the directory
+	 */
+	public static TrafficCaptureReader forDirectory(File directory) {
+		return new TrafficCaptureReader(TrafficRecorder.listFiles(directory));
+	}
+
+	/**
+	 * @return The next record, or <code>null</code> if all files have been read
+	 * @throws IOException
+	 *             if a file can not be read or is no capture file
+	 */
+	public Record next() throws IOException {
+		while (true) {
+			if (in == null && !openNextFile())
+				return null;
+
+			try {
+				return readRecord();
+			} catch (EOFException e) {
+				closeFile();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		closeFile();
+		fileIndex = files.length;
+	}
+
+	private boolean openNextFile() throws IOException {
+		if (++fileIndex >= files.length)
+			return false;
+
+		File file = files[fileIndex];
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			if (in.readInt() != TrafficRecorder.FILE_MAGIC)
+				throw new IOException(String.format("%s is no capture file", file.getName()));
+			byte version = in.readByte();
+			if (version < 1 || version > TrafficRecorder.FILE_VERSION)
+				throw new IOException(String.format("Capture file %s has the unsupported version %d", file.getName(), version));
+			long wallClock = in.readLong();
+			long fileTime = in.readLong();
+			if (fileIndex == 0) {
+				startWallClock = wallClock;
+				startTime = fileTime;
+			} else {
+				long expected = fileStartTime + (wallClock - fileWallClock) * 1000000;
+				if (fileTime < time || Math.abs(fileTime - expected) > TIME_TOLERANCE) {
+					// The file has been written by another recorder run with an unrelated nanoTime. Continue at the current time.
+					startTime += fileTime - time;
+				}
+			}
+			fileStartTime = fileTime;
+			fileWallClock = wallClock;
+			time = fileTime;
+		} catch (IOException e) {
+			closeFile();
+			throw e;
+		}
+		return true;
+	}
+
+	private Record readRecord() throws IOException {
+		byte type = in.readByte();
+		time += readVarInt();
+		int connectionId = (int) readVarInt();
+
+		switch (type) {
+		case TrafficRecorder.RECORD_CONNECT:
+			byte[] address = new byte[in.readUnsignedByte()];
+			in.readFully(address);
+			int port = in.readUnsignedShort();
+			InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(address), port);
+			addresses.put(connectionId, remoteSocket);
+			return new Record(type, time - startTime, startWallClock, connectionId, remoteSocket, null, 0);
+		case TrafficRecorder.RECORD_DATA:
+			byte[] data = new byte[(int) readVarInt()];
+			in.readFully(data);
+			return new Record(type, time - startTime, startWallClock, connectionId, addresses.get(connectionId), data, 0);
+		case TrafficRecorder.RECORD_DISCONNECT:
+			return new Record(type, time - startTime, startWallClock, connectionId, addresses.remove(connectionId), null, 0);
+		case TrafficRecorder.RECORD_GAP:
+			long droppedBytes = readVarInt();
+			return new Record(type, time - startTime, startWallClock, connectionId, addresses.get(connectionId), null, droppedBytes);
+		default:
+			throw new IOException(String.format("Invalid record type %d in capture file %s", type, files[fileIndex].getName()));
+		}
+	}
+
+	private long readVarInt() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid variable length integer in capture file");
+	}
+
+	private void closeFile() {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			in = null;
+		}
+	}
+
+	/**
+	 * A recorded event.
+	 */
+	public static class Record {
+		private final byte type;
+		private final long time;
+		private final long startWallClock;
+		private final int connectionId;
+		private final InetSocketAddress remoteSocket;
+		private final byte[] data;
+		private final long droppedBytes;
+
+		private Record(byte type, long time, long startWallClock, int connectionId, InetSocketAddress remoteSocket, byte[] data, long droppedBytes) {
+			this.type = type;
+			this.time = time;
+			this.startWallClock = startWallClock;
+			this.connectionId = connectionId;
+			this.remoteSocket = remoteSocket;
+			this.data = data;
+			this.droppedBytes = droppedBytes;
+		}
+
+		public boolean isConnect() {
+			return type == TrafficRecorder.RECORD_CONNECT;
+		}
+
+		public boolean isData() {
+			return type == TrafficRecorder.RECORD_DATA;
+		}
+
+		public boolean isDisconnect() {
+			return type == TrafficRecorder.RECORD_DISCONNECT;
+		}
+
+		/**
+		 * @return <code>true</code> if data of the connection has been dropped before this record
+		 */
+		public boolean isGap() {
+			return type == TrafficRecorder.RECORD_GAP;
+		}
+
+		/**
+		 * @return The time of this record in nanoseconds since the start of the first file
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return The wall clock time of this record in milliseconds
+		 */
+		public long getWallClockTime() {
+			return startWallClock + time / 1000000;
+		}
+
+		public int getConnectionId() {
+			return connectionId;
+		}
+
+		/**
+		 * @return The address of the remote device, or <code>null</code> if the connect record has not been read
+		 */
+		public InetSocketAddress getRemoteSocket() {
+			return remoteSocket;
+		}
+
+		/**
+		 * @return The received data of a data record, or <code>null</code> for other records
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @return The number of bytes dropped by the recorder for a gap record, or 0 for other records
+		 */
+		public long getDroppedBytes() {
+			return droppedBytes;
+		}
+	}
+}
@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * Copyright 2013 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records the inbound data of all connections into rotating capture files. The recorded data can be read with
+ * {@link TrafficCaptureReader}.
+ * <P>
+ * The calling thread only copies the received data. The records are written by a background thread. If the background
+ * thread can not keep up and more than {@link #MAX_PENDING_BYTES} are waiting, new data is dropped instead of blocking
+ * the caller. When data is recorded again, a gap record with the number of dropped bytes is written for every
+ * connection with dropped data, so a reader knows that the data of the connection is incomplete. Connect and
+ * disconnect records are never dropped.
+ * <P>
+ * A capture file starts with a header containing the wall clock time and the {@link System#nanoTime()} of the file
+ * start. Every record contains the record type, the time since the previous record in nanoseconds and the connection
+ * id as variable length integers. A connect record is followed by the remote address, a data record by the length and
+ * the received bytes, a gap record by the number of dropped bytes. A new file starts with a connect record for every open connection, so every file can be read on
+ * its own.
+ */
+public class TrafficRecorder {
+
+	public static final String DIRECTORY = "capture";
+	public static final String FILE_PREFIX = "traffic-";
+	public static final String FILE_EXTENSION = ".cap";
+
+	static final int FILE_MAGIC = 0x47544350;
+	static final byte FILE_VERSION = 2;
+	static final byte RECORD_CONNECT = 1;
+	static final byte RECORD_DATA = 2;
+	static final byte RECORD_DISCONNECT = 3;
+	static final byte RECORD_GAP = 4;
+
+	/** Maximum size of the data waiting to be written */
+	static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	protected final Logger log;
+	private final File directory;
+	private final long maxFileSize;
+	private final int maxFileCount;
+
+	private List<PendingRecord> pending = new ArrayList<PendingRecord>();
+	private int pendingBytes;
+	private long droppedRecords;
+	private boolean dropping;
+	/** The number of dropped bytes by connection, that have not been written as a gap record yet */
+	private final Map<InetSocketAddress, Long> droppedBytes = new HashMap<InetSocketAddress, Long>();
+	private volatile boolean closed;
+	/** Set when a write fails. No more records are accepted. */
+	private boolean failed;
+	private final Thread writerThread;
+
+	// Used by the writer thread only
+	private final Map<InetSocketAddress, Integer> connectionIds = new HashMap<InetSocketAddress, Integer>();
+	private int nextConnectionId = 1;
+	private DataOutputStream out;
+	private long fileSize;
+	private long lastTime;
+	private long lastFileTime;
+
+	/**
+	 * @param directory
+	 *            The directory for the capture files
+	 * @param maxFileSize
+	 *            A new file is started when the current file exceeds this size
+	 * @param maxFileCount
+	 *            The maximum number of capture files. The oldest file is deleted when a new file is started.
+	 * @param log
+	 *            If not null, this class will create a sub logger of the given logger.
+	 * @throws IOException
+	 *             if the first capture file can not be created
+	 */
+	public TrafficRecorder(String directory, long maxFileSize, int maxFileCount, Logger log) throws IOException {
+		if (log != null)
+			this.log = Logger.getLogger(String.format("%s.%s", log.getName(), TrafficRecorder.class.getSimpleName()));
+		else
+			this.log = Logger.getLogger(TrafficRecorder.class.getSimpleName());
+
+		this.directory = new File(directory);
+		this.maxFileSize = maxFileSize;
+		this.maxFileCount = Math.max(1, maxFileCount);
+
+		if (!this.directory.isDirectory() && !this.directory.mkdirs())
+			throw new IOException(String.format("Can not create directory %s", directory));
+
+		startFile(System.nanoTime());
+
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, String.format("%s-writer", FILE_PREFIX));
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Record a new connection.
+	 */
+	public synchronized void connected(InetSocketAddress remoteSocket) {
+		if (closed || failed)
+			return;
+		queue(new PendingRecord(RECORD_CONNECT, System.nanoTime(), remoteSocket, null, 0));
+	}
+
+	/**
+	 * Record received data. The remaining bytes of the buffer are copied, the buffer position is not changed.
+	 */
+	public void dataArrived(InetSocketAddress remoteSocket, ByteBuffer data) {
+		long time = System.nanoTime();
+		int size = data.remaining();
+		synchronized (this) {
+			if (closed || failed)
+				return;
+
+			// Check the limit before copying, so dropped data is not copied
+			if (pendingBytes + size > MAX_PENDING_BYTES) {
+				droppedRecords++;
+				Long dropped = droppedBytes.get(remoteSocket);
+				droppedBytes.put(remoteSocket, (dropped != null ? dropped : 0) + size);
+				if (!dropping) {
+					dropping = true;
+					log.warn("Traffic recorder can not keep up with the received data. Records are dropped.");
+				}
+				return;
+			}
+			dropping = false;
+
+			// Mark the missing data before the next record
+			for (Map.Entry<InetSocketAddress, Long> entry : droppedBytes.entrySet()) {
+				queue(new PendingRecord(RECORD_GAP, time, entry.getKey(), null, entry.getValue()));
+			}
+			droppedBytes.clear();
+
+			byte[] copy = new byte[size];
+			data.duplicate().get(copy);
+			pendingBytes += size;
+			queue(new PendingRecord(RECORD_DATA, time, remoteSocket, copy, 0));
+		}
+	}
+
+	/**
+	 * Record a closed connection.
+	 */
+	public synchronized void disconnected(InetSocketAddress remoteSocket) {
+		if (closed || failed)
+			return;
+		long time = System.nanoTime();
+		Long dropped = droppedBytes.remove(remoteSocket);
+		if (dropped != null)
+			queue(new PendingRecord(RECORD_GAP, time, remoteSocket, null, dropped));
+		// Never dropped, the writer thread would keep the connection open in every new file otherwise
+		queue(new PendingRecord(RECORD_DISCONNECT, time, remoteSocket, null, 0));
+	}
+
+	/**
+	 * @return The number of records that have been dropped, because the writer thread could not keep up
+	 */
+	public synchronized long getDroppedRecords() {
+		return droppedRecords;
+	}
+
+	/**
+	 * @return The capture files in the given directory, oldest first
+	 */
+	public static File[] listFiles(File directory) {
+		File[] files = directory.listFiles(new CaptureFilter());
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Writes all pending records and closes the capture file.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		closeFile();
+		if (droppedRecords > 0)
+			log.warn(String.format("Traffic recorder closed. %d records have been dropped.", droppedRecords));
+		else
+			log.debug("Traffic recorder closed");
+	}
+
+	/**
+	 * Add a record for the writer thread. Has to be called with the lock on this recorder held.
+	 */
+	private void queue(PendingRecord record) {
+		pending.add(record);
+		if (pending.size() == 1)
+			notifyAll();
+	}
+
+	private void writeLoop() {
+		while (true) {
+			List<PendingRecord> batch;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if (pending.isEmpty())
+					break;
+				batch = pending;
+				pending = new ArrayList<PendingRecord>();
+				pendingBytes = 0;
+			}
+
+			try {
+				for (PendingRecord record : batch) {
+					write(record);
+				}
+				out.flush();
+			} catch (IOException e) {
+				log.error(String.format("Error writing capture file. Recording stopped: %s", e.toString()));
+				synchronized (this) {
+					failed = true;
+					pending.clear();
+				}
+				break;
+			}
+		}
+	}
+
+	private void write(PendingRecord record) throws IOException {
+		if (fileSize >= maxFileSize) {
+			rotate(record.time);
+		}
+
+		Integer connectionId = connectionIds.get(record.remoteSocket);
+		if (connectionId == null) {
+			// Connections without a connect record (UDP) are added with the first data
+			connectionId = nextConnectionId++;
+			connectionIds.put(record.remoteSocket, connectionId);
+			if (record.type != RECORD_CONNECT)
+				writeConnect(record.time, connectionId, record.remoteSocket);
+		}
+
+		switch (record.type) {
+		case RECORD_CONNECT:
+			writeConnect(record.time, connectionId, record.remoteSocket);
+			break;
+		case RECORD_DATA:
+			writeHeader(RECORD_DATA, record.time, connectionId);
+			writeVarInt(record.data.length);
+			out.write(record.data);
+			fileSize += record.data.length;
+			break;
+		case RECORD_GAP:
+			writeHeader(RECORD_GAP, record.time, connectionId);
+			writeVarInt(record.droppedBytes);
+			break;
+		default:
+			writeHeader(RECORD_DISCONNECT, record.time, connectionId);
+			connectionIds.remove(record.remoteSocket);
+			break;
+		}
+	}
+
+	private void writeConnect(long time, int connectionId, InetSocketAddress remoteSocket) throws IOException {
+		writeHeader(RECORD_CONNECT, time, connectionId);
+		byte[] address = remoteSocket.getAddress() != null ? remoteSocket.getAddress().getAddress() : new byte[4];
+		out.writeByte(address.length);
+		out.write(address);
+		out.writeShort(remoteSocket.getPort());
+		fileSize += 3 + address.length;
+	}
+
+	private void writeHeader(byte type, long time, int connectionId) throws IOException {
+		out.writeByte(type);
+		fileSize++;
+		// The time is not decreasing, even if records from different threads are not in order
+		writeVarInt(Math.max(0, time - lastTime));
+		lastTime = Math.max(lastTime, time);
+		writeVarInt(connectionId);
+	}
+
+	private void writeVarInt(long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+			fileSize++;
+		}
+		out.writeByte((int) value);
+		fileSize++;
+	}
+
+	private void rotate(long time) throws IOException {
+		closeFile();
+		startFile(time);
+		deleteOldFiles();
+		// Every file starts with the open connections
+		for (Map.Entry<InetSocketAddress, Integer> entry : connectionIds.entrySet()) {
+			writeConnect(time, entry.getValue(), entry.getKey());
+		}
+	}
+
+	private void startFile(long time) throws IOException {
+		// The file name contains the start time, so the files are sorted by name
+		long fileTime = Math.max(System.currentTimeMillis(), lastFileTime + 1);
+		lastFileTime = fileTime;
+		File file = new File(directory, String.format("%s%013d%s", FILE_PREFIX, fileTime, FILE_EXTENSION));
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		out.writeInt(FILE_MAGIC);
+		out.writeByte(FILE_VERSION);
+		out.writeLong(fileTime);
+		out.writeLong(time);
+		fileSize = 21;
+		lastTime = time;
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Started capture file %s", file.getName()));
+	}
+
+	private void closeFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.warn(String.format("Error closing capture file: %s", e.toString()));
+			}
+			out = null;
+		}
+	}
+
+	private void deleteOldFiles() {
+		File[] files = listFiles(directory);
+		for (int i = 0; i < files.length - maxFileCount; i++) {
+			if (!files[i].delete())
+				log.warn(String.format("Can not delete capture file %s", files[i].getName()));
+		}
+	}
+
+	private static class CaptureFilter implements FilenameFilter {
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_EXTENSION);
+		}
+	}
+
+	private static class PendingRecord {
+		private final byte type;
+		private final long time;
+		private final InetSocketAddress remoteSocket;
+		private final byte[] data;
+		private final long droppedBytes;
+
+		private PendingRecord(byte type, long time, InetSocketAddress remoteSocket, byte[] data, long droppedBytes) {
+			this.type = type;
+			this.time = time;
+			this.remoteSocket = remoteSocket;
+			this.data = data;
+			this.droppedBytes = droppedBytes;
+		}
+	}
+}
@@ -16,25 +16,67 @@
 package com.chitek.ignition.drivers.generictcp.meta.config;
 
 import java.io.Serializable;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.chitek.ignition.drivers.generictcp.types.LengthFieldType;
 import com.chitek.ignition.drivers.generictcp.types.MessageType;
 import com.chitek.ignition.drivers.generictcp.types.QueueMode;
+import com.chitek.ignition.drivers.generictcp.types.QueueStorage;
+import com.chitek.ignition.drivers.generictcp.util.Util;
 import com.chitek.util.XMLConfigParser;
 
 public class MessageConfig implements Comparable<MessageConfig>, Serializable {
 
 	private static final long serialVersionUID = 1L;
 	private static final String XML_CONFIG_NAME = "MessageConfig";
+	public static final int DEFAULT_BATCH_SIZE = 10;
+	public static final int MAX_BATCH_SIZE = 100;
+	public static final int DEFAULT_DRAIN_MESSAGES_PER_CYCLE = 1;
+	public static final int DEFAULT_DRAIN_MAX_BURST = 10;
+	public static final int MAX_DRAIN_BURST = 100;
+	public static final int MAX_DRAIN_CATCH_UP_THRESHOLD = 10000;
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 5000;
+	public static final int DEFAULT_HANDSHAKE_RESET_DELAY = 2000;
+	public static final int MIN_HANDSHAKE_TIMEOUT = 100;
+	public static final int MAX_HANDSHAKE_TIMEOUT = 600000;
+	public static final int DEFAULT_QUEUE_CAPACITY = 500;
+	/** Maximum queue capacity with QueueStorage.MEMORY */
+	public static final int MAX_MEMORY_QUEUE_CAPACITY = 10000;
+	/** Maximum queue capacity with QueueStorage.DISK */
+	public static final int MAX_DISK_QUEUE_CAPACITY = 10000000;
+	public static final int MAX_QUEUE_CAPACITY_MB = 100000;
+	public static final int MAX_LENGTH_FIELD_OFFSET = 1024;
+	public static final int MAX_LENGTH_FIELD_ADJUSTMENT = 65535;
+	/** Maximum length of a message with {@link MessageType#LENGTH_FIELD} or {@link MessageType#DELIMITED} */
+	public static final int MAX_FRAMED_MESSAGE_LENGTH = 16 * 1024 * 1024;
+	public static final int MAX_DELIMITER_LENGTH = 8;
+	public static final String DEFAULT_DELIMITER = "0x0D,0x0A";
 	
 	public List<TagConfig> tags = new ArrayList<TagConfig>();
 	private String messageAlias = "";
 	public int messageId;
 	private QueueMode queueMode = QueueMode.NONE;
+	private boolean highPriority = false;
 	private boolean usePersistance = false;
+	private QueueStorage queueStorage = QueueStorage.MEMORY;
+	private boolean queueCompression = false;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private int queueCapacityMB = 0;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int drainMessagesPerCycle = DEFAULT_DRAIN_MESSAGES_PER_CYCLE;
+	private int drainMaxBurst = DEFAULT_DRAIN_MAX_BURST;
+	private int drainCatchUpThreshold = 0;
+	private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+	private int handshakeResetDelay = DEFAULT_HANDSHAKE_RESET_DELAY;
 	private MessageType messageType = MessageType.FIXED_LENGTH;
 	private int messageLength = 0;
+	private int lengthFieldOffset = 0;
+	private LengthFieldType lengthFieldType = LengthFieldType.UInt16;
+	private boolean lengthFieldLittleEndian = false;
+	private int lengthFieldAdjustment = 0;
+	private String delimiter = DEFAULT_DELIMITER;
 	private int configHash = 0;
 
 	/**
@@ -84,6 +126,19 @@ public class MessageConfig implements Comparable<MessageConfig>, Serializable {
 		return queueMode;
 	}
 
+	/**
+	 * @return
+	 * 	<code>true</code> if messages are evaluated in the priority lane of the driver and published immediately. Only used
+	 * 	with {@link QueueMode#NONE}.
+	 */
+	public boolean isHighPriority() {
+		return highPriority;
+	}
+
+	public void setHighPriority(boolean highPriority) {
+		this.highPriority = highPriority;
+	}
+
 	public void setMessageType(MessageType messageType) {
 		this.messageType = messageType;
 	}
@@ -96,6 +151,90 @@ public class MessageConfig implements Comparable<MessageConfig>, Serializable {
 		this.messageType = MessageType.valueOf(enumName.trim().toUpperCase());
 	}
 	
+	/**
+	 * @return
+	 * 	The offset of the length field in the message data following the message ID. Only used with {@link MessageType#LENGTH_FIELD}.
+	 */
+	public int getLengthFieldOffset() {
+		return lengthFieldOffset;
+	}
+
+	public void setLengthFieldOffset(int lengthFieldOffset) {
+		this.lengthFieldOffset = lengthFieldOffset;
+	}
+
+	public LengthFieldType getLengthFieldType() {
+		return lengthFieldType;
+	}
+
+	public void setLengthFieldType(LengthFieldType lengthFieldType) {
+		this.lengthFieldType = lengthFieldType;
+	}
+
+	/**
+	 * Method used by XML-Parser
+	 * @param enumName
+	 */
+	public void setLengthFieldType(String enumName) {
+		this.lengthFieldType = LengthFieldType.valueOf(enumName.trim());
+	}
+
+	/**
+	 * @return
+	 * 	<code>true</code> if the length field is transmitted in little endian byte order
+	 */
+	public boolean isLengthFieldLittleEndian() {
+		return lengthFieldLittleEndian;
+	}
+
+	public void setLengthFieldLittleEndian(boolean lengthFieldLittleEndian) {
+		this.lengthFieldLittleEndian = lengthFieldLittleEndian;
+	}
+
+	/**
+	 * @return
+	 * 	The value added to the length field to get the number of message bytes following the length field.
+	 */
+	public int getLengthFieldAdjustment() {
+		return lengthFieldAdjustment;
+	}
+
+	public void setLengthFieldAdjustment(int lengthFieldAdjustment) {
+		this.lengthFieldAdjustment = lengthFieldAdjustment;
+	}
+
+	/**
+	 * @return
+	 * 	The delimiter as a comma separated list of bytes. Only used with {@link MessageType#DELIMITED}.
+	 */
+	public String getDelimiter() {
+		return delimiter;
+	}
+
+	public void setDelimiter(String delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * @return
+	 * 	The parsed delimiter, or an empty array if the delimiter can not be parsed
+	 */
+	public byte[] getDelimiterBytes() {
+		try {
+			return Util.hexString2ByteArray(delimiter);
+		} catch (ParseException e) {
+			return new byte[0];
+		}
+	}
+
+	/**
+	 * @return
+	 * 	The length of the message data up to the end of the length field
+	 */
+	public int getLengthFieldEnd() {
+		return lengthFieldOffset + lengthFieldType.getByteSize();
+	}
+
 	public boolean isUsePersistance() {
 		return usePersistance;
 	}
@@ -104,6 +243,136 @@ public class MessageConfig implements Comparable<MessageConfig>, Serializable {
 		this.usePersistance = usePersistance;
 	}
 
+	public QueueStorage getQueueStorage() {
+		return queueStorage;
+	}
+
+	public void setQueueStorage(QueueStorage queueStorage) {
+		this.queueStorage = queueStorage;
+	}
+
+	/**
+	 * Method used by XML-Parser
+	 * @param enumName
+	 */
+	public void setQueueStorage(String enumName) {
+		this.queueStorage = QueueStorage.valueOf(enumName.trim().toUpperCase());
+	}
+
+	/**
+	 * @return
+	 * 	<code>true</code> if queued messages are compressed. Only used with {@link QueueStorage#DISK}.
+	 */
+	public boolean isQueueCompression() {
+		return queueCompression;
+	}
+
+	public void setQueueCompression(boolean queueCompression) {
+		this.queueCompression = queueCompression;
+	}
+
+	/**
+	 * @return
+	 * 	The maximum number of messages in the queue. The oldest message is discarded when the capacity is exceeded.
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return
+	 * 	The maximum size of all messages in the queue in MB. 0 means unlimited.
+	 */
+	public int getQueueCapacityMB() {
+		return queueCapacityMB;
+	}
+
+	public void setQueueCapacityMB(int queueCapacityMB) {
+		this.queueCapacityMB = queueCapacityMB;
+	}
+
+	/**
+	 * @return
+	 * 	The maximum number of queued messages that are published together in {@link QueueMode#BATCH_HANDSHAKE}
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return
+	 * 	The number of queued messages released every delay cycle in {@link QueueMode#DELAYED}
+	 */
+	public int getDrainMessagesPerCycle() {
+		return drainMessagesPerCycle;
+	}
+
+	public void setDrainMessagesPerCycle(int drainMessagesPerCycle) {
+		this.drainMessagesPerCycle = drainMessagesPerCycle;
+	}
+
+	/**
+	 * @return
+	 * 	The maximum number of queued messages released in one delay cycle while catching up in {@link QueueMode#DELAYED}
+	 */
+	public int getDrainMaxBurst() {
+		return drainMaxBurst;
+	}
+
+	public void setDrainMaxBurst(int drainMaxBurst) {
+		this.drainMaxBurst = drainMaxBurst;
+	}
+
+	/**
+	 * @return
+	 * 	The queue size above which the release rate is accelerated in {@link QueueMode#DELAYED}. 0 disables catch up.
+	 */
+	public int getDrainCatchUpThreshold() {
+		return drainCatchUpThreshold;
+	}
+
+	public void setDrainCatchUpThreshold(int drainCatchUpThreshold) {
+		this.drainCatchUpThreshold = drainCatchUpThreshold;
+	}
+
+	/**
+	 * @return
+	 * 	The time in milliseconds after which the driver toggles _Handshake to 0, if the client does not confirm the message
+	 */
+	public int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	public void setHandshakeTimeout(int handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * @return
+	 * 	The time in milliseconds after which _Handshake is set back to the message count after a handshake timeout
+	 */
+	public int getHandshakeResetDelay() {
+		return handshakeResetDelay;
+	}
+
+	public void setHandshakeResetDelay(int handshakeResetDelay) {
+		this.handshakeResetDelay = handshakeResetDelay;
+	}
+
+	private boolean isDefaultDrainPolicy() {
+		return drainMessagesPerCycle == DEFAULT_DRAIN_MESSAGES_PER_CYCLE
+				&& drainMaxBurst == DEFAULT_DRAIN_MAX_BURST
+				&& drainCatchUpThreshold == 0;
+	}
+
 	/**
 	 * Used by the XML parser to add a TagConfig.
 	 * 
@@ -131,8 +400,43 @@ public class MessageConfig implements Comparable<MessageConfig>, Serializable {
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "MessageAlias", messageAlias ));
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "MessageId", messageId ));
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "MessageType", messageType ));
+		if (messageType == MessageType.LENGTH_FIELD) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "LengthFieldOffset", lengthFieldOffset ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "LengthFieldType", lengthFieldType.name() ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "LengthFieldLittleEndian", lengthFieldLittleEndian ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "LengthFieldAdjustment", lengthFieldAdjustment ));
+		}
+		if (messageType == MessageType.DELIMITED) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "Delimiter", delimiter ));
+		}
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "UsePersistance", usePersistance ));
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "QueueMode", queueMode.name() ));
+		if (highPriority) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "HighPriority", highPriority ));
+		}
+		if (queueMode == QueueMode.BATCH_HANDSHAKE) {
+			// Only written when used, so the config hash of existing configurations (and their queue files) stays valid
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "BatchSize", batchSize ));
+		}
+		if (queueStorage != QueueStorage.MEMORY) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "QueueStorage", queueStorage.name() ));
+		}
+		if (queueCompression) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "QueueCompression", queueCompression ));
+		}
+		if (queueCapacity != DEFAULT_QUEUE_CAPACITY || queueCapacityMB != 0) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "QueueCapacity", queueCapacity ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "QueueCapacityMB", queueCapacityMB ));
+		}
+		if (queueMode.isHandshake() && (handshakeTimeout != DEFAULT_HANDSHAKE_TIMEOUT || handshakeResetDelay != DEFAULT_HANDSHAKE_RESET_DELAY)) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "HandshakeTimeout", handshakeTimeout ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "HandshakeResetDelay", handshakeResetDelay ));
+		}
+		if (queueMode == QueueMode.DELAYED && !isDefaultDrainPolicy()) {
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "DrainMessagesPerCycle", drainMessagesPerCycle ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "DrainMaxBurst", drainMaxBurst ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "DrainCatchUpThreshold", drainCatchUpThreshold ));
+		}
 		for (TagConfig tag : tags) {
 			sb.append(String.format("%s%n", tag.toXMLString()));
 		}
@@ -25,6 +25,9 @@ import com.chitek.util.XMLConfigParser;
 public class WritebackConfig implements Serializable {
 
 	private static final String XML_CONFIG_NAME = "WritebackConfig";
+	public static final int MAX_VALUES_PER_MESSAGE = 1000;
+	public static final int DEFAULT_COALESCE_TIME = 10;
+	public static final int MAX_COALESCE_TIME = 10000;
 
 	private boolean enableWriteback=false;
 	/** The byte string that should be send as a prefix */
@@ -37,6 +40,10 @@ public class WritebackConfig implements Serializable {
 	private boolean sendOnValueChange = false;
 	private String initialValue = "";
 	private int initialId = 0;
+	/** The maximum number of ID/value pairs in one message. 1 sends a single value without ID in the payload */
+	private int maxValuesPerMessage = 1;
+	/** Time in ms to collect values changed by clients before they are sent in one message */
+	private int coalesceTime = DEFAULT_COALESCE_TIME;
 
 	public boolean isEnabled() {
 		return enableWriteback;
@@ -126,6 +133,31 @@ public class WritebackConfig implements Serializable {
 		this.prefix = prefix;
 	}
 
+	public int getMaxValuesPerMessage() {
+		return maxValuesPerMessage;
+	}
+
+	public void setMaxValuesPerMessage(int maxValuesPerMessage) {
+		this.maxValuesPerMessage = maxValuesPerMessage;
+	}
+
+	public int getCoalesceTime() {
+		return coalesceTime;
+	}
+
+	public void setCoalesceTime(int coalesceTime) {
+		this.coalesceTime = coalesceTime;
+	}
+
+	/**
+	 * @return
+	 * 	<code>true</code> if multiple values are sent in one message. ByteString values have a variable length, so they
+	 * 	are always sent one per message.
+	 */
+	public boolean isMultiValue() {
+		return maxValuesPerMessage > 1 && dataType != WritebackDataType.ByteString;
+	}
+
 	/**
 	 * Returns this configuration as XML.
 	 * 
@@ -145,6 +177,11 @@ public class WritebackConfig implements Serializable {
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "InitialId", initialId ));
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "UsePrefix", usePrefix ));
 		sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "Prefix", prefix ));
+		if (maxValuesPerMessage > 1) {
+			// Only written when used, so existing configurations are not changed
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "MaxValuesPerMessage", maxValuesPerMessage ));
+			sb.append(String.format("\t<setting name=\"%s\">%s</setting>%n", "CoalesceTime", coalesceTime ));
+		}
 		sb.append("</config>");
 
 		return sb.toString();
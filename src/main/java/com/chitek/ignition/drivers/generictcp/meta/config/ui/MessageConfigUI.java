@@ -69,10 +69,13 @@ import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.TagConfig;
 import com.chitek.ignition.drivers.generictcp.types.BinaryDataType;
+import com.chitek.ignition.drivers.generictcp.types.LengthFieldType;
 import com.chitek.ignition.drivers.generictcp.types.MessageType;
 import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
 import com.chitek.ignition.drivers.generictcp.types.QueueMode;
+import com.chitek.ignition.drivers.generictcp.types.QueueStorage;
 import com.chitek.ignition.drivers.generictcp.types.TagLengthType;
+import com.chitek.ignition.drivers.generictcp.util.Util;
 import com.chitek.wicket.FeedbackTextField;
 import com.chitek.wicket.NonMatchStringValidator;
 import com.chitek.wicket.listeditor.EditorListItem;
@@ -99,6 +102,9 @@ public class MessageConfigUI extends AbstractConfigUI<DriverConfig> implements I
 	private DropDownChoice<Integer> currentMessageIdDropdown;
 	private DropDownChoice<MessageType> messageTypeDropdown;
 	private TextField<Integer> messageIdTextField;
+	private DropDownChoice<QueueStorage> queueStorageDropdown;
+	private TextField<Integer> queueCapacityTextField;
+	private TextField<String> delimiterTextField;
 	private TextField<String> messageAliasTextField;
 	private ListEditor<TagConfig> editor;
 
@@ -107,7 +113,7 @@ public class MessageConfigUI extends AbstractConfigUI<DriverConfig> implements I
 	private final ResourceModel labelSize = new LenientResourceModel("sizelabel");
 
 	// Special tag names that are not allowed as alias
-	private static final String[] specialAlias = { "_Handshake", "_MessageCount", "_QueueSize", "_Timestamp", "_Message Age" };
+	private static final String[] specialAlias = { "_Handshake", "_MessageCount", "_QueueSize", "_Timestamp", "_Message Age", "_Batch", "_BatchSequence", "_QueueDrainRate", "_QueueCompressionRatio" };
 
 	public MessageConfigUI(String panelId, DriverConfig config) {
 		super(panelId, titleKey, config);
@@ -224,8 +230,30 @@ public class MessageConfigUI extends AbstractConfigUI<DriverConfig> implements I
 		
 		messageTypeDropdown = getMessageTypeDropdown(); 
 		tableContainer.add(messageTypeDropdown);
+		tableContainer.add(getRangeTextField("lengthFieldOffset", 0, MessageConfig.MAX_LENGTH_FIELD_OFFSET));
+		tableContainer.add(getLengthFieldTypeDropdown());
+		tableContainer.add(new CheckBox("lengthFieldLittleEndian").setOutputMarkupId(true));
+		tableContainer.add(getRangeTextField("lengthFieldAdjustment", -MessageConfig.MAX_LENGTH_FIELD_ADJUSTMENT, MessageConfig.MAX_LENGTH_FIELD_ADJUSTMENT));
+		delimiterTextField = new FeedbackTextField<String>("delimiter");
+		delimiterTextField.setRequired(true);
+		delimiterTextField.setOutputMarkupId(true);
+		tableContainer.add(delimiterTextField);
 
 		tableContainer.add(getQueueModeDropdown());
+		tableContainer.add(new CheckBox("highPriority").setOutputMarkupId(true));
+
+		tableContainer.add(getBatchSizeTextField());
+		tableContainer.add(getRangeTextField("drainMessagesPerCycle", 1, MessageConfig.MAX_DRAIN_BURST));
+		tableContainer.add(getRangeTextField("drainMaxBurst", 1, MessageConfig.MAX_DRAIN_BURST));
+		tableContainer.add(getRangeTextField("drainCatchUpThreshold", 0, MessageConfig.MAX_DRAIN_CATCH_UP_THRESHOLD));
+		tableContainer.add(getRangeTextField("handshakeTimeout", MessageConfig.MIN_HANDSHAKE_TIMEOUT, MessageConfig.MAX_HANDSHAKE_TIMEOUT));
+		tableContainer.add(getRangeTextField("handshakeResetDelay", MessageConfig.MIN_HANDSHAKE_TIMEOUT, MessageConfig.MAX_HANDSHAKE_TIMEOUT));
+		queueStorageDropdown = getQueueStorageDropdown();
+		tableContainer.add(queueStorageDropdown);
+		queueCapacityTextField = getRangeTextField("queueCapacity", 1, MessageConfig.MAX_DISK_QUEUE_CAPACITY);
+		tableContainer.add(queueCapacityTextField);
+		tableContainer.add(getRangeTextField("queueCapacityMB", 0, MessageConfig.MAX_QUEUE_CAPACITY_MB));
+		tableContainer.add(new CheckBox("queueCompression").setOutputMarkupId(true));
 
 		tableContainer.add(new CheckBox("usePersistance").setOutputMarkupId(true));
 
@@ -389,6 +417,34 @@ public class MessageConfigUI extends AbstractConfigUI<DriverConfig> implements I
 		return dropDown;
 	}
 	
+	private DropDownChoice<LengthFieldType> getLengthFieldTypeDropdown() {
+		DropDownChoice<LengthFieldType> dropDown = new DropDownChoice<LengthFieldType>("lengthFieldType", LengthFieldType.getOptions(), new EnumChoiceRenderer<LengthFieldType>(this));
+		dropDown.setOutputMarkupId(true);
+		return dropDown;
+	}
+	
+	private DropDownChoice<QueueStorage> getQueueStorageDropdown() {
+		DropDownChoice<QueueStorage> dropDown = new DropDownChoice<QueueStorage>("queueStorage", QueueStorage.getOptions(), new EnumChoiceRenderer<QueueStorage>(this));
+		dropDown.setOutputMarkupId(true);
+		return dropDown;
+	}
+	
+	private TextField<Integer> getBatchSizeTextField() {
+		TextField<Integer> textField = new FeedbackTextField<Integer>("batchSize");
+		textField.setRequired(true);
+		textField.add(new RangeValidator<Integer>(1, MessageConfig.MAX_BATCH_SIZE));
+		textField.setOutputMarkupId(true);
+		return textField;
+	}
+	
+	private TextField<Integer> getRangeTextField(String id, int minimum, int maximum) {
+		TextField<Integer> textField = new FeedbackTextField<Integer>(id);
+		textField.setRequired(true);
+		textField.add(new RangeValidator<Integer>(minimum, maximum));
+		textField.setOutputMarkupId(true);
+		return textField;
+	}
+	
 	private DropDownChoice<MessageType> getMessageTypeDropdown() {
 		DropDownChoice<MessageType> dropDown = new DropDownChoice<MessageType>("messageType", MessageType.getOptions(), new EnumChoiceRenderer<MessageType>(this));
 		dropDown.setOutputMarkupId(true);
@@ -1128,6 +1184,31 @@ public class MessageConfigUI extends AbstractConfigUI<DriverConfig> implements I
 					error(messageTypeDropdown, "error.noPacketBasedLengthTag");
 				}
 			}
+			
+			// Check the delimiter
+			if (messageTypeDropdown.getConvertedInput() == MessageType.DELIMITED) {
+				String value = delimiterTextField.getInput();
+				try {
+					int length = Util.hexString2ByteArray(value.trim()).length;
+					if (length == 0 || length > MessageConfig.MAX_DELIMITER_LENGTH) {
+						error(delimiterTextField, "error.delimiterLength");
+					} else {
+						delimiterTextField.setConvertedInput(value.trim());
+					}
+				} catch (Exception e) {
+					ValidationError error = new ValidationError();
+					error.addKey("ByteStringValidator");
+					error.setVariable("error", e.getMessage());
+					delimiterTextField.error(error);
+				}
+			}
+
+			// Large queues are only allowed with disk storage
+			Integer queueCapacity = queueCapacityTextField.getConvertedInput();
+			if (queueStorageDropdown.getConvertedInput() == QueueStorage.MEMORY && queueCapacity != null
+				&& queueCapacity > MessageConfig.MAX_MEMORY_QUEUE_CAPACITY) {
+				error(queueCapacityTextField, "error.memoryQueueCapacity");
+			}
 		}
 		
 	}
@@ -34,6 +34,7 @@ import org.apache.wicket.markup.html.form.validation.AbstractFormValidator;
 import org.apache.wicket.model.StringResourceModel;
 import org.apache.wicket.util.string.Strings;
 import org.apache.wicket.validation.ValidationError;
+import org.apache.wicket.validation.validator.RangeValidator;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
 
@@ -59,6 +60,7 @@ public class WritebackConfigUI extends AbstractConfigUI<WritebackConfig> {
 	private TextField<String> initialValueTextField;
 	private CheckBox usePrefixCheckBox;
 	private TextField<String> prefixTextField;
+	private TextField<Integer> maxValuesTextField;
 
 	public WritebackConfigUI(String panelId, WritebackConfig config) {
 		super(panelId, titleKey, config);
@@ -109,6 +111,10 @@ public class WritebackConfigUI extends AbstractConfigUI<WritebackConfig> {
 		initialIdTextField = getInitialIdTextField();
 		settingsTable.add(initialIdTextField);
 
+		maxValuesTextField = getRangeTextField("maxValuesPerMessage", 1, WritebackConfig.MAX_VALUES_PER_MESSAGE);
+		settingsTable.add(maxValuesTextField);
+		settingsTable.add(getRangeTextField("coalesceTime", 0, WritebackConfig.MAX_COALESCE_TIME));
+
 		editForm.add(tableContainer);
 
 		editForm.add(new WritebackFormValidator());
@@ -237,13 +243,21 @@ public class WritebackConfigUI extends AbstractConfigUI<WritebackConfig> {
 		return textField;
 	}
 
+	private TextField<Integer> getRangeTextField(String id, int minimum, int maximum) {
+		TextField<Integer> textField = new FeedbackTextField<Integer>(id);
+		textField.setRequired(true);
+		textField.add(new RangeValidator<Integer>(minimum, maximum));
+		textField.setOutputMarkupId(true);
+		return textField;
+	}
+
 	private class WritebackFormValidator extends AbstractFormValidator {
 
 		@Override
 		public FormComponent<?>[] getDependentFormComponents() {
 			return new FormComponent<?>[] {
 				sendInitialValueCheckBox, messageIdTypeDropDown, dataTypeDropDown,
-				initialIdTextField, initialValueTextField, usePrefixCheckBox, prefixTextField };
+				initialIdTextField, initialValueTextField, usePrefixCheckBox, prefixTextField, maxValuesTextField };
 		}
 
 		@Override
@@ -337,8 +351,10 @@ public class WritebackConfigUI extends AbstractConfigUI<WritebackConfig> {
 					prefixTextField.error(error);
 				}
 
-				// Check if ID is configured
-				if (prefixTextField.getInput().contains("id")) {
+				// Check if ID is configured. In a multi value message, 'id' is replaced by the number of values.
+				Integer maxValues = maxValuesTextField.getConvertedInput();
+				boolean multiValue = maxValues != null && maxValues > 1 && dataTypeDropDown.getConvertedInput() != WritebackDataType.ByteString;
+				if (prefixTextField.getInput().contains("id") && !multiValue) {
 					if (messageIdTypeDropDown.getConvertedInput() == OptionalDataType.None) {
 						ValidationError error = new ValidationError();
 						error.addKey("IdNone");
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.tags;
+
+import java.lang.reflect.Array;
+
+import org.eclipse.milo.opcua.stack.core.BuiltinDataType;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+import com.inductiveautomation.xopc.driver.api.tags.DynamicDriverTag;
+
+/**
+ * A tag that publishes one value for every message of a batch in a one dimensional array.<br />
+ * Array values are concatenated, so for array tags the result contains (messages in batch * array length) elements.
+ *
+ * @author chi
+ *
+ */
+public class ReadableBatchTag extends DynamicDriverTag {
+
+	private final Object[] values;
+	private int count;
+	private DataValue value;
+
+	/**
+	 * @param address
+	 * @param dataType
+	 * 		The data type of the array elements
+	 * @param batchSize
+	 * 		The maximum number of messages in a batch
+	 */
+	public ReadableBatchTag(String address, BuiltinDataType dataType, int batchSize) {
+		super(address, dataType);
+		this.values = new Object[batchSize];
+		this.value = new DataValue(StatusCodes.Bad_WaitingForInitialData);
+	}
+
+	/**
+	 * Start a new batch.
+	 */
+	public void clear() {
+		for (int i = 0; i < count; i++) {
+			values[i] = null;
+		}
+		count = 0;
+	}
+
+	/**
+	 * Adds the value of the next message to the batch.
+	 *
+	 * @param newValue
+	 * 		A scalar value or an array. <code>null</code> if the message could not be evaluated.
+	 */
+	public void addValue(Object newValue) {
+		values[count++] = newValue;
+	}
+
+	/**
+	 * Adds the current value of the given tag to the batch.
+	 *
+	 * @param tag
+	 */
+	public void addValue(ReadableTcpDriverTag tag) {
+		Variant variant = tag.getValue().getValue();
+		addValue(variant != null ? variant.getValue() : null);
+	}
+
+	/**
+	 * Publishes the collected values as one array.
+	 *
+	 * @param timestamp
+	 * 		The timestamp of the last message in the batch
+	 */
+	public void publish(DateTime timestamp) {
+		int length = 0;
+		Class<?> componentType = null;
+		for (int i = 0; i < count; i++) {
+			Object element = values[i];
+			if (element == null) {
+				// A message in this batch could not be evaluated
+				value = new DataValue(Variant.NULL_VALUE, new StatusCode(StatusCodes.Bad_DecodingError), timestamp, timestamp);
+				return;
+			}
+			if (element.getClass().isArray()) {
+				length += Array.getLength(element);
+				componentType = element.getClass().getComponentType();
+			} else {
+				length++;
+				componentType = element.getClass();
+			}
+		}
+
+		if (componentType == null) {
+			return;
+		}
+
+		Object array = Array.newInstance(componentType, length);
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			Object element = values[i];
+			if (element.getClass().isArray()) {
+				int elementLength = Array.getLength(element);
+				System.arraycopy(element, 0, array, pos, elementLength);
+				pos += elementLength;
+			} else {
+				Array.set(array, pos++, element);
+			}
+		}
+
+		value = new DataValue(new Variant(array), StatusCode.GOOD, timestamp, timestamp);
+	}
+
+	public void setValue(StatusCode statusCode) {
+		this.value = new DataValue(statusCode);
+	}
+
+	@Override
+	public DataValue getValue() {
+		return value;
+	}
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.types;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Data type of the length field in messages with {@link MessageType#LENGTH_FIELD}.
+ */
+public enum LengthFieldType {
+	UByte, UInt16, UInt32;
+
+	/**
+	 * List with the options to use in a DropDownChoice
+	 * 
+	 * @return
+	 */
+	public static List<LengthFieldType> getOptions() {
+		return Arrays.asList(values());
+	}
+
+	public int getByteSize() {
+		switch (this) {
+		case UByte:
+			return 1;
+		case UInt16:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	/**
+	 * Read an unsigned length value.
+	 * 
+	 * @param data
+	 *            The array that contains the length field
+	 * @param offset
+	 *            The offset of the length field in data
+	 * @param byteOrder
+	 *            The byte order of the length field
+	 * @return The unsigned length value
+	 */
+	public long readValue(byte[] data, int offset, ByteOrder byteOrder) {
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(byteOrder);
+		switch (this) {
+		case UByte:
+			return data[offset] & 0xff;
+		case UInt16:
+			return buffer.getShort(offset) & 0xffff;
+		default:
+			return buffer.getInt(offset) & 0xffffffffL;
+		}
+	}
+}
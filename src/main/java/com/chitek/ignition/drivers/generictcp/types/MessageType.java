@@ -19,7 +19,7 @@ import java.util.Arrays;
 import java.util.List;
 
 public enum MessageType {
-	FIXED_LENGTH, PACKET_BASED;
+	FIXED_LENGTH, PACKET_BASED, LENGTH_FIELD, DELIMITED;
 
 	/**
 	 * List with the options to use in a DropDownChoice
@@ -30,4 +30,12 @@ public enum MessageType {
 		return Arrays.asList(values());
 	}
 
+	/**
+	 * @return
+	 * 	<code>true</code> if the end of a message is only detected by the expiration of the message timeout
+	 */
+	public boolean isTimeoutFramed() {
+		return this == PACKET_BASED;
+	}
+
 }
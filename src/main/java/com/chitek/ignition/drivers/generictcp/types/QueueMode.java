@@ -19,7 +19,15 @@ import java.util.Arrays;
 import java.util.List;
 
 public enum QueueMode {
-	NONE, HANDSHAKE, DELAYED;
+	NONE, HANDSHAKE, DELAYED, BATCH_HANDSHAKE;
+	
+	/**
+	 * @return
+	 * 	true, if queued messages are released by a client writing to the handshake tag
+	 */
+	public boolean isHandshake() {
+		return this == HANDSHAKE || this == BATCH_HANDSHAKE;
+	}
 	
 	/**
 	 * List with the options to use in a DropDownChoice
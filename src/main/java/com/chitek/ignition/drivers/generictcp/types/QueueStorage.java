@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.types;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Storage used for the message queue.<br />
+ * MEMORY keeps all queued messages in memory, DISK keeps only an index in memory and reads the messages from disk.
+ */
+public enum QueueStorage {
+	MEMORY, DISK;
+	
+	/**
+	 * List with the options to use in a DropDownChoice
+	 * 
+	 * @return
+	 */
+	public static List<QueueStorage> getOptions() {
+		return Arrays.asList(values());
+	}
+}
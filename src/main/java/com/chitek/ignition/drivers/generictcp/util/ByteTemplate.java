@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.ignition.drivers.generictcp.util;
+
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * A byte string with placeholders, compiled once from the same format that is accepted by
+ * {@link Util#hexString2ByteArray(String, java.util.Map, ByteOrder)}. The fixed bytes are stored in a template, the
+ * placeholders are stored as offsets that are patched when a message is built.
+ */
+public class ByteTemplate {
+
+	private final byte[] template;
+	private final ByteOrder byteOrder;
+	/** Index of the placeholder name for each patch */
+	private final int[] patchNames;
+	private final int[] patchOffsets;
+	private final int[] patchSizes;
+
+	private ByteTemplate(byte[] template, ByteOrder byteOrder, int[] patchNames, int[] patchOffsets, int[] patchSizes) {
+		this.template = template;
+		this.byteOrder = byteOrder;
+		this.patchNames = patchNames;
+		this.patchOffsets = patchOffsets;
+		this.patchSizes = patchSizes;
+	}
+
+	/**
+	 * Compile a byte string. String delimiters are " ,;".
+	 * 
+	 * @param input
+	 *            The byte string, e.g. "lenw, 0xff, 0xfe"
+	 * @param names
+	 *            The names of the placeholders
+	 * @param sizes
+	 *            The size in bytes of each placeholder (1, 2 or 4)
+	 * @param byteOrder
+	 *            The ByteOrder used for placeholders
+	 * @return The compiled template
+	 * @throws ParseException
+	 *             if the input contains an invalid token
+	 */
+	public static ByteTemplate compile(String input, String[] names, int[] sizes, ByteOrder byteOrder) throws ParseException {
+		StringTokenizer tokenizer = new StringTokenizer(input, " ,;");
+		byte[] bytes = new byte[input.length() * 4];
+		int[] patchNames = new int[input.length()];
+		int[] patchOffsets = new int[input.length()];
+		int[] patchSizes = new int[input.length()];
+		int length = 0;
+		int patchCount = 0;
+		int position = 0;
+
+		while (tokenizer.hasMoreTokens()) {
+			String token = tokenizer.nextToken().trim();
+			int name = Arrays.asList(names).indexOf(token);
+			if (name >= 0) {
+				patchNames[patchCount] = name;
+				patchOffsets[patchCount] = length;
+				patchSizes[patchCount] = sizes[name];
+				patchCount++;
+				length += sizes[name];
+			} else {
+				try {
+					int value = Integer.decode(token);
+					if (value < -128 || value > 255)
+						throw new NumberFormatException();
+					bytes[length++] = (byte) value;
+				} catch (NumberFormatException ex) {
+					throw new ParseException(String.format("Invalid token '%s'", token), position);
+				}
+			}
+			position++;
+		}
+
+		return new ByteTemplate(Arrays.copyOf(bytes, length), byteOrder, Arrays.copyOf(patchNames, patchCount),
+			Arrays.copyOf(patchOffsets, patchCount), Arrays.copyOf(patchSizes, patchCount));
+	}
+
+	/**
+	 * @return The length of a message built from this template
+	 */
+	public int getLength() {
+		return template.length;
+	}
+
+	/**
+	 * @param name
+	 *            Index of the placeholder name
+	 * @return <code>true</code> if the placeholder is used in this template
+	 */
+	public boolean contains(int name) {
+		for (int i = 0; i < patchNames.length; i++) {
+			if (patchNames[i] == name)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the fixed bytes of this template to the destination. The placeholders have to be set with
+	 * {@link #patch(byte[], int, int, long)}.
+	 * 
+	 * @param dst
+	 *            The destination array
+	 * @param offset
+	 *            The offset of the message in the destination array
+	 */
+	public void copyTo(byte[] dst, int offset) {
+		System.arraycopy(template, 0, dst, offset, template.length);
+	}
+
+	/**
+	 * Write a placeholder value to all occurrences of the placeholder.
+	 * 
+	 * @param dst
+	 *            The destination array, that contains a message copied from this template
+	 * @param offset
+	 *            The offset of the message in the destination array
+	 * @param name
+	 *            Index of the placeholder name
+	 * @param value
+	 *            The value. Only the lower bytes are used, depending on the size of the placeholder.
+	 */
+	public void patch(byte[] dst, int offset, int name, long value) {
+		for (int i = 0; i < patchNames.length; i++) {
+			if (patchNames[i] == name) {
+				int size = patchSizes[i];
+				int position = offset + patchOffsets[i];
+				for (int j = 0; j < size; j++) {
+					int shift = byteOrder == ByteOrder.BIG_ENDIAN ? (size - 1 - j) * 8 : j * 8;
+					dst[position + j] = (byte) (value >>> shift);
+				}
+			}
+		}
+	}
+}
@@ -50,6 +50,17 @@ public class VariantByteBuffer  {
 		this.buffer = ByteBuffer.wrap(array);
 	}
 
+	/**
+	 * Wraps a range of the given array. Position 0 of this buffer is the given offset in the array.
+	 *
+	 * @param array
+	 * @param offset
+	 * @param length
+	 */
+	public VariantByteBuffer(byte[] array, int offset, int length) {
+		this.buffer = ByteBuffer.wrap(array, offset, length).slice();
+	}
+
 	/**
 	 * Modifies the byte order of the underlying ByteBuffer.
 	 * 
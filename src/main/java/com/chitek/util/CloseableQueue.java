@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.util;
+
+import java.util.Queue;
+
+/**
+ * A queue that is backed by a file and has to be closed when it is not used any more.
+ */
+public interface CloseableQueue<E> extends Queue<E> {
+
+	/**
+	 * Closes the underlying file. Should be called when this queue is not used any more.
+	 */
+	public void close();
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 block compressor. The block format follows the LZ4 block format: A sequence of tokens, each token is
+ * followed by literals and a back reference with 2 byte offset. The last token contains only literals.
+ * <P>
+ * The compressor uses a single hash table lookup per position, so it is fast but does not achieve the best possible
+ * compression ratio. It is intended for short blocks with runs of zeros or repeated words.
+ */
+public class LZCompressor {
+
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	/** The last literals are never compressed */
+	private static final int LAST_LITERALS = 5;
+	/** A match must start at least this many bytes before the end of the block */
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int HASH_LOG = 12;
+	private static final int SKIP_TRIGGER = 6;
+
+	private LZCompressor() {
+	}
+
+	/**
+	 * @param length
+	 *            The length of the uncompressed data
+	 * @return The maximum length of the compressed data
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compress the given data.
+	 *
+	 * @param src
+	 *            The data to compress
+	 * @return The compressed data
+	 */
+	public static byte[] compress(byte[] src) {
+		int length = src.length;
+		byte[] dst = new byte[maxCompressedLength(length)];
+		int[] table = new int[1 << HASH_LOG];
+
+		int anchor = 0;
+		int op = 0;
+		int matchLimit = length - MATCH_FIND_LIMIT;
+		int copyLimit = length - LAST_LITERALS;
+		int i = 0;
+		int searchCount = 1 << SKIP_TRIGGER;
+
+		while (i < matchLimit) {
+			int sequence = readInt(src, i);
+			int hash = hash(sequence);
+			int ref = table[hash] - 1;
+			table[hash] = i + 1;
+
+			if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				// Advance faster in data that can not be compressed
+				i += searchCount++ >>> SKIP_TRIGGER;
+				continue;
+			}
+			searchCount = 1 << SKIP_TRIGGER;
+
+			// Extend the match backwards
+			while (i > anchor && ref > 0 && src[i - 1] == src[ref - 1]) {
+				i--;
+				ref--;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (i + matchLength < copyLimit && src[i + matchLength] == src[ref + matchLength]) {
+				matchLength++;
+			}
+
+			op = writeSequence(dst, op, src, anchor, i - anchor, i - ref, matchLength);
+			i += matchLength;
+			anchor = i;
+		}
+
+		op = writeSequence(dst, op, src, anchor, length - anchor, 0, 0);
+		return Arrays.copyOf(dst, op);
+	}
+
+	/**
+	 * Decompress the given data.
+	 *
+	 * @param src
+	 *            The compressed data
+	 * @param offset
+	 *            The offset of the compressed data in src
+	 * @param length
+	 *            The length of the compressed data
+	 * @param uncompressedLength
+	 *            The length of the uncompressed data
+	 * @return The uncompressed data
+	 * @throws IOException
+	 *             if the compressed data is invalid
+	 */
+	public static byte[] decompress(byte[] src, int offset, int length, int uncompressedLength) throws IOException {
+		byte[] dst = new byte[uncompressedLength];
+		int ip = offset;
+		int end = offset + length;
+		int op = 0;
+
+		try {
+			while (true) {
+				int token = src[ip++] & 0xff;
+
+				int literalLength = token >>> 4;
+				if (literalLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						literalLength += b;
+					} while (b == 255);
+				}
+				if (ip + literalLength > end || op + literalLength > uncompressedLength)
+					throw new IOException("Malformed compressed data");
+				System.arraycopy(src, ip, dst, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+
+				if (ip >= end)
+					break;
+
+				int matchOffset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+				ip += 2;
+				int matchLength = token & 0x0f;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				int ref = op - matchOffset;
+				if (matchOffset == 0 || ref < 0 || op + matchLength > uncompressedLength)
+					throw new IOException("Malformed compressed data");
+				// The match may overlap the output, so it is copied byte by byte
+				for (int i = 0; i < matchLength; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed compressed data");
+		}
+
+		if (op != uncompressedLength)
+			throw new IOException(String.format("Decompressed length %d does not match expected length %d", op, uncompressedLength));
+
+		return dst;
+	}
+
+	private static int writeSequence(byte[] dst, int op, byte[] src, int literalOffset, int literalLength, int matchOffset, int matchLength) {
+		int tokenPosition = op++;
+		int token;
+
+		if (literalLength >= 15) {
+			token = 15 << 4;
+			op = writeLength(dst, op, literalLength - 15);
+		} else {
+			token = literalLength << 4;
+		}
+		System.arraycopy(src, literalOffset, dst, op, literalLength);
+		op += literalLength;
+
+		if (matchLength > 0) {
+			dst[op++] = (byte) matchOffset;
+			dst[op++] = (byte) (matchOffset >>> 8);
+			int length = matchLength - MIN_MATCH;
+			if (length >= 15) {
+				token |= 15;
+				op = writeLength(dst, op, length - 15);
+			} else {
+				token |= length;
+			}
+		}
+
+		dst[tokenPosition] = (byte) token;
+		return op;
+	}
+
+	private static int writeLength(byte[] dst, int op, int length) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] src, int i) {
+		return (src[i] & 0xff) | ((src[i + 1] & 0xff) << 8) | ((src[i + 2] & 0xff) << 16) | ((src[i + 3] & 0xff) << 24);
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
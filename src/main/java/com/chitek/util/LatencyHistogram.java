@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram for latencies, similar to a HdrHistogram. Values are recorded with microsecond resolution in
+ * buckets with a relative precision of about 3%: Every power of 2 is divided into 32 linear sub buckets. Values up to 31
+ * microseconds are recorded exactly, values above {@link #MAX_VALUE} are recorded as {@link #MAX_VALUE}.
+ * <P>
+ * Recording is lock free and may be called from multiple threads. Percentiles are calculated from the current counts,
+ * a calculation during concurrent recording may miss some values.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_BIT = 37;
+	/** The maximum recorded value in microseconds (about 38 hours) */
+	public static final long MAX_VALUE = (1L << MAX_BIT) - 1;
+	private static final int BUCKET_COUNT = (MAX_BIT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong maxValue = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds. Negative values are recorded as 0.
+	 */
+	public void record(long nanos) {
+		long micros = Math.min(Math.max(0, nanos / 1000), MAX_VALUE);
+		counts.incrementAndGet(getIndex(micros));
+		totalCount.incrementAndGet();
+
+		long max = maxValue.get();
+		while (micros > max && !maxValue.compareAndSet(max, micros)) {
+			max = maxValue.get();
+		}
+	}
+
+	/**
+	 * @return The number of recorded values
+	 */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * @return The largest recorded value in microseconds
+	 */
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	/**
+	 * @param percentiles
+	 *            The percentiles to calculate, in ascending order, e.g. 50, 99, 99.9
+	 * @return The values at the given percentiles in microseconds. A value is the highest value of the bucket that
+	 *         contains the percentile, but not more than the largest recorded value. All values are 0 if the histogram
+	 *         is empty.
+	 */
+	public long[] getPercentiles(double... percentiles) {
+		long[] result = new long[percentiles.length];
+		long total = 0;
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return result;
+		}
+
+		long max = maxValue.get();
+		long count = 0;
+		int index = 0;
+		for (int p = 0; p < percentiles.length; p++) {
+			long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * total));
+			while (index < BUCKET_COUNT - 1 && count + snapshot[index] < rank) {
+				count += snapshot[index];
+				index++;
+			}
+			result[p] = Math.min(getHighestValue(index), max);
+		}
+		return result;
+	}
+
+	/**
+	 * Clear all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		maxValue.set(0);
+	}
+
+	private static int getIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+	}
+
+	private static long getHighestValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
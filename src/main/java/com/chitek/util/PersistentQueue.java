@@ -1,12 +1,12 @@
 /*******************************************************************************
  * Copyright 2012-2013 C. Hiesserich
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -16,49 +16,115 @@
 package com.chitek.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
 
 import org.apache.log4j.Logger;
 
-/** 
+/**
  * A concurrent persistent queue that is backed by a disk file. The queue uses a LinkedList internally.
  * <P>
  * The remove(Object), removeAll and retainAll are potentially unsafe when a crash happens during this operation.
  * Also, this methods trigger a complete rewrite of the queue file. It is not recommended to use them.
  * <P>
- * <i>Defragmentation</i>: When the first element of the queue is deleted, not
- * the entire file is written. Instead, a <code>QueueMarker</code>
- * is appended to the end of the file to signal that the first element has been
- * deleted. However, after some number of remove operations (by default, this is 50,
- * but that can be changed via an optional parameter at instantiation), the entire
- * file is defragmented: a temporary file is written with all contents of the
- * queue. It is then renamed to match the name of the original file. The name of
- * the temporary file is the original filename plus '.temp'.
+ * Every entry is appended to the queue file as a separate record. When the first element of the queue is deleted, not
+ * the entire file is written. Instead, a remove record is appended to the end of the file to signal that the first
+ * element has been deleted.
+ * <P>
+ * <i>Checkpoint</i>: The file header contains a checkpoint with the file offset of the queue head, the number of
+ * entries, the stored length of all entries and the file offset up to which the checkpoint is valid. The checkpoint is updated periodically. On startup
+ * only the records after the checkpoint are replayed, so recovery time does not depend on the history of the queue.
+ * Entries that have been recovered from the file are loaded lazily when they are consumed. The records are forced to
+ * disk before the checkpoint is written, so the checkpoint never points past records that are not on disk.
+ * Records that have been appended after the last checkpoint may be lost in a crash.
+ * <P>
+ * Entries that are byte arrays are stored without serialization, other entries are serialized with an
+ * ObjectOutputStream. {@link #sizeInBytes()} returns the sum of the stored length of all entries.
+ * <P>
+ * <i>Defragmentation</i>: After some number of remove operations (by default, this is 50), the file is compacted:
+ * the entry records from the queue head up to the end of file are copied to a new file in chunks by a background task.
+ * Only the last chunk is copied while the queue is locked, then the new file is renamed to match the name of the
+ * original file. The name of the compacted file is the original filename plus '.compact'.
+ * <P>
+ * Operations that change entries in the middle of the queue write the entire queue to a temporary file with the
+ * original filename plus '.tmp'.
  */
-public class PersistentQueue<E extends Serializable> implements Queue<E> {
+public class PersistentQueue<E extends Serializable> implements CloseableQueue<E> {
 
 	private static final String TEMPFILE_EXTENSION = ".tmp";
+	private static final String COMPACT_EXTENSION = ".compact";
+	private static final long COMPACT_CHUNK_SIZE = 256 * 1024;
 	private static final int DEFAULT_DEFRAGMENT_INTERVAL = 50;
+	private static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+
+	private static final int FILE_MAGIC = 0x47545052;
+	/** Header: magic, content hash, head offset, entry count, checkpoint offset, stored bytes, checksum */
+	private static final int HEADER_SIZE = 40;
+	private static final int CHECKPOINT_POSITION = 8;
+	/** Record header: payload length, record type */
+	private static final int RECORD_HEADER_SIZE = 5;
+	private static final byte RECORD_ENTRY = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final byte RECORD_CLEAR = 3;
+	/** An entry that is a byte array, stored without serialization */
+	private static final byte RECORD_ENTRY_BYTES = 4;
+	/** Files written by previous versions start with the ObjectOutputStream header */
+	private static final short LEGACY_STREAM_MAGIC = ObjectStreamConstants.STREAM_MAGIC;
+
 	private final int contentHash;
-	private Integer fileHash = null;	// The currently active hash value in the queue file
 	private final String filename;
 	protected final Logger log;
+	/** Entries that are loaded into memory. The entries stored on disk are queued before this entries. */
 	private LinkedList<E> list;
 	private int OperationsSinceDefragment = 0;
+	private int operationsSinceCheckpoint = 0;
 	private boolean usePersistance;
 	private int defragmentInterval;
-	
+	private int checkpointInterval;
+
 	private final File queueFile;
-	private ObjectOutputStream objectOutput = null;
-	
+	private FileChannel channel = null;
+	/** The file offset where the next record is appended */
+	private long fileEnd;
+
+	/** Number of entries that have been recovered from the file but are not loaded yet */
+	private int diskCount;
+	/** Sum of the stored length of all entries */
+	private long sizeInBytes;
+	/**
+	 * File offset of the first entry in the queue. May point to a record before this entry. Entries that are not
+	 * loaded are always stored before the entries in the list.
+	 */
+	private long headOffset;
+	/** The first entry on disk, if it has been read already */
+	private E diskHead;
+	/** File offset after the diskHead record */
+	private long diskHeadEnd;
+
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+	/** Executor for the background compaction. If null, the compaction runs in the calling thread. */
+	private final Executor executor;
+	private Compaction compaction;
+	/** Incremented whenever the queue file is replaced */
+	private int generation;
+	private int compactionCount;
+	private int rewriteCount;
+
 	/**
 	 * Create a persitent queue. If the file is already present, the queue is initalized from file.
-	 * 
+	 *
 	 * @param filename
 	 * 	The filename to use as persitance storage
 	 * @param contentHash
@@ -72,67 +138,103 @@ public class PersistentQueue<E extends Serializable> implements Queue<E> {
 	 * @throws IOException if access to the queue file fails.
 	 */
 	public PersistentQueue(String filename, int contentHash, boolean usePersistance, Logger log) throws IOException {
+		this(filename, contentHash, usePersistance, null, log);
+	}
+
+	/**
+	 * Create a persitent queue. If the file is already present, the queue is initalized from file.
+	 *
+	 * @param filename
+	 * 	The filename to use as persitance storage
+	 * @param contentHash
+	 * 	A hash value that is used when loading the queue from an existing file. If the hash value stored in the file
+	 *  does not match the given contentHash, the stored entrys are discarded.
+	 * @param usePersistance
+	 *  If true, all queue operations will be written to a file immediately. If false, the queue will be saved only if
+	 *  {@link #close()} is called.
+	 * @param executor
+	 *  The executor for the background compaction of the queue file. If null, the file is compacted in the calling
+	 *  thread.
+	 * @param logger
+	 *  If not null, this class will create a sub logger of the given logger.
+	 * @throws IOException if access to the queue file fails.
+	 */
+	public PersistentQueue(String filename, int contentHash, boolean usePersistance, Executor executor, Logger log) throws IOException {
 		if (log !=null)
 			this.log = Logger.getLogger(String.format("%s.%s", log.getName(), PersistentQueue.class.getSimpleName()));
-		else 
+		else
 			this.log = Logger.getLogger(PersistentQueue.class.getSimpleName());
-		
+
 		this.defragmentInterval = DEFAULT_DEFRAGMENT_INTERVAL;
-		
+		this.checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
 		this.contentHash = contentHash;
 		this.filename = filename;
 		this.usePersistance = usePersistance;
+		this.executor = executor;
 		list = new LinkedList<E>();
-                
-        // Read queue if file exists or create a new file
+
+		// Read queue if file exists or create a new file
 		queueFile = new File(filename);
-        if (queueFile.exists()) {
-            readQueueFromFile();
-        } else {
-        	rewriteFile();
-        }
-          
-	}
-	
+		if (queueFile.exists()) {
+			readQueueFromFile();
+		} else {
+			rewriteFile();
+		}
+	}
+
 	/**
-	 * Closes the OutputStream. Should be called when this queue is not used any more.
+	 * Closes the queue file. Should be called when this queue is not used any more.
 	 * Simply setting  the PersitentQueue = null will leave the file opened!
 	 */
+	@Override
 	public synchronized void close() {
+		cancelCompaction();
 		if (!usePersistance)
 			rewriteFile();
-		
-		if (objectOutput != null)
+		else if (channel != null && operationsSinceCheckpoint > 0) {
+			writeCheckpoint();
 			try {
-				log.debug("Closing ObjectOutputStream");
-				objectOutput.close();
-			} catch (Exception e) {}
-		objectOutput = null;
+				channel.force(false);
+			} catch (IOException e) {
+				log.warn(String.format("IOException closing persitent queue file %s: %s", filename, e.toString()));
+			}
+		}
+
+		closeChannel();
 	}
-		
+
 	@Override
-	public boolean addAll(Collection<? extends E> c) {
+	public synchronized boolean addAll(Collection<? extends E> c) {
 		boolean result = list.addAll(c);
-		
+		if (result) {
+			for (E entry : c) {
+				sizeInBytes += storedLength(entry);
+			}
+		}
+
 		// The queue file is rewritten. This is just laziness, a good implementation should check the count
 		// of items to add and append to the file, if this count is smaller than the current list size.
 		if (result && usePersistance)
 			rewriteFile();
-		
+
 		return result;
 	}
 
-    /**
-     * Clears the entire queue and forces the underlying file to be rewritten.
-     * @throws IOException if an I/O error occurs
-     */
-    public synchronized void clear() {
-        list.clear();
+	/**
+	 * Clears the entire queue and forces the underlying file to be rewritten.
+	 */
+	@Override
+	public synchronized void clear() {
+		list.clear();
+		diskCount = 0;
+		diskHead = null;
+		sizeInBytes = 0;
 
 		if (usePersistance) {
 			try {
 				// Add a marker to the current queue file in case rewrite fails
-				appendToFile(QueueMarker.Clear);
+				appendRecord(RECORD_CLEAR, null);
 				// Create a new empty queue file
 				rewriteFile();
 
@@ -140,68 +242,145 @@ public class PersistentQueue<E extends Serializable> implements Queue<E> {
 				log.error(String.format("Exception clearing the persitent queue file: %s", e.toString()));
 			}
 		}
-    }
+	}
 
 	@Override
-	public boolean contains(Object o) {
+	public synchronized boolean contains(Object o) {
+		loadAll();
 		return list.contains(o);
 	}
 
 	@Override
-	public boolean containsAll(Collection<?> c) {
+	public synchronized boolean containsAll(Collection<?> c) {
+		loadAll();
 		return list.containsAll(c);
 	}
 
 	@Override
-	public boolean isEmpty() {
-		return list.isEmpty();
+	public synchronized boolean isEmpty() {
+		return diskCount == 0 && list.isEmpty();
 	}
 
+	/**
+	 * Returns an iterator over the entries in this queue. Entries that are not loaded yet are read from disk when the
+	 * iterator advances. The iterator does not support removal.
+	 */
 	@Override
 	public Iterator<E> iterator() {
-		return list.iterator();
+		return new Iterator<E>() {
+			private int diskIndex = 0;
+			private long offset = -1;
+			private int iteratorGeneration = generation;
+			private Iterator<E> listIterator;
+
+			@Override
+			public boolean hasNext() {
+				synchronized (PersistentQueue.this) {
+					return diskIndex < diskCount || getListIterator().hasNext();
+				}
+			}
+
+			@Override
+			public E next() {
+				synchronized (PersistentQueue.this) {
+					if (diskIndex < diskCount) {
+						E entry;
+						if (diskIndex == 0) {
+							entry = readDiskHead();
+							offset = diskHeadEnd;
+						} else {
+							if (iteratorGeneration != generation) {
+								// The queue file has been replaced
+								offset = headOffset;
+								for (int i = 0; i < diskIndex; i++) {
+									offset = skipEntry(offset);
+								}
+								iteratorGeneration = generation;
+							}
+							long entryOffset = nextEntry(offset);
+							entry = readEntry(entryOffset);
+							offset = entryOffset + RECORD_HEADER_SIZE + readRecordLength(entryOffset);
+						}
+						diskIndex++;
+						return entry;
+					}
+					return getListIterator().next();
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private Iterator<E> getListIterator() {
+				if (listIterator == null)
+					listIterator = list.iterator();
+				return listIterator;
+			}
+		};
 	}
 
 	@Override
-	public boolean remove(Object o) {
+	public synchronized boolean remove(Object o) {
+		loadAll();
 		boolean result = list.remove(o);
+		if (result) sizeInBytes -= storedLength(o);
 		if (result && usePersistance) rewriteFile();
-		return result;		
+		return result;
 	}
 
 	@Override
-	public boolean removeAll(Collection<?> c) {
+	public synchronized boolean removeAll(Collection<?> c) {
+		loadAll();
 		boolean result = list.removeAll(c);
+		if (result) updateSizeInBytes();
 		if (result && usePersistance) rewriteFile();
 		return result;
 	}
 
 	@Override
-	public boolean retainAll(Collection<?> c) {
+	public synchronized boolean retainAll(Collection<?> c) {
+		loadAll();
 		boolean result = list.retainAll(c);
+		if (result) updateSizeInBytes();
 		if (result && usePersistance) rewriteFile();
 		return result;
 	}
 
 	@Override
-	public int size() {
-		return list.size();
+	public synchronized int size() {
+		return diskCount + list.size();
+	}
+
+	/**
+	 * Returns the sum of the stored length of all entries. The value is kept in the checkpoint of the queue file, so
+	 * it is available without reading the entries after a restart.
+	 *
+	 * @return The stored length of all entries in bytes
+	 */
+	public synchronized long sizeInBytes() {
+		return sizeInBytes;
 	}
 
 	@Override
-	public Object[] toArray() {
+	public synchronized Object[] toArray() {
+		loadAll();
 		return list.toArray();
 	}
 
 	@Override
-	public <T> T[] toArray(T[] a) {
+	public synchronized <T> T[] toArray(T[] a) {
+		loadAll();
 		return list.toArray(a);
 	}
 
 	@Override
-	public boolean add(E e) {
-		
+	public synchronized boolean add(E e) {
+
 		boolean result = list.add(e);
+		if (result)
+			sizeInBytes += storedLength(e);
 		if (result && usePersistance)
 			appendToFile(e);
 
@@ -209,71 +388,268 @@ public class PersistentQueue<E extends Serializable> implements Queue<E> {
 	}
 
 	@Override
-	public E element() {
-		return list.element();
+	public synchronized E element() {
+		E entry = peek();
+		if (entry == null)
+			throw new NoSuchElementException();
+		return entry;
 	}
 
 	@Override
-	public boolean offer(E e) {
+	public synchronized boolean offer(E e) {
 		boolean result = list.offer(e);
+		if (result)
+			sizeInBytes += storedLength(e);
 		if (result && usePersistance)
 			appendToFile(e);
 		return result;
 	}
 
 	@Override
-	public E peek() {
+	public synchronized E peek() {
+		if (diskCount > 0)
+			return readDiskHead();
 		return list.peek();
 	}
 
-    /**
-     * Retrieves, but does not remove, the last element of the queue,
-     * or returns <tt>null</tt> if this deque is empty.
-     *
-     * @return the tail of this queue, or <tt>null</tt> if this queue is empty
-     */
-    public E peekLast() {
-    	return list.peekLast();
-    }
-	
-    /**
-     * Returns the element at the specified position in this queue.
-     * 
-     * @param index
-     * @return
-     * @throws IndexOutOfBoundsException if the index is out of range (index < 0 || index >= size())
-     */
-    public E get(int index) {
-    	return list.get(index);
-    }
-    
+	/**
+	 * Retrieves, but does not remove, the last element of the queue,
+	 * or returns <tt>null</tt> if this deque is empty.
+	 *
+	 * @return the tail of this queue, or <tt>null</tt> if this queue is empty
+	 */
+	public synchronized E peekLast() {
+		if (list.isEmpty())
+			loadAll();
+		return list.peekLast();
+	}
+
+	/**
+	 * Returns the element at the specified position in this queue.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException if the index is out of range (index < 0 || index >= size())
+	 */
+	public synchronized E get(int index) {
+		loadAll();
+		return list.get(index);
+	}
+
 	@Override
-	public E poll() {
-		E entry = list.poll();
-		
+	public synchronized E poll() {
+		E entry;
+		if (diskCount > 0) {
+			// Entries that can not be read are discarded
+			readDiskHead();
+		}
+		if (diskCount > 0) {
+			entry = readDiskHead();
+			diskCount--;
+			sizeInBytes -= diskHeadEnd - headOffset - RECORD_HEADER_SIZE;
+			headOffset = diskHeadEnd;
+			diskHead = null;
+		} else {
+			entry = list.poll();
+			if (entry != null)
+				sizeInBytes -= storedLength(entry);
+			if (entry != null && usePersistance)
+				headOffset = skipEntry(headOffset);
+		}
+
 		if (entry != null && usePersistance)
 			removeFromFile();
-        
+
 		return entry;
 	}
 
 	@Override
-	public E remove() {
-        E entry = list.remove(); // remove() throws an Exception is list is empty
-		if (entry != null && usePersistance)
-			removeFromFile();
-		
-        return entry;
+	public synchronized E remove() {
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return poll();
 	}
-	
-	@SuppressWarnings("unchecked")
+
+	/**
+	 * Start the compaction of the queue file, independent of the number of operations since the last compaction.
+	 *
+	 * @return <code>false</code> if the queue is not persistent or a compaction is already running
+	 */
+	public synchronized boolean compact() {
+		if (!usePersistance || compaction != null || channel == null)
+			return false;
+		startCompaction();
+		return true;
+	}
+
+	/**
+	 * @return Number of completed compactions of the queue file
+	 */
+	public synchronized int getCompactionCount() {
+		return compactionCount;
+	}
+
+	/**
+	 * @return Number of complete rewrites of the queue file
+	 */
+	public synchronized int getRewriteCount() {
+		return rewriteCount;
+	}
+
+	/**
+	 * Load the queue from file. Only the records after the checkpoint are replayed, the entries are not loaded.
+	 */
 	private synchronized void readQueueFromFile() {
+		int discarded = 0;
+		int replayed = 0;
+		try {
+			if (isLegacyFile()) {
+				readLegacyQueueFile();
+				updateSizeInBytes();
+				if (usePersistance)
+					rewriteFile();
+				else
+					deleteQueueFile();
+				return;
+			}
+
+			channel = FileChannel.open(queueFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long fileSize = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (fileSize >= HEADER_SIZE)
+				readFully(header, 0);
+			header.flip();
+
+			if (fileSize < HEADER_SIZE || header.getInt() != FILE_MAGIC) {
+				log.warn(String.format("Persistent queue file %s is invalid. Stored entrys are discarded.", filename));
+				rewriteFile();
+				return;
+			}
+
+			int fileHash = header.getInt();
+			long checkpointHead = header.getLong();
+			int count = header.getInt();
+			long checkpointOffset = header.getLong();
+			long bytes = header.getLong();
+			int checksum = header.getInt();
+
+			if (fileHash != contentHash) {
+				discarded = count;
+				rewriteFile();
+			} else {
+				if (checksum(checkpointHead, count, checkpointOffset, bytes) == checksum
+					&& checkpointOffset >= HEADER_SIZE && checkpointOffset <= fileSize
+					&& checkpointHead >= HEADER_SIZE && checkpointHead <= checkpointOffset) {
+					headOffset = checkpointHead;
+					diskCount = count;
+					sizeInBytes = bytes;
+				} else {
+					// The checkpoint is damaged, replay the whole file
+					log.warn(String.format("Checkpoint of persistent queue file %s is invalid. Replaying all records.", filename));
+					headOffset = HEADER_SIZE;
+					diskCount = 0;
+					sizeInBytes = 0;
+					checkpointOffset = HEADER_SIZE;
+				}
+				replayed = replayRecords(checkpointOffset, fileSize);
+				if (!usePersistance) {
+					loadAll();
+					deleteQueueFile();
+				}
+			}
+		} catch (IOException e) {
+			log.error(String.format("Exception loading persistent queue from file %s: %s", filename, e.toString()));
+			if (log.isDebugEnabled())
+				log.debug("StackTrace:", e);
+			list.clear();
+			diskCount = 0;
+			sizeInBytes = 0;
+			rewriteFile();
+		}
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Loaded %d entrys from file %s. %d records have been replayed, %d invalid entrys have been discarded.",
+				size(), queueFile.getAbsolutePath(), replayed, discarded));
+	}
+
+	/**
+	 * Apply the records in the given range to the recovered state.
+	 *
+	 * @return The number of replayed records
+	 */
+	private int replayRecords(long offset, long fileSize) throws IOException {
+		int replayed = 0;
+		fileEnd = fileSize;
+		while (offset + RECORD_HEADER_SIZE <= fileSize) {
+			recordHeader.clear();
+			readFully(recordHeader, offset);
+			int length = recordHeader.getInt(0);
+			byte type = recordHeader.get(4);
+			if (length < 0 || offset + RECORD_HEADER_SIZE + length > fileSize) {
+				// Incomplete record, the driver has been stopped while writing
+				break;
+			}
+
+			switch (type) {
+			case RECORD_ENTRY:
+			case RECORD_ENTRY_BYTES:
+				if (diskCount == 0)
+					headOffset = offset;
+				diskCount++;
+				sizeInBytes += length;
+				break;
+			case RECORD_REMOVE:
+				if (diskCount > 0) {
+					long entryOffset = nextEntry(headOffset);
+					int entryLength = readRecordLength(entryOffset);
+					headOffset = entryOffset + RECORD_HEADER_SIZE + entryLength;
+					diskCount--;
+					sizeInBytes -= entryLength;
+				}
+				break;
+			case RECORD_CLEAR:
+				diskCount = 0;
+				sizeInBytes = 0;
+				break;
+			}
+			offset += RECORD_HEADER_SIZE + length;
+			replayed++;
+		}
+
+		if (offset < fileSize) {
+			log.warn(String.format("Discarding %d bytes of incomplete data at the end of queue file %s", fileSize - offset, filename));
+			channel.truncate(offset);
+		}
+		fileEnd = offset;
+		if (diskCount == 0)
+			headOffset = fileEnd;
+
+		return replayed;
+	}
+
+	private boolean isLegacyFile() throws IOException {
+		DataInputStream in = new DataInputStream(Files.newInputStream(queueFile.toPath()));
+		try {
+			return in.readShort() == LEGACY_STREAM_MAGIC;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a queue file that has been written by a previous version. The file contains serialized entries and
+	 * markers.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readLegacyQueueFile() {
 		ObjectInputStream ois = null;
-		
+
 		// Entrys are invalid until a matching hash is found
-		fileHash = null;
+		Integer fileHash = null;
 		int discarded = 0;
-		
+
 		try {
 			InputStream fis = Files.newInputStream(queueFile.toPath());
 			ois = new ObjectInputStream(fis);
@@ -282,7 +658,7 @@ public class PersistentQueue<E extends Serializable> implements Queue<E> {
 				Serializable entry = null;
 				while ((entry = (Serializable) ois.readObject()) != null) {
 					if (log.isTraceEnabled())
-						log.trace(String.format("Read item %s", 
+						log.trace(String.format("Read item %s",
 							entry.getClass().getSimpleName()) + (entry instanceof QueueMarker?"-"+entry.toString():""));
 					if (entry instanceof QueueMarker)
 						// QueueMarker is added to the file when a entry is removed
@@ -311,7 +687,7 @@ public class PersistentQueue<E extends Serializable> implements Queue<E> {
 						} else {
 							discarded ++;
 						}
-					} 
+					}
 				}
 			} catch (ClassNotFoundException e) {
 				log.warn(String.format("Error loading persitent queue entry from file %s: %s", filename, e.toString()));
@@ -327,145 +703,580 @@ public class PersistentQueue<E extends Serializable> implements Queue<E> {
 					ois.close();
 			} catch (Exception e) {	}
 		}
-		
-		if (usePersistance)
-			rewriteFile();
-		else
-			deleteQueueFile();
-        
+
 		if (log.isDebugEnabled())
-			log.debug(String.format("Loaded %d entrys from file %s. %d invalid entrys have been discarded.",
+			log.debug(String.format("Converted %d entrys from file %s. %d invalid entrys have been discarded.",
 				list.size(), queueFile.getAbsolutePath(), discarded));
 	}
-		
-    /** Appends an entry to the queue file. If the append fails, this method will try to rewrite the file.*/
-    private synchronized void appendToFile(Serializable entry) { 	
-        if (!usePersistance) return;
-        
-        try {
-        	objectOutput.writeObject(entry);
-        	objectOutput.reset();
-        	objectOutput.flush();
+
+	/**
+	 * Returns the first entry on disk. Entries that can not be read are discarded.
+	 */
+	private E readDiskHead() {
+		while (diskHead == null && diskCount > 0) {
+			long entryOffset = nextEntry(headOffset);
+			headOffset = entryOffset;
+			diskHeadEnd = entryOffset + RECORD_HEADER_SIZE + readRecordLength(entryOffset);
+			diskHead = readEntry(entryOffset);
+			if (diskHead == null) {
+				diskCount--;
+				sizeInBytes -= diskHeadEnd - entryOffset - RECORD_HEADER_SIZE;
+				headOffset = diskHeadEnd;
+				if (usePersistance)
+					removeFromFile();
+			}
+		}
+		return diskCount > 0 ? diskHead : list.peek();
+	}
+
+	/**
+	 * Moves all entries from disk to the in memory list.
+	 */
+	private void loadAll() {
+		if (diskCount == 0)
+			return;
+
+		List<E> entries = new ArrayList<E>(diskCount);
+		long offset = headOffset;
+		for (int i = 0; i < diskCount; i++) {
+			long entryOffset = nextEntry(offset);
+			int length = readRecordLength(entryOffset);
+			offset = entryOffset + RECORD_HEADER_SIZE + length;
+			E entry = i == 0 && diskHead != null ? diskHead : readEntry(entryOffset);
+			if (entry != null) {
+				entries.add(entry);
+			} else {
+				sizeInBytes -= length;
+			}
+		}
+
+		boolean discarded = entries.size() < diskCount;
+		list.addAll(0, entries);
+		diskCount = 0;
+		diskHead = null;
+
+		// Entries that can not be read are removed from the file
+		if (discarded && usePersistance)
+			rewriteFile();
+	}
+
+	/**
+	 * @return The offset after the first entry record at or after the given offset
+	 */
+	private long skipEntry(long offset) {
+		long entryOffset = nextEntry(offset);
+		return entryOffset + RECORD_HEADER_SIZE + readRecordLength(entryOffset);
+	}
+
+	/**
+	 * @return The offset of the first entry record at or after the given offset
+	 */
+	private long nextEntry(long offset) {
+		try {
+			while (offset + RECORD_HEADER_SIZE <= fileEnd) {
+				recordHeader.clear();
+				readFully(recordHeader, offset);
+				if (isEntry(recordHeader.get(4)))
+					return offset;
+				offset += RECORD_HEADER_SIZE + recordHeader.getInt(0);
+			}
+		} catch (IOException e) {
+			log.error(String.format("IOException reading queue file %s: %s", filename, e.toString()));
+		}
+		return offset;
+	}
+
+	private int readRecordLength(long offset) {
+		try {
+			recordHeader.clear();
+			readFully(recordHeader, offset);
+			return recordHeader.getInt(0);
+		} catch (IOException e) {
+			log.error(String.format("IOException reading queue file %s: %s", filename, e.toString()));
+			return 0;
+		}
+	}
+
+	/**
+	 * Read and deserialize the entry record at the given offset.
+	 *
+	 * @return The entry, or null if the entry could not be read
+	 */
+	@SuppressWarnings("unchecked")
+	private E readEntry(long offset) {
+		try {
+			ByteBuffer payload = ByteBuffer.allocate(readRecordLength(offset));
+			byte type = recordHeader.get(4);
+			readFully(payload, offset + RECORD_HEADER_SIZE);
+			if (type == RECORD_ENTRY_BYTES)
+				return (E) payload.array();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload.array()));
+			try {
+				return (E) ois.readObject();
+			} finally {
+				ois.close();
+			}
+		} catch (Exception e) {
+			log.warn(String.format("Error loading persitent queue entry from file %s: %s", filename, e.toString()));
+			return null;
+		}
+	}
+
+	private static byte[] serialize(Serializable entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(entry);
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return The payload of the record for the given entry. A byte array is stored as is.
+	 */
+	private static byte[] encode(Object entry) throws IOException {
+		if (entry instanceof byte[])
+			return (byte[]) entry;
+		return serialize((Serializable) entry);
+	}
+
+	private static byte entryType(Object entry) {
+		return entry instanceof byte[] ? RECORD_ENTRY_BYTES : RECORD_ENTRY;
+	}
+
+	private static boolean isEntry(byte type) {
+		return type == RECORD_ENTRY || type == RECORD_ENTRY_BYTES;
+	}
+
+	/**
+	 * @return The length of the record payload for the given entry
+	 */
+	private int storedLength(Object entry) {
+		if (entry instanceof byte[])
+			return ((byte[]) entry).length;
+		try {
+			return serialize((Serializable) entry).length;
+		} catch (Exception e) {
+			log.warn(String.format("Error serializing persitent queue entry: %s", e.toString()));
+			return 0;
+		}
+	}
+
+	/**
+	 * Calculate the stored length of all entries. Must only be called when all entries are loaded.
+	 */
+	private void updateSizeInBytes() {
+		sizeInBytes = 0;
+		for (E entry : list) {
+			sizeInBytes += storedLength(entry);
+		}
+	}
+
+	/** Appends an entry to the queue file. If the append fails, this method will try to rewrite the file.*/
+	private synchronized void appendToFile(E entry) {
+		if (!usePersistance) return;
+
+		try {
+			QueueFileEvent event = new QueueFileEvent();
+			event.begin();
+			byte[] payload = encode(entry);
+			appendRecord(entryType(entry), payload);
+			event.end();
+			if (event.shouldCommit())
+				commitEvent(event, QueueFileEvent.ADD, payload.length);
 		} catch (Exception e) {
 			// If append fails, try to rewrite the file
 			log.warn(String.format("IOException appending object to persitent queue file %s: %s", filename, e.toString()));
 			rewriteFile();
-		} 
-    }
-    
-    /** Add a removed marker to the queue file */
+		}
+	}
+
+	/**
+	 * Append a record to the queue file. Updates the checkpoint if necessary.
+	 *
+	 * @return The file offset of the record
+	 */
+	private long appendRecord(byte type, byte[] payload) throws IOException {
+		if (channel == null)
+			throw new IOException("Queue file is not open");
+
+		int length = payload != null ? payload.length : 0;
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		buffer.putInt(length).put(type);
+		if (payload != null)
+			buffer.put(payload);
+		buffer.flip();
+
+		long offset = fileEnd;
+		writeFully(buffer, offset);
+		fileEnd += RECORD_HEADER_SIZE + length;
+
+		operationsSinceCheckpoint++;
+		if (operationsSinceCheckpoint >= checkpointInterval)
+			writeCheckpoint();
+
+		return offset;
+	}
+
+	/** Add a removed marker to the queue file */
 	private synchronized void removeFromFile() {
 		if (!usePersistance) return;
-		
-		// Append marker to file. If the count of operations exceed the limit, the file is rewritten
-		OperationsSinceDefragment++;
-		if (OperationsSinceDefragment >= defragmentInterval) {
+
+		// Append marker to file. If the count of operations exceed the limit, the file is compacted
+		try {
+			QueueFileEvent event = new QueueFileEvent();
+			event.begin();
+			appendRecord(RECORD_REMOVE, null);
+			event.end();
+			if (event.shouldCommit())
+				commitEvent(event, QueueFileEvent.POLL, 0);
+		} catch (IOException e) {
+			log.warn(String.format("IOException appending marker to persitent queue file %s: %s", filename, e.toString()));
 			rewriteFile();
-		} else {
-			appendToFile(QueueMarker.Remove);
-		}
-	}
-    
-    /** Writes the list to a new file and deletes the existing queue file.*/
-    private synchronized void rewriteFile() {
-        String tempFilename = filename + TEMPFILE_EXTENSION;
-               
-        // write the temporary file
-        if(log.isDebugEnabled())
-        	log.debug(String.format("Writing temporary queue file %s", tempFilename));
-        File tempFile = new File(tempFilename);
-		ObjectOutputStream oos = null;
+			return;
+		}
+
+		OperationsSinceDefragment++;
+		if (OperationsSinceDefragment >= defragmentInterval && compaction == null) {
+			startCompaction();
+		}
+	}
+
+	/**
+	 * Write the current head offset and size to the file header. All records are forced to disk before the checkpoint
+	 * is written.
+	 */
+	private void writeCheckpoint() {
+		ByteBuffer checkpoint = ByteBuffer.allocate(HEADER_SIZE - CHECKPOINT_POSITION);
+		checkpoint.putLong(headOffset).putInt(size()).putLong(fileEnd).putLong(sizeInBytes)
+			.putInt(checksum(headOffset, size(), fileEnd, sizeInBytes));
+		checkpoint.flip();
+		try {
+			channel.force(false);
+			writeFully(checkpoint, CHECKPOINT_POSITION);
+			operationsSinceCheckpoint = 0;
+		} catch (IOException e) {
+			log.warn(String.format("IOException writing checkpoint to persitent queue file %s: %s", filename, e.toString()));
+		}
+	}
+
+	private static int checksum(long headOffset, int count, long checkpointOffset, long bytes) {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(28);
+		buffer.putLong(headOffset).putInt(count).putLong(checkpointOffset).putLong(bytes);
+		crc.update(buffer.array());
+		return (int) crc.getValue();
+	}
+
+	/** Writes the queue to a new file and replaces the existing queue file.*/
+	private synchronized void rewriteFile() {
+		QueueFileEvent event = new QueueFileEvent();
+		event.begin();
+		cancelCompaction();
+		String tempFilename = filename + TEMPFILE_EXTENSION;
+
+		// write the temporary file
+		if(log.isDebugEnabled())
+			log.debug(String.format("Writing temporary queue file %s", tempFilename));
+		File tempFile = new File(tempFilename);
+		long newEnd;
 		try {
-			OutputStream fos = Files.newOutputStream(tempFile.toPath());
-			OutputStream buffer = new BufferedOutputStream(fos);
-			oos = new ObjectOutputStream(buffer);
-			oos.writeObject(Integer.valueOf(contentHash));
-			if (!list.isEmpty()) {
-				for (Serializable entry : list) {
-					oos.writeObject(entry);
+			FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				long position = HEADER_SIZE;
+
+				// Entries that are not loaded are copied without deserialization
+				long offset = headOffset;
+				for (int i = 0; i < diskCount; i++) {
+					long entryOffset = nextEntry(offset);
+					long recordLength = RECORD_HEADER_SIZE + readRecordLength(entryOffset);
+					long transferred = 0;
+					while (transferred < recordLength) {
+						transferred += channel.transferTo(entryOffset + transferred, recordLength - transferred, tempChannel.position(position + transferred));
+					}
+					position += recordLength;
+					offset = entryOffset + recordLength;
 				}
-			}
 
+				for (E entry : list) {
+					byte[] payload = encode(entry);
+					ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+					buffer.putInt(payload.length).put(entryType(entry)).put(payload);
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						position += tempChannel.write(buffer, position);
+					}
+				}
+				newEnd = position;
+
+				writeHeader(tempChannel, HEADER_SIZE, size(), newEnd);
+				// The new file must be on disk before it replaces the queue file
+				tempChannel.force(false);
+			} finally {
+				tempChannel.close();
+			}
 		} catch (IOException e1) {
 			log.error(String.format("Exception rewriting persistent queue file: %s", e1.toString()));
+			tempFile.delete();
 			return;
-		} finally {
-			try {
-				if (oos != null) oos.close();
-			} catch (Exception e) {	}
 		}
 
-        // Delete the old queue file and rename the temp file
-		deleteQueueFile();
-        if (!tempFile.renameTo(queueFile)) {
-        	// Old file could not be replaced, maybe there is still an instance active
-        	// Continue using the old file
-            log.error(String.format("Unable to rename temporary queue file %s to %s", tempFilename, filename));
-            tempFile.delete();
-        } else {
-        	// Everything ok, file hash has been written
-        	fileHash=Integer.valueOf(contentHash);
-        }
-             
-        try {
-        	OutputStream  fos = Files.newOutputStream(queueFile.toPath(), StandardOpenOption.APPEND);
-        	objectOutput = new AppendableObjectOutputStream(fos);
-        	// Store the content hash if necessary
-        	if (fileHash==null || !fileHash.equals(contentHash)) {
-        		fileHash=Integer.valueOf(contentHash);
-        		objectOutput.writeObject(fileHash);
-        	}
-        	objectOutput.reset();
-        	objectOutput.flush();
-        	if (log.isDebugEnabled())
-        		log.debug(String.format("Persistent queue file %s has been rewritten.", filename));
+		// Replace the old queue file with the temp file
+		closeChannel();
+		try {
+			Files.move(tempFile.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			headOffset = HEADER_SIZE;
+			diskHead = null;
+			fileEnd = newEnd;
+			operationsSinceCheckpoint = 0;
+			generation++;
+			rewriteCount++;
+		} catch (IOException e) {
+			// Old file could not be replaced, maybe there is still an instance active
+			// Continue using the old file
+			log.error(String.format("Unable to rename temporary queue file %s to %s: %s", tempFilename, filename, e.toString()));
+			tempFile.delete();
+		}
+
+		try {
+			channel = FileChannel.open(queueFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (log.isDebugEnabled())
+				log.debug(String.format("Persistent queue file %s has been rewritten.", filename));
 		} catch (IOException e) {
 			log.warn(String.format("IOException opening queue file %s: %s", filename, e.toString()));
 		}
-        
-        OperationsSinceDefragment = 0;
-    }
-    
-    private void deleteQueueFile() {
-        // Close the existing output stream
-        if (objectOutput != null)
-        	try {
-        		objectOutput.close();
-        	} catch (Exception e) {}
-        objectOutput = null;
-        
-        if (!queueFile.delete() && usePersistance)
-        	log.error(String.format("Error deleting queue file %s", queueFile.getAbsolutePath()));    	
-    }
-    
-    /**
-     * Marker is added to the queue file if an entry is removed.
-     * 
-     * @author chi
-     *
-     */
-    private enum QueueMarker implements Serializable {
-    	Remove, Clear
-    }
-    
-    /**
-     * An ObjectOutputStream writes the stream header every time it is constructed. So when data is appended
-     * to an existing file thsi will result in a StreamCorruptedException because there are multiple headers.
-     * The AppendableObjectOutputStream simply does not write the header.
-     * 
-     *
-     */
-	private class AppendableObjectOutputStream extends ObjectOutputStream {
-
-		public AppendableObjectOutputStream(OutputStream out) throws IOException {
-			super(out);
+
+		OperationsSinceDefragment = 0;
+
+		event.end();
+		if (event.shouldCommit())
+			commitEvent(event, QueueFileEvent.REWRITE, fileEnd);
+	}
+
+	/** Set the fields of a flight recorder event and commit it */
+	private void commitEvent(QueueFileEvent event, String operation, long bytes) {
+		event.queue = filename;
+		event.operation = operation;
+		event.bytes = bytes;
+		event.entries = size();
+		event.commit();
+	}
+
+	private void writeHeader(FileChannel target, long head, int count, long checkpointOffset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(FILE_MAGIC).putInt(contentHash).putLong(head).putInt(count).putLong(checkpointOffset).putLong(sizeInBytes)
+			.putInt(checksum(head, count, checkpointOffset, sizeInBytes));
+		header.flip();
+		while (header.hasRemaining()) {
+			target.write(header, header.position());
+		}
+	}
+
+	/**
+	 * Start the compaction of the queue file. The live records are copied to a new file in the background.
+	 */
+	private void startCompaction() {
+		OperationsSinceDefragment = 0;
+		try {
+			compaction = new Compaction();
+		} catch (IOException e) {
+			log.error(String.format("Exception creating compacted queue file: %s", e.toString()));
+			return;
+		}
+
+		if (executor != null) {
+			executor.execute(compaction);
+		} else {
+			// Without executor, the compaction runs in the calling thread
+			while (compaction != null && compaction.copyChunk()) {
+			}
+		}
+	}
+
+	private void cancelCompaction() {
+		if (compaction != null) {
+			compaction.discard();
+			compaction = null;
+		}
+	}
+
+	/**
+	 * Copies all entry records from the queue head to a new file. Records that are appended during the compaction are
+	 * copied as well. The records are copied in chunks, the queue is locked only while the last chunk is copied and
+	 * the files are swapped.
+	 */
+	private class Compaction implements Runnable {
+		private final FileChannel source;
+		private final File tempFile;
+		private final FileChannel target;
+		private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		private long readOffset;
+		private long writeOffset = HEADER_SIZE;
+		private int copiedEntries;
+		private final QueueFileEvent event = new QueueFileEvent();
+
+		private Compaction() throws IOException {
+			event.begin();
+			source = channel;
+			readOffset = headOffset;
+			tempFile = new File(filename + COMPACT_EXTENSION);
+			target = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (log.isDebugEnabled())
+				log.debug(String.format("Compacting queue file %s. Removing %d bytes.", filename, readOffset - HEADER_SIZE));
 		}
 
 		@Override
-		protected void writeStreamHeader() throws IOException {
-			// do not write a header
+		public void run() {
+			if (copyChunk())
+				executor.execute(this);
+		}
+
+		/**
+		 * Copy the next chunk. The last chunk is copied while holding the lock of the queue.
+		 *
+		 * @return <code>true</code> if there are more chunks to copy
+		 */
+		private boolean copyChunk() {
+			try {
+				long end;
+				synchronized (PersistentQueue.this) {
+					if (compaction != this)
+						return false;
+					end = fileEnd;
+					if (end - readOffset <= COMPACT_CHUNK_SIZE) {
+						copyRecords(end);
+						swap();
+						return false;
+					}
+				}
+
+				// The records before the current end of file do not change, they are copied without lock
+				copyRecords(readOffset + COMPACT_CHUNK_SIZE);
+				return true;
+			} catch (IOException e) {
+				synchronized (PersistentQueue.this) {
+					if (compaction == this) {
+						log.error(String.format("Exception compacting persistent queue file %s: %s", filename, e.toString()));
+						cancelCompaction();
+					}
+				}
+				return false;
+			}
+		}
+
+		/**
+		 * Copy all entry records that start before the given offset.
+		 */
+		private void copyRecords(long limit) throws IOException {
+			while (readOffset < limit) {
+				header.clear();
+				while (header.hasRemaining()) {
+					if (source.read(header, readOffset + header.position()) < 0)
+						throw new IOException("Unexpected end of file");
+				}
+				long recordLength = RECORD_HEADER_SIZE + header.getInt(0);
+				if (isEntry(header.get(4))) {
+					long transferred = 0;
+					while (transferred < recordLength) {
+						transferred += source.transferTo(readOffset + transferred, recordLength - transferred, target.position(writeOffset + transferred));
+					}
+					writeOffset += recordLength;
+					copiedEntries++;
+				}
+				readOffset += recordLength;
+			}
+		}
+
+		/**
+		 * Replace the queue file with the compacted file. Must be called while holding the lock of the queue.
+		 */
+		private void swap() throws IOException {
+			// Entries that have been removed during the compaction are still in the new file
+			int removed = copiedEntries - (diskCount + list.size());
+			if (removed < 0)
+				throw new IOException(String.format("Compacted file contains %d entries, but the queue has %d", copiedEntries, size()));
+			long newHead = HEADER_SIZE;
+			for (int i = 0; i < removed; i++) {
+				header.clear();
+				while (header.hasRemaining()) {
+					if (target.read(header, newHead + header.position()) < 0)
+						throw new IOException("Unexpected end of file");
+				}
+				newHead += RECORD_HEADER_SIZE + header.getInt(0);
+			}
+			writeHeader(target, newHead, size(), writeOffset);
+			target.force(false);
+			target.close();
+
+			closeChannel();
+			try {
+				Files.move(tempFile.toPath(), queueFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				headOffset = newHead;
+				fileEnd = writeOffset;
+				diskHead = null;
+				operationsSinceCheckpoint = 0;
+				generation++;
+				compactionCount++;
+				if (log.isDebugEnabled())
+					log.debug(String.format("Persistent queue file %s has been compacted.", filename));
+				event.end();
+				if (event.shouldCommit())
+					commitEvent(event, QueueFileEvent.COMPACT, writeOffset);
+			} catch (IOException e) {
+				// Continue using the old file
+				log.error(String.format("Unable to rename compacted queue file %s to %s: %s", tempFile.getName(), filename, e.toString()));
+				tempFile.delete();
+			}
+			compaction = null;
+			channel = FileChannel.open(queueFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
 		}
 
+		private void discard() {
+			try {
+				target.close();
+			} catch (IOException e) {
+			}
+			tempFile.delete();
+		}
 	}
 
+	private void closeChannel() {
+		if (channel != null)
+			try {
+				log.debug("Closing queue file");
+				channel.close();
+			} catch (Exception e) {}
+		channel = null;
+	}
+
+	private void deleteQueueFile() {
+		closeChannel();
+
+		if (!queueFile.delete() && usePersistance)
+			log.error(String.format("Error deleting queue file %s", queueFile.getAbsolutePath()));
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of file");
+			position += read;
+		}
+	}
+
+	/**
+	 * Marker that has been added to the queue file by previous versions if an entry is removed.
+	 *
+	 * @author chi
+	 *
+	 */
+	private enum QueueMarker implements Serializable {
+		Remove, Clear
+	}
 }
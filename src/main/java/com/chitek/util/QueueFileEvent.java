@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for operations on the file of a {@link PersistentQueue}.
+ */
+@Name("com.chitek.generictcp.QueueFile")
+@Label("Queue File")
+@Category({ "Generic TCP Driver", "Queue" })
+@Description("An entry has been added to or removed from a persistent queue file, or the file has been rewritten")
+@StackTrace(false)
+class QueueFileEvent extends Event {
+
+	static final String ADD = "Add";
+	static final String POLL = "Poll";
+	static final String REWRITE = "Rewrite";
+	static final String COMPACT = "Compact";
+
+	@Label("Queue")
+	@Description("The queue file")
+	String queue;
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Size")
+	@Description("Size of the added entry, or size of the file after a rewrite")
+	@DataAmount
+	long bytes;
+
+	@Label("Entries")
+	@Description("Number of entries in the queue after the operation")
+	int entries;
+}
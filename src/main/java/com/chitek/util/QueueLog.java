@@ -0,0 +1,1071 @@
+/*******************************************************************************
+ * Copyright 2012-2019 C. Hiesserich
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.chitek.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log that stores the queued messages of all message folders of a driver.
+ * <P>
+ * Every record in the log contains the id of the folder it belongs to. Each folder reads its entries through a
+ * {@link Cursor}, which keeps a compact index with position and length of the folders entries in memory. The payload is
+ * read from disk when an entry is retrieved. Removing an entry appends a cursor record to the log.
+ * <P>
+ * Records are not written by the calling thread. They are collected and written by a background thread, so concurrent
+ * appends from different folders are written with one sequential write and forced to disk once (group commit). The
+ * position of a record is assigned when it is committed. {@link Cursor#offer(byte[])} does not wait for the write,
+ * entries that are not written yet are kept in memory and are visible through the cursor. Use {@link Cursor#sync()} to
+ * wait until the entries are on disk.
+ * <P>
+ * If compression is enabled for a folder, the entries are compressed by the background thread with
+ * {@link LZCompressor} before they are written. Entries that can not be compressed are stored uncompressed.
+ * <P>
+ * The log is split into segment files. A new segment starts with the content hash and cursor position of every known
+ * folder. A segment file is deleted as soon as the cursors of all folders have moved past it.
+ */
+public class QueueLog {
+
+	public static final String FILE_PREFIX = "tcpQueueLog";
+	public static final String FILE_EXTENSION = ".seg";
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final int SEGMENT_MAGIC = 0x4754514C;
+	private static final int SEGMENT_HEADER_SIZE = 8;
+	/** Record header: int length, byte type, int folderId */
+	private static final int RECORD_HEADER_SIZE = 9;
+	private static final int INITIAL_INDEX_CAPACITY = 64;
+
+	/** A queued message */
+	private static final byte RECORD_ENTRY = 1;
+	/** Entries up to and including the given position are removed */
+	private static final byte RECORD_REMOVE = 2;
+	/** Content hash of a folder. Entries before the given position are removed */
+	private static final byte RECORD_OPEN = 3;
+	/** A compressed message. The body starts with the uncompressed length */
+	private static final byte RECORD_ENTRY_COMPRESSED = 4;
+	private static final int OPEN_BODY_SIZE = 12;
+
+	protected final Logger log;
+	private final File directory;
+	private final long segmentSize;
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private final Map<Integer, Cursor> cursors = new HashMap<Integer, Cursor>();
+	private Segment writeSegment;
+	/** Offset of the next record in the write segment */
+	private long writeOffset;
+
+	private List<PendingWrite> pending = new ArrayList<PendingWrite>();
+	private final Thread commitThread;
+	private volatile boolean closed;
+	private long commitCount;
+	private long committedRecords;
+
+	/**
+	 * Opens the queue log in the given directory. If segment files are present, the index of every folder is rebuilt
+	 * from the files.
+	 *
+	 * @param directory
+	 *            The directory for the segment files
+	 * @param log
+	 *            If not null, this class will create a sub logger of the given logger.
+	 * @throws IOException
+	 *             if access to the segment files fails.
+	 */
+	public QueueLog(String directory, Logger log) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, log);
+	}
+
+	/**
+	 * Opens the queue log in the given directory.
+	 *
+	 * @param directory
+	 *            The directory for the segment files
+	 * @param segmentSize
+	 *            A new segment is started when the write segment exceeds this size
+	 * @param log
+	 *            If not null, this class will create a sub logger of the given logger.
+	 * @throws IOException
+	 *             if access to the segment files fails.
+	 */
+	public QueueLog(String directory, long segmentSize, Logger log) throws IOException {
+		if (log != null)
+			this.log = Logger.getLogger(String.format("%s.%s", log.getName(), QueueLog.class.getSimpleName()));
+		else
+			this.log = Logger.getLogger(QueueLog.class.getSimpleName());
+
+		this.directory = new File(directory);
+		this.segmentSize = segmentSize;
+
+		if (!this.directory.isDirectory() && !this.directory.mkdirs())
+			throw new IOException(String.format("Can not create directory %s", directory));
+
+		readSegments();
+		if (writeSegment == null) {
+			writeSegment = openSegment(0, true);
+			writeOffset = initializeSegment(writeSegment);
+		}
+
+		commitThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		}, String.format("%s-commit", FILE_PREFIX));
+		commitThread.setDaemon(true);
+		commitThread.start();
+	}
+
+	/**
+	 * @param directory
+	 *            The directory to check
+	 * @return <code>true</code> if there are segment files in the given directory
+	 */
+	public static boolean exists(String directory) {
+		String[] files = new File(directory).list(new SegmentFilter());
+		return files != null && files.length > 0;
+	}
+
+	/**
+	 * Opens the queue of the given folder. If the content hash does not match the stored hash, all stored entries of
+	 * the folder are discarded.
+	 *
+	 * @param folderId
+	 *            The unique id of the folder
+	 * @param contentHash
+	 *            A hash value of the folder configuration
+	 * @return The queue of the folder
+	 */
+	public Cursor openQueue(int folderId, int contentHash) {
+		return openQueue(folderId, contentHash, false);
+	}
+
+	/**
+	 * Opens the queue of the given folder. If the content hash does not match the stored hash, all stored entries of
+	 * the folder are discarded.
+	 *
+	 * @param folderId
+	 *            The unique id of the folder
+	 * @param contentHash
+	 *            A hash value of the folder configuration
+	 * @param compress
+	 *            <code>true</code> if new entries should be compressed
+	 * @return The queue of the folder
+	 */
+	public synchronized Cursor openQueue(int folderId, int contentHash, boolean compress) {
+		if (closed)
+			throw new IllegalStateException("Queue log is closed");
+
+		Cursor cursor = cursors.get(folderId);
+		if (cursor == null) {
+			cursor = new Cursor(folderId, contentHash);
+			cursors.put(folderId, cursor);
+			appendOpen(cursor);
+		} else if (cursor.contentHash != contentHash) {
+			if (cursor.size() > 0)
+				log.warn(String.format("Queue of folder %d has been created with another configuration. %d stored entrys are discarded.", folderId, cursor.size()));
+			cursor.contentHash = contentHash;
+			cursor.reset();
+			appendOpen(cursor);
+		}
+		cursor.open = true;
+		cursor.compress = compress;
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Opened queue of folder %d with %d entrys.", folderId, cursor.count));
+
+		return cursor;
+	}
+
+	/**
+	 * @param folderId
+	 *            The unique id of the folder
+	 * @param contentHash
+	 *            A hash value of the folder configuration
+	 * @return <code>true</code> if the log contains entries of the given folder, that have been stored with the given
+	 *         content hash
+	 */
+	public synchronized boolean hasEntries(int folderId, int contentHash) {
+		Cursor cursor = cursors.get(folderId);
+		return cursor != null && cursor.contentHash == contentHash && cursor.count + cursor.unwritten.size() > 0;
+	}
+
+	/**
+	 * Discards the stored entries of all folders that are not in the given list and that are not opened.
+	 *
+	 * @param folderIds
+	 *            The ids of all folders that use the log
+	 */
+	public synchronized void retainQueues(Collection<Integer> folderIds) {
+		Iterator<Cursor> iterator = cursors.values().iterator();
+		while (iterator.hasNext()) {
+			Cursor cursor = iterator.next();
+			if (!cursor.open && !folderIds.contains(cursor.folderId)) {
+				log.debug(String.format("Discarding %d entrys of unused folder %d", cursor.count, cursor.folderId));
+				cursor.contentHash = 0;
+				cursor.reset();
+				appendOpen(cursor);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes all pending records and closes the segment files. Should be called when no folder uses this log any more.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			commitThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+			segments.clear();
+			cursors.clear();
+		}
+		log.debug("Queue log closed");
+	}
+
+	/**
+	 * @return The number of segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return The average number of records written with one commit
+	 */
+	public synchronized double getRecordsPerCommit() {
+		return commitCount > 0 ? (double) committedRecords / commitCount : 0;
+	}
+
+	private static long position(int segment, long offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	private static int segmentOf(long position) {
+		return (int) (position >>> 32);
+	}
+
+	private static long offsetOf(long position) {
+		return position & 0xffffffffL;
+	}
+
+	/**
+	 * Adds a record to the pending writes.
+	 *
+	 * @return The pending write
+	 */
+	private PendingWrite append(byte type, int folderId, Cursor cursor, byte[] body) {
+		PendingWrite write = new PendingWrite(type, folderId, cursor, body);
+		pending.add(write);
+		notifyAll();
+
+		return write;
+	}
+
+	/**
+	 * Appends the content hash of the given cursor. All older entries of the folder are removed, the first position is
+	 * set when the record is committed.
+	 */
+	private void appendOpen(Cursor cursor) {
+		append(RECORD_OPEN, cursor.folderId, cursor, openBody(cursor.contentHash, 0));
+	}
+
+	private void appendRemove(int folderId, long removedPosition) {
+		ByteBuffer body = ByteBuffer.allocate(8);
+		body.putLong(removedPosition);
+		append(RECORD_REMOVE, folderId, null, body.array());
+	}
+
+	private static byte[] openBody(int contentHash, long firstPosition) {
+		ByteBuffer body = ByteBuffer.allocate(OPEN_BODY_SIZE);
+		body.putInt(contentHash).putLong(firstPosition);
+		return body.array();
+	}
+
+	/**
+	 * Assigns the segment and offset of the given records. Called by the commit thread.
+	 *
+	 * @return The writes to execute, including the headers of new segments
+	 */
+	private List<PendingWrite> assignPositions(List<PendingWrite> batch) {
+		List<PendingWrite> writes = new ArrayList<PendingWrite>(batch.size());
+		// Position of the first entry of every folder in this batch
+		Map<Integer, Long> firstEntries = new HashMap<Integer, Long>();
+
+		for (PendingWrite write : batch) {
+			if (writeOffset + RECORD_HEADER_SIZE + write.body.length > segmentSize && writeOffset > SEGMENT_HEADER_SIZE) {
+				rollSegment(writes, firstEntries);
+			}
+
+			long position = position(writeSegment.number, writeOffset);
+			if (write.type == RECORD_OPEN) {
+				ByteBuffer.wrap(write.body).putLong(4, position);
+				firstEntries.remove(write.folderId);
+			} else if (write.isEntry() && !firstEntries.containsKey(write.folderId)) {
+				firstEntries.put(write.folderId, position);
+			}
+			assign(write, writes);
+		}
+
+		return writes;
+	}
+
+	private void assign(PendingWrite write, List<PendingWrite> writes) {
+		int recordSize = RECORD_HEADER_SIZE + write.body.length;
+		ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+		buffer.putInt(recordSize - 4).put(write.type).putInt(write.folderId).put(write.body);
+		buffer.flip();
+
+		write.segment = writeSegment;
+		write.offset = writeOffset;
+		write.data = buffer;
+		writes.add(write);
+		writeOffset += recordSize;
+	}
+
+	/**
+	 * Start a new segment. The state of every folder is written to the start of the new segment, so older segments
+	 * are not needed to rebuild the index.
+	 *
+	 * @param writes
+	 *            The list to add the writes for the new segment to
+	 * @param firstEntries
+	 *            Position of the first entry of every folder, that has been assigned but not yet added to the index
+	 */
+	private void rollSegment(List<PendingWrite> writes, Map<Integer, Long> firstEntries) {
+		int number = writeSegment.number + 1;
+		try {
+			writeSegment = openSegment(number, true);
+		} catch (IOException e) {
+			log.error(String.format("IOException creating segment %d: %s. Continuing with the current segment.", number, e.toString()));
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+		header.putInt(SEGMENT_MAGIC).putInt(number);
+		header.flip();
+		writes.add(new PendingWrite(writeSegment, 0, header));
+		writeOffset = SEGMENT_HEADER_SIZE;
+
+		for (Cursor cursor : cursors.values()) {
+			long firstPosition;
+			if (cursor.count > 0) {
+				firstPosition = cursor.positions[cursor.head];
+			} else if (firstEntries.containsKey(cursor.folderId)) {
+				firstPosition = firstEntries.get(cursor.folderId);
+			} else {
+				firstPosition = position(number, writeOffset);
+			}
+			assign(new PendingWrite(RECORD_OPEN, cursor.folderId, null, openBody(cursor.contentHash, firstPosition)), writes);
+		}
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Started new segment %d", number));
+	}
+
+	private Segment openSegment(int number, boolean create) throws IOException {
+		File file = new File(directory, String.format("%s%d%s", FILE_PREFIX, number, FILE_EXTENSION));
+		FileChannel channel;
+		if (create)
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		else
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		Segment segment = new Segment(number, file, channel);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	/**
+	 * Writes pending records in the background, until the log is closed.
+	 */
+	private void commitLoop() {
+		while (true) {
+			List<PendingWrite> batch;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if (pending.isEmpty())
+					break;
+				batch = pending;
+				pending = new ArrayList<PendingWrite>();
+			}
+
+			for (PendingWrite write : batch) {
+				write.compress();
+			}
+
+			List<PendingWrite> writes;
+			synchronized (this) {
+				writes = assignPositions(batch);
+			}
+
+			boolean success = commit(writes);
+
+			synchronized (this) {
+				for (PendingWrite write : batch) {
+					write.done = true;
+					write.failed = !success;
+					// Entries are added to the index here, so the segment of the entry is not deleted before the index is updated.
+					// Entries of a cursor that has been cleared after the entry was appended are dropped.
+					if (write.isEntry() && write.cursor.generation == write.generation)
+						write.cursor.committed(write);
+				}
+				commitCount++;
+				committedRecords += batch.size();
+				reclaimSegments();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the given records. Consecutive records in the same segment are written with one write. Every written segment
+	 * is forced to disk once, after all records have been written.
+	 */
+	private boolean commit(List<PendingWrite> writes) {
+		List<Segment> written = new ArrayList<Segment>(2);
+		int start = 0;
+		while (start < writes.size()) {
+			PendingWrite first = writes.get(start);
+			int end = start + 1;
+			int length = first.data.remaining();
+			while (end < writes.size() && writes.get(end).segment == first.segment) {
+				length += writes.get(end).data.remaining();
+				end++;
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			for (int i = start; i < end; i++) {
+				buffer.put(writes.get(i).data);
+			}
+			buffer.flip();
+
+			try {
+				first.segment.write(buffer, first.offset);
+			} catch (IOException e) {
+				log.error(String.format("IOException writing to segment file %s: %s", first.segment.file.getName(), e.toString()));
+				return false;
+			}
+			if (!written.contains(first.segment))
+				written.add(first.segment);
+			start = end;
+		}
+
+		for (Segment segment : written) {
+			try {
+				segment.channel.force(false);
+			} catch (IOException e) {
+				log.error(String.format("IOException forcing segment file %s to disk: %s", segment.file.getName(), e.toString()));
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes all segments that are older than the oldest entry of any folder.
+	 */
+	private void reclaimSegments() {
+		int oldestNeeded = writeSegment.number;
+		for (Cursor cursor : cursors.values()) {
+			if (cursor.count > 0)
+				oldestNeeded = Math.min(oldestNeeded, segmentOf(cursor.positions[cursor.head]));
+		}
+
+		while (!segments.isEmpty() && segments.firstKey() < oldestNeeded) {
+			Segment segment = segments.remove(segments.firstKey());
+			segment.close();
+			if (segment.file.delete()) {
+				if (log.isDebugEnabled())
+					log.debug(String.format("Deleted segment file %s", segment.file.getName()));
+			} else {
+				log.warn(String.format("Segment file %s could not be deleted", segment.file.getName()));
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the index of all folders from the segment files.
+	 */
+	private void readSegments() throws IOException {
+		String[] files = directory.list(new SegmentFilter());
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (String file : files != null ? files : new String[0]) {
+			try {
+				numbers.add(Integer.parseInt(file.substring(FILE_PREFIX.length(), file.length() - FILE_EXTENSION.length())));
+			} catch (NumberFormatException e) {
+				log.warn(String.format("Ignoring unknown file %s", file));
+			}
+		}
+		Collections.sort(numbers);
+
+		long bytes = 0;
+		for (int number : numbers) {
+			Segment segment = openSegment(number, false);
+			writeSegment = segment;
+			writeOffset = readSegment(segment);
+			bytes += writeOffset;
+		}
+
+		// Remove folders without entries. They are registered again when the folder is opened.
+		Iterator<Cursor> iterator = cursors.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().count == 0)
+				iterator.remove();
+		}
+
+		if (log.isDebugEnabled())
+			log.debug(String.format("Loaded %d segments with %d bytes for %d folders from %s.", numbers.size(), bytes, cursors.size(), directory.getAbsolutePath()));
+	}
+
+	/**
+	 * Read all records of the given segment.
+	 *
+	 * @return The offset after the last complete record
+	 */
+	private long readSegment(Segment segment) throws IOException {
+		long size = segment.channel.size();
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+		if (size < SEGMENT_HEADER_SIZE) {
+			log.warn(String.format("Segment file %s is incomplete", segment.file.getName()));
+			return initializeSegment(segment);
+		}
+		segment.read(header, 0);
+		header.flip();
+		if (header.getInt() != SEGMENT_MAGIC || header.getInt() != segment.number) {
+			log.warn(String.format("Segment file %s is invalid. Stored entrys are discarded.", segment.file.getName()));
+			return initializeSegment(segment);
+		}
+
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		long offset = SEGMENT_HEADER_SIZE;
+		while (offset + RECORD_HEADER_SIZE <= size) {
+			recordHeader.clear();
+			segment.read(recordHeader, offset);
+			recordHeader.flip();
+			int recordSize = recordHeader.getInt() + 4;
+			byte type = recordHeader.get();
+			int folderId = recordHeader.getInt();
+			if (recordSize < RECORD_HEADER_SIZE || offset + recordSize > size) {
+				// Incomplete record, the driver has been stopped while writing
+				break;
+			}
+
+			long position = position(segment.number, offset);
+			int bodyLength = recordSize - RECORD_HEADER_SIZE;
+			Cursor cursor = cursors.get(folderId);
+			if (type == RECORD_ENTRY) {
+				if (cursor != null)
+					cursor.addToIndex(position, bodyLength, bodyLength);
+			} else if (type == RECORD_ENTRY_COMPRESSED) {
+				if (cursor != null) {
+					ByteBuffer rawLength = ByteBuffer.allocate(4);
+					segment.read(rawLength, offset + RECORD_HEADER_SIZE);
+					cursor.addToIndex(position, rawLength.getInt(0), bodyLength);
+				}
+			} else if (type == RECORD_REMOVE || type == RECORD_OPEN) {
+				ByteBuffer body = ByteBuffer.allocate(bodyLength);
+				segment.read(body, offset + RECORD_HEADER_SIZE);
+				body.flip();
+				if (type == RECORD_REMOVE) {
+					if (cursor != null)
+						cursor.removeFromIndex(body.getLong(), true);
+				} else {
+					int contentHash = body.getInt();
+					long firstPosition = body.getLong();
+					if (cursor == null || cursor.contentHash != contentHash) {
+						cursor = new Cursor(folderId, contentHash);
+						cursors.put(folderId, cursor);
+					}
+					cursor.removeFromIndex(firstPosition, false);
+				}
+			}
+			offset += recordSize;
+		}
+
+		if (offset < size) {
+			log.warn(String.format("Discarding %d bytes of incomplete data at the end of segment file %s", size - offset, segment.file.getName()));
+			segment.channel.truncate(offset);
+		}
+		return offset;
+	}
+
+	private long initializeSegment(Segment segment) throws IOException {
+		segment.channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+		header.putInt(SEGMENT_MAGIC).putInt(segment.number);
+		header.flip();
+		segment.write(header, 0);
+		return SEGMENT_HEADER_SIZE;
+	}
+
+	private static class SegmentFilter implements FilenameFilter {
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_EXTENSION);
+		}
+	}
+
+	private static class Segment {
+		private final int number;
+		private final File file;
+		private final FileChannel channel;
+
+		private Segment(int number, File file, FileChannel channel) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		private void write(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+
+		private void read(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					throw new IOException("Unexpected end of file");
+				position += read;
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static class PendingWrite {
+		private byte type;
+		private final int folderId;
+		private final Cursor cursor;
+		/** Generation of the cursor when the record was appended */
+		private final int generation;
+		private byte[] body;
+		/** The uncompressed body */
+		private final byte[] payload;
+
+		private Segment segment;
+		private long offset;
+		private ByteBuffer data;
+		private boolean done;
+		private boolean failed;
+		/** The entry has been polled from the cursor before it has been committed */
+		private boolean removed;
+
+		private PendingWrite(byte type, int folderId, Cursor cursor, byte[] body) {
+			this.type = type;
+			this.folderId = folderId;
+			this.cursor = cursor;
+			this.generation = cursor != null ? cursor.generation : 0;
+			this.body = body;
+			this.payload = body;
+		}
+
+		/** A write of raw data, used for segment headers */
+		private PendingWrite(Segment segment, long offset, ByteBuffer data) {
+			this((byte) 0, 0, null, new byte[0]);
+			this.segment = segment;
+			this.offset = offset;
+			this.data = data;
+		}
+
+		private boolean isEntry() {
+			return type == RECORD_ENTRY || type == RECORD_ENTRY_COMPRESSED;
+		}
+
+		/**
+		 * Compress the body of an entry, if compression is enabled for the cursor. The body is only replaced if the
+		 * compressed data is smaller.
+		 */
+		private void compress() {
+			if (type != RECORD_ENTRY || !cursor.compress)
+				return;
+
+			byte[] compressed = LZCompressor.compress(body);
+			if (compressed.length + 4 < body.length) {
+				ByteBuffer buffer = ByteBuffer.allocate(compressed.length + 4);
+				buffer.putInt(body.length).put(compressed);
+				body = buffer.array();
+				type = RECORD_ENTRY_COMPRESSED;
+			}
+		}
+	}
+
+	/**
+	 * The queue of one folder in the log. Only the index of the entries is kept in memory.
+	 */
+	public class Cursor extends AbstractQueue<byte[]> implements CloseableQueue<byte[]> {
+
+		private final int folderId;
+		private int contentHash;
+		private boolean open;
+		private volatile boolean compress;
+		/** Incremented when the cursor is cleared */
+		private int generation;
+
+		// The index is a ring buffer
+		private long[] positions;
+		/** Length of the payload */
+		private int[] lengths;
+		/** Length of the stored record body. Differs from the payload length if the entry is compressed */
+		private int[] storedLengths;
+		private int head;
+		private int count;
+
+		/** Sum of the payload length of all entries */
+		private long sizeInBytes;
+		/** The payload of the head entry */
+		private byte[] headCache;
+
+		/** Entries that have been offered but not committed yet. They are queued after the entries in the index. */
+		private final LinkedList<PendingWrite> unwritten = new LinkedList<PendingWrite>();
+		/** Sum of the payload length of the unwritten entries */
+		private long unwrittenBytes;
+		/** The last entry that has been offered */
+		private PendingWrite lastWrite;
+		/** Number of entries that could not be written since the last {@link #sync()} */
+		private int writeFailures;
+
+		/** Sum of payload length and stored length of all compressed entries */
+		private long compressedRawBytes;
+		private long compressedStoredBytes;
+
+		private Cursor(int folderId, int contentHash) {
+			this.folderId = folderId;
+			this.contentHash = contentHash;
+			positions = new long[INITIAL_INDEX_CAPACITY];
+			lengths = new int[INITIAL_INDEX_CAPACITY];
+			storedLengths = new int[INITIAL_INDEX_CAPACITY];
+		}
+
+		/**
+		 * Releases this cursor. The entries are kept in the log.
+		 */
+		@Override
+		public void close() {
+			synchronized (QueueLog.this) {
+				open = false;
+				headCache = null;
+			}
+		}
+
+		/**
+		 * Appends the entry to the log. Returns without waiting for the commit thread, the entry is written to disk in
+		 * the background. The given array must not be modified afterwards.
+		 */
+		@Override
+		public boolean offer(byte[] e) {
+			if (e == null)
+				throw new NullPointerException();
+
+			synchronized (QueueLog.this) {
+				if (closed)
+					return false;
+
+				lastWrite = append(RECORD_ENTRY, folderId, this, e);
+				unwritten.add(lastWrite);
+				unwrittenBytes += e.length;
+				return true;
+			}
+		}
+
+		/**
+		 * Waits until all entries that have been offered to this queue are written to disk.
+		 *
+		 * @return <code>false</code> if an entry could not be written since the last call, or if the thread has been
+		 *         interrupted
+		 */
+		public boolean sync() {
+			synchronized (QueueLog.this) {
+				PendingWrite write = lastWrite;
+				while (write != null && !write.done) {
+					try {
+						QueueLog.this.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				boolean success = writeFailures == 0;
+				writeFailures = 0;
+				return success;
+			}
+		}
+
+		@Override
+		public byte[] peek() {
+			synchronized (QueueLog.this) {
+				if (count == 0)
+					return unwritten.isEmpty() ? null : unwritten.getFirst().payload;
+
+				if (headCache == null)
+					headCache = readEntry(head);
+
+				return headCache;
+			}
+		}
+
+		@Override
+		public byte[] poll() {
+			synchronized (QueueLog.this) {
+				if (count == 0) {
+					if (unwritten.isEmpty())
+						return null;
+					// The entry is removed from the log when it has been written
+					PendingWrite write = unwritten.removeFirst();
+					unwrittenBytes -= write.payload.length;
+					write.removed = true;
+					return write.payload;
+				}
+
+				byte[] entry = peek();
+				long position = positions[head];
+				removeHead();
+				if (!closed)
+					appendRemove(folderId, position);
+
+				return entry;
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (QueueLog.this) {
+				return count + unwritten.size();
+			}
+		}
+
+		/**
+		 * @return The sum of the length of all entries in this queue
+		 */
+		public long sizeInBytes() {
+			synchronized (QueueLog.this) {
+				return sizeInBytes + unwrittenBytes;
+			}
+		}
+
+		/**
+		 * @return The ratio of the payload length to the stored length of all entries that have been compressed since the
+		 *         log was opened, or 1 if no entry has been compressed
+		 */
+		public double getCompressionRatio() {
+			synchronized (QueueLog.this) {
+				return compressedStoredBytes > 0 ? (double) compressedRawBytes / compressedStoredBytes : 1.0;
+			}
+		}
+
+		/**
+		 * Returns an iterator over the entries in this queue. The payloads are read from disk when the iterator advances.
+		 * The iterator does not support removal.
+		 */
+		@Override
+		public Iterator<byte[]> iterator() {
+			return new Iterator<byte[]>() {
+				private int position = 0;
+
+				@Override
+				public boolean hasNext() {
+					synchronized (QueueLog.this) {
+						return position < count + unwritten.size();
+					}
+				}
+
+				@Override
+				public byte[] next() {
+					synchronized (QueueLog.this) {
+						if (position >= count + unwritten.size())
+							throw new NoSuchElementException();
+						byte[] entry;
+						if (position == 0)
+							entry = peek();
+						else if (position < count)
+							entry = readEntry((head + position) % positions.length);
+						else
+							entry = unwritten.get(position - count).payload;
+						position++;
+						return entry;
+					}
+				}
+			};
+		}
+
+		@Override
+		public void clear() {
+			synchronized (QueueLog.this) {
+				reset();
+				if (!closed)
+					appendOpen(this);
+			}
+		}
+
+		private void reset() {
+			generation++;
+			head = 0;
+			count = 0;
+			sizeInBytes = 0;
+			headCache = null;
+			unwritten.clear();
+			unwrittenBytes = 0;
+		}
+
+		/**
+		 * Moves an entry that has been processed by the commit thread from the unwritten entries to the index. Entries
+		 * are committed in the order they have been appended. Called by the commit thread.
+		 */
+		private void committed(PendingWrite write) {
+			long position = write.failed ? 0 : position(write.segment.number, write.offset);
+			if (write.removed) {
+				// Polled before it has been written. The commit thread writes the remove record before it stops.
+				if (!write.failed)
+					appendRemove(folderId, position);
+				return;
+			}
+
+			unwritten.remove(write);
+			unwrittenBytes -= write.payload.length;
+			if (write.failed) {
+				writeFailures++;
+				log.error(String.format("Entry of folder %d could not be written and is discarded", folderId));
+				return;
+			}
+
+			addToIndex(position, write.payload.length, write.body.length);
+			if (count == 1)
+				headCache = write.payload;
+		}
+
+		private void removeHead() {
+			sizeInBytes -= lengths[head];
+			head = (head + 1) % positions.length;
+			count--;
+			headCache = null;
+		}
+
+		/**
+		 * Remove entries from the head of the index.
+		 *
+		 * @param position
+		 *            The position to remove entries up to
+		 * @param inclusive
+		 *            <code>true</code> if the entry at the given position is removed as well
+		 */
+		private void removeFromIndex(long position, boolean inclusive) {
+			while (count > 0 && (positions[head] < position || (inclusive && positions[head] == position))) {
+				removeHead();
+			}
+		}
+
+		private void addToIndex(long position, int length, int storedLength) {
+			if (count == positions.length) {
+				// Grow the index
+				int capacity = positions.length * 2;
+				long[] newPositions = new long[capacity];
+				int[] newLengths = new int[capacity];
+				int[] newStoredLengths = new int[capacity];
+				for (int i = 0; i < count; i++) {
+					int index = (head + i) % positions.length;
+					newPositions[i] = positions[index];
+					newLengths[i] = lengths[index];
+					newStoredLengths[i] = storedLengths[index];
+				}
+				positions = newPositions;
+				lengths = newLengths;
+				storedLengths = newStoredLengths;
+				head = 0;
+			}
+
+			int index = (head + count) % positions.length;
+			positions[index] = position;
+			lengths[index] = length;
+			storedLengths[index] = storedLength;
+			count++;
+			sizeInBytes += length;
+			if (storedLength != length) {
+				compressedRawBytes += length;
+				compressedStoredBytes += storedLength;
+			}
+		}
+
+		/**
+		 * Read the payload of the entry with the given index position from disk.
+		 *
+		 * @return The payload, or null if the entry could not be read
+		 */
+		private byte[] readEntry(int index) {
+			Segment segment = segments.get(segmentOf(positions[index]));
+			if (segment == null) {
+				log.error(String.format("Segment of entry at position %d of folder %d does not exist", positions[index], folderId));
+				return null;
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(storedLengths[index]);
+			try {
+				segment.read(buffer, offsetOf(positions[index]) + RECORD_HEADER_SIZE);
+				if (storedLengths[index] != lengths[index]) {
+					// Compressed entry, the body starts with the uncompressed length
+					return LZCompressor.decompress(buffer.array(), 4, storedLengths[index] - 4, lengths[index]);
+				}
+			} catch (IOException e) {
+				log.error(String.format("IOException reading entry from segment file %s: %s", segment.file.getName(), e.toString()));
+				return null;
+			}
+			return buffer.array();
+		}
+	}
+}
@@ -35,6 +35,23 @@ public class MockExecutor {
 		return scheduledCommands.size();
 	}
 
+	/**
+	 * @return
+	 * 	The delay in milliseconds of the pending command that was registered first
+	 */
+	public long getNextDelayMillis() {
+		ScheduledCommand<?> scheduled = scheduledCommands.get(0);
+		return scheduled.getTimeUnit().toMillis(scheduled.getDelay());
+	}
+
+	/**
+	 * @return
+	 * 	The pending command that was registered first. Running it does not remove it from the pending commands.
+	 */
+	public Runnable getNextCommand() {
+		return scheduledCommands.get(0).command;
+	}
+
 	/**
 	 * Remove all scheduled commands.
 	 */
@@ -99,6 +116,7 @@ public class MockExecutor {
 				return false;
 
 			cancelled = true;
+			scheduledCommands.remove(this);
 			return true;
 		}
 
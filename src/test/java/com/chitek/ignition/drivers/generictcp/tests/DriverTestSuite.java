@@ -4,8 +4,10 @@ import org.apache.log4j.Logger;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import com.chitek.ignition.drivers.generictcp.tests.alloc.TestHotPathAllocation;
 import com.chitek.ignition.drivers.generictcp.tests.config.TestConfigParser;
 import com.chitek.ignition.drivers.generictcp.tests.folders.TestDeviceStatusFolder;
+import com.chitek.ignition.drivers.generictcp.tests.folders.TestDiagnosticsFolder;
 import com.chitek.ignition.drivers.generictcp.tests.folders.TestFolderManager;
 import com.chitek.ignition.drivers.generictcp.tests.folders.TestMessageFolder;
 import com.chitek.ignition.drivers.generictcp.tests.folders.TestSimpleWriteFolder;
@@ -20,9 +22,11 @@ import com.chitek.ignition.drivers.generictcp.tests.io.TestNioEventHandler;
 			TestNioEventHandler.class,
 			TestMessageFolder.class,
 			TestDeviceStatusFolder.class,
+			TestDiagnosticsFolder.class,
 			TestSimpleWriteFolder.class,
 			TestSubscription.class,
-			TestFolderManager.class})
+			TestFolderManager.class,
+			TestHotPathAllocation.class})
 
 public class DriverTestSuite {
 
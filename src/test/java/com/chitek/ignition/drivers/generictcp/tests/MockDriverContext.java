@@ -1,5 +1,6 @@
 package com.chitek.ignition.drivers.generictcp.tests;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,7 +21,9 @@ import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
 
 import com.chitek.TestUtils.MockExecutor;
 import com.chitek.ignition.drivers.generictcp.IGenericTcpDriverContext;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics;
 import com.chitek.ignition.drivers.generictcp.folder.BrowseTree;
+import com.chitek.util.QueueLog;
 import com.inductiveautomation.ignition.common.execution.SchedulingController;
 import com.inductiveautomation.ignition.common.execution.SelfSchedulingRunnable;
 
@@ -31,8 +34,11 @@ public class MockDriverContext implements IGenericTcpDriverContext {
 	private final Map<NodeId, UaNode> nodeMap = new HashMap<NodeId, UaNode>();
 	private final Map<String, SelfSchedulingRunnable> selfSchedulingRunnables = new HashMap<String, SelfSchedulingRunnable>();
 	private final MockExecutor executor = new MockExecutor();
+	private final MockExecutor priorityExecutor = new MockExecutor();
 	private byte[] lastWrittenMessage;
 	private String diskPath;
+	private QueueLog queueLog;
+	private final LatencyStatistics latencyStatistics = new LatencyStatistics();
 	public boolean rescheduleRequested;
 	private UaNodeContext nodeContext = new MockNodeContext();
 	
@@ -52,6 +58,10 @@ public class MockDriverContext implements IGenericTcpDriverContext {
 	public MockExecutor getExecutor() {
 		return executor;
 	}
+
+	public MockExecutor getPriorityExecutor() {
+		return priorityExecutor;
+	}
 	
 	public SelfSchedulingRunnable getSelfSchedulingRunnable(String owner, String name) {
 		return selfSchedulingRunnables.get(owner + name);
@@ -81,6 +91,29 @@ public class MockDriverContext implements IGenericTcpDriverContext {
 		return diskPath;
 	}
 
+	@Override
+	public QueueLog getQueueLog() throws IOException {
+		if (queueLog == null) {
+			queueLog = new QueueLog(diskPath, null);
+		}
+		return queueLog;
+	}
+
+	@Override
+	public LatencyStatistics getLatencyStatistics() {
+		return latencyStatistics;
+	}
+
+	/**
+	 * Close the queue log, like it is done on driver shutdown.
+	 */
+	public void closeQueueLog() {
+		if (queueLog != null) {
+			queueLog.close();
+			queueLog = null;
+		}
+	}
+
 	@Override
 	public String getLoggerName() {
 		return DriverTestSuite.getLogger().getName();
@@ -119,6 +152,11 @@ public class MockDriverContext implements IGenericTcpDriverContext {
 		executor.executeOnce(command);
 	}
 
+	@Override
+	public void executePriority(Runnable command) {
+		priorityExecutor.executeOnce(command);
+	}
+
 	@Override
 	public ScheduledFuture<?> executeOnce(Runnable command, long delay, TimeUnit unit) {
 		return executor.executeOnce(command, delay, unit);
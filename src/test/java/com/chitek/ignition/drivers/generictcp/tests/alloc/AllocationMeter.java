@@ -0,0 +1,72 @@
+package com.chitek.ignition.drivers.generictcp.tests.alloc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated by a thread, using the allocation counters of the HotSpot ThreadMXBean.
+ */
+public class AllocationMeter {
+
+	/** An operation to measure */
+	public interface Operation {
+		public void run(int iteration) throws Exception;
+	}
+
+	private static final com.sun.management.ThreadMXBean threadBean;
+
+	static {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			threadBean = null;
+		}
+	}
+
+	/**
+	 * @return
+	 * 	<code>true</code> if the JVM counts allocated bytes per thread
+	 */
+	public static boolean isSupported() {
+		return threadBean != null;
+	}
+
+	/**
+	 * @param threadId
+	 * @return
+	 * 	The total number of bytes allocated by the thread, or -1 if the thread is not alive
+	 */
+	public static long getAllocatedBytes(long threadId) {
+		return threadBean.getThreadAllocatedBytes(threadId);
+	}
+
+	/**
+	 * Run the operation in the current thread. The first runs are not measured, so the code is compiled before the
+	 * measurement starts.
+	 * 
+	 * @param warmup
+	 * 	Number of runs before the measurement
+	 * @param iterations
+	 * 	Number of measured runs
+	 * @param operation
+	 * @return
+	 * 	The allocated bytes per run
+	 */
+	public static double measure(int warmup, int iterations, Operation operation) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			operation.run(i);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		// The first call of getThreadAllocatedBytes may allocate itself, so it is called once before the measurement
+		getAllocatedBytes(threadId);
+		long start = getAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			operation.run(warmup + i);
+		}
+		long allocated = getAllocatedBytes(threadId) - start;
+		return (double) allocated / iterations;
+	}
+}
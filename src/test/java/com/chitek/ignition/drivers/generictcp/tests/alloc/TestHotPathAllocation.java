@@ -0,0 +1,234 @@
+package com.chitek.ignition.drivers.generictcp.tests.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+import com.chitek.ignition.drivers.generictcp.folder.MessageFolder;
+import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
+import com.chitek.ignition.drivers.generictcp.io.IMessageHandler;
+import com.chitek.ignition.drivers.generictcp.io.MessageState;
+import com.chitek.ignition.drivers.generictcp.io.NioEventHandler;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
+import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
+import com.chitek.ignition.drivers.generictcp.tests.DriverTestSuite;
+import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
+import com.chitek.ignition.drivers.generictcp.tests.TestUtils;
+import com.chitek.ignition.drivers.generictcp.tests.folders.FolderTestUtils;
+import com.chitek.ignition.drivers.generictcp.tests.folders.MockSubscriptionItem;
+import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
+import com.inductiveautomation.ignition.common.execution.SelfSchedulingRunnable;
+import com.inductiveautomation.xopc.driver.api.items.SubscriptionItem;
+
+/**
+ * Allocation budgets for the hot paths of the driver. A test fails, if a change increases the bytes allocated per
+ * message above the budget. The budgets include the allocations of the mocks and are about 1.5 times the measured
+ * value on a 64 bit JVM with compressed oops, to allow for differences between JVMs. If a change allocates less, the
+ * budget should be lowered.
+ */
+public class TestHotPathAllocation {
+
+	private static final int WARMUP = 20000;
+	private static final int ITERATIONS = 20000;
+
+	/** Budget for framing a message in MessageState.addData, including the delivered envelope (measured 216) */
+	private static final int BUDGET_ADD_DATA = 320;
+	/** Budget for the evaluation of a message in IndexMessageFolder, including the mock executor (measured 904) */
+	private static final int BUDGET_EVALUATE = 1400;
+	/** Budget for a cycle of the SubscriptionUpdater with data and special items (measured 80 - 140) */
+	private static final int BUDGET_SUBSCRIPTION = 256;
+	/** Budget for a read passed to NioEventHandler.dataArrived, including framing and the delivered envelope (measured 216) */
+	private static final int BUDGET_DATA_ARRIVED = 320;
+
+	private static final String DEVICE_NAME = "DeviceName";
+
+	@ClassRule
+	public static TemporaryFolder testFolder = new TemporaryFolder();
+
+	private Level threshold;
+	private MockDriverContext driverContext;
+
+	@Before
+	public void setup() throws Exception {
+		assumeTrue("Thread allocation counters are not supported", AllocationMeter.isSupported());
+
+		// Debug logging allocates, so it is disabled during the measurements
+		threshold = LogManager.getLoggerRepository().getThreshold();
+		LogManager.getLoggerRepository().setThreshold(Level.INFO);
+
+		driverContext = new MockDriverContext(DEVICE_NAME);
+		driverContext.setDiskPath(testFolder.newFolder().getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() {
+		if (threshold != null) {
+			LogManager.getLoggerRepository().setThreshold(threshold);
+		}
+	}
+
+	@Test
+	public void testAddData() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.UInt16);
+		DriverConfig driverConfig = new DriverConfig();
+		driverConfig.setMessageIdType(driverSettings.getMessageIdType());
+		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
+		MessageHeader messageHeader = new MessageHeader(new HeaderConfig(), ByteOrder.BIG_ENDIAN);
+		InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,1}), 1999);
+
+		final MessageState state = new MessageState(remoteSocket, null, messageHeader, driverConfig, driverSettings);
+		final int[] received = new int[1];
+		state.setMessageHandler(new IMessageHandler() {
+			@Override
+			public void messageReceived(InetSocketAddress remoteSocket, int messageId, MessageEnvelope data, byte[] handshake) {
+				received[0]++;
+			}
+
+			@Override
+			public boolean clientConnected(InetSocketAddress remoteSocket) {
+				return true;
+			}
+
+			@Override
+			public void clientDisconnected(InetSocketAddress remoteSocket) {
+			}
+
+			@Override
+			public void clientReadTimeout(InetSocketAddress remoteSocket) {
+			}
+		});
+
+		// Message ID 1 with 4 bytes of payload
+		final ByteBuffer data = ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 0, 2 });
+		double bytes = AllocationMeter.measure(WARMUP, ITERATIONS, new AllocationMeter.Operation() {
+			@Override
+			public void run(int iteration) {
+				data.rewind();
+				state.addData(data, iteration);
+			}
+		});
+
+		assertEquals(WARMUP + ITERATIONS, received[0]);
+		assertBudget("MessageState.addData", bytes, BUDGET_ADD_DATA);
+	}
+
+	@Test
+	public void testEvaluateMessage() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigSimple.xml");
+		final IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+
+		final MessageEnvelope envelope = FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66});
+		double bytes = AllocationMeter.measure(WARMUP, ITERATIONS, new AllocationMeter.Operation() {
+			@Override
+			public void run(int iteration) throws Exception {
+				folder.messageArrived(envelope, null);
+				driverContext.getExecutor().runCommand();
+			}
+		});
+
+		assertEquals(0, driverContext.getExecutor().getScheduledCount());
+		folder.shutdown();
+		assertBudget("IndexMessageFolder.evaluateMessage", bytes, BUDGET_EVALUATE);
+	}
+
+	@Test
+	public void testSubscriptionUpdate() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigSimple.xml");
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66}), null);
+		driverContext.getExecutor().runCommand();
+
+		MockSubscriptionItem dataItem = new MockSubscriptionItem("Alias1/Data1", 1000);
+		List<SubscriptionItem> items = new ArrayList<SubscriptionItem>();
+		items.add(dataItem);
+		items.add(new MockSubscriptionItem("Alias1/_MessageCount", 1000));
+		folder.changeSubscription(items, null);
+
+		final SelfSchedulingRunnable updater = driverContext.getSelfSchedulingRunnable(folder.getFolderAddress(), MessageFolder.UPDATER_COMMAND_NAME);
+		double bytes = AllocationMeter.measure(WARMUP, ITERATIONS, new AllocationMeter.Operation() {
+			@Override
+			public void run(int iteration) {
+				// The first run updates the data items, the second run the special items
+				updater.run();
+				updater.run();
+			}
+		});
+
+		assertEquals("AB", dataItem.getValue().getValue().getValue());
+		folder.shutdown();
+		assertBudget("SubscriptionUpdater.run", bytes, BUDGET_SUBSCRIPTION);
+	}
+
+	@Test
+	public void testDataArrived() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.UInt16);
+		DriverConfig driverConfig = new DriverConfig();
+		driverConfig.setMessageIdType(driverSettings.getMessageIdType());
+		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
+		MessageHeader messageHeader = new MessageHeader(new HeaderConfig(), ByteOrder.BIG_ENDIAN);
+		final InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,1}), 1999);
+
+		// The server thread passes every read to the event handler. No socket is used, so the measurement does not
+		// depend on the selector implementation of the platform.
+		final int[] received = new int[1];
+		final NioEventHandler eventHandler = new NioEventHandler(DriverTestSuite.getLogger(), driverConfig, driverSettings, messageHeader, new IMessageHandler() {
+			@Override
+			public void messageReceived(InetSocketAddress remoteSocket, int messageId, MessageEnvelope data, byte[] handshake) {
+				received[0]++;
+			}
+
+			@Override
+			public boolean clientConnected(InetSocketAddress remoteSocket) {
+				return true;
+			}
+
+			@Override
+			public void clientDisconnected(InetSocketAddress remoteSocket) {
+			}
+
+			@Override
+			public void clientReadTimeout(InetSocketAddress remoteSocket) {
+			}
+		});
+		eventHandler.clientConnected(remoteSocket);
+
+		// Message ID 1 with 4 bytes of payload
+		final ByteBuffer data = ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 0, 2 });
+		double bytes = AllocationMeter.measure(WARMUP, ITERATIONS, new AllocationMeter.Operation() {
+			@Override
+			public void run(int iteration) {
+				data.rewind();
+				eventHandler.dataArrived(remoteSocket, data, data.remaining());
+			}
+		});
+
+		assertEquals(WARMUP + ITERATIONS, received[0]);
+		assertBudget("NioEventHandler.dataArrived", bytes, BUDGET_DATA_ARRIVED);
+	}
+
+	private void assertBudget(String path, double bytes, int budget) {
+		DriverTestSuite.getLogger().info(String.format("%s allocates %.1f bytes per message, budget %d bytes", path, bytes, budget));
+		assertTrue(String.format("%s allocates %.1f bytes per message, the budget is %d bytes", path, bytes, budget), bytes <= budget);
+	}
+}
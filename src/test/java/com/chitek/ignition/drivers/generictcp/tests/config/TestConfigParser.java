@@ -15,6 +15,7 @@ import com.chitek.ignition.drivers.generictcp.meta.config.TagConfig;
 import com.chitek.ignition.drivers.generictcp.tests.DriverTestSuite;
 import com.chitek.ignition.drivers.generictcp.types.HeaderDataType;
 import com.chitek.ignition.drivers.generictcp.types.MessageType;
+import com.chitek.ignition.drivers.generictcp.types.QueueMode;
 import com.chitek.ignition.drivers.generictcp.types.TagLengthType;
 
 public class TestConfigParser {
@@ -77,4 +78,42 @@ public class TestConfigParser {
 		TagConfig tag = messageConfig.tags.get(1);
 		assertEquals("TagLengthType", TagLengthType.PACKET_BASED, tag.getTagLengthType());
 	}
+	
+	@Test
+	public void testMessageConfigBatchSizeCycle() throws Exception {
+		InputStream in = this.getClass().getResourceAsStream("/testMessageConfigQueue.xml");
+		String xml = IOUtils.toString(in);
+		MessageConfig inputConfig = MessageConfig.fromXMLString(xml);
+		assertEquals("Default batch size", MessageConfig.DEFAULT_BATCH_SIZE, inputConfig.getBatchSize());
+		int hash = inputConfig.getConfigHash();
+
+		// The batch size is ignored in other queue modes and must not change the config hash
+		inputConfig.setBatchSize(5);
+		assertEquals("Config hash", hash, inputConfig.getConfigHash());
+
+		inputConfig.setQueueMode(QueueMode.BATCH_HANDSHAKE);
+		MessageConfig messageConfig = MessageConfig.fromXMLString(inputConfig.toXMLString());
+		assertEquals("QueueMode", QueueMode.BATCH_HANDSHAKE, messageConfig.getQueueMode());
+		assertEquals("Batch size", 5, messageConfig.getBatchSize());
+	}
+
+	@Test
+	public void testMessageConfigDrainPolicyCycle() throws Exception {
+		InputStream in = this.getClass().getResourceAsStream("/testMessageConfigQueue.xml");
+		String xml = IOUtils.toString(in);
+		MessageConfig inputConfig = MessageConfig.fromXMLString(xml);
+		inputConfig.setQueueMode(QueueMode.DELAYED);
+		int hash = inputConfig.getConfigHash();
+
+		// The default drain policy is not written, existing configurations keep their config hash
+		assertEquals("Config hash", hash, MessageConfig.fromXMLString(inputConfig.toXMLString()).getConfigHash());
+
+		inputConfig.setDrainMessagesPerCycle(2);
+		inputConfig.setDrainMaxBurst(20);
+		inputConfig.setDrainCatchUpThreshold(100);
+		MessageConfig messageConfig = MessageConfig.fromXMLString(inputConfig.toXMLString());
+		assertEquals("Messages per cycle", 2, messageConfig.getDrainMessagesPerCycle());
+		assertEquals("Max burst", 20, messageConfig.getDrainMaxBurst());
+		assertEquals("Catch up threshold", 100, messageConfig.getDrainCatchUpThreshold());
+	}
 }
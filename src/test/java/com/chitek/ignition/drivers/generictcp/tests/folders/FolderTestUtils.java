@@ -1,8 +1,11 @@
 package com.chitek.ignition.drivers.generictcp.tests.folders;
 
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
 import com.chitek.ignition.drivers.generictcp.folder.MessageFolder;
 import com.inductiveautomation.xopc.driver.api.items.ReadItem;
 import com.inductiveautomation.xopc.driver.api.items.WriteItem;
@@ -22,4 +25,14 @@ public class FolderTestUtils {
 		folder.writeItems(items);
 		return ((MockWriteItem) items.get(0)).getWriteStatus();
 	}
+
+	/**
+	 * Creates a message from test data. Bytes 0-7 contain the receive timestamp shifted left by 16 bits plus the sequence
+	 * id, bytes 8-15 the header timestamp in big endian byte order.
+	 */
+	public static MessageEnvelope envelope(byte[] data) {
+		MessageEnvelope decoded = MessageEnvelope.decodeLegacy(data, 0, ByteOrder.BIG_ENDIAN);
+		byte[] payload = Arrays.copyOfRange(data, decoded.getPayloadOffset(), data.length);
+		return new MessageEnvelope(0, decoded.getTimeReceived(), decoded.getSequenceId(), decoded.getHeaderTimestamp(), payload);
+	}
 }
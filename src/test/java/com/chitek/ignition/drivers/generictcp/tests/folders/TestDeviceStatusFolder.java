@@ -8,13 +8,16 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.milo.opcua.sdk.server.nodes.UaNode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
 import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.chitek.ignition.drivers.generictcp.folder.DeviceStatusFolder;
+import com.chitek.ignition.drivers.generictcp.io.DeviceStatistics;
 import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
+import com.inductiveautomation.xopc.driver.api.items.ReadItem;
 import com.inductiveautomation.xopc.driver.util.TagTree.TagTreeNode;
 
 public class TestDeviceStatusFolder {
@@ -39,7 +42,10 @@ public class TestDeviceStatusFolder {
 		assertNotNull(rootNode);
 		assertNotNull(rootNode.getTag());
 		
-		String[] expectedNodes = new String[]{"Device1/[Status]/Is Connected"};
+		String[] expectedNodes = new String[]{"Device1/[Status]/Is Connected", "Device1/[Status]/Bytes Received",
+			"Device1/[Status]/Bytes Per Second", "Device1/[Status]/Messages Received", "Device1/[Status]/Messages Per Second",
+			"Device1/[Status]/Discarded Packets", "Device1/[Status]/Invalid Headers", "Device1/[Status]/Undefined Message IDs",
+			"Device1/[Status]/Dropped Messages"};
 		List<String> browseNodes = new ArrayList<String>();
 		for (TagTreeNode<String> childNode : rootNode.getChildren()) {
 			// TagTreeNode.Address contains a modified address to use the TagTree with Arrays
@@ -65,5 +71,59 @@ public class TestDeviceStatusFolder {
 		assertEquals(NodeClass.Variable, dataNode.getNodeClass());
 		assertEquals("Is Connected", dataNode.getBrowseName().getName());
 	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		DeviceStatistics statistics = new DeviceStatistics();
+		DeviceStatusFolder folder = new DeviceStatusFolder(driverContext, 1, "Device1", statistics);
+		// Use times in the future, so reads do not calculate the rates
+		long start = System.currentTimeMillis() + 60000;
+		folder.updateStatistics(start);
+
+		statistics.bytesReceived(500);
+		statistics.messageReceived();
+		statistics.messageReceived();
+		statistics.invalidHeader();
+		statistics.undefinedMessageId();
+		statistics.messageDropped();
+
+		// Counters are updated on every read
+		MockReadItem bytesItem = new MockReadItem("Device1/[Status]/Bytes Received");
+		MockReadItem messagesItem = new MockReadItem("Device1/[Status]/Messages Received");
+		MockReadItem discardedItem = new MockReadItem("Device1/[Status]/Discarded Packets");
+		MockReadItem headersItem = new MockReadItem("Device1/[Status]/Invalid Headers");
+		MockReadItem undefinedItem = new MockReadItem("Device1/[Status]/Undefined Message IDs");
+		MockReadItem droppedItem = new MockReadItem("Device1/[Status]/Dropped Messages");
+		List<ReadItem> items = new ArrayList<ReadItem>();
+		items.add(bytesItem);
+		items.add(messagesItem);
+		items.add(discardedItem);
+		items.add(headersItem);
+		items.add(undefinedItem);
+		items.add(droppedItem);
+		folder.readItems(items);
+		assertEquals(500L, bytesItem.getValue().getValue().getValue());
+		assertEquals(2L, messagesItem.getValue().getValue().getValue());
+		assertEquals(2L, discardedItem.getValue().getValue().getValue());
+		assertEquals(1L, headersItem.getValue().getValue().getValue());
+		assertEquals(1L, undefinedItem.getValue().getValue().getValue());
+		assertEquals(1L, droppedItem.getValue().getValue().getValue());
+
+		// Rates are calculated after the rate interval
+		MockReadItem bytesRateItem = new MockReadItem("Device1/[Status]/Bytes Per Second");
+		MockReadItem messagesRateItem = new MockReadItem("Device1/[Status]/Messages Per Second");
+		items.clear();
+		items.add(bytesRateItem);
+		items.add(messagesRateItem);
+		folder.updateStatistics(start + 500);
+		folder.readItems(items);
+		DataValue rate = bytesRateItem.getValue();
+		assertEquals(0f, rate.getValue().getValue());
+
+		folder.updateStatistics(start + 2000);
+		folder.readItems(items);
+		assertEquals(250f, bytesRateItem.getValue().getValue().getValue());
+		assertEquals(1f, messagesRateItem.getValue().getValue().getValue());
+	}
 	
 }
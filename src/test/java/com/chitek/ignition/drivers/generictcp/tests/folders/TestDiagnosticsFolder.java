@@ -0,0 +1,112 @@
+package com.chitek.ignition.drivers.generictcp.tests.folders;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics.Stage;
+import com.chitek.ignition.drivers.generictcp.folder.DiagnosticsFolder;
+import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
+import com.chitek.util.LatencyHistogram;
+import com.inductiveautomation.xopc.driver.api.items.ReadItem;
+import com.inductiveautomation.xopc.driver.util.TagTree.TagTreeNode;
+
+public class TestDiagnosticsFolder {
+
+	private static final String DEVICE_NAME = "DeviceName";
+	private MockDriverContext driverContext;
+
+	@Before
+	public void setup() throws Exception {
+		driverContext = new MockDriverContext(DEVICE_NAME);
+	}
+
+	@Test
+	public void testBrowseTree() throws Exception {
+		new DiagnosticsFolder(driverContext);
+
+		TagTreeNode<String> latencyNode = driverContext.getBrowseTree().findTag("[Diagnostics]/Latency");
+		assertNotNull(latencyNode);
+		List<String> browseNodes = new ArrayList<String>();
+		for (TagTreeNode<String> childNode : latencyNode.getChildren()) {
+			browseNodes.add(childNode.getTag());
+		}
+		assertArrayEquals(new String[] { "[Diagnostics]/Latency/Framing", "[Diagnostics]/Latency/Queue", "[Diagnostics]/Latency/Evaluation",
+			"[Diagnostics]/Latency/Publish", "[Diagnostics]/Latency/Total" }, browseNodes.toArray());
+
+		TagTreeNode<String> totalNode = driverContext.getBrowseTree().findTag("[Diagnostics]/Latency/Total");
+		browseNodes.clear();
+		for (TagTreeNode<String> childNode : totalNode.getChildren()) {
+			browseNodes.add(childNode.getTag());
+		}
+		assertArrayEquals(new String[] { "[Diagnostics]/Latency/Total/Count", "[Diagnostics]/Latency/Total/P50", "[Diagnostics]/Latency/Total/P99",
+			"[Diagnostics]/Latency/Total/P99.9", "[Diagnostics]/Latency/Total/Max" }, browseNodes.toArray());
+	}
+
+	@Test
+	public void testHistogram() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertArrayEquals(new long[] { 0, 0 }, histogram.getPercentiles(50, 99));
+
+		// 1..1000 microseconds
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+
+		long[] percentiles = histogram.getPercentiles(50, 99, 99.9);
+		// Buckets have a relative precision of about 3%
+		assertTrue(percentiles[0] >= 500 && percentiles[0] <= 500 * 1.04);
+		assertTrue(percentiles[1] >= 990 && percentiles[1] <= 1000);
+		assertTrue(percentiles[2] >= 999 && percentiles[2] <= 1000);
+
+		// Small values are exact, negative and too large values are limited
+		histogram.reset();
+		histogram.record(17000);
+		histogram.record(-5);
+		assertArrayEquals(new long[] { 0, 17 }, histogram.getPercentiles(50, 100));
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getPercentiles(100)[0]);
+	}
+
+	@Test
+	public void testValues() throws Exception {
+		LatencyStatistics latency = driverContext.getLatencyStatistics();
+		DiagnosticsFolder folder = new DiagnosticsFolder(driverContext);
+		// Use times in the future, so reads do not update the values
+		long start = System.currentTimeMillis() + 60000;
+		folder.updateValues(start);
+
+		latency.record(Stage.Total, 2000000);
+		latency.record(Stage.Total, 4000000);
+
+		MockReadItem countItem = new MockReadItem("[Diagnostics]/Latency/Total/Count");
+		MockReadItem maxItem = new MockReadItem("[Diagnostics]/Latency/Total/Max");
+		List<ReadItem> items = new ArrayList<ReadItem>();
+		items.add(countItem);
+		items.add(maxItem);
+
+		// Values are updated after the update interval
+		folder.updateValues(start + 500);
+		folder.readItems(items);
+		assertEquals(0L, countItem.getValue().getValue().getValue());
+
+		folder.updateValues(start + 1000);
+		folder.readItems(items);
+		assertEquals(2L, countItem.getValue().getValue().getValue());
+		assertEquals(4f, maxItem.getValue().getValue().getValue());
+		float p50 = (Float) FolderTestUtils.readValue(folder, "[Diagnostics]/Latency/Total/P50").getValue().getValue();
+		assertTrue(p50 >= 2f && p50 < 2.1f);
+		assertEquals(0L, FolderTestUtils.readValue(folder, "[Diagnostics]/Latency/Queue/Count").getValue().getValue());
+	}
+}
@@ -2,16 +2,23 @@ package com.chitek.ignition.drivers.generictcp.tests.folders;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.eclipse.milo.opcua.sdk.core.ValueRank;
 import org.eclipse.milo.opcua.sdk.core.ValueRanks;
@@ -26,20 +33,30 @@ import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.FolderInfo;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics;
+import com.chitek.ignition.drivers.generictcp.diagnostics.LatencyStatistics.Stage;
 import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
-import com.chitek.ignition.drivers.generictcp.folder.MessageDataWrapper;
+import com.chitek.ignition.drivers.generictcp.folder.FolderManager;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
+import com.chitek.ignition.drivers.generictcp.folder.MessageFolder;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
 import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
 import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
 import com.chitek.ignition.drivers.generictcp.tests.TestUtils;
 import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
 import com.chitek.ignition.drivers.generictcp.types.QueueMode;
-import com.chitek.ignition.drivers.generictcp.util.VariantByteBuffer;
+import com.chitek.ignition.drivers.generictcp.types.QueueStorage;
+import com.chitek.util.CloseableQueue;
+import com.chitek.util.LZCompressor;
+import com.chitek.util.PersistentQueue;
+import com.chitek.util.QueueLog;
+import com.inductiveautomation.ignition.common.execution.SelfSchedulingRunnable;
 import com.inductiveautomation.xopc.driver.api.items.ReadItem;
+import com.inductiveautomation.xopc.driver.api.items.SubscriptionItem;
 import com.inductiveautomation.xopc.driver.util.TagTree.TagTreeNode;
 
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
-import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
 
 public class TestMessageFolder {
 
@@ -57,14 +74,40 @@ public class TestMessageFolder {
 	}
 
 	@Test
-	public void testMessageDataWrapper() throws Exception {
-		MessageDataWrapper wrapper = new MessageDataWrapper();
-		byte[] data = MessageDataWrapper.wrapMessage(1000, 2499, (short)2, new byte[]{1,2,3,4},ByteOrder.BIG_ENDIAN);
-		int payloadLength = wrapper.evaluateData(new VariantByteBuffer(data));
-		assertEquals(4, payloadLength);
-		assertEquals(1000, wrapper.getTimeReceived());
-		assertEquals(2, wrapper.getSequenceId());
-		assertEquals(2499, wrapper.getHeaderTimestamp());
+	public void testMessageEnvelope() throws Exception {
+		MessageEnvelope envelope = new MessageEnvelope(FolderManager.getFolderId(1, 5), 1563867000123L, 2, 2499, new byte[]{1,2,3,4});
+		byte[] data = envelope.encode();
+		// Format byte, 6 bytes receive time, 1 byte sequence, 2 bytes header timestamp, 4 bytes folder id
+		assertEquals(14 + 4, data.length);
+
+		MessageEnvelope decoded = MessageEnvelope.decode(data);
+		assertEquals(4, decoded.getPayloadLength());
+		assertArrayEquals(new byte[]{1,2,3,4}, Arrays.copyOfRange(decoded.getData(), decoded.getPayloadOffset(), data.length));
+		assertEquals(1563867000123L, decoded.getTimeReceived());
+		assertEquals(2, decoded.getSequenceId());
+		assertEquals(2499, decoded.getHeaderTimestamp());
+		assertEquals(FolderManager.getFolderId(1, 5), decoded.getFolderId());
+		assertTrue(decoded.isSameMessage(envelope));
+		assertEquals((1563867000123L << 16) + 2, decoded.getId());
+
+		// Messages stored by older versions have a 16 byte prefix
+		ByteBuffer legacy = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+		legacy.putLong((1000L << 16) + 3).putLong(2499).put(new byte[]{1,2,3,4});
+		decoded = MessageEnvelope.decodeLegacy(legacy.array(), 7, ByteOrder.LITTLE_ENDIAN);
+		assertEquals(1000, decoded.getTimeReceived());
+		assertEquals(3, decoded.getSequenceId());
+		assertEquals(2499, decoded.getHeaderTimestamp());
+		assertEquals(7, decoded.getFolderId());
+		assertEquals(16, decoded.getPayloadOffset());
+		assertEquals(4, decoded.getPayloadLength());
+		assertEquals(decoded.getId(), MessageEnvelope.decode(decoded.encode()).getId());
+
+		// The legacy format is never guessed from the data
+		try {
+			MessageEnvelope.decode(legacy.array());
+			assertTrue("Legacy data has been decoded", false);
+		} catch (IllegalArgumentException e) {
+		}
 	}
 	
 	@Test
@@ -96,7 +139,7 @@ public class TestMessageFolder {
 		folder.readItems(items);
 		assertNotNull(itemData1.getValue());
 
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66}, null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66}), null); // 65,66 == 'AB'
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -138,7 +181,7 @@ public class TestMessageFolder {
 		folder.readItems(items);
 		assertNotNull(itemData1.getValue());
 
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0,65,66}, null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0,65,66}), null); // 65,66 == 'AB'
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -189,7 +232,7 @@ public class TestMessageFolder {
 		folder.readItems(items);
 		assertNotNull(itemData1.getValue());
 
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,20, 0,1,0,2,0,0,0,10}, null); // Data1=1, Data2=2, Age=10ms
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,20, 0,1,0,2,0,0,0,10}), null); // Data1=1, Data2=2, Age=10ms
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -226,7 +269,7 @@ public class TestMessageFolder {
 		folder.readItems(items);
 		assertNotNull(itemData1.getValue());
 
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,10, 0,1,0,2, (byte) 0xff,(byte) 0xff,(byte) 0xff,(byte) 0xf6}, null); // Data1=1, Data2=2, Age=20ms
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,10, 0,1,0,2, (byte) 0xff,(byte) 0xff,(byte) 0xff,(byte) 0xf6}), null); // Data1=1, Data2=2, Age=20ms
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -258,7 +301,7 @@ public class TestMessageFolder {
 		folder.readItems(items);
 		assertNotNull(itemData1.getValue());
 
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,10, 0,1,0,2, (byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xff}, null); // Data1=1, Data2=2, Age=20ms
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,10, 0,1,0,2, (byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xff}), null); // Data1=1, Data2=2, Age=20ms
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -270,7 +313,7 @@ public class TestMessageFolder {
 		assertNotNull(ageValue);
 		assertEquals("Message Age", uint(11), ageValue.getValue().getValue());
 		
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,10, 0,1,0,2, 0,0,0,0}, null); // Data1=1, Data2=2, Age=20ms
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,10, 0,1,0,2, 0,0,0,0}), null); // Data1=1, Data2=2, Age=20ms
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -282,7 +325,7 @@ public class TestMessageFolder {
 		assertNotNull(ageValue);
 		assertEquals("Message Age", uint(10), ageValue.getValue().getValue());
 		
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0, 0,1,0,2, (byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xff}, null); // Data1=1, Data2=2, Age=20ms
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0, 0,1,0,2, (byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xff}), null); // Data1=1, Data2=2, Age=20ms
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -294,7 +337,7 @@ public class TestMessageFolder {
 		assertNotNull(ageValue);
 		assertEquals("Message Age", uint(1), ageValue.getValue().getValue());
 		
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,(byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xf0, 0,1,0,2, (byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xe0}, null); // Data1=1, Data2=2, Age=20ms
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,(byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xf0, 0,1,0,2, (byte) 0x7f,(byte) 0xff,(byte) 0xff,(byte) 0xe0}), null); // Data1=1, Data2=2, Age=20ms
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -319,7 +362,7 @@ public class TestMessageFolder {
 
 		byte[] handshakeMessage = new byte[]{1,2,3,4};
 
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,67}, handshakeMessage); // 65,67 == 'AC'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,67}), handshakeMessage); // 65,67 == 'AC'
 
 		assertArrayEquals(handshakeMessage, driverContext.getLastWrittenMessage());
 		
@@ -338,7 +381,7 @@ public class TestMessageFolder {
 
 		byte[] handshakeMessage = new byte[]{1,2,3,4};
 
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,67}, handshakeMessage); // 65,67 == 'AC'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,67}), handshakeMessage); // 65,67 == 'AC'
 		
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -359,18 +402,22 @@ public class TestMessageFolder {
 		assertNotNull("Folder in Queue mode should have a _QueueSize tag", nodeQueueSize);
 		
 		byte[] message = new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66};
-		folder.messageArrived(message, null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(message), null); // 65,66 == 'AB'
 		
 		// The folder is not active, so it should not have tried to evaluate the message
 		assertEquals(0, driverContext.getExecutor().getScheduledCount());
 		
 		// Add a second message
 		message = new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,67,68};
-		folder.messageArrived(message, null); // 67,68 == 'CD'
+		folder.messageArrived(FolderTestUtils.envelope(message), null); // 67,68 == 'CD'
 		
 		// QueueSize should be 2 now
 		DataValue queueSize = FolderTestUtils.readValue(folder,"Alias1/_QueueSize");
-		assertEquals(ushort(2), queueSize.getValue().getValue());
+		assertEquals(uint(2), queueSize.getValue().getValue());
+		FolderInfo info = folder.getFolderInfo();
+		assertEquals(2, info.getQueueSize());
+		assertTrue(info.getQueueBytes() > 0);
+		assertEquals(0, info.getPendingEvaluations());
 		
 		// Now activate the folder
 		folder.activityLevelChanged(true);
@@ -393,7 +440,7 @@ public class TestMessageFolder {
 		
 		// QueueSize should be 1 now
 		queueSize = FolderTestUtils.readValue(folder,"Alias1/_QueueSize");
-		assertEquals(ushort(1), queueSize.getValue().getValue());
+		assertEquals(uint(1), queueSize.getValue().getValue());
 		
 		// The folder should evaluate the next queued message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -428,7 +475,7 @@ public class TestMessageFolder {
 		assertNotNull("Folder in Queue mode should have a _QueueSize tag", nodeQueueSize);
 		
 		byte[] message = new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66};
-		folder.messageArrived(message, null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(message), null); // 65,66 == 'AB'
 		
 		// The folder is not active, so it should not have tried to evaluate the message
 		assertEquals(0, driverContext.getExecutor().getScheduledCount());
@@ -438,17 +485,17 @@ public class TestMessageFolder {
 
 		Path file = Paths.get(path);
 		assertTrue("Queue file has not been created",Files.exists(file));
-		assertEquals(124,Files.size(file));
+		assertEquals(52,Files.size(file));
 		
 		// Add a second message
 		message = new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,67,68};
-		folder.messageArrived(message, null); // 67,68 == 'CD'
+		folder.messageArrived(FolderTestUtils.envelope(message), null); // 67,68 == 'CD'
 		
 		// QueueSize should be 2 now
 		DataValue queueSize = FolderTestUtils.readValue(folder,"Alias1/_QueueSize");
-		assertEquals(ushort(2), queueSize.getValue().getValue());
+		assertEquals(uint(2), queueSize.getValue().getValue());
 		
-		assertEquals(166,Files.size(file));
+		assertEquals(64,Files.size(file));
 		
 		// Shutdown the folder
 		folder.shutdown();
@@ -458,7 +505,7 @@ public class TestMessageFolder {
 		
 		// QueueSize should be 2 now
 		queueSize = FolderTestUtils.readValue(folder,"Alias1/_QueueSize");
-		assertEquals("Wrong message count read from queue file",ushort(2), queueSize.getValue().getValue());
+		assertEquals("Wrong message count read from queue file",uint(2), queueSize.getValue().getValue());
 		
 		// Now activate the folder
 		folder.activityLevelChanged(true);
@@ -481,7 +528,7 @@ public class TestMessageFolder {
 		
 		// QueueSize should be 1 now
 		queueSize = FolderTestUtils.readValue(folder,"Alias1/_QueueSize");
-		assertEquals(ushort(1), queueSize.getValue().getValue());
+		assertEquals(uint(1), queueSize.getValue().getValue());
 		
 		// The folder should evaluate the next queued message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -535,7 +582,7 @@ public class TestMessageFolder {
 		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigSimple.xml");
 		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
 		
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65}, null); // Message is 1 byte too short
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65}), null); // Message is 1 byte too short
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -562,7 +609,7 @@ public class TestMessageFolder {
 		buffer.flip();
 		byte[]data = new byte[buffer.remaining()];
 		buffer.get(data);
-		folder.messageArrived(data, null);
+		folder.messageArrived(FolderTestUtils.envelope(data), null);
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -590,7 +637,7 @@ public class TestMessageFolder {
 		assertEquals(5, messageConfig.getMessageLength());
 		
 		// Message config defined one Int16 tag and then a variable length String with minimal length 3
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0, 1,1, 'a','b','c'}, null); // Message is 1 byte too short
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0, 1,1, 'a','b','c'}), null); // Message is 1 byte too short
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -613,7 +660,7 @@ public class TestMessageFolder {
 		assertEquals(5, messageConfig.getMessageLength());
 		
 		// Message config defined one Int16 tag and then a variable length String with minimal length 3
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0, 1,1, 'a','b','c','d','e'}, null); // Message is 1 byte too short
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0, 0,0,0,0,0,0,0,0, 1,1, 'a','b','c','d','e'}), null); // Message is 1 byte too short
 
 		// The folder should have added a schedule to evaluate the message
 		assertEquals(1, driverContext.getExecutor().getScheduledCount());
@@ -627,6 +674,595 @@ public class TestMessageFolder {
 		folder.shutdown();
 	}	
 	
+	@Test
+	public void testDiskQueueStorage() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigQueue.xml");
+		messageConfig.setQueueStorage(QueueStorage.DISK);
+		messageConfig.setQueueCapacity(2);
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,1,0,0,0,0,0,0,0,0,65,66}), null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,2,0,0,0,0,0,0,0,0,67,68}), null); // 67,68 == 'CD'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,3,0,0,0,0,0,0,0,0,69,70}), null); // 69,70 == 'EF'
+
+		// The queue capacity is exceeded, the oldest message is discarded
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+
+		assertTrue("Queue log has not been created", QueueLog.exists(driverContext.getDiskPath()));
+		folder.shutdown();
+		driverContext.closeQueueLog();
+
+		// Reinitialize the folder - the index is rebuilt from the queue log
+		folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+
+		folder.activityLevelChanged(true);
+		driverContext.getExecutor().runCommand();
+		assertEquals("CD", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		assertEquals(uint(1), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		driverContext.getExecutor().runCommand();
+		assertEquals("EF", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		folder.shutdown();
+
+		// A byte limit discards old messages as well
+		messageConfig.setQueueCapacity(MessageConfig.DEFAULT_QUEUE_CAPACITY);
+		messageConfig.setQueueCapacityMB(1);
+		folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		byte[] message = new byte[400 * 1024];
+		for (int i = 1; i <= 3; i++) {
+			message[7] = (byte) i;
+			folder.messageArrived(FolderTestUtils.envelope(message), null);
+		}
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		folder.shutdown();
+	}
+
+	@Test
+	public void testLegacyQueueConversion() throws Exception {
+		// In little endian byte order, the first byte of a legacy entry is the low byte of the sequence id
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, true, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigPersistant.xml");
+		int folderId = FolderManager.getFolderId(0, messageConfig.getMessageId());
+		byte[] first = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN).putLong((1000L << 16) + 0xE1).putLong(0).put(new byte[]{65,66}).array();
+		byte[] second = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN).putLong((1001L << 16) + 1).putLong(0).put(new byte[]{67,68}).array();
+
+		// Queue file written by a previous version
+		Path legacyFile = Paths.get(driverContext.getDiskPath() + IndexMessageFolder.QUEUE_FILE_PREFIX + folderId + IndexMessageFolder.LEGACY_QUEUE_FILE_EXTENSION);
+		ObjectOutputStream legacy = new ObjectOutputStream(Files.newOutputStream(legacyFile));
+		legacy.writeObject(Integer.valueOf(messageConfig.getConfigHash()));
+		legacy.writeObject(first);
+		legacy.writeObject(second);
+		legacy.close();
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		assertFalse("Legacy queue file has not been deleted", Files.exists(legacyFile));
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		folder.shutdown();
+
+		// The converted queue is read again
+		folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		folder.activityLevelChanged(true);
+		driverContext.getExecutor().runCommand();
+		assertEquals("AB", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		driverContext.getExecutor().runCommand();
+		assertEquals("CD", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		folder.shutdown();
+		driverContext.getExecutor().clear();
+
+		// Queue log entries written by a previous version use the plain configuration hash
+		messageConfig.setQueueStorage(QueueStorage.DISK);
+		QueueLog.Cursor cursor = driverContext.getQueueLog().openQueue(folderId, messageConfig.getConfigHash());
+		cursor.offer(first);
+		cursor.offer(second);
+		cursor.close();
+
+		folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		assertFalse(driverContext.getQueueLog().hasEntries(folderId, messageConfig.getConfigHash()));
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		folder.activityLevelChanged(true);
+		driverContext.getExecutor().runCommand();
+		assertEquals("AB", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		folder.shutdown();
+		driverContext.closeQueueLog();
+	}
+
+	@Test
+	public void testInvalidQueueEntry() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigPersistant.xml");
+		int folderId = FolderManager.getFolderId(0, messageConfig.getMessageId());
+
+		// A damaged entry at the queue head
+		String path = driverContext.getDiskPath() + IndexMessageFolder.QUEUE_FILE_PREFIX + folderId + IndexMessageFolder.QUEUE_FILE_EXTENSION;
+		PersistentQueue<byte[]> queue = new PersistentQueue<byte[]>(path, messageConfig.getConfigHash(), true, null);
+		queue.offer(new byte[]{1,2,3});
+		queue.offer(new MessageEnvelope(folderId, 1000, 0, 0, new byte[]{65,66}).encode());
+		queue.close();
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+
+		// The damaged entry is discarded, the next message is evaluated
+		folder.activityLevelChanged(true);
+		driverContext.getExecutor().runCommand();
+		assertEquals("AB", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		assertEquals(uint(0), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		folder.shutdown();
+	}
+
+	@Test
+	public void testInvalidQueueEntryInBatch() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigPersistant.xml");
+		messageConfig.setQueueMode(QueueMode.BATCH_HANDSHAKE);
+		messageConfig.setBatchSize(2);
+		int folderId = FolderManager.getFolderId(0, messageConfig.getMessageId());
+
+		// A damaged entry in the middle of the queue
+		String path = driverContext.getDiskPath() + IndexMessageFolder.QUEUE_FILE_PREFIX + folderId + IndexMessageFolder.QUEUE_FILE_EXTENSION;
+		PersistentQueue<byte[]> queue = new PersistentQueue<byte[]>(path, messageConfig.getConfigHash(), true, null);
+		MessageEnvelope last = new MessageEnvelope(folderId, 1002, 0, 0, new byte[]{69,70});
+		queue.offer(new MessageEnvelope(folderId, 1000, 0, 0, new byte[]{65,66}).encode());
+		queue.offer(new byte[]{1,2,3});
+		queue.offer(new MessageEnvelope(folderId, 1001, 0, 0, new byte[]{67,68}).encode());
+		queue.offer(last.encode());
+		long bytes = queue.sizeInBytes();
+		queue.close();
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		assertEquals(uint(4), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		assertEquals(bytes, folder.getFolderInfo().getQueueBytes());
+
+		// The damaged entry is skipped, the batch contains the next valid message
+		folder.activityLevelChanged(true);
+		driverContext.getExecutor().runCommand();
+		DataValue value = FolderTestUtils.readValue(folder,"Alias1/_Batch/Data1");
+		assertArrayEquals(new String[]{"AB", "CD"}, (String[]) value.getValue().getValue());
+		assertEquals(uint(4), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+
+		// The handshake removes the batch and the damaged entry
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		assertEquals(uint(1), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		assertEquals(last.getEncodedLength(), folder.getFolderInfo().getQueueBytes());
+		driverContext.getExecutor().runCommand();
+		value = FolderTestUtils.readValue(folder,"Alias1/_Batch/Data1");
+		assertArrayEquals(new String[]{"EF"}, (String[]) value.getValue().getValue());
+
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		assertEquals(uint(0), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		assertEquals(0, folder.getFolderInfo().getQueueBytes());
+		folder.shutdown();
+	}
+
+	@Test
+	public void testPersistentQueueRecovery() throws Exception {
+		String path = driverContext.getDiskPath() + "recovery.que";
+		PersistentQueue<byte[]> queue = new PersistentQueue<byte[]>(path, 100, true, null);
+		for (int i = 0; i < 150; i++) {
+			queue.offer(new byte[]{(byte) i});
+		}
+		for (int i = 0; i < 30; i++) {
+			queue.poll();
+		}
+		assertEquals(120, queue.sizeInBytes());
+		// A copy of the file, as it would be found after a crash. The records after the last checkpoint are replayed.
+		Files.copy(Paths.get(path), Paths.get(path + ".crash"));
+		queue.close();
+
+		PersistentQueue<byte[]> crashed = new PersistentQueue<byte[]>(path + ".crash", 100, true, null);
+		assertEquals(120, crashed.size());
+		assertEquals(120, crashed.sizeInBytes());
+		crashed.close();
+
+		// The queue is recovered from the checkpoint, entries are loaded when consumed
+		queue = new PersistentQueue<byte[]>(path, 100, true, null);
+		assertEquals(120, queue.size());
+		assertEquals(120, queue.sizeInBytes());
+		assertEquals(30, queue.peek()[0]);
+		queue.offer(new byte[]{(byte) 150, 0});
+		int expected = 30;
+		for (byte[] entry : queue) {
+			assertEquals((byte) expected++, entry[0]);
+		}
+		assertEquals(151, expected);
+		assertEquals(30, queue.poll()[0]);
+		assertEquals(121, queue.sizeInBytes());
+		queue.close();
+
+		queue = new PersistentQueue<byte[]>(path, 100, true, null);
+		assertEquals(120, queue.size());
+		assertEquals(121, queue.sizeInBytes());
+		assertEquals(31, queue.poll()[0]);
+		queue.close();
+
+		// A changed content hash discards the entries
+		queue = new PersistentQueue<byte[]>(path, 101, true, null);
+		assertEquals(0, queue.size());
+		queue.close();
+
+		// Files written by previous versions are converted
+		ObjectOutputStream legacy = new ObjectOutputStream(Files.newOutputStream(Paths.get(path)));
+		legacy.writeObject(Integer.valueOf(100));
+		legacy.writeObject(new byte[]{1});
+		legacy.writeObject(new byte[]{2});
+		legacy.close();
+		queue = new PersistentQueue<byte[]>(path, 100, true, null);
+		assertEquals(2, queue.size());
+		assertEquals(2, queue.sizeInBytes());
+		assertEquals(1, queue.poll()[0]);
+		queue.close();
+	}
+
+	@Test
+	public void testPersistentQueueCompaction() throws Exception {
+		String path = driverContext.getDiskPath() + "compaction.que";
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		};
+		PersistentQueue<byte[]> queue = new PersistentQueue<byte[]>(path, 100, true, executor, null);
+		for (int i = 0; i < 60; i++) {
+			queue.offer(new byte[1000]);
+		}
+		for (int i = 0; i < 50; i++) {
+			queue.poll();
+		}
+		long size = Files.size(Paths.get(path));
+
+		// The compaction is started in the background, the queue can be used while it is running
+		assertEquals(1, tasks.size());
+		queue.offer(new byte[]{1});
+		queue.poll();
+		assertEquals(10, queue.size());
+
+		tasks.remove(0).run();
+		assertEquals(0, tasks.size());
+		assertTrue(Files.size(Paths.get(path)) < size / 4);
+		assertEquals(10, queue.size());
+		assertEquals(1, queue.getCompactionCount());
+
+		// A compaction can be forced, but only one runs at a time
+		assertTrue(queue.compact());
+		assertFalse(queue.compact());
+		tasks.remove(0).run();
+		assertEquals(2, queue.getCompactionCount());
+		assertEquals(10, queue.size());
+		for (int i = 0; i < 8; i++) {
+			assertEquals(1000, queue.poll().length);
+		}
+		queue.close();
+
+		queue = new PersistentQueue<byte[]>(path, 100, true, executor, null);
+		assertEquals(2, queue.size());
+		assertEquals(1001, queue.sizeInBytes());
+		assertEquals(1000, queue.poll().length);
+		assertArrayEquals(new byte[]{1}, queue.poll());
+		queue.close();
+	}
+
+	@Test
+	public void testQueueLogCursors() throws Exception {
+		QueueLog queueLog = new QueueLog(driverContext.getDiskPath(), 64, null);
+		CloseableQueue<byte[]> queue1 = queueLog.openQueue(1, 100);
+		CloseableQueue<byte[]> queue2 = queueLog.openQueue(2, 200);
+		for (byte i = 1; i <= 4; i++) {
+			queue1.offer(new byte[]{i, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+			queue2.offer(new byte[]{(byte) (i + 10)});
+		}
+		// Entries are visible before they are written
+		assertEquals(4, queue1.size());
+		assertTrue(((QueueLog.Cursor) queue1).sync());
+		assertTrue(((QueueLog.Cursor) queue2).sync());
+		assertTrue(queueLog.getSegmentCount() > 1);
+
+		// Every folder reads its own entries
+		assertArrayEquals(new byte[]{11}, queue2.poll());
+		assertEquals(1, queue1.peek()[0]);
+		queue1.poll();
+		queue1.close();
+		queue2.close();
+		queueLog.close();
+
+		// The cursors are restored when the log is reopened. A changed content hash discards the entries.
+		queueLog = new QueueLog(driverContext.getDiskPath(), 64, null);
+		queue1 = queueLog.openQueue(1, 100);
+		queue2 = queueLog.openQueue(2, 201);
+		assertEquals(3, queue1.size());
+		assertEquals(2, queue1.peek()[0]);
+		assertEquals(0, queue2.size());
+
+		// Segments are deleted when all cursors moved past them
+		queue1.clear();
+		queue2.offer(new byte[]{20});
+		assertTrue(((QueueLog.Cursor) queue2).sync());
+		queue2.poll();
+		queue2.offer(new byte[]{21});
+		assertEquals(21, queue2.peek()[0]);
+		assertTrue(((QueueLog.Cursor) queue2).sync());
+		assertEquals(1, queueLog.getSegmentCount());
+		queueLog.close();
+
+		// An entry polled right after the offer is removed from the log as well
+		queueLog = new QueueLog(driverContext.getDiskPath(), 64, null);
+		queue2 = queueLog.openQueue(2, 201);
+		assertEquals(21, queue2.poll()[0]);
+		queue2.offer(new byte[]{22});
+		assertEquals(22, queue2.poll()[0]);
+		queue2.offer(new byte[]{23});
+		queueLog.close();
+		queueLog = new QueueLog(driverContext.getDiskPath(), 64, null);
+		queue2 = queueLog.openQueue(2, 201);
+		assertEquals(1, queue2.size());
+		assertEquals(23, queue2.peek()[0]);
+		queueLog.close();
+	}
+
+	@Test
+	public void testQueueLogCompression() throws Exception {
+		byte[] compressible = new byte[1000];
+		for (int i = 0; i < compressible.length; i++) {
+			compressible[i] = (byte) (i % 10);
+		}
+		byte[] random = new byte[100];
+		new Random(1).nextBytes(random);
+		byte[] small = new byte[]{1, 2, 3};
+
+		// Round trip of the codec
+		byte[] compressed = LZCompressor.compress(compressible);
+		assertTrue(compressed.length < 100);
+		assertArrayEquals(compressible, LZCompressor.decompress(compressed, 0, compressed.length, compressible.length));
+		compressed = LZCompressor.compress(random);
+		assertArrayEquals(random, LZCompressor.decompress(compressed, 0, compressed.length, random.length));
+
+		QueueLog queueLog = new QueueLog(driverContext.getDiskPath(), null);
+		QueueLog.Cursor queue = queueLog.openQueue(1, 100, true);
+		queue.offer(compressible);
+		queue.offer(random);
+		queue.offer(small);
+		assertEquals(1103, queue.sizeInBytes());
+		assertTrue(queue.sync());
+		assertEquals(1103, queue.sizeInBytes());
+		assertTrue("Compression ratio too low: " + queue.getCompressionRatio(), queue.getCompressionRatio() > 10);
+		queue.close();
+		queueLog.close();
+
+		// Compressed entries are restored when the log is reopened. The compression setting only affects new entries.
+		queueLog = new QueueLog(driverContext.getDiskPath(), null);
+		queue = queueLog.openQueue(1, 100, false);
+		assertEquals(3, queue.size());
+		assertEquals(1103, queue.sizeInBytes());
+		assertArrayEquals(compressible, queue.poll());
+		assertArrayEquals(random, queue.poll());
+		assertArrayEquals(small, queue.poll());
+		queue.offer(compressible);
+		assertArrayEquals(compressible, queue.peek());
+		queueLog.close();
+	}
+
+	@Test
+	public void testHandshakeTimer() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigQueue.xml");
+		messageConfig.setHandshakeTimeout(3000);
+		messageConfig.setHandshakeResetDelay(1000);
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,1,0,0,0,0,0,0,0,0,65,66}), null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,2,0,0,0,0,0,0,0,0,67,68}), null); // 67,68 == 'CD'
+		folder.activityLevelChanged(true);
+		driverContext.getExecutor().runCommand();
+		assertEquals(uint(1), FolderTestUtils.readValue(folder,"Alias1/_Handshake").getValue().getValue());
+
+		// The handshake timer is started with the configured timeout
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		assertEquals(3000, driverContext.getExecutor().getNextDelayMillis());
+		driverContext.getExecutor().runCommand();
+		assertEquals(uint(0), FolderTestUtils.readValue(folder,"Alias1/_Handshake").getValue().getValue());
+
+		// After the reset delay, the handshake is set back to the message count
+		assertEquals(1000, driverContext.getExecutor().getNextDelayMillis());
+		driverContext.getExecutor().runCommand();
+		assertEquals(uint(1), FolderTestUtils.readValue(folder,"Alias1/_Handshake").getValue().getValue());
+		assertEquals(3000, driverContext.getExecutor().getNextDelayMillis());
+		Runnable staleTimer = driverContext.getExecutor().getNextCommand();
+
+		// Confirming the message cancels the timer and evaluates the next message without delay
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		assertEquals(0, driverContext.getExecutor().getNextDelayMillis());
+		driverContext.getExecutor().runCommand();
+		assertEquals("CD", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_Handshake").getValue().getValue());
+
+		// A timer run that started before it was cancelled does not toggle the handshake of the next message
+		staleTimer.run();
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_Handshake").getValue().getValue());
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		assertEquals(3000, driverContext.getExecutor().getNextDelayMillis());
+
+		folder.shutdown();
+	}
+
+	@Test
+	public void testBatchHandshakeMode() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigQueue.xml");
+		messageConfig.setQueueMode(QueueMode.BATCH_HANDSHAKE);
+		messageConfig.setBatchSize(2);
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+
+		UaVariableNode nodeBatch = (UaVariableNode) driverContext.getNode(buildNodeId("Alias1/_Batch/Data1"));
+		assertNotNull("Folder in Batch Handshake mode should have a _Batch/Data1 tag", nodeBatch);
+		assertEquals(Integer.valueOf(ValueRank.OneDimension.getValue()), nodeBatch.getValueRank());
+		assertNotNull(driverContext.getNode(buildNodeId("Alias1/_Batch/_Timestamp")));
+		assertNotNull(driverContext.getNode(buildNodeId("Alias1/_BatchSequence")));
+		assertNotNull(driverContext.getNode(buildNodeId("Alias1/_Handshake")));
+
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,1,0,0,0,0,0,0,0,0,65,66}), null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,2,0,0,0,0,0,0,0,0,67,68}), null); // 67,68 == 'CD'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,3,0,0,0,0,0,0,0,0,69,70}), null); // 69,70 == 'EF'
+		assertEquals(0, driverContext.getExecutor().getScheduledCount());
+
+		// Now activate the folder
+		folder.activityLevelChanged(true);
+
+		// The folder should evaluate the first batch with 2 messages
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		DataValue value = FolderTestUtils.readValue(folder,"Alias1/_Batch/Data1");
+		assertArrayEquals(new String[]{"AB", "CD"}, (String[]) value.getValue().getValue());
+		value = FolderTestUtils.readValue(folder,"Alias1/_Batch/_Timestamp");
+		assertEquals(2, ((Object[]) value.getValue().getValue()).length);
+		// The configured tag contains the last message of the batch
+		value = FolderTestUtils.readValue(folder,"Alias1/Data1");
+		assertEquals("CD", value.getValue().getValue());
+		assertEquals(uint(1), FolderTestUtils.readValue(folder,"Alias1/_BatchSequence").getValue().getValue());
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_MessageCount").getValue().getValue());
+		// Messages stay in the queue until the handshake is set
+		assertEquals(uint(3), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+
+		// One handshake acknowledges the whole batch
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		assertEquals(uint(1), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		value = FolderTestUtils.readValue(folder,"Alias1/_Batch/Data1");
+		assertArrayEquals(new String[]{"EF"}, (String[]) value.getValue().getValue());
+		assertEquals(uint(2), FolderTestUtils.readValue(folder,"Alias1/_BatchSequence").getValue().getValue());
+
+		FolderTestUtils.writeValue(folder, "Alias1/_Handshake", new Variant(0));
+		assertEquals(uint(0), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+
+		// Queue is empty - the next message is published immediately
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,4,0,0,0,0,0,0,0,0,71,72}), null); // 71,72 == 'GH'
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		value = FolderTestUtils.readValue(folder,"Alias1/_Batch/Data1");
+		assertArrayEquals(new String[]{"GH"}, (String[]) value.getValue().getValue());
+
+		folder.shutdown();
+	}
+
+	@Test
+	public void testDelayedDrainPolicy() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigQueue.xml");
+		messageConfig.setQueueMode(QueueMode.DELAYED);
+		messageConfig.setDrainMessagesPerCycle(1);
+		messageConfig.setDrainMaxBurst(4);
+		messageConfig.setDrainCatchUpThreshold(2);
+
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		assertNotNull("Folder in Delayed mode should have a _QueueDrainRate tag", driverContext.getNode(buildNodeId("Alias1/_QueueDrainRate")));
+
+		// Record all values published to a subscription of Data1
+		final List<Object> published = new ArrayList<Object>();
+		List<SubscriptionItem> subscription = new ArrayList<SubscriptionItem>();
+		subscription.add(new MockSubscriptionItem("Alias1/Data1", 1000) {
+			@Override
+			public void setValue(DataValue value) {
+				super.setValue(value);
+				published.add(value.getValue().getValue());
+			}
+		});
+		folder.changeSubscription(subscription, null);
+		SelfSchedulingRunnable updater = driverContext.getSelfSchedulingRunnable(folder.getFolderAddress(), MessageFolder.UPDATER_COMMAND_NAME);
+		updater.run();
+		published.clear();
+
+		for (int i = 1; i <= 6; i++) {
+			folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,(byte) i,0,0,0,0,0,0,0,0,65,(byte) (64 + i)}), null); // 'AA' ... 'AF'
+		}
+		folder.activityLevelChanged(true);
+		driverContext.getExecutor().runCommand();
+
+		// Subscribing to _MessageCount activates the delayed mode
+		Set<String> items = new HashSet<String>();
+		items.add("Alias1/_MessageCount");
+		folder.subscriptionChanged(1000, items);
+		assertEquals("AA", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+
+		// Queue size 5 exceeds the threshold - 2 messages are released in the first cycle
+		folder.beforeSubscriptionUpdate();
+		folder.beforeSubscriptionUpdate();
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		assertEquals("AC", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		assertEquals(uint(4), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		// The first message of the burst has been published, the last one is published by the next subscription cycle
+		assertEquals(Arrays.asList((Object) "AB"), published);
+
+		// Still catching up - the burst is doubled, but the last message stays in the queue
+		folder.beforeSubscriptionUpdate();
+		folder.beforeSubscriptionUpdate();
+		driverContext.getExecutor().runCommand();
+		assertEquals("AF", FolderTestUtils.readValue(folder,"Alias1/Data1").getValue().getValue());
+		assertEquals(uint(1), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		assertEquals(Arrays.asList((Object) "AB", "AD", "AE"), published);
+		assertTrue((Float) FolderTestUtils.readValue(folder,"Alias1/_QueueDrainRate").getValue().getValue() > 0f);
+
+		// Queue drained
+		folder.beforeSubscriptionUpdate();
+		folder.beforeSubscriptionUpdate();
+		driverContext.getExecutor().runCommand();
+		assertEquals(uint(0), FolderTestUtils.readValue(folder,"Alias1/_QueueSize").getValue().getValue());
+		assertEquals(0f, FolderTestUtils.readValue(folder,"Alias1/_QueueDrainRate").getValue().getValue());
+
+		folder.shutdown();
+	}
+
+	@Test
+	public void testLatencyStatistics() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigSimple.xml");
+		IndexMessageFolder folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
+		LatencyStatistics latency = driverContext.getLatencyStatistics();
+
+		// Read 3ms ago, framed 2ms ago
+		long now = System.nanoTime();
+		MessageEnvelope message = FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66});
+		message.setLatencyStamps(now - 3000000, now - 2000000);
+		folder.messageArrived(message, null);
+		assertEquals(1, latency.getHistogram(Stage.Framing).getCount());
+		assertEquals(1000, latency.getHistogram(Stage.Framing).getMax());
+
+		driverContext.getExecutor().runCommand();
+		assertEquals(1, latency.getHistogram(Stage.Queue).getCount());
+		assertTrue(latency.getHistogram(Stage.Queue).getMax() >= 2000);
+		assertEquals(1, latency.getHistogram(Stage.Evaluation).getCount());
+		assertEquals(0, latency.getHistogram(Stage.Publish).getCount());
+
+		// The first subscription update publishes the message
+		folder.afterSubscriptionUpdate();
+		folder.afterSubscriptionUpdate();
+		assertEquals(1, latency.getHistogram(Stage.Publish).getCount());
+		assertEquals(1, latency.getHistogram(Stage.Total).getCount());
+		assertTrue(latency.getHistogram(Stage.Total).getMax() >= 3000);
+
+		// A message without stamps is only included in the evaluation and publish latency
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,67}), null);
+		driverContext.getExecutor().runCommand();
+		folder.afterSubscriptionUpdate();
+		assertEquals(1, latency.getHistogram(Stage.Framing).getCount());
+		assertEquals(1, latency.getHistogram(Stage.Queue).getCount());
+		assertEquals(2, latency.getHistogram(Stage.Evaluation).getCount());
+		assertEquals(2, latency.getHistogram(Stage.Publish).getCount());
+		assertEquals(1, latency.getHistogram(Stage.Total).getCount());
+	}
+
 	private NodeId buildNodeId(String address) {
 		return new NodeId(1, String.format("[%s]%s", DEVICE_NAME, address));
 	}
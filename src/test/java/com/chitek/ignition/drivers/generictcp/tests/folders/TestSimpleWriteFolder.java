@@ -216,6 +216,117 @@ public class TestSimpleWriteFolder {
 		assertArrayEquals(new byte[]{9, 0,(byte) 0xff,(byte) 0xff,99,0x3f,0x0d,0x03,0x00}, driverContext.getLastWrittenMessage());
 	}
 
+	@Test
+	public void testPrefixPlaceholders() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		WritebackConfig writebackConfig = TestUtils.readWritebackConfig("/testWritebackConfig.xml");
+		writebackConfig.setMessageIdType(OptionalDataType.UInt16);
+		writebackConfig.setDataType(WritebackDataType.UInt16);
+		writebackConfig.setPrefix("id lenb;0x01, lenw, id");
+		writebackConfig.setSendOnValueChange(true);
+		writebackConfig.setSendInitialValue(false);
+		SimpleWriteFolder folder = new SimpleWriteFolder(driverContext, driverSettings, 1, "device1", writebackConfig);
+		
+		// Connect
+		folder.connectionStateChanged(true);
+		
+		FolderTestUtils.writeValue(folder, "device1/[Writeback]/ID", new Variant(0x1234));
+		StatusCode statusCode = FolderTestUtils.writeValue(folder, "device1/[Writeback]/Value", new Variant(0xabcd));
+		assertEquals(StatusCode.GOOD, statusCode);
+		
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		assertArrayEquals(new byte[]{0x12, 0x34, 10, 0x01, 0, 10, 0x12, 0x34, (byte) 0xab, (byte) 0xcd}, driverContext.getLastWrittenMessage());
+	}
+
+	@Test
+	public void testMultiValue() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		WritebackConfig writebackConfig = TestUtils.readWritebackConfig("/testWritebackConfig.xml");
+		writebackConfig.setDataType(WritebackDataType.UInt16);
+		writebackConfig.setSendOnValueChange(true);
+		writebackConfig.setSendInitialValue(false);
+		writebackConfig.setMaxValuesPerMessage(3);
+		writebackConfig.setCoalesceTime(20);
+		SimpleWriteFolder folder = new SimpleWriteFolder(driverContext, driverSettings, 1, "device1", writebackConfig);
+		
+		// Connect
+		folder.activityLevelChanged(true);
+		folder.connectionStateChanged(true);
+		
+		// Values written within the coalesce time are sent in one message
+		FolderTestUtils.writeValue(folder, "device1/[Writeback]/ID", new Variant(1));
+		FolderTestUtils.writeValue(folder, "device1/[Writeback]/Value", new Variant(0x0102));
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		assertEquals(20, driverContext.getExecutor().getNextDelayMillis());
+		FolderTestUtils.writeValue(folder, "device1/[Writeback]/ID", new Variant(2));
+		FolderTestUtils.writeValue(folder, "device1/[Writeback]/Value", new Variant(5));
+		// A value for the same ID replaces the pending value
+		FolderTestUtils.writeValue(folder, "device1/[Writeback]/ID", new Variant(1));
+		FolderTestUtils.writeValue(folder, "device1/[Writeback]/Value", new Variant(7));
+		assertEquals(1, driverContext.getExecutor().getScheduledCount());
+		
+		driverContext.getExecutor().runCommand();
+		assertArrayEquals(new byte[]{0, 11,(byte) 0xff,(byte) 0xff,2, 1,0,7, 2,0,5}, driverContext.getLastWrittenMessage());
+		
+		// A full message is sent immediately
+		for (int i = 3; i <= 5; i++) {
+			FolderTestUtils.writeValue(folder, "device1/[Writeback]/ID", new Variant(i));
+			FolderTestUtils.writeValue(folder, "device1/[Writeback]/Value", new Variant(i));
+		}
+		assertEquals(2, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		assertArrayEquals(new byte[]{0, 14,(byte) 0xff,(byte) 0xff,3, 3,0,3, 4,0,4, 5,0,5}, driverContext.getLastWrittenMessage());
+		driverContext.getExecutor().runCommand();
+		assertEquals(0, driverContext.getExecutor().getScheduledCount());
+		
+		// Write sends the current value, if there are no pending values
+		StatusCode statusCode = FolderTestUtils.writeValue(folder, "device1/[Writeback]/Write", new Variant(true));
+		assertEquals(StatusCode.GOOD, statusCode);
+		driverContext.getExecutor().runCommand();
+		assertArrayEquals(new byte[]{0, 8,(byte) 0xff,(byte) 0xff,1, 5,0,5}, driverContext.getLastWrittenMessage());
+	}
+
+	@Test
+	public void testMultiValueByteId() throws Exception {
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		WritebackConfig writebackConfig = TestUtils.readWritebackConfig("/testWritebackConfig.xml");
+		writebackConfig.setMessageIdType(OptionalDataType.UByte);
+		writebackConfig.setDataType(WritebackDataType.UInt16);
+		writebackConfig.setPrefix("id");
+		writebackConfig.setSendOnValueChange(true);
+		writebackConfig.setSendInitialValue(false);
+		writebackConfig.setMaxValuesPerMessage(1000);
+		writebackConfig.setCoalesceTime(20);
+		SimpleWriteFolder folder = new SimpleWriteFolder(driverContext, driverSettings, 1, "device1", writebackConfig);
+		
+		// Connect
+		folder.activityLevelChanged(true);
+		folder.connectionStateChanged(true);
+		
+		// The number of values has to fit into the 1 byte 'id' placeholder
+		for (int i = 0; i < 255; i++) {
+			FolderTestUtils.writeValue(folder, "device1/[Writeback]/ID", new Variant(i));
+			FolderTestUtils.writeValue(folder, "device1/[Writeback]/Value", new Variant(i));
+		}
+		assertEquals(2, driverContext.getExecutor().getScheduledCount());
+		driverContext.getExecutor().runCommand();
+		byte[] message = driverContext.getLastWrittenMessage();
+		assertEquals(1 + 255 * 3, message.length);
+		assertEquals((byte) 255, message[0]);
+		assertEquals((byte) 254, message[message.length - 3]);
+		
+		for (int i = 0; i < 45; i++) {
+			FolderTestUtils.writeValue(folder, "device1/[Writeback]/ID", new Variant(i));
+			FolderTestUtils.writeValue(folder, "device1/[Writeback]/Value", new Variant(i + 1000));
+		}
+		while (driverContext.getExecutor().getScheduledCount() > 0)
+			driverContext.getExecutor().runCommand();
+		message = driverContext.getLastWrittenMessage();
+		assertEquals(1 + 45 * 3, message.length);
+		assertEquals(45, message[0]);
+	}
+
 	@Test
 	public void testActivityLevel() throws Exception {
 		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
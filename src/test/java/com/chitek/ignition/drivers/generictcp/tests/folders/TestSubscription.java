@@ -2,6 +2,7 @@ package com.chitek.ignition.drivers.generictcp.tests.folders;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -13,6 +14,7 @@ import org.junit.rules.TemporaryFolder;
 
 import com.chitek.ignition.drivers.generictcp.folder.IndexMessageFolder;
 import com.chitek.ignition.drivers.generictcp.folder.MessageFolder;
+import com.chitek.ignition.drivers.generictcp.io.DeviceStatistics;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
 import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
 import com.chitek.ignition.drivers.generictcp.tests.MockDriverContext;
@@ -43,7 +45,7 @@ public class TestSubscription {
 
 		folder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), driverContext);
 		// Send an initial message, so we have a value
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66}, null); // 65,66 == 'AB'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,66}), null); // 65,66 == 'AB'
 		// We have to run the scheduled command to evaluate the message
 		driverContext.getExecutor().runCommand();
 	}
@@ -79,13 +81,72 @@ public class TestSubscription {
 		assertEquals("AB", subscriptionData1.getValue().getValue().getValue());
 		
 		// Send a new message
-		folder.messageArrived(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,67,68}, null); // 675,68 == 'CD'
+		folder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,67,68}), null); // 675,68 == 'CD'
 		// We have to run the scheduled command to evaluate the message
 		driverContext.getExecutor().runCommand();
 		runUpdater();
 		assertEquals("CD", subscriptionData1.getValue().getValue().getValue());
 	}
 	
+	@Test
+	public void testHighPriority() throws Exception {
+		MockDriverContext priorityContext = new MockDriverContext(DEVICE_NAME);
+		DriverSettings driverSettings = new DriverSettings("noHost", 0 , true, 1000, 1000, false, 1, (2^32)-1, OptionalDataType.None);
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigSimple.xml");
+		messageConfig.setHighPriority(true);
+		assertTrue(MessageConfig.fromXMLString(messageConfig.toXMLString()).isHighPriority());
+
+		IndexMessageFolder priorityFolder = new IndexMessageFolder(messageConfig, driverSettings, 0, messageConfig.getMessageAlias(), priorityContext);
+		DeviceStatistics statistics = new DeviceStatistics();
+		priorityFolder.setStatistics(statistics);
+
+		List<SubscriptionItem> items = new ArrayList<SubscriptionItem>();
+		MockSubscriptionItem subscriptionData1 = new MockSubscriptionItem("Alias1/Data1", 1000);
+		MockSubscriptionItem subscriptionCount = new MockSubscriptionItem("Alias1/_MessageCount", 1000);
+		items.add(subscriptionData1);
+		items.add(subscriptionCount);
+		priorityFolder.changeSubscription(items, null);
+		SelfSchedulingRunnable subscriptionUpdater = priorityContext.getSelfSchedulingRunnable(priorityFolder.getFolderAddress(), MessageFolder.UPDATER_COMMAND_NAME);
+		subscriptionUpdater.run();
+
+		// More messages than the pending limit of the normal lane, none is dropped
+		for (int i = 0; i < 20; i++) {
+			priorityFolder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,65,(byte) (65 + i)}), null);
+		}
+		assertEquals(0, statistics.getMessagesDropped());
+		assertEquals(0, priorityContext.getExecutor().getScheduledCount());
+		assertEquals(20, priorityContext.getPriorityExecutor().getScheduledCount());
+
+		// Every message is published without running the subscription updater
+		for (int i = 0; i < 20; i++) {
+			priorityContext.getPriorityExecutor().runCommand();
+			assertEquals("A" + (char) (65 + i), subscriptionData1.getValue().getValue().getValue());
+		}
+
+		// The special items follow with the next run of the updater
+		subscriptionUpdater.run();
+		assertEquals(20L, ((Number) subscriptionCount.getValue().getValue().getValue()).longValue());
+
+		// Sustained priority traffic does not postpone a pending update of the special items
+		priorityFolder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,66,65}), null);
+		priorityContext.getPriorityExecutor().runCommand();
+		assertTrue(subscriptionUpdater.getNextExecDelayMillis() <= 25);
+		Thread.sleep(30);
+		priorityFolder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,66,66}), null);
+		priorityContext.getPriorityExecutor().runCommand();
+		assertEquals(5, subscriptionUpdater.getNextExecDelayMillis());
+		subscriptionUpdater.run();
+		assertEquals(22L, ((Number) subscriptionCount.getValue().getValue().getValue()).longValue());
+
+		// A flooded priority lane discards messages above its own pending limit
+		for (int i = 0; i < IndexMessageFolder.MAX_PENDING_PRIORITY_MESSAGES + 5; i++) {
+			priorityFolder.messageArrived(FolderTestUtils.envelope(new byte[]{0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,67,65}), null);
+		}
+		assertEquals(5, statistics.getMessagesDropped());
+		assertEquals(IndexMessageFolder.MAX_PENDING_PRIORITY_MESSAGES, priorityContext.getPriorityExecutor().getScheduledCount());
+		assertEquals(IndexMessageFolder.MAX_PENDING_PRIORITY_MESSAGES, priorityFolder.getPendingEvaluations());
+	}
+
 	/**
 	 * @return
 	 * 	The scheduled execution rate
@@ -4,30 +4,41 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.junit.Before;
 import org.junit.Test;
 
-import com.chitek.ignition.drivers.generictcp.folder.MessageDataWrapper;
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
 import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
 import com.chitek.ignition.drivers.generictcp.io.IMessageHandler;
 import com.chitek.ignition.drivers.generictcp.io.MessageState;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
 import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
+import com.chitek.ignition.drivers.generictcp.meta.config.MessageConfig;
 import com.chitek.ignition.drivers.generictcp.tests.DriverTestSuite;
 import com.chitek.ignition.drivers.generictcp.tests.MockExecutionManager;
 import com.chitek.ignition.drivers.generictcp.tests.TestUtils;
+import com.chitek.ignition.drivers.generictcp.types.LengthFieldType;
+import com.chitek.ignition.drivers.generictcp.types.MessageType;
 import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
-import com.chitek.ignition.drivers.generictcp.util.VariantByteBuffer;
 import com.inductiveautomation.xopc.driver.util.ByteUtilities;
 
 public class TestMessageState {
@@ -41,10 +52,9 @@ public class TestMessageState {
 	InetSocketAddress remoteSocket;
 	IMessageHandler messageHandler;
 	int messageId;
-	byte[] messageDataRaw;
+	MessageEnvelope messageDataRaw;
 	byte[] messageData;
 	byte[] handshakeData;
-	MessageDataWrapper dataWrapper = new MessageDataWrapper();
 
 	@Before
 	public void setup() throws Exception {
@@ -61,15 +71,12 @@ public class TestMessageState {
 
 		messageHandler = new IMessageHandler() {
 			@Override
-			public void messageReceived(InetSocketAddress remoteSocket, final int id, byte[] data, byte[] handshake) {
+			public void messageReceived(InetSocketAddress remoteSocket, final int id, MessageEnvelope data, byte[] handshake) {
 				messageDataRaw = data;
 				messageId = id;
 				handshakeData = handshake;
 
-				VariantByteBuffer buffer = new VariantByteBuffer(data).order(ByteOrder.BIG_ENDIAN);
-				int dataLength = dataWrapper.evaluateData(buffer);
-				messageData = new byte[dataLength];
-				buffer.get(messageData);
+				messageData = Arrays.copyOfRange(data.getData(), data.getPayloadOffset(), data.getPayloadOffset() + data.getPayloadLength());
 			}
 
 			@Override
@@ -169,6 +176,8 @@ public class TestMessageState {
 		state.addData(data);
 		assertEquals("Count of pending bytes", 0, state.getPendingBytes());
 		assertFalse("No pending data", state.isMessagePending());
+		assertEquals("Invalid headers", 1, state.getStatistics().getInvalidHeaders());
+		assertEquals("Discarded packets", 1, state.getStatistics().getPacketsDiscarded());
 	}
 	
 	@Test(timeout=1000)
@@ -217,10 +226,38 @@ public class TestMessageState {
 
 		assertFalse("Message should be complete", state.isMessagePending());
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 4, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, messageData);
 	}
 
+	@Test
+	public void testFrameEvent() throws Exception {
+		messageHeader = new MessageHeader(new HeaderConfig(), ByteOrder.BIG_ENDIAN);
+		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
+		MessageState state = new MessageState(remoteSocket, null, messageHeader, driverConfig, driverSettings);
+		state.setMessageHandler(messageHandler);
+
+		Path file = Files.createTempFile("frames", ".jfr");
+		try {
+			Recording recording = new Recording();
+			recording.enable("com.chitek.generictcp.FrameDelivered");
+			recording.start();
+			state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 0, 2 }));
+			recording.stop();
+			recording.dump(file);
+			recording.close();
+
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+			assertEquals(1, events.size());
+			assertEquals(remoteSocket.toString(), events.get(0).getString("device"));
+			assertEquals(1, events.get(0).getInt("messageId"));
+			assertEquals(4, events.get(0).getInt("bytes"));
+			assertTrue(events.get(0).getDuration("framingTime").toNanos() >= 0);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
 	@Test
 	public void testSimpleStringMessage() throws Exception {
 
@@ -242,7 +279,7 @@ public class TestMessageState {
 
 		state.addData(data);
 		assertEquals("MessageId", 0, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 2, messageDataRaw.length);
+		assertEquals("Payload length", 2, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{0,1}, messageData);
 		assertEquals("Message should be complete", 0, state.getPendingBytes());
 		assertFalse("No pending message", state.isMessagePending());
@@ -267,7 +304,7 @@ public class TestMessageState {
 
 		assertFalse("Message should be complete", state.isMessagePending());
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2 * 8 + 4, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[] { 0, 1, 0, 2 }, messageData);
 	}
 
@@ -285,14 +322,17 @@ public class TestMessageState {
 
 		assertFalse("No pending message", state.isMessagePending());
 		assertEquals("There should be no delivered message", -1, messageId);
+		assertEquals("Undefined message IDs", 1, state.getStatistics().getUndefinedMessageIds());
 
 		// The next message should evaluate ok
 		data = ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 0, 2 });
 		state.addData(data);
 
 		assertFalse("Message should be complete", state.isMessagePending());
+		assertEquals("Undefined message IDs", 1, state.getStatistics().getUndefinedMessageIds());
+		assertEquals("Discarded packets", 1, state.getStatistics().getPacketsDiscarded());
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 4, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, messageData);
 	}
 
@@ -313,7 +353,7 @@ public class TestMessageState {
 
 		state.addData(data);
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 4+2*8, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		log.info("MessageData: " + ByteUtilities.toString(messageData));
 		assertArrayEquals("Message data", new byte[]{0,2,0,3}, messageData);
 		assertEquals("One message is pending", 6, state.getPendingBytes());
@@ -327,7 +367,7 @@ public class TestMessageState {
 		state.addData(data);
 
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps + remote socket info", 4+2*8, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{1,1,3,3}, messageData);
 		assertEquals("Packet should be complete", 0, state.getPendingBytes());
 	}
@@ -354,7 +394,7 @@ public class TestMessageState {
 
 		state.addData(data);
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 4+2*8, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		log.info("MessageData: " + ByteUtilities.toString(messageData));
 		assertArrayEquals("Message data", new byte[]{0,2,0,3}, messageData);
 		assertEquals("One message is pending", 6, state.getPendingBytes());
@@ -368,7 +408,7 @@ public class TestMessageState {
 		state.addData(data);
 
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 4+2*8, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{1,1,3,3}, messageData);
 		assertEquals("Packet should be complete", 0, state.getPendingBytes());
 	}
@@ -425,7 +465,7 @@ public class TestMessageState {
 
 		state.addData(data);
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 4+2*8, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{0,2,0,3}, messageData);
 		assertEquals("Message should be complete", 0, state.getPendingBytes());
 		assertFalse("No pending message", state.isMessagePending());
@@ -439,7 +479,7 @@ public class TestMessageState {
 		state.addData(data);
 
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 4+2*8, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{1,1,3,3}, messageData);
 		assertEquals("Message should be complete", 0, state.getPendingBytes());
 		assertFalse("No pending message", state.isMessagePending());
@@ -460,7 +500,7 @@ public class TestMessageState {
 
 		state.addData(data);
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 8+2*8, messageDataRaw.length);
+		assertEquals("Payload length", 8, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{0,2,0,3,0,0,0,10}, messageData);
 		assertEquals("Message should be complete", 0, state.getPendingBytes());
 		assertFalse("No pending message", state.isMessagePending());
@@ -497,6 +537,23 @@ public class TestMessageState {
 		assertNotNull("Handshake message should be there", handshakeData);
 		assertArrayEquals("Handshake message", new byte[]{0, 4, (byte) 0xff, (byte) 0xfe}, handshakeData);
 	}
+
+	@Test
+	public void testHandshakeLittleEndian() throws Exception {
+		HeaderConfig headerConfig = TestUtils.readHeaderConfig("/testHeaderConfigHandshake.xml");
+		headerConfig.setHandshakeMsg("lenb, lenw; 0x01 lenw");
+		MessageHeader header = new MessageHeader(headerConfig, ByteOrder.LITTLE_ENDIAN);
+
+		assertFalse("Fixed value does not match", header.evaluateHeader(new byte[]{0x10, 0, 0, (byte) 0xff}));
+		assertTrue("Header valid", header.evaluateHeader(new byte[]{0x10, 0, (byte) 0xff, 0}));
+		assertEquals("Packet size without header", 12, header.getPacketSize());
+		assertArrayEquals("Handshake message", new byte[]{6, 6, 0, 1, 6, 0}, header.getHandshakeMsg());
+
+		// The handshake is passed to other threads, so every header creates a new array
+		byte[] handshake = header.getHandshakeMsg();
+		header.evaluateHeader(new byte[]{0x10, 0, (byte) 0xff, 0});
+		assertNotSame("New handshake array", handshake, header.getHandshakeMsg());
+	}
 	
 	@Test(timeout=1000)
 	public void testTimeout() throws Exception {
@@ -515,7 +572,7 @@ public class TestMessageState {
 		assertEquals("Timeout handler should not be started", 0, executor.getScheduledCount());
 		assertFalse("Message should be complete", state.isMessagePending());
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 4, messageDataRaw.length);
+		assertEquals("Payload length", 4, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, messageData);
 		
 		// send an incomplete message
@@ -536,19 +593,132 @@ public class TestMessageState {
 		state.setMessageHandler(messageHandler);
 		
 		// testMessageConfigPacketBased defines one Int16 tag and then a variable length String with minimal length 3
-		ByteBuffer data = ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 'a', 'b', 'c', 'd' });
+		ByteBuffer data = ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 'a', 'b' });
 		state.addData(data);
 
 		assertEquals("Timeout handler should be started", 1, executor.getScheduledCount());
 		assertTrue("Message should be pending", state.isMessagePending());
-		
-		// execute the timeout handler
+
+		// More data extends the deadline, but does not schedule a new timer
+		long now = System.currentTimeMillis();
+		state.addData(ByteBuffer.wrap(new byte[] { 'c', 'd' }), now);
+		assertEquals("Timeout handler should not be scheduled again", 1, executor.getScheduledCount());
+		assertEquals("Deadline", now + driverSettings.getMessageTimeout(), state.getMessageDeadline());
+
+		// The timer expires before the deadline and is rescheduled
 		executor.runCommand();
+		assertEquals("Timeout handler should be rescheduled", 1, executor.getScheduledCount());
+		assertTrue("Message should be pending", state.isMessagePending());
+
+		state.checkMessageDeadline(state.getMessageDeadline());
 		
 		// Message should be delivered now
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 6, messageDataRaw.length);
+		assertEquals("Payload length", 6, messageDataRaw.getPayloadLength());
 		assertArrayEquals("Message data", new byte[]{0, 1, 'a', 'b', 'c', 'd'}, messageData);
 	}
 	
+
+	@Test(timeout=1000)
+	public void testLengthField() throws Exception {
+		// testMessageConfigPacketBased defines one Int16 tag and then a variable length String with minimal length 3
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigPacketBased.xml");
+		messageConfig.setMessageType(MessageType.LENGTH_FIELD);
+		driverConfig.addMessageConfig(messageConfig);
+
+		MockExecutionManager executor = new MockExecutionManager();
+
+		MessageState state = new MessageState(remoteSocket, executor, null, driverConfig, driverSettings);
+		state.setMessageHandler(messageHandler);
+
+		// The Int16 tag contains the number of following bytes
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0, 4, 'a', 'b', 'c', 'd' }));
+
+		assertEquals("Timeout handler should not be started", 0, executor.getScheduledCount());
+		assertFalse("Message should be complete", state.isMessagePending());
+		assertEquals("MessageId", 1, messageId);
+		assertArrayEquals("Message data", new byte[]{0, 4, 'a', 'b', 'c', 'd'}, messageData);
+
+		// Message split over multiple packets, the second packet contains the start of the next message
+		messageId = -1;
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0 }));
+		state.addData(ByteBuffer.wrap(new byte[] { 5, 'a', 'b' }));
+		assertTrue("Message should be pending", state.isMessagePending());
+		assertEquals("Remaining bytes", 3, state.getPendingBytes());
+		state.addData(ByteBuffer.wrap(new byte[] { 'c', 'd', 'e', 0, 1, 0, 3 }));
+		assertEquals("MessageId", 1, messageId);
+		assertArrayEquals("Message data", new byte[]{0, 5, 'a', 'b', 'c', 'd', 'e'}, messageData);
+		assertTrue("Next message should be pending", state.isMessagePending());
+		state.addData(ByteBuffer.wrap(new byte[] { 'x', 'y', 'z' }));
+		assertFalse("Message should be complete", state.isMessagePending());
+		assertArrayEquals("Message data", new byte[]{0, 3, 'x', 'y', 'z'}, messageData);
+
+		// A length shorter than the configured tags is invalid
+		messageId = -1;
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 'a', 0, 1, 0, 3, 'x', 'y', 'z' }));
+		assertEquals("Message should be discarded", -1, messageId);
+		assertFalse("No pending message", state.isMessagePending());
+
+		assertEquals("Timeout handler should not be started", 0, executor.getScheduledCount());
+	}
+
+	@Test(timeout=1000)
+	public void testLengthFieldAdjustment() throws Exception {
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigPacketBased.xml");
+		messageConfig.setMessageType(MessageType.LENGTH_FIELD);
+		messageConfig.setLengthFieldOffset(1);
+		messageConfig.setLengthFieldType(LengthFieldType.UByte);
+		messageConfig.setLengthFieldLittleEndian(true);
+		// The length includes the preceding byte and the length field
+		messageConfig.setLengthFieldAdjustment(-2);
+		driverConfig.addMessageConfig(messageConfig);
+
+		MessageState state = new MessageState(remoteSocket, null, null, driverConfig, driverSettings);
+		state.setMessageHandler(messageHandler);
+
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0, 5, 'a', 'b', 'c', 0, 1, 0, 6, 'a', 'b', 'c', 'd' }));
+		assertEquals("MessageId", 1, messageId);
+		assertArrayEquals("Message data", new byte[]{0, 6, 'a', 'b', 'c', 'd'}, messageData);
+		assertFalse("Message should be complete", state.isMessagePending());
+		assertEquals("Message should be complete", 0, state.getPendingBytes());
+	}
+	
+	@Test(timeout=1000)
+	public void testDelimited() throws Exception {
+		// testMessageConfigPacketBased defines one Int16 tag and then a variable length String with minimal length 3
+		MessageConfig messageConfig = TestUtils.readMessageConfig("/testMessageConfigPacketBased.xml");
+		messageConfig.setMessageType(MessageType.DELIMITED);
+		messageConfig.setDelimiter("0x0D, 0x0A");
+		driverConfig.addMessageConfig(messageConfig);
+
+		MockExecutionManager executor = new MockExecutionManager();
+
+		MessageState state = new MessageState(remoteSocket, executor, null, driverConfig, driverSettings);
+		state.setMessageHandler(messageHandler);
+
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0, 1, 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 13, 10 }));
+		assertEquals("Timeout handler should not be started", 0, executor.getScheduledCount());
+		assertFalse("Message should be complete", state.isMessagePending());
+		assertEquals("MessageId", 1, messageId);
+		assertArrayEquals("Message data", new byte[]{0, 1, 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i'}, messageData);
+
+		// Delimiter split over two packets, the second packet contains the next message
+		messageId = -1;
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0, 2, 'a', 'b', 'c', 13 }));
+		assertTrue("Message should be pending", state.isMessagePending());
+		state.addData(ByteBuffer.wrap(new byte[] { 10, 0, 1, 0, 3, 'x', 13, 'y', 'z', 13, 10 }));
+		assertFalse("Message should be complete", state.isMessagePending());
+		assertEquals("MessageId", 1, messageId);
+		assertArrayEquals("Message data", new byte[]{0, 3, 'x', 13, 'y', 'z'}, messageData);
+
+		// A message shorter than the configured tags is ignored
+		messageId = -1;
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 'a', 13, 10 }));
+		assertEquals("Message should be ignored", -1, messageId);
+		state.addData(ByteBuffer.wrap(new byte[] { 0, 1, 0, 4, 'a', 'b', 'c', 13, 10 }));
+		assertArrayEquals("Message data", new byte[]{0, 4, 'a', 'b', 'c'}, messageData);
+
+		assertEquals("Timeout handler should not be started", 0, executor.getScheduledCount());
+	}
+	
 }
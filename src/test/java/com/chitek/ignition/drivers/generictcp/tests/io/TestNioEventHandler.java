@@ -2,7 +2,10 @@ package com.chitek.ignition.drivers.generictcp.tests.io;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -11,16 +14,23 @@ import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.chitek.ignition.drivers.generictcp.folder.MessageEnvelope;
 import com.chitek.ignition.drivers.generictcp.folder.MessageHeader;
 import com.chitek.ignition.drivers.generictcp.io.IMessageHandler;
+import com.chitek.ignition.drivers.generictcp.io.DeviceStatistics;
+import com.chitek.ignition.drivers.generictcp.io.IDeviceStatisticsProvider;
 import com.chitek.ignition.drivers.generictcp.io.NioEventHandler;
+import com.chitek.ignition.drivers.generictcp.io.TrafficCaptureReader;
+import com.chitek.ignition.drivers.generictcp.io.TrafficCaptureReader.Record;
+import com.chitek.ignition.drivers.generictcp.io.TrafficRecorder;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverConfig;
 import com.chitek.ignition.drivers.generictcp.meta.config.DriverSettings;
 import com.chitek.ignition.drivers.generictcp.meta.config.HeaderConfig;
 import com.chitek.ignition.drivers.generictcp.tests.DriverTestSuite;
-import com.chitek.ignition.drivers.generictcp.tests.MockExecutionManager;
 import com.chitek.ignition.drivers.generictcp.tests.TestUtils;
 import com.chitek.ignition.drivers.generictcp.types.OptionalDataType;
 
@@ -34,10 +44,12 @@ public class TestNioEventHandler {
 
 	IMessageHandler messageHandler;
 	int messageId=-1;
-	byte[] messageData;
+	MessageEnvelope messageData;
 	byte[] handshakeData;
 	InetSocketAddress receivedRemoteSocket;
 
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
 
 	@Before
 	public void setup() throws Exception {
@@ -52,7 +64,7 @@ public class TestNioEventHandler {
 
 		messageHandler = new IMessageHandler() {
 			@Override
-			public void messageReceived(InetSocketAddress remoteSocket, final int id, byte[] data, byte[] handshake) {
+			public void messageReceived(InetSocketAddress remoteSocket, final int id, MessageEnvelope data, byte[] handshake) {
 				messageId = id;
 				messageData = data;
 				handshakeData = handshake;
@@ -81,7 +93,7 @@ public class TestNioEventHandler {
 
 		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
 
-		NioEventHandler handler = new NioEventHandler(log, null, driverConfig, driverSettings, messageHeader, messageHandler);
+		NioEventHandler handler = new NioEventHandler(log, driverConfig, driverSettings, messageHeader, messageHandler);
 		ByteBuffer data = ByteBuffer.allocate(20);
 		data.putShort((short) 10);	 // The packet size (Header + 1 message)
 		data.putShort((short) 0xff); // The fixed word
@@ -90,8 +102,8 @@ public class TestNioEventHandler {
 		InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,1}), 1999);
 		handler.dataArrived(remoteSocket, data, 0);
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 4, messageData.length);
-		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, Arrays.copyOfRange(messageData, 16, 20));
+		assertEquals("Payload length", 4, messageData.getPayloadLength());
+		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, Arrays.copyOfRange(messageData.getData(), messageData.getPayloadOffset(), messageData.getPayloadOffset() + 4));
 		assertEquals(remoteSocket, receivedRemoteSocket);
 	}
 
@@ -100,21 +112,24 @@ public class TestNioEventHandler {
 
 		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfigPacketBased.xml"));
 
-		MockExecutionManager executor = new MockExecutionManager();
-		NioEventHandler handler = new NioEventHandler(log, executor, driverConfig, driverSettings, null, messageHandler);
+		NioEventHandler handler = new NioEventHandler(log, driverConfig, driverSettings, null, messageHandler);
 		ByteBuffer data = ByteBuffer.allocate(20);
 		data.put(new byte[] { 0, 1, 0, 1, 'a', 'b', 'c', 'd' });	// Message ID 1
 		data.flip();
 		InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,1}), 1999);
+		long start = System.currentTimeMillis();
 		handler.dataArrived(remoteSocket, data, 0);
 		
-		assertEquals("Timeout handler should be started", 1, executor.getScheduledCount());	
-		// execute the timeout handler
-		executor.runCommand();
+		long timeToDeadline = handler.checkDeadlines(start);
+		assertTrue("Deadline should be pending", timeToDeadline > 0);
+		assertEquals("Message should not be delivered before the deadline", -1, messageId);
+
+		// check again after the deadline
+		assertEquals("No more deadlines", 0, handler.checkDeadlines(start + timeToDeadline + driverSettings.getMessageTimeout()));
 		
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 6, messageData.length);
-		assertArrayEquals("Message data", new byte[]{0, 1, 'a', 'b', 'c', 'd'}, Arrays.copyOfRange(messageData, 16, 22));
+		assertEquals("Payload length", 6, messageData.getPayloadLength());
+		assertArrayEquals("Message data", new byte[]{0, 1, 'a', 'b', 'c', 'd'}, Arrays.copyOfRange(messageData.getData(), messageData.getPayloadOffset(), messageData.getPayloadOffset() + 6));
 		assertEquals(remoteSocket, receivedRemoteSocket);
 	}
 	
@@ -123,7 +138,7 @@ public class TestNioEventHandler {
 
 		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
 
-		NioEventHandler handler = new NioEventHandler(log, null, driverConfig, driverSettings, messageHeader, messageHandler);
+		NioEventHandler handler = new NioEventHandler(log, driverConfig, driverSettings, messageHeader, messageHandler);
 		ByteBuffer data1 = ByteBuffer.allocate(20);
 		data1.putShort((short) 10);	 // The packet size (Header + 1 message)
 		data1.putShort((short) 0xff); // The fixed word
@@ -143,8 +158,8 @@ public class TestNioEventHandler {
 		// Complete packet from client 1
 		handler.dataArrived(remoteSocket1, data2, 0);
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 4, messageData.length);
-		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, Arrays.copyOfRange(messageData, 16, 20));
+		assertEquals("Payload length", 4, messageData.getPayloadLength());
+		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, Arrays.copyOfRange(messageData.getData(), messageData.getPayloadOffset(), messageData.getPayloadOffset() + 4));
 		assertEquals(remoteSocket1, receivedRemoteSocket);
 
 		// Complete packet from client 2
@@ -152,9 +167,124 @@ public class TestNioEventHandler {
 		data2.flip();
 		handler.dataArrived(remoteSocket2, data2, 0);
 		assertEquals("MessageId", 1, messageId);
-		assertEquals("Message length including timestamps", 2*8 + 4, messageData.length);
-		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, Arrays.copyOfRange(messageData, 16, 20));
+		assertEquals("Payload length", 4, messageData.getPayloadLength());
+		assertArrayEquals("Message data", new byte[]{0, 1, 0, 2}, Arrays.copyOfRange(messageData.getData(), messageData.getPayloadOffset(), messageData.getPayloadOffset() + 4));
 		assertEquals(remoteSocket2, receivedRemoteSocket);
 	}
 
+	@Test
+	public void testDeviceStatistics() throws Exception {
+
+		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
+
+		final DeviceStatistics statistics = new DeviceStatistics();
+		final InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,1}), 1999);
+		NioEventHandler handler = new NioEventHandler(log, driverConfig, driverSettings, messageHeader, messageHandler);
+		handler.setStatisticsProvider(new IDeviceStatisticsProvider() {
+			@Override
+			public DeviceStatistics getDeviceStatistics(InetSocketAddress socket) {
+				return socket.equals(remoteSocket) ? statistics : null;
+			}
+		});
+
+		handler.clientConnected(remoteSocket);
+		// A valid packet with message ID 1, followed by a packet with an invalid header
+		handler.dataArrived(remoteSocket, ByteBuffer.wrap(new byte[] { 0, 10, 0, (byte) 0xff, 0, 1, 0, 1, 0, 2 }), 10);
+		handler.dataArrived(remoteSocket, ByteBuffer.wrap(new byte[] { 0, 6, 0, 2, 0, 1 }), 6);
+
+		assertEquals("MessageId", 1, messageId);
+		assertEquals("Bytes received", 16, statistics.getBytesReceived());
+		assertEquals("Invalid headers", 1, statistics.getInvalidHeaders());
+		assertEquals("Discarded packets", 1, statistics.getPacketsDiscarded());
+
+		// Data from other devices is not counted
+		InetSocketAddress remoteSocket2 = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,2}), 1999);
+		handler.clientConnected(remoteSocket2);
+		handler.dataArrived(remoteSocket2, ByteBuffer.wrap(new byte[] { 0, 6, 0, 2, 0, 1 }), 6);
+		assertEquals("Bytes received", 16, statistics.getBytesReceived());
+		assertEquals("Invalid headers", 1, statistics.getInvalidHeaders());
+	}
+
+	@Test
+	public void testTrafficRecorder() throws Exception {
+
+		driverConfig.addMessageConfig(TestUtils.readMessageConfig("/testMessageConfig.xml"));
+
+		File folder = testFolder.newFolder();
+		TrafficRecorder recorder = new TrafficRecorder(folder.getPath(), 1024 * 1024, 2, log);
+		NioEventHandler handler = new NioEventHandler(log, driverConfig, driverSettings, messageHeader, messageHandler);
+		handler.setTrafficRecorder(recorder);
+
+		byte[] packet1 = new byte[] { 0, 10, 0, (byte) 0xff };
+		byte[] packet2 = new byte[] { 0, 1, 0, 1, 0, 2 };
+		InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,1}), 1999);
+		handler.clientConnected(remoteSocket);
+		handler.dataArrived(remoteSocket, ByteBuffer.wrap(packet1), 0);
+		handler.dataArrived(remoteSocket, ByteBuffer.wrap(packet2), 0);
+		handler.connectionLost(remoteSocket);
+		recorder.close();
+
+		// The recorder must not consume the data
+		assertEquals("MessageId", 1, messageId);
+
+		TrafficCaptureReader reader = TrafficCaptureReader.forDirectory(folder);
+		Record record = reader.next();
+		assertTrue("Connect record", record.isConnect());
+		assertEquals(remoteSocket, record.getRemoteSocket());
+		int connectionId = record.getConnectionId();
+		long time = record.getTime();
+
+		for (byte[] packet : new byte[][] { packet1, packet2 }) {
+			record = reader.next();
+			assertTrue("Data record", record.isData());
+			assertEquals(connectionId, record.getConnectionId());
+			assertEquals(remoteSocket, record.getRemoteSocket());
+			assertArrayEquals(packet, record.getData());
+			assertTrue("Time must not decrease", record.getTime() >= time);
+			time = record.getTime();
+		}
+
+		record = reader.next();
+		assertTrue("Disconnect record", record.isDisconnect());
+		assertNull("End of capture", reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testTrafficRecorderRotation() throws Exception {
+
+		File folder = testFolder.newFolder();
+		TrafficRecorder recorder = new TrafficRecorder(folder.getPath(), 100, 2, log);
+		InetSocketAddress remoteSocket = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127,0,0,1}), 1999);
+		recorder.connected(remoteSocket);
+		for (int i = 0; i < 20; i++) {
+			byte[] data = new byte[50];
+			Arrays.fill(data, (byte) i);
+			recorder.dataArrived(remoteSocket, ByteBuffer.wrap(data));
+		}
+		recorder.close();
+
+		assertEquals("Only the newest files are kept", 2, TrafficRecorder.listFiles(folder).length);
+
+		// Every file starts with the open connections
+		TrafficCaptureReader reader = TrafficCaptureReader.forDirectory(folder);
+		Record record = reader.next();
+		assertTrue("Connect record", record.isConnect());
+		assertEquals(remoteSocket, record.getRemoteSocket());
+
+		int last = -1;
+		int count = 0;
+		while ((record = reader.next()) != null) {
+			if (record.isData()) {
+				assertEquals(remoteSocket, record.getRemoteSocket());
+				assertTrue("Data records are in order", record.getData()[0] > last);
+				last = record.getData()[0];
+				count++;
+			}
+		}
+		assertEquals("Last record", 19, last);
+		assertTrue("Some records are in the deleted files", count < 20);
+		reader.close();
+	}
+
 }
@@ -9,6 +9,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -16,6 +17,7 @@ import org.apache.log4j.Logger;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.chitek.ignition.drivers.generictcp.diagnostics.ConnectionInfo;
 import com.chitek.ignition.drivers.generictcp.io.IIoEventHandler;
 import com.chitek.ignition.drivers.generictcp.io.NioTcpServer;
 import com.chitek.ignition.drivers.generictcp.tests.DriverTestSuite;
@@ -58,6 +60,11 @@ public class TestNioServer {
 				log.debug("Data arrived");
 				dataLatch.countDown();				
 			}
+
+			@Override
+			public long checkDeadlines(long now) {
+				return 0;
+			}
 			
 		};
 	}
@@ -76,6 +83,11 @@ public class TestNioServer {
 			fail("Timeout while waiting for connect event");
 		}
 		assertEquals("Number of connected clients", 1, server.getConnectedClientCount());
+		List<ConnectionInfo> connections = server.getConnectionInfo();
+		assertEquals(1, connections.size());
+		assertEquals(socket.getLocalSocketAddress().toString(), connections.get(0).getRemoteAddress());
+		assertEquals(0, connections.get(0).getPendingWriteBytes());
+		assertEquals(1, server.getTimeoutInfo().getMonitoredConnections());
 		
 		// Disconnect and wait for the server to call the event handler
 		disconnect(socket);
@@ -83,6 +95,7 @@ public class TestNioServer {
 			fail("Timeout while waiting for disconnect event");
 		}
 		assertEquals("Number of connected clients", 0, server.getConnectedClientCount());
+		assertEquals(0, server.getConnectionInfo().size());
 		
 		server.stop();
 
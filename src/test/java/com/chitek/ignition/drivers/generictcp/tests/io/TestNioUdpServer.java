@@ -63,6 +63,11 @@ public class TestNioUdpServer {
 				dataLatch.countDown();
 			}
 
+			@Override
+			public long checkDeadlines(long now) {
+				return 0;
+			}
+
 		};
 	}
 